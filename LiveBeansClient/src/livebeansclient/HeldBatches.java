@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeansclient;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import livebeanscommon.BatchStamp;
+
+/**
+ * Remote batches and acknowledgements held back because they arrived ahead
+ * of a batch for one of their documents. They are kept in sequence order
+ * and applied as soon as every batch before them has been, so each document
+ * takes its batches strictly in order. Only used on the event thread.
+ *
+ * @author Luke Dawkes
+ */
+final class HeldBatches {
+
+    /**
+     * Most batches held at once. A gap that leaves more waiting is not going
+     * to be filled, and the client must catch up another way.
+     */
+    static final int MAX_HELD_BATCHES = 1024;
+
+    private final NavigableMap<Long, HeldBatch> _heldBatches;
+    private final Predicate<BatchStamp> _isNext;
+
+    /**
+     * @param isNext Whether a batch is the next one for each of its
+     * documents; an acknowledgement, which has no stamp, is tested with null
+     */
+    HeldBatches(Predicate<BatchStamp> isNext) {
+        _heldBatches = new TreeMap<>();
+        _isNext = isNext;
+    }
+
+    /**
+     * Applies a batch now if it is the next for its documents and nothing is
+     * held ahead of it, or holds it until it is, along with everything
+     * sequenced after it
+     *
+     * @param stamp The batch's stamp, or null for an acknowledgement
+     * @param sequence The batch's sequence number
+     * @param apply Applies the batch
+     * @return False if too many batches were held, in which case they have
+     * all been dropped
+     */
+    boolean apply(BatchStamp stamp, long sequence, Runnable apply) {
+        if (_heldBatches.isEmpty() && _isNext.test(stamp)) {
+            apply.run();
+            return true;
+        }
+
+        _heldBatches.put(sequence, new HeldBatch(stamp, apply));
+        release();
+
+        if (_heldBatches.size() > MAX_HELD_BATCHES) {
+            _heldBatches.clear();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Applies the held batches that have become next, in sequence order,
+     * stopping at the first that is still waiting
+     */
+    void release() {
+        while (!_heldBatches.isEmpty() && _isNext.test(_heldBatches.firstEntry().getValue()._stamp)) {
+            _heldBatches.pollFirstEntry().getValue()._apply.run();
+        }
+    }
+
+    int size() {
+        return _heldBatches.size();
+    }
+
+    void clear() {
+        _heldBatches.clear();
+    }
+
+    private static final class HeldBatch {
+
+        private final BatchStamp _stamp;
+        private final Runnable _apply;
+
+        HeldBatch(BatchStamp stamp, Runnable apply) {
+            _stamp = stamp;
+            _apply = apply;
+        }
+    }
+}
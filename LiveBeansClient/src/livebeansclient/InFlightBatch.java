@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeansclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import livebeanscommon.CodeSegmentCodec;
+import livebeanscommon.CrdtCodec;
+import livebeanscommon.CrdtOperation;
+import livebeanscommon.LiveBeansCodeSegment;
+import livebeanscommon.OperationalTransform;
+
+/**
+ * A batch sent to the server and not yet acknowledged, kept as segments so
+ * remote batches can be transformed against it, or in CRDT mode as
+ * operations so their removals can be stamped with its sequence number.
+ *
+ * The frame is kept as it was sent, so a batch sent again is transformed by
+ * the server from the same base. The segments are rebased past every remote
+ * batch that arrives while the batch is in flight, so they always follow
+ * the last batch applied, as the next remote batch was written to.
+ *
+ * @author Luke Dawkes
+ */
+final class InFlightBatch {
+
+    private List<LiveBeansCodeSegment> _codeSegments;
+    private final List<LiveBeansCodeSegment> _sentCodeSegments;
+    private final List<CrdtOperation> _operations;
+    private final byte[] _segmentFrame;
+    private final long _baseSequence;
+    private final int[] _documentIDs;
+
+    InFlightBatch(List<LiveBeansCodeSegment> codeSegments, long baseSequence) {
+        this(codeSegments, Collections.emptyList(), CodeSegmentCodec.encode(codeSegments), baseSequence,
+                codeSegments.stream().mapToInt(LiveBeansCodeSegment::getDocumentID).distinct().toArray());
+    }
+
+    private InFlightBatch(List<LiveBeansCodeSegment> codeSegments, List<CrdtOperation> operations, byte[] segmentFrame, long baseSequence, int[] documentIDs) {
+        _codeSegments = codeSegments;
+        _sentCodeSegments = codeSegments;
+        _operations = operations;
+        _segmentFrame = segmentFrame;
+        _baseSequence = baseSequence;
+        _documentIDs = documentIDs;
+    }
+
+    static InFlightBatch ofOperations(List<CrdtOperation> operations, long baseSequence) {
+        return new InFlightBatch(Collections.emptyList(), operations, CrdtCodec.encode(operations), baseSequence,
+                operations.stream().mapToInt(CrdtOperation::getDocumentID).distinct().toArray());
+    }
+
+    /**
+     * Rewrites a batch from the server to follow the batches in flight, in
+     * the order they were sent, and then the backlog. Each batch in flight
+     * and the backlog are rewritten in turn to follow the remote batch. The
+     * server sequenced the remote batch before any of them, so its text goes
+     * first where both insert at the same offset.
+     *
+     * @param codeSegments The remote batch's segments
+     * @param inFlight The batches in flight, oldest first
+     * @param backlog The edits not yet sent, rewritten in place
+     * @return The remote batch's segments, as they apply to the document
+     */
+    static List<LiveBeansCodeSegment> transform(List<LiveBeansCodeSegment> codeSegments, Iterable<InFlightBatch> inFlight, List<LiveBeansCodeSegment> backlog) {
+        for (InFlightBatch batch : inFlight) {
+            codeSegments = batch.rebase(codeSegments);
+        }
+
+        OperationalTransform.Transformed afterBacklog = OperationalTransform.transform(codeSegments, new ArrayList<>(backlog), true);
+
+        backlog.clear();
+        backlog.addAll(afterBacklog.getConcurrentSegments());
+
+        return afterBacklog.getCodeSegments();
+    }
+
+    /**
+     * Rebases the batch past a remote batch sequenced ahead of it
+     *
+     * @return The remote batch, rewritten to follow this one
+     */
+    private List<LiveBeansCodeSegment> rebase(List<LiveBeansCodeSegment> codeSegments) {
+        if (_codeSegments.isEmpty()) {
+            return codeSegments;
+        }
+
+        OperationalTransform.Transformed transformed = OperationalTransform.transform(codeSegments, _codeSegments, true);
+
+        _codeSegments = transformed.getConcurrentSegments();
+
+        return transformed.getCodeSegments();
+    }
+
+    /**
+     * Puts the batch's segments for a document back as they were sent. The
+     * server applies the batch as written on top of a copy of the document
+     * it resyncs the client with, so the client must do the same.
+     *
+     * @param documentID The document resynced
+     * @return The batch's segments for the document, as they were sent
+     */
+    List<LiveBeansCodeSegment> resetCodeSegments(int documentID) {
+        List<LiveBeansCodeSegment> codeSegments = new ArrayList<>();
+        List<LiveBeansCodeSegment> sentSegments = new ArrayList<>();
+
+        for (LiveBeansCodeSegment codeSegment : _codeSegments) {
+            if (codeSegment.getDocumentID() != documentID) {
+                codeSegments.add(codeSegment);
+            }
+        }
+
+        for (LiveBeansCodeSegment codeSegment : _sentCodeSegments) {
+            if (codeSegment.getDocumentID() == documentID) {
+                sentSegments.add(codeSegment);
+            }
+        }
+
+        codeSegments.addAll(sentSegments);
+        _codeSegments = codeSegments;
+
+        return sentSegments;
+    }
+
+    /**
+     * Gets the batch's segments, rebased past every remote batch that has
+     * arrived since it was sent
+     *
+     * @return The segments
+     */
+    List<LiveBeansCodeSegment> getCodeSegments() {
+        return _codeSegments;
+    }
+
+    List<CrdtOperation> getOperations() {
+        return _operations;
+    }
+
+    byte[] getSegmentFrame() {
+        return _segmentFrame;
+    }
+
+    long getBaseSequence() {
+        return _baseSequence;
+    }
+
+    /**
+     * Gets the documents the batch changes, as it was sent. The server
+     * numbers the batch for each of them even if rebasing has since left it
+     * with nothing to do in one.
+     *
+     * @return The documents' IDs
+     */
+    int[] getDocumentIDs() {
+        return _documentIDs;
+    }
+}
@@ -23,30 +23,53 @@
  */
 package livebeansclient;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.StyledDocument;
 import livebeansclient.gui.TabListener;
 import livebeansclient.gui.TabListenerHandler;
 import livebeansclient.threads.ClientHeartbeat;
 import livebeansclient.threads.CodeSegmentSynchroniser;
+import livebeanscommon.BatchStamp;
+import livebeanscommon.CodeSegmentCodec;
+import livebeanscommon.CrdtCodec;
+import livebeanscommon.CrdtOperation;
+import livebeanscommon.DocumentDictionary;
 import livebeanscommon.ILiveBeansClient;
-import livebeanscommon.ILiveBeansCodeSegment;
 import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.LiveBeansCodeSegment;
+import livebeanscommon.Rope;
+import livebeanscommon.SequenceCrdt;
+import livebeanscommon.SynchronisationMode;
+import livebeanscommon.transport.IClientTransport;
+import livebeanscommon.transport.NioClientTransport;
+import livebeanscommon.transport.RmiClientTransport;
+import livebeanscommon.transport.TransportType;
+import livebeanscommon.transport.UdsClientTransport;
 import org.openide.util.Exceptions;
 
 /**
@@ -57,6 +80,28 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
 
     private static LiveBeansClient _instance;
 
+    /**
+     * How many batches may be waiting for the server's acknowledgement
+     * before new edits are held back in the backlog. Batches in flight are
+     * rebased past each remote batch as it arrives, and the server keeps the
+     * other authors' batches rebased the same way, so a batch can be sent
+     * before the one ahead of it is acknowledged.
+     */
+    private static final int MAX_IN_FLIGHT_BATCHES = 8;
+
+    /**
+     * How long to wait before sending batches again after the server has
+     * said it is too busy to take them
+     */
+    private static final long THROTTLE_DELAY_MILLIS = 250;
+
+    /**
+     * Most characters of inserted text sent in one segment, and in one batch.
+     * Larger pastes are streamed as a run of batches so they never hold up
+     * heartbeats or other clients' edits for long.
+     */
+    public static final int MAX_CHUNK_LENGTH = 32 * 1024;
+
     public static LiveBeansClient getInstance() {
         if (_instance == null) {
             try {
@@ -72,6 +117,8 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
     private int _clientID;
     private String _clientName;
     private ILiveBeansServer _currentServer;
+    private String _serverAddress;
+    private IClientTransport _clientTransport;
     private final String _ipAddressRegex;
     private final Pattern _ipAddressRegexPattern;
     private TabListenerHandler _tabListenerHandler;
@@ -79,7 +126,25 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
 
     private final ScheduledExecutorService _scheduler;
 
-    private final List<ILiveBeansCodeSegment> _segmentBacklog;
+    private final List<LiveBeansCodeSegment> _segmentBacklog;
+    private volatile SynchronisationMode _synchronisationMode;
+    // In CRDT mode, each shared document's replica and the operations made
+    // against them, guarded by the backlog like the segments
+    private final Map<Integer, SequenceCrdt> _replicas;
+    private final List<CrdtOperation> _operationBacklog;
+    private long _operationBaseSequence;
+    private final Object _sendLock;
+    private final ConcurrentNavigableMap<Long, InFlightBatch> _inFlightBatches;
+    private final DocumentDictionary _documents;
+    private final Set<Integer> _subscribedDocuments;
+    // Sequence number of the last batch applied to each subscribed document,
+    // guarded by the backlog
+    private final Map<Integer, Long> _documentSequences;
+    private final HeldBatches _heldBatches;
+    private long _lastBatchID;
+    private volatile long _lastSequence;
+    private volatile boolean _resendInFlight;
+    private final AtomicBoolean _resendScheduled;
 
     private LiveBeansClient() throws RemoteException {
         _ipAddressRegex = "(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)";
@@ -87,86 +152,180 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
 
         _scheduler = Executors.newScheduledThreadPool(2);
         _segmentBacklog = new ArrayList<>();
+        _synchronisationMode = SynchronisationMode.fromSystemProperty();
+        _replicas = new ConcurrentHashMap<>();
+        _operationBacklog = new ArrayList<>();
+        _sendLock = new Object();
+        _inFlightBatches = new ConcurrentSkipListMap<>();
+        _documents = new DocumentDictionary();
+        _subscribedDocuments = ConcurrentHashMap.newKeySet();
+        _documentSequences = new HashMap<>();
+        _heldBatches = new HeldBatches(this::isNextBatch);
+        _resendScheduled = new AtomicBoolean();
     }
 
     /* Code Segment Methods */
     /**
-     * Adds an addition segment to the backlog
+     * Adds an addition segment to the backlog, split into chunks of at most
+     * MAX_CHUNK_LENGTH characters
      *
-     * @param documentName The name of the document the code is in
-     * @param projectName The name of the project the document is in
+     * @param documentID The session ID of the document the code is in
      * @param code The code to be updated
      * @param codeOffset The offset of the updated code within the document
-     * @throws RemoteException
      */
-    public void addSegmentToBacklog(String documentName,
-            String projectName,
-            String code,
-            int codeOffset) throws RemoteException {
-        CodeSegment codeSegment = new CodeSegment();
-        codeSegment.setAuthorID(_clientID);
-        codeSegment.setDocumentName(documentName);
-        codeSegment.setProjectName(projectName);
-        codeSegment.setCodeText(code);
-        codeSegment.setDocumentOffset(codeOffset);
+    public void addSegmentToBacklog(int documentID, String code, int codeOffset) {
+        List<LiveBeansCodeSegment> codeSegments = LiveBeansCodeSegment.insertions(_clientID, documentID, codeOffset, code, MAX_CHUNK_LENGTH);
 
-        _segmentBacklog.add(codeSegment);
+        synchronized (_segmentBacklog) {
+            if (_synchronisationMode == SynchronisationMode.CRDT) {
+                addOperationsToBacklog(documentID, codeSegments);
+            } else {
+                _segmentBacklog.addAll(codeSegments);
+            }
+        }
     }
 
     /**
      * Adds a removal segment to the backlog
      *
-     * @param documentName The name of the document the code is in
-     * @param projectName The name of the project the document is in
+     * @param documentID The session ID of the document the code is in
      * @param codeOffset The offset of the updated code within the document
      * @param codeLength The length of the updated code
-     * @throws RemoteException
      */
-    public void addSegmentToBacklog(String documentName, String projectName, int codeOffset, int codeLength) throws RemoteException {
-        CodeSegment codeSegment = new CodeSegment();
-        codeSegment.setAuthorID(_clientID);
-        codeSegment.setDocumentName(documentName);
-        codeSegment.setProjectName(projectName);
-        codeSegment.setDocumentOffset(codeOffset);
-        codeSegment.setCodeLength(codeLength);
+    public void addSegmentToBacklog(int documentID, int codeOffset, int codeLength) {
+        LiveBeansCodeSegment codeSegment = LiveBeansCodeSegment.removal(_clientID, documentID, codeOffset, codeLength);
+
+        synchronized (_segmentBacklog) {
+            if (_synchronisationMode == SynchronisationMode.CRDT) {
+                addOperationsToBacklog(documentID, Collections.singletonList(codeSegment));
+            } else {
+                _segmentBacklog.add(codeSegment);
+            }
+        }
+    }
+
+    /**
+     * Applies local edits to the document's replica and keeps the operations
+     * they become for the next batch. The operations were made against
+     * everything up to the last sequence number, which the server needs to
+     * know before it can collect anything they might refer to. Called
+     * holding the backlog.
+     */
+    private void addOperationsToBacklog(int documentID, List<LiveBeansCodeSegment> codeSegments) {
+        SequenceCrdt replica = _replicas.get(documentID);
+
+        if (replica == null) {
+            System.out.println(String.format("[CLIENT-WARNING] Document %d has not been shared, its edits cannot be sent", documentID));
+            return;
+        }
 
-        _segmentBacklog.add(codeSegment);
+        if (_operationBacklog.isEmpty()) {
+            _operationBaseSequence = _lastSequence;
+        }
+
+        try {
+            for (LiveBeansCodeSegment codeSegment : codeSegments) {
+                _operationBacklog.add(replica.apply(codeSegment));
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.out.println(String.format("[CLIENT-WARNING] Edit does not fit document %d's replica\r\n%s", documentID, ex));
+        }
     }
 
     /**
-     * Adds an addition segment to the backlog
+     * Gets the session ID of a document, asking the server to assign one the
+     * first time the document is seen
      *
-     * @param documentName The name of the document the code is in
-     * @param code The code to be updated
-     * @param codeOffset The offset of the code within the document
+     * @param projectName The name of the project the document is in, or null
+     * @param documentName The name of the document
+     * @return The document's ID
      * @throws RemoteException
      */
-    public void addSegmentToBacklog(String documentName, String code, int codeOffset) throws RemoteException {
-        CodeSegment codeSegment = new CodeSegment();
-        codeSegment.setAuthorID(_clientID);
-        codeSegment.setDocumentName(documentName);
-        codeSegment.setCodeText(code);
-        codeSegment.setDocumentOffset(codeOffset);
+    public int getDocumentID(String projectName, String documentName) throws RemoteException {
+        int documentID = _documents.getID(projectName, documentName);
 
-        _segmentBacklog.add(codeSegment);
+        if (documentID == DocumentDictionary.NO_ID) {
+            documentID = _currentServer.registerDocument(projectName, documentName);
+            _documents.put(documentID, projectName, documentName);
+        }
+
+        return documentID;
     }
 
     /**
-     * Adds a removal segment to the backlog
+     * Asks the server for other clients' changes to a document, once it is
+     * open in an editor
      *
-     * @param documentName The name of the document the code is in
-     * @param codeOffset The offset of the code within the document
-     * @param codeLength The length of the updated code
-     * @throws RemoteException
+     * @param documentID The session ID of the document
      */
-    public void addSegmentToBacklog(String documentName, int codeOffset, int codeLength) throws RemoteException {
-        CodeSegment codeSegment = new CodeSegment();
-        codeSegment.setDocumentName(documentName);
-        codeSegment.setAuthorID(_clientID);
-        codeSegment.setDocumentOffset(codeOffset);
-        codeSegment.setCodeLength(codeLength);
+    public void subscribeDocument(int documentID) {
+        if (!_subscribedDocuments.add(documentID)) {
+            return;
+        }
 
-        _segmentBacklog.add(codeSegment);
+        try {
+            _currentServer.subscribeDocument(_clientID, documentID);
+        } catch (RemoteException ex) {
+            System.out.println(String.format("[CLIENT-WARNING] Failed to subscribe to document %d\r\n%s", documentID, ex));
+        }
+    }
+
+    /**
+     * Shares a document's text with the server when it is first opened, so
+     * the server has a copy to apply everyone's changes to
+     *
+     * @param documentID The session ID of the document
+     * @param documentText The text of the document as it was opened
+     */
+    public void submitDocumentText(int documentID, String documentText) {
+        // Every client seeds its replica from the same text with the same
+        // identifiers, so needs no more than the text to start from
+        if (_synchronisationMode == SynchronisationMode.CRDT) {
+            synchronized (_segmentBacklog) {
+                _replicas.put(documentID, SequenceCrdt.of(documentID, documentText));
+            }
+        }
+
+        try {
+            _currentServer.submitDocumentText(_clientID, documentID, documentText);
+        } catch (RemoteException ex) {
+            System.out.println(String.format("[CLIENT-WARNING] Failed to share document %d\r\n%s", documentID, ex));
+        }
+    }
+
+    /**
+     * Stops other clients' changes to a document, once its last editor is
+     * closed
+     *
+     * @param documentID The session ID of the document
+     */
+    public void unsubscribeDocument(int documentID) {
+        if (!_subscribedDocuments.remove(documentID)) {
+            return;
+        }
+
+        // Nothing more arrives for the document, so its replica would only
+        // go stale, and its sequence number starts again from whichever
+        // batch arrives first if it is opened again
+        _replicas.remove(documentID);
+
+        synchronized (_segmentBacklog) {
+            _documentSequences.remove(documentID);
+        }
+
+        // Batches held back for the document need wait no longer
+        SwingUtilities.invokeLater(_heldBatches::release);
+
+        try {
+            _currentServer.unsubscribeDocument(_clientID, documentID);
+        } catch (RemoteException ex) {
+            System.out.println(String.format("[CLIENT-WARNING] Failed to unsubscribe from document %d\r\n%s", documentID, ex));
+        }
+    }
+
+    @Override
+    public void addDocumentMapping(int documentID, String projectName, String documentName) throws RemoteException {
+        _documents.put(documentID, projectName, documentName);
     }
 
     @Override
@@ -191,9 +350,21 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
         }
 
         try {
-            Registry reg = LocateRegistry.getRegistry(serverAddress);
+            _clientTransport = createTransport(TransportType.fromSystemProperty());
+            _synchronisationMode = SynchronisationMode.fromSystemProperty();
+            _replicas.clear();
+
+            synchronized (_segmentBacklog) {
+                _documentSequences.clear();
+            }
 
-            _currentServer = (ILiveBeansServer) reg.lookup("LiveBeansServer");
+            SwingUtilities.invokeLater(_heldBatches::clear);
+            _inFlightBatches.clear();
+            _lastSequence = 0;
+            _resendInFlight = false;
+            _subscribedDocuments.clear();
+            _serverAddress = serverAddress;
+            _currentServer = _clientTransport.connect(serverAddress, Registry.REGISTRY_PORT, this);
             _currentServer.registerClient(this);
 
             _scheduler.scheduleAtFixedRate(new ClientHeartbeat(), 2, 2, TimeUnit.SECONDS);
@@ -203,7 +374,9 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
             _tabListener = TabListener.getInstance();
 
             System.out.println("[CLIENT-INFO] Found Server.");
-        } catch (NotBoundException ex) {
+        } catch (RemoteException ex) {
+            throw ex;
+        } catch (IOException ex) {
             System.out.println(ex.getMessage());
             return;
         }
@@ -211,6 +384,81 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
         System.out.println(String.format("[CLIENT-INFO] Current server is %s", _currentServer == null ? "null" : "not null"));
     }
 
+    private IClientTransport createTransport(TransportType transportType) {
+        switch (transportType) {
+            case NIO:
+                return new NioClientTransport();
+            case UDS:
+                return new UdsClientTransport();
+            case RMI:
+            default:
+                return new RmiClientTransport();
+        }
+    }
+
+    /**
+     * Reconnects to the current server after the connection was lost, picking
+     * up from the last batch applied. Batches the server had not accepted
+     * before the connection dropped are sent again.
+     *
+     * @return True if the session was resumed, false if the server could no
+     * longer resume it and the client must connect again
+     * @throws RemoteException If the server could not be reached
+     */
+    public boolean resumeSession() throws RemoteException {
+        IClientTransport transport = createTransport(TransportType.fromSystemProperty());
+        ILiveBeansServer server;
+
+        try {
+            server = transport.connect(_serverAddress, Registry.REGISTRY_PORT, this);
+        } catch (RemoteException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new RemoteException("Failed to reconnect to server", ex);
+        }
+
+        // The server may have taken batches in flight without the
+        // acknowledgement arriving, so their documents cannot count them and
+        // start again from the next batch that arrives
+        synchronized (_segmentBacklog) {
+            for (InFlightBatch batch : _inFlightBatches.values()) {
+                for (int documentID : batch.getDocumentIDs()) {
+                    _documentSequences.remove(documentID);
+                }
+            }
+        }
+
+        // The server sends everything after the last batch applied again,
+        // including any held back waiting for one that never arrived
+        SwingUtilities.invokeLater(_heldBatches::clear);
+
+        long lastBatchID = server.resumeSession(this, _clientID, _lastSequence);
+
+        if (lastBatchID == REJECTED_SEQUENCE) {
+            transport.close();
+            return false;
+        }
+
+        synchronized (_sendLock) {
+            _clientTransport.close();
+            _clientTransport = transport;
+            _currentServer = server;
+
+            // Anything the server already had only lost its acknowledgement
+            _inFlightBatches.headMap(lastBatchID, true).clear();
+            resendInFlightBatches(server);
+        }
+
+        // The server does not carry subscriptions over to the new connection
+        for (Integer documentID : _subscribedDocuments) {
+            server.subscribeDocument(_clientID, documentID);
+        }
+
+        System.out.println(String.format("[CLIENT-INFO] Resumed session from batch %d, resent %d batch(es)", _lastSequence, _inFlightBatches.size()));
+
+        return true;
+    }
+
     public void postConnect() {
         _tabListenerHandler.setUpListeners();
     }
@@ -223,7 +471,10 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
             System.out.println(ex.getMessage());
         } finally {
             _scheduler.shutdown();
+            _clientTransport.close();
             _currentServer = null;
+            _documents.clear();
+            _subscribedDocuments.clear();
         }
     }
 
@@ -247,17 +498,219 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
     }
 
     @Override
-    public void updateLocalCode(List<ILiveBeansCodeSegment> codeSegments) throws RemoteException {
-        System.out.println(String.format("[CLIENT-LOG] Received collection of %d code segments:", codeSegments.size()));
+    public void updateLocalCode(byte[][] segmentFrames, long[] sequences) throws RemoteException {
+        for (int i = 0; i < segmentFrames.length; i++) {
+            updateLocalCode(segmentFrames[i], sequences[i]);
+        }
+    }
+
+    @Override
+    public void updateLocalCode(byte[] segmentFrame, long sequence) throws RemoteException {
+        BatchStamp stamp = null;
+
+        if (BatchStamp.isStamped(segmentFrame)) {
+            try {
+                stamp = BatchStamp.read(segmentFrame);
+            } catch (IllegalArgumentException ex) {
+                System.out.println("[CLIENT-WARNING] Discarded a malformed batch stamp\r\n" + ex);
+                return;
+            }
+
+            segmentFrame = stamp.getFrame();
+        }
+
+        if (CrdtCodec.isCrdtFrame(segmentFrame)) {
+            updateLocalOperations(segmentFrame, stamp, sequence);
+            return;
+        }
+
+        List<LiveBeansCodeSegment> codeSegments;
+
+        try {
+            codeSegments = CodeSegmentCodec.decode(segmentFrame);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("[CLIENT-WARNING] Discarded a malformed code segment frame\r\n" + ex);
+            return;
+        }
+
+        BatchStamp batchStamp = stamp;
+
+        // Batches and acknowledgements are handled on the event thread in the
+        // order they arrive, so a remote edit is never applied halfway
+        // through a local one
+        SwingUtilities.invokeLater(() -> applyInOrder(batchStamp, sequence, () -> applyRemoteBatch(codeSegments, batchStamp, sequence)));
+    }
 
-        for (ILiveBeansCodeSegment codeSegment : codeSegments) {
-            String documentName = codeSegment.getDocumentName();
-            StyledDocument document = _tabListenerHandler.getOpenDocument(documentName);
+    private void updateLocalOperations(byte[] operationFrame, BatchStamp stamp, long sequence) {
+        List<CrdtOperation> operations;
+
+        try {
+            operations = CrdtCodec.decode(operationFrame);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("[CLIENT-WARNING] Discarded a malformed operation frame\r\n" + ex);
+            return;
+        }
+
+        SwingUtilities.invokeLater(() -> applyInOrder(stamp, sequence, () -> applyRemoteOperations(operations, stamp, sequence)));
+    }
+
+    /**
+     * Applies a remote batch or acknowledgement once every batch before it
+     * for its documents has been, holding it back until then. If the gap is
+     * never filled the session is resumed, which sends everything after the
+     * last batch applied again. Only called on the event thread.
+     */
+    private void applyInOrder(BatchStamp stamp, long sequence, Runnable apply) {
+        if (_heldBatches.apply(stamp, sequence, apply)) {
+            return;
+        }
+
+        System.out.println(String.format("[CLIENT-WARNING] Gave up waiting for the batches before batch %d, resuming session", sequence));
+
+        _scheduler.execute(() -> {
+            try {
+                if (!resumeSession()) {
+                    System.out.println("[CLIENT-WARNING] Server could not resume the session");
+                }
+            } catch (RemoteException ex) {
+                System.out.println("[CLIENT-WARNING] Failed to resume session\r\n" + ex);
+            }
+        });
+    }
+
+    /**
+     * Checks whether a remote batch is the next for each document it changes
+     * that this client has a sequence number for. An acknowledgement, which
+     * has no stamp, always is, since the server sends every batch before it
+     * first.
+     */
+    private boolean isNextBatch(BatchStamp stamp) {
+        if (stamp == null) {
+            return true;
+        }
+
+        synchronized (_segmentBacklog) {
+            for (int i = 0; i < stamp.getDocumentCount(); i++) {
+                Long lastSequence = _documentSequences.get(stamp.getDocumentID(i));
+
+                if (lastSequence != null && _subscribedDocuments.contains(stamp.getDocumentID(i))
+                        && stamp.getDocumentSequence(i) > lastSequence + 1) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks a remote batch against the last sequence number applied to each
+     * document it changes. A batch a document has already applied, which a
+     * resumed session can be sent twice, is left out for that document.
+     * Batches are held back until they are next, so none skips a number.
+     * Called holding the backlog.
+     *
+     * @return The documents that have already applied the batch
+     */
+    private Set<Integer> checkDocumentSequences(BatchStamp stamp, long sequence) {
+        if (stamp == null) {
+            return Collections.emptySet();
+        }
+
+        Set<Integer> appliedDocuments = new HashSet<>();
+
+        for (int i = 0; i < stamp.getDocumentCount(); i++) {
+            int documentID = stamp.getDocumentID(i);
+            long documentSequence = stamp.getDocumentSequence(i);
+
+            if (!_subscribedDocuments.contains(documentID)) {
+                continue;
+            }
+
+            Long lastSequence = _documentSequences.get(documentID);
+
+            if (lastSequence != null && documentSequence <= lastSequence) {
+                appliedDocuments.add(documentID);
+                continue;
+            }
+
+            _documentSequences.put(documentID, documentSequence);
+        }
+
+        return appliedDocuments;
+    }
+
+    /**
+     * Applies a batch of another author's CRDT operations to the replicas,
+     * then the segments they come to to the open documents. Operations apply
+     * as they are whatever this client has done since, so nothing is
+     * transformed. Only called on the event thread.
+     */
+    private void applyRemoteOperations(List<CrdtOperation> operations, BatchStamp stamp, long sequence) {
+        List<LiveBeansCodeSegment> codeSegments = new ArrayList<>();
+
+        synchronized (_segmentBacklog) {
+            Set<Integer> appliedDocuments = checkDocumentSequences(stamp, sequence);
+
+            for (CrdtOperation operation : operations) {
+                SequenceCrdt replica = _replicas.get(operation.getDocumentID());
+
+                if (replica == null || appliedDocuments.contains(operation.getDocumentID())) {
+                    continue;
+                }
+
+                try {
+                    codeSegments.addAll(replica.integrate(operation, sequence));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println(String.format("[CLIENT-WARNING] Operation does not fit document %d's replica\r\n%s", operation.getDocumentID(), ex));
+                }
+            }
+
+            _lastSequence = Math.max(_lastSequence, sequence);
+        }
+
+        applyToDocuments(codeSegments, sequence);
+    }
+
+    /**
+     * Transforms a batch from another author against this client's edits
+     * the server has not sequenced yet, then applies it to the open
+     * documents. Only called on the event thread.
+     */
+    private void applyRemoteBatch(List<LiveBeansCodeSegment> remoteSegments, BatchStamp stamp, long sequence) {
+        List<LiveBeansCodeSegment> codeSegments;
+
+        synchronized (_segmentBacklog) {
+            Set<Integer> appliedDocuments = checkDocumentSequences(stamp, sequence);
+
+            if (!appliedDocuments.isEmpty()) {
+                remoteSegments = remoteSegments.stream()
+                        .filter(codeSegment -> !appliedDocuments.contains(codeSegment.getDocumentID()))
+                        .collect(Collectors.toList());
+            }
+
+            codeSegments = transformAgainstLocalEdits(remoteSegments);
+            _lastSequence = Math.max(_lastSequence, sequence);
+        }
+
+        applyToDocuments(codeSegments, sequence);
+    }
+
+    /**
+     * Applies remote segments to the open documents, without them being sent
+     * back as local edits. Only called on the event thread.
+     */
+    private void applyToDocuments(List<LiveBeansCodeSegment> codeSegments, long sequence) {
+        System.out.println(String.format("[CLIENT-LOG] Received collection of %d code segments (#%d):", codeSegments.size(), sequence));
+
+        for (LiveBeansCodeSegment codeSegment : codeSegments) {
+            int documentID = codeSegment.getDocumentID();
+            StyledDocument document = _tabListenerHandler.getOpenDocument(documentID);
 
             if (document != null) {
                 String code = codeSegment.getCodeText();
 
-                if (code == null || code.equals("")) {
+                if (codeSegment.isRemoval()) {
                     // Because no code has been sent across, assume that
                     // the server wants a segment removed from all clients
                     try {
@@ -292,32 +745,356 @@ public class LiveBeansClient extends UnicastRemoteObject implements Serializable
                 // Edit local file
             }
 
-            _tabListenerHandler.saveDocument(documentName);
+            _tabListenerHandler.saveDocument(documentID);
             System.out.println(String.format("\t[CLIENT-LOG] Code segment contains: %s", codeSegment.getCodeText()));
         }
     }
 
+    /**
+     * Rewrites a batch from the server to follow the batches in flight and
+     * the backlog, and rebases them to follow it, so the next remote batch
+     * is transformed against the edits as they now stand. Called holding
+     * the backlog.
+     */
+    private List<LiveBeansCodeSegment> transformAgainstLocalEdits(List<LiveBeansCodeSegment> codeSegments) {
+        return InFlightBatch.transform(codeSegments, _inFlightBatches.values(), _segmentBacklog);
+    }
+
     @Override
-    public void updateRemoteCode() {
-        if (_segmentBacklog.isEmpty()) {
+    public void acknowledgeBatch(long batchID, long sequence) throws RemoteException {
+        if (sequence == THROTTLED_SEQUENCE) {
+            // The batch stays in flight and is sent again, along with the
+            // ones after it, once the server has had a moment to catch up
+            System.out.println(String.format("[CLIENT-INFO] Server is busy, batch %d will be sent again", batchID));
+            _resendInFlight = true;
+
+            if (_resendScheduled.compareAndSet(false, true) && !_scheduler.isShutdown()) {
+                _scheduler.schedule(() -> {
+                    _resendScheduled.set(false);
+                    updateRemoteCode();
+                }, THROTTLE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
             return;
         }
 
-        System.out.println("[CLIENT-INFO] Synchronising...");
+        if (sequence > 0) {
+            SwingUtilities.invokeLater(() -> applyInOrder(null, sequence, () -> applyAcknowledgement(batchID, sequence)));
+        } else {
+            SwingUtilities.invokeLater(() -> applyAcknowledgement(batchID, sequence));
+        }
+    }
 
+    /**
+     * Takes an acknowledged batch out of flight. The server sends every
+     * batch sequenced before it first, so the client has now seen
+     * everything up to its sequence number. Only called on the event thread.
+     */
+    private void applyAcknowledgement(long batchID, long sequence) {
         synchronized (_segmentBacklog) {
+            // Moved on before the batch leaves flight, so the next batch is
+            // never based on a sequence number from before this one
+            if (sequence > _lastSequence) {
+                _lastSequence = sequence;
+            }
+
+            InFlightBatch batch = _inFlightBatches.remove(batchID);
+
+            // Every batch sequenced before this one has arrived, so the
+            // batch is the next one for each of its documents
+            if (batch != null && sequence > 0) {
+                for (int documentID : batch.getDocumentIDs()) {
+                    _documentSequences.computeIfPresent(documentID, (ignored, documentSequence) -> documentSequence + 1);
+                }
+            }
+
+            // The batch's removals can now be collected once every client
+            // is past its sequence number
+            if (batch != null && sequence > 0) {
+                for (CrdtOperation operation : batch.getOperations()) {
+                    SequenceCrdt replica = _replicas.get(operation.getDocumentID());
+
+                    if (replica != null) {
+                        replica.acknowledge(operation, sequence);
+                    }
+                }
+            }
+        }
+
+        if (sequence == REJECTED_SEQUENCE) {
+            System.out.println(String.format("[CLIENT-WARNING] Server rejected batch %d", batchID));
+        }
+
+        // A long paste is waiting on acknowledgements, so send the next part
+        // now rather than on the next synchroniser run
+        if (hasBacklog() && !_scheduler.isShutdown()) {
+            _scheduler.execute(new CodeSegmentSynchroniser());
+        }
+    }
+
+    @Override
+    public void collectGarbage(long sequence) throws RemoteException {
+        SwingUtilities.invokeLater(() -> {
+            int collected = 0;
+
+            synchronized (_segmentBacklog) {
+                for (SequenceCrdt replica : _replicas.values()) {
+                    collected += replica.collectGarbage(sequence);
+                }
+            }
+
+            System.out.println(String.format("[CLIENT-INFO] Collected %d removed character(s) up to batch %d", collected, sequence));
+        });
+    }
+
+    @Override
+    public void resyncDocument(int documentID, String text, long documentSequence, long sequence, long lastBatchID) throws RemoteException {
+        SwingUtilities.invokeLater(() -> applyResync(documentID, text, documentSequence, sequence, lastBatchID));
+    }
+
+    /**
+     * Replaces a document's text with the server's copy. The batches in the
+     * copy leave flight; those after it and the backlog are applied again on
+     * top, as they were written, as the server will apply them. Only called
+     * on the event thread.
+     */
+    private void applyResync(int documentID, String text, long documentSequence, long sequence, long lastBatchID) {
+        Rope rope = Rope.of(text);
+
+        synchronized (_segmentBacklog) {
+            if (!_subscribedDocuments.contains(documentID)) {
+                return;
+            }
+
+            _inFlightBatches.headMap(lastBatchID, true).clear();
+
+            for (InFlightBatch batch : _inFlightBatches.values()) {
+                for (LiveBeansCodeSegment codeSegment : batch.resetCodeSegments(documentID)) {
+                    rope = rope.apply(codeSegment);
+                }
+            }
+
+            for (LiveBeansCodeSegment codeSegment : _segmentBacklog) {
+                if (codeSegment.getDocumentID() == documentID) {
+                    rope = rope.apply(codeSegment);
+                }
+            }
+
+            _documentSequences.put(documentID, documentSequence);
+            _lastSequence = Math.max(_lastSequence, sequence);
+        }
+
+        StyledDocument document = _tabListenerHandler.getOpenDocument(documentID);
+
+        if (document != null) {
             try {
-                _currentServer.distributeCodeSegments(_segmentBacklog, _clientID);
+                _tabListener.setPaused(true);
+                document.remove(0, document.getLength());
+                document.insertString(0, rope.toString(), null);
+            } catch (BadLocationException ex) {
+                System.out.println("[CLIENT-WARNING] Failed to replace document text\r\n" + ex);
+            } finally {
+                _tabListener.setPaused(false);
+            }
+        }
 
-                System.out.println(String.format("[CLIENT-INFO] Synchronised %d code segment(s)", _segmentBacklog.size()));
+        _tabListenerHandler.saveDocument(documentID);
+        System.out.println(String.format("[CLIENT-INFO] Resynced document %d at batch %d", documentID, sequence));
 
-                _segmentBacklog.clear();
+        // Batches held back for the document may follow the copy
+        _heldBatches.release();
+    }
 
-            } catch (RemoteException ex) {
-                System.out.println("[CLIENT-WARNING] There was an error synchronising the code segments\r\n" + ex);
+    /**
+     * Tells the server how far this client has got, in CRDT mode: the last
+     * sequence number applied, or the base of the oldest operation the
+     * server has not acknowledged if that is lower, since the operation may
+     * refer to characters removed after it
+     *
+     * @throws RemoteException
+     */
+    public void acknowledgeVersion() throws RemoteException {
+        if (_synchronisationMode != SynchronisationMode.CRDT) {
+            return;
+        }
+
+        long version;
+
+        synchronized (_segmentBacklog) {
+            version = _lastSequence;
+
+            if (!_operationBacklog.isEmpty()) {
+                version = Math.min(version, _operationBaseSequence);
+            }
+
+            for (InFlightBatch batch : _inFlightBatches.values()) {
+                version = Math.min(version, batch.getBaseSequence());
+            }
+        }
+
+        _currentServer.acknowledgeVersion(_clientID, version);
+    }
+
+    /**
+     * Gets the sequence number of the last batch received from the server,
+     * or given to one of this client's batches
+     *
+     * @return The sequence number, or 0 if nothing has been received
+     */
+    public long getLastSequence() {
+        return _lastSequence;
+    }
+
+    /**
+     * Gets the number of batches sent but not yet acknowledged by the server
+     *
+     * @return The number of batches in flight
+     */
+    public int getInFlightBatchCount() {
+        return _inFlightBatches.size();
+    }
+
+    @Override
+    public void updateRemoteCode() {
+        // Batches must reach the server in the order they were numbered
+        synchronized (_sendLock) {
+            if (_resendInFlight && !resendInFlightBatches(_currentServer)) {
+                return;
+            }
+
+            while (hasBacklog()) {
+                if (_inFlightBatches.size() >= MAX_IN_FLIGHT_BATCHES) {
+                    System.out.println(String.format("[CLIENT-INFO] Waiting for the server to acknowledge %d batches", _inFlightBatches.size()));
+                    return;
+                }
+
+                if (!sendNextBatch()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean sendNextBatch() {
+        InFlightBatch inFlight;
+        long batchID;
+        int segmentCount;
+
+        // Only hold the backlog while taking the batch, so typing is never
+        // blocked on the network. The backlog has been transformed against
+        // every batch up to the last sequence number, which makes that the
+        // batch's base.
+        synchronized (_segmentBacklog) {
+            if (_operationBacklog.isEmpty()) {
+                segmentCount = countNextBatch();
+
+                List<LiveBeansCodeSegment> batch = _segmentBacklog.subList(0, segmentCount);
+                inFlight = new InFlightBatch(new ArrayList<>(batch), _lastSequence);
+                batch.clear();
+            } else {
+                segmentCount = countNextOperations();
+
+                List<CrdtOperation> batch = _operationBacklog.subList(0, segmentCount);
+                inFlight = InFlightBatch.ofOperations(new ArrayList<>(batch), _operationBaseSequence);
+                batch.clear();
+            }
+
+            batchID = ++_lastBatchID;
+            _inFlightBatches.put(batchID, inFlight);
+        }
+
+        try {
+            _currentServer.distributeCodeSegments(inFlight.getSegmentFrame(), _clientID, batchID, inFlight.getBaseSequence());
+
+            System.out.println(String.format("[CLIENT-INFO] Sent %d code segment(s) as batch %d", segmentCount, batchID));
+            return true;
+        } catch (RemoteException ex) {
+            System.out.println("[CLIENT-WARNING] There was an error synchronising the code segments\r\n" + ex);
+
+            // The server may have got the batch anyway, so it is sent again
+            // under the same ID, which the server ignores if it is a repeat
+            _resendInFlight = true;
+            return false;
+        }
+    }
+
+    /**
+     * Counts how many segments from the front of the backlog go in the next
+     * batch: as many as fit in MAX_CHUNK_LENGTH characters of text, and always
+     * at least one. Called holding the backlog.
+     */
+    private int countNextBatch() {
+        int segmentCount = 0;
+        int textLength = 0;
+
+        for (LiveBeansCodeSegment codeSegment : _segmentBacklog) {
+            if (!codeSegment.isRemoval()) {
+                textLength += codeSegment.getCodeLength();
+            }
+
+            if (segmentCount > 0 && textLength > MAX_CHUNK_LENGTH) {
+                break;
             }
+
+            segmentCount++;
         }
 
+        return segmentCount;
+    }
+
+    /**
+     * Counts how many operations from the front of the operation backlog go
+     * in the next batch, in the same way as countNextBatch. Called holding
+     * the backlog.
+     */
+    private int countNextOperations() {
+        int operationCount = 0;
+        int textLength = 0;
+
+        for (CrdtOperation operation : _operationBacklog) {
+            if (!operation.isRemoval()) {
+                textLength += operation.getLength();
+            }
+
+            if (operationCount > 0 && textLength > MAX_CHUNK_LENGTH) {
+                break;
+            }
+
+            operationCount++;
+        }
+
+        return operationCount;
+    }
+
+    private boolean hasBacklog() {
+        synchronized (_segmentBacklog) {
+            return !_segmentBacklog.isEmpty() || !_operationBacklog.isEmpty();
+        }
+    }
+
+    /**
+     * Sends every unacknowledged batch again, in order
+     *
+     * @param server The server to send to
+     * @return True if every batch was sent
+     */
+    private boolean resendInFlightBatches(ILiveBeansServer server) {
+        try {
+            for (Long batchID : _inFlightBatches.keySet()) {
+                InFlightBatch batch = _inFlightBatches.get(batchID);
+
+                if (batch != null) {
+                    server.distributeCodeSegments(batch.getSegmentFrame(), _clientID, batchID, batch.getBaseSequence());
+                }
+            }
+
+            _resendInFlight = false;
+            return true;
+        } catch (RemoteException ex) {
+            System.out.println("[CLIENT-WARNING] Failed to resend unacknowledged code segments\r\n" + ex);
+            _resendInFlight = true;
+            return false;
+        }
     }
 
     public void displayDialog(String title, String message, int messageType) {
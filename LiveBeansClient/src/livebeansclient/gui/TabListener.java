@@ -30,9 +30,6 @@ import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import livebeansclient.LiveBeansClient;
-import org.netbeans.api.project.Project;
-import org.netbeans.api.project.ProjectInformation;
-import org.netbeans.api.project.ProjectUtils;
 
 /**
  *
@@ -55,9 +52,7 @@ public class TabListener implements DocumentListener
     }
     private final LiveBeansClient _currentClient;
     private Document _currentDocument;
-    private Project _currentProject;
-    private ProjectInformation _currentProjectInformation;
-    private String _currentDocumentName;
+    private int _currentDocumentID;
 
     private TabListener() throws RemoteException
     {
@@ -69,20 +64,9 @@ public class TabListener implements DocumentListener
         _currentDocument = newDocument;
     }
 
-    public void setCurrentDocumentName(String newDocumentName)
+    public void setCurrentDocumentID(int newDocumentID)
     {
-        _currentDocumentName = newDocumentName;
-    }
-
-    public void setCurrentProject(Project newProject)
-    {
-        if (newProject == null)
-        {
-            return;
-        }
-
-        _currentProject = newProject;
-        _currentProjectInformation = ProjectUtils.getInformation(_currentProject);
+        _currentDocumentID = newDocumentID;
     }
 
     @Override
@@ -100,23 +84,12 @@ public class TabListener implements DocumentListener
 
             System.out.println(String.format("[CLIENT-INFO] Inserted Text: %s", code));
 
-            if (_currentProject == null)
-            {
-                _currentClient.addSegmentToBacklog(_currentDocumentName, code, e.getOffset());
-            }
-            else
-            {
-                _currentClient.addSegmentToBacklog(_currentDocumentName, _currentProjectInformation.getDisplayName(), code, e.getOffset());
-            }
+            _currentClient.addSegmentToBacklog(_currentDocumentID, code, e.getOffset());
         }
         catch (BadLocationException ex)
         {
             System.out.println("[CLIENT-WARNING] Attempted to grab text from invalid point in document");
         }
-        catch (RemoteException ex)
-        {
-            System.out.println("[CLIENT-WARNING] Caught RemoteException when adding code to backlog");
-        }
     }
 
     @Override
@@ -130,21 +103,7 @@ public class TabListener implements DocumentListener
 
         System.out.println(String.format("[CLIENT-INFO] Text Removed: (Offset: %s) (Length: %s)", e.getOffset(), e.getLength()));
 
-        try
-        {
-            if (_currentProject == null)
-            {
-                _currentClient.addSegmentToBacklog(_currentDocumentName, e.getOffset(), e.getLength());
-            }
-            else
-            {
-                _currentClient.addSegmentToBacklog(_currentDocumentName, _currentProjectInformation.getDisplayName(), e.getOffset(), e.getLength());
-            }
-        }
-        catch (RemoteException ex)
-        {
-            System.out.println("[CLIENT-WARNING] Caught RemoteException when adding code to backlog");
-        }
+        _currentClient.addSegmentToBacklog(_currentDocumentID, e.getOffset(), e.getLength());
     }
 
     /*
@@ -30,9 +30,14 @@ import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.StyledDocument;
+import livebeansclient.LiveBeansClient;
 import org.netbeans.api.project.Project;
 import org.netbeans.api.project.ProjectUtils;
 import org.netbeans.api.project.ui.OpenProjects;
@@ -74,10 +79,12 @@ public class TabListenerHandler implements PropertyChangeListener
     private TopComponent _currentTab;
     private StyledDocument _currentTabDocument;
     private final ArrayList<StyledDocument> _openedDocuments;
+    private final HashMap<Integer, EditorCookie> _documentCookies;
 
     private TabListenerHandler()
     {
         _openedDocuments = new ArrayList<>();
+        _documentCookies = new HashMap<>();
     }
 
     /**
@@ -133,6 +140,12 @@ public class TabListenerHandler implements PropertyChangeListener
     @Override
     public void propertyChange(PropertyChangeEvent evt)
     {
+        if (Registry.PROP_TC_CLOSED.equals(evt.getPropertyName()))
+        {
+            editorClosed((TopComponent) evt.getNewValue());
+            return;
+        }
+
         TopComponent activeComponent = _topComponentRegistry.getActivated();
 
         if (activeComponent == _currentTab)
@@ -172,22 +185,25 @@ public class TabListenerHandler implements PropertyChangeListener
                 FileObject documentFileObject = documentStream.getPrimaryFile();
 
                 Project tabProject = getTabProject(documentFileObject);
+                String projectName = tabProject == null ? null : ProjectUtils.getInformation(tabProject).getDisplayName();
+                int documentID = LiveBeansClient.getInstance().getDocumentID(projectName, activeNode.getDisplayName());
 
-                TabListener listenerInstance = TabListener.getInstance();
-                listenerInstance.setCurrentDocument(_currentTabDocument);
-                listenerInstance.setCurrentDocumentName(_currentTab.getActivatedNodes()[0].getDisplayName());
-
-                if (tabProject != null)
+                if (_documentCookies.put(documentID, nodeCookie) == null)
                 {
-                    listenerInstance.setCurrentProject(getTabProject(documentFileObject));
+                    LiveBeansClient.getInstance().subscribeDocument(documentID);
+                    LiveBeansClient.getInstance().submitDocumentText(documentID, _currentTabDocument.getText(0, _currentTabDocument.getLength()));
                 }
 
+                TabListener listenerInstance = TabListener.getInstance();
+                listenerInstance.setCurrentDocument(_currentTabDocument);
+                listenerInstance.setCurrentDocumentID(documentID);
+
                 System.out.println("[CLIENT-INFO] Current Tab Document: " + _currentTabDocument);
 
                 _currentTabDocument.addDocumentListener(listenerInstance);
             }
         }
-        catch (RemoteException | NullPointerException ex)
+        catch (RemoteException | BadLocationException | NullPointerException ex)
         {
             System.out.println(String.format("[CLIENT-WARNING] Caught a %1$s error:\r\n%2$s", ex.getClass().getName(), ex));
         }
@@ -236,9 +252,15 @@ public class TabListenerHandler implements PropertyChangeListener
         return _openedDocuments;
     }
 
-    public StyledDocument getOpenDocument(String documentName)
+    /**
+     * Gets an opened document by its session ID
+     *
+     * @param documentID The ID the server assigned to the document
+     * @return The document, or null if it has not been opened
+     */
+    public StyledDocument getOpenDocument(int documentID)
     {
-        EditorCookie nodeCookie = getEditorCookieForDocument(documentName);
+        EditorCookie nodeCookie = _documentCookies.get(documentID);
 
         if (nodeCookie == null)
         {
@@ -249,25 +271,15 @@ public class TabListenerHandler implements PropertyChangeListener
         return nodeCookie.getDocument();
     }
 
-    private EditorCookie getEditorCookieForDocument(String documentName)
+    public void saveDocument(int documentID)
     {
-        Node[] openNodes = _currentTab.getActivatedNodes();
+        EditorCookie nodeCookie = _documentCookies.get(documentID);
 
-        for (Node openNode : openNodes)
+        if (nodeCookie == null)
         {
-            if (isDocument(openNode) && openNode.getDisplayName().equals(documentName))
-            {
-                return openNode.getLookup().lookup(EditorCookie.class);
-            }
+            return;
         }
 
-        return null;
-    }
-
-    public void saveDocument(String documentName)
-    {
-        EditorCookie nodeCookie = getEditorCookieForDocument(documentName);
-
         try
         {
             nodeCookie.saveDocument();
@@ -278,6 +290,44 @@ public class TabListenerHandler implements PropertyChangeListener
         }
     }
 
+    /**
+     * Unsubscribes from the documents an editor had open, unless another
+     * editor still shows them
+     *
+     * @param closedComponent The editor that was closed
+     */
+    private void editorClosed(TopComponent closedComponent)
+    {
+        if (closedComponent == null || closedComponent.getLookup() == null)
+        {
+            return;
+        }
+
+        EditorCookie closedCookie = closedComponent.getLookup().lookup(EditorCookie.class);
+
+        if (closedCookie == null || closedCookie.getOpenedPanes() != null)
+        {
+            return;
+        }
+
+        Iterator<Map.Entry<Integer, EditorCookie>> cookies = _documentCookies.entrySet().iterator();
+
+        while (cookies.hasNext())
+        {
+            Map.Entry<Integer, EditorCookie> entry = cookies.next();
+
+            if (entry.getValue() == closedCookie)
+            {
+                cookies.remove();
+                _openedDocuments.remove(closedCookie.getDocument());
+
+                LiveBeansClient.getInstance().unsubscribeDocument(entry.getKey());
+
+                System.out.println("[CLIENT-INFO] Closed document " + entry.getKey());
+            }
+        }
+    }
+
     private boolean isDocument(Node node)
     {
         return node.getLookup().lookup(EditorCookie.class) != null;
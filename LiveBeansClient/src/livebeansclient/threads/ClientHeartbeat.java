@@ -37,6 +37,9 @@ public class ClientHeartbeat implements Runnable
     private int _errors = 0;
     private final int _maxErrors = 2;
 
+    // Keep trying to resume for about a minute before giving up
+    private final int _maxResumeErrors = 30;
+
     @Override
     public void run()
     {
@@ -46,6 +49,7 @@ public class ClientHeartbeat implements Runnable
         {
 
             clientInstance.getServer().sendHeartbeat(clientInstance.getID());
+            clientInstance.acknowledgeVersion();
 
             _errors = 0;
         }
@@ -55,12 +59,35 @@ public class ClientHeartbeat implements Runnable
 
             if (++_errors >= _maxErrors)
             {
-                clientInstance.disconnectFromServer();
-                clientInstance.displayDialog("Lost Connection", "Connection to server has been lost, your code is no longer being synchronised", JOptionPane.ERROR_MESSAGE);
+                resume(clientInstance);
+            }
+        }
+    }
+
+    private void resume(LiveBeansClient clientInstance)
+    {
+        try
+        {
+            if (clientInstance.resumeSession())
+            {
+                _errors = 0;
+                return;
             }
 
-            // TODO: Warn client about failure to update server with client status
+            System.out.println("[CLIENT-WARNING] Server could not resume the session");
+        }
+        catch (RemoteException ex)
+        {
+            System.out.println("[CLIENT-WARNING] Failed to resume session\r\n" + ex);
+
+            if (_errors < _maxResumeErrors)
+            {
+                return;
+            }
         }
+
+        clientInstance.disconnectFromServer();
+        clientInstance.displayDialog("Lost Connection", "Connection to server has been lost, your code is no longer being synchronised", JOptionPane.ERROR_MESSAGE);
     }
 
 }
@@ -0,0 +1,101 @@
+package livebeansclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import livebeanscommon.BatchStamp;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Luke Dawkes
+ */
+public class HeldBatchesTest {
+
+    private final Map<Integer, Long> documentSequences = new HashMap<>();
+    private final List<Long> applied = new ArrayList<>();
+
+    private boolean isNext(BatchStamp stamp) {
+        if (stamp == null) {
+            return true;
+        }
+
+        for (int i = 0; i < stamp.getDocumentCount(); i++) {
+            Long lastSequence = documentSequences.get(stamp.getDocumentID(i));
+
+            if (lastSequence != null && stamp.getDocumentSequence(i) > lastSequence + 1) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static BatchStamp stamp(int documentID, long documentSequence) {
+        return BatchStamp.read(BatchStamp.stamp(new byte[0], new int[]{documentID}, new long[]{documentSequence}));
+    }
+
+    private boolean deliver(HeldBatches heldBatches, BatchStamp stamp, long sequence) {
+        return heldBatches.apply(stamp, sequence, () -> {
+            if (stamp != null) {
+                documentSequences.put(stamp.getDocumentID(0), stamp.getDocumentSequence(0));
+            }
+
+            applied.add(sequence);
+        });
+    }
+
+    /**
+     * Test that a batch arriving ahead of the one before it for its document
+     * is held until that one arrives, along with everything sequenced after
+     * it, and that a batch for another document is not held by the gap.
+     */
+    @Test
+    public void testOutOfOrderBatch() {
+        System.out.println("\r\noutOfOrderBatch");
+
+        HeldBatches heldBatches = new HeldBatches(this::isNext);
+
+        documentSequences.put(0, 1L);
+        documentSequences.put(1, 4L);
+
+        assertTrue(deliver(heldBatches, stamp(0, 3), 12));
+        assertTrue(deliver(heldBatches, null, 13));
+        assertEquals(2, heldBatches.size());
+        assertTrue(applied.isEmpty());
+
+        // Sequenced before the held batches, so it goes ahead of them
+        assertTrue(deliver(heldBatches, stamp(1, 5), 10));
+        assertTrue(deliver(heldBatches, stamp(0, 2), 11));
+
+        assertEquals(0, heldBatches.size());
+        assertEquals(Arrays.asList(10L, 11L, 12L, 13L), applied);
+        assertEquals(Long.valueOf(3), documentSequences.get(0));
+    }
+
+    /**
+     * Test that a gap that is never filled drops the held batches once too
+     * many are waiting.
+     */
+    @Test
+    public void testGapNeverFilled() {
+        System.out.println("\r\ngapNeverFilled");
+
+        HeldBatches heldBatches = new HeldBatches(this::isNext);
+
+        documentSequences.put(0, 1L);
+
+        for (int i = 0; i < HeldBatches.MAX_HELD_BATCHES; i++) {
+            assertTrue(deliver(heldBatches, stamp(0, 3 + i), 3 + i));
+        }
+
+        assertFalse(deliver(heldBatches, stamp(0, 3 + HeldBatches.MAX_HELD_BATCHES), 3 + HeldBatches.MAX_HELD_BATCHES));
+        assertEquals(0, heldBatches.size());
+        assertTrue(applied.isEmpty());
+    }
+}
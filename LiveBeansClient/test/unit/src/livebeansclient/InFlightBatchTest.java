@@ -0,0 +1,115 @@
+package livebeansclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import livebeanscommon.LiveBeansCodeSegment;
+import livebeanscommon.Rope;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Luke Dawkes
+ */
+public class InFlightBatchTest {
+
+    private static String apply(String text, List<LiveBeansCodeSegment> codeSegments) {
+        Rope rope = Rope.of(text);
+
+        for (LiveBeansCodeSegment codeSegment : codeSegments) {
+            rope = rope.apply(codeSegment);
+        }
+
+        return rope.toString();
+    }
+
+    /**
+     * Test that two remote batches arriving while a local batch is in flight
+     * are each transformed against the batch as rebased past the ones before
+     * them, so the client ends with the server's text.
+     */
+    @Test
+    public void testRemoteBatchesWhileInFlight() {
+        System.out.println("\r\nremoteBatchesWhileInFlight");
+
+        LiveBeansCodeSegment local = LiveBeansCodeSegment.insertion(1, 0, 3, "X");
+        List<InFlightBatch> inFlight = Collections.singletonList(new InFlightBatch(Collections.singletonList(local), 0));
+        List<LiveBeansCodeSegment> backlog = new ArrayList<>();
+
+        String text = apply("abc", Collections.singletonList(local));
+
+        // The server sequenced both ahead of the local batch, which it turns
+        // into an insertion at 6
+        text = apply(text, InFlightBatch.transform(Collections.singletonList(LiveBeansCodeSegment.insertion(2, 0, 0, "YY")), inFlight, backlog));
+        text = apply(text, InFlightBatch.transform(Collections.singletonList(LiveBeansCodeSegment.insertion(2, 0, 5, "Z")), inFlight, backlog));
+
+        assertEquals("YYabcZX", text);
+        assertEquals(6, inFlight.get(0).getCodeSegments().get(0).getDocumentOffset());
+    }
+
+    /**
+     * Test that a remote batch passes every batch in flight and the backlog
+     * in order, and that each is rebased to follow it.
+     */
+    @Test
+    public void testRemoteBatchPassesQueue() {
+        System.out.println("\r\nremoteBatchPassesQueue");
+
+        LiveBeansCodeSegment first = LiveBeansCodeSegment.insertion(1, 0, 0, "A");
+        LiveBeansCodeSegment second = LiveBeansCodeSegment.removal(1, 0, 2, 2);
+        LiveBeansCodeSegment unsent = LiveBeansCodeSegment.insertion(1, 0, 2, "B");
+        List<InFlightBatch> inFlight = Arrays.asList(
+                new InFlightBatch(Collections.singletonList(first), 0),
+                new InFlightBatch(Collections.singletonList(second), 0));
+        List<LiveBeansCodeSegment> backlog = new ArrayList<>(Collections.singletonList(unsent));
+
+        // Local: "abcd" -> "Aabcd" -> "Aad" -> "AaBd"
+        String text = apply(apply(apply("abcd", Collections.singletonList(first)), Collections.singletonList(second)), backlog);
+
+        LiveBeansCodeSegment remote = LiveBeansCodeSegment.insertion(2, 0, 4, "Z");
+
+        text = apply(text, InFlightBatch.transform(Collections.singletonList(remote), inFlight, backlog));
+
+        // The server's order: the remote batch, then each local batch and
+        // the backlog as rebased past it
+        String server = apply("abcd", Collections.singletonList(remote));
+
+        for (InFlightBatch batch : inFlight) {
+            server = apply(server, batch.getCodeSegments());
+        }
+
+        server = apply(server, backlog);
+
+        assertEquals("AaBdZ", text);
+        assertEquals(server, text);
+    }
+
+    /**
+     * Test that resetting a batch for a resynced document puts back its
+     * segments for that document as they were sent, and leaves the others
+     * rebased.
+     */
+    @Test
+    public void testResetCodeSegments() {
+        System.out.println("\r\nresetCodeSegments");
+
+        LiveBeansCodeSegment first = LiveBeansCodeSegment.insertion(1, 0, 1, "X");
+        LiveBeansCodeSegment second = LiveBeansCodeSegment.insertion(1, 1, 1, "Y");
+        InFlightBatch batch = new InFlightBatch(Arrays.asList(first, second), 0);
+
+        InFlightBatch.transform(Arrays.asList(LiveBeansCodeSegment.insertion(2, 0, 0, "AA"), LiveBeansCodeSegment.insertion(2, 1, 0, "B")),
+                Collections.singletonList(batch), new ArrayList<>());
+
+        List<LiveBeansCodeSegment> sentSegments = batch.resetCodeSegments(0);
+
+        assertEquals(1, sentSegments.size());
+        assertEquals(1, sentSegments.get(0).getDocumentOffset());
+        assertEquals(2, batch.getCodeSegments().size());
+
+        for (LiveBeansCodeSegment codeSegment : batch.getCodeSegments()) {
+            assertEquals(codeSegment.getDocumentID() == 0 ? 1 : 2, codeSegment.getDocumentOffset());
+        }
+    }
+}
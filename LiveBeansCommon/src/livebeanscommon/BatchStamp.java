@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.util.Arrays;
+
+/**
+ * The server's stamp on a batch it has sequenced, written in front of the
+ * batch's frame. For each document the batch changes the stamp holds the
+ * document's sequence number, which counts the batches that have changed
+ * the document, so a client can tell a batch it has already applied from
+ * one that follows a batch it never received. The sequence number the
+ * batch is delivered with orders it against every other document's batches.
+ * It is the batch's Lamport timestamp, since the server numbers each batch
+ * after every batch its author had seen.
+ *
+ * @author Luke Dawkes
+ */
+public final class BatchStamp
+{
+
+    /**
+     * First byte of every stamped frame, which neither a segment frame nor a
+     * CRDT frame starts with
+     */
+    public static final byte VERSION = 65;
+
+    private final int[] _documentIDs;
+    private final long[] _documentSequences;
+    private final byte[] _frame;
+
+    private BatchStamp(int[] documentIDs, long[] documentSequences, byte[] frame)
+    {
+        _documentIDs = documentIDs;
+        _documentSequences = documentSequences;
+        _frame = frame;
+    }
+
+    /**
+     * Checks whether a frame was stamped by the server
+     *
+     * @param frame The encoded frame
+     * @return True if the frame was written by {@link #stamp}
+     */
+    public static boolean isStamped(byte[] frame)
+    {
+        return frame.length > 0 && frame[0] == VERSION;
+    }
+
+    /**
+     * Writes a stamp in front of a batch's frame
+     *
+     * @param frame The batch's frame, as it is delivered
+     * @param documentIDs The documents the batch changes
+     * @param documentSequences Each document's sequence number for the batch
+     * @return The stamped frame
+     */
+    public static byte[] stamp(byte[] frame, int[] documentIDs, long[] documentSequences)
+    {
+        CodeSegmentCodec.FrameWriter writer = new CodeSegmentCodec.FrameWriter(frame.length + 4 + documentIDs.length * 8);
+
+        writer.writeByte(VERSION);
+        writer.writeVarInt(documentIDs.length);
+
+        for (int i = 0; i < documentIDs.length; i++)
+        {
+            writer.writeVarInt(documentIDs[i]);
+            writer.writeVarLong(documentSequences[i]);
+        }
+
+        writer.writeBytes(frame);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Reads the stamp from a frame produced by {@link #stamp}
+     *
+     * @param frame The stamped frame
+     * @return The stamp, holding the batch's own frame
+     * @throws IllegalArgumentException If the frame is malformed or is not
+     * stamped
+     */
+    public static BatchStamp read(byte[] frame)
+    {
+        CodeSegmentCodec.FrameReader reader = new CodeSegmentCodec.FrameReader(frame);
+
+        int version = reader.readByte();
+
+        if (version != VERSION)
+        {
+            throw new IllegalArgumentException(String.format("Unsupported stamp version %d", version));
+        }
+
+        int count = reader.readLength();
+
+        if (count < 0)
+        {
+            throw new IllegalArgumentException(String.format("Stamp has an invalid document count %d", count));
+        }
+
+        if (count > frame.length)
+        {
+            throw new IllegalArgumentException("Segment frame is truncated");
+        }
+
+        int[] documentIDs = new int[count];
+        long[] documentSequences = new long[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            documentIDs[i] = reader.readVarInt();
+            documentSequences[i] = reader.readVarLong();
+        }
+
+        return new BatchStamp(documentIDs, documentSequences, Arrays.copyOfRange(frame, reader.position(), frame.length));
+    }
+
+    /**
+     * Gets the number of documents the batch changes
+     *
+     * @return The number of documents
+     */
+    public int getDocumentCount()
+    {
+        return _documentIDs.length;
+    }
+
+    /**
+     * Gets one of the documents the batch changes
+     *
+     * @param index The position of the document in the stamp
+     * @return The ID of the document
+     */
+    public int getDocumentID(int index)
+    {
+        return _documentIDs[index];
+    }
+
+    /**
+     * Gets the sequence number one of the documents gave the batch
+     *
+     * @param index The position of the document in the stamp
+     * @return The document's sequence number, counting from 1
+     */
+    public long getDocumentSequence(int index)
+    {
+        return _documentSequences[index];
+    }
+
+    /**
+     * Gets the batch's frame without the stamp
+     *
+     * @return The frame, as CodeSegmentCodec or CrdtCodec wrote it
+     */
+    public byte[] getFrame()
+    {
+        return _frame;
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes batches of code segments into compact, versioned byte frames.
+ *
+ * A frame is laid out as:
+ * <pre>
+ *   version  (1 byte)
+ *   flags    (1 byte)
+ *   count    (varint)
+ *   segment* (tag byte, then varint fields)
+ * </pre>
+ * The tag byte says whether the segment is an insertion or a removal, and
+ * whether its author and document differ from the previous segment; unchanged
+ * values are not repeated. Author IDs, document IDs, lengths and text sizes
+ * are unsigned varints. Offsets and author times are zig-zag varints holding the
+ * difference from the previous segment in the batch, so a run of keystrokes
+ * costs a byte or two per field.
+ * <p>
+ * Frames whose segments take up at least COMPRESSION_THRESHOLD bytes, such as
+ * a pasted or reformatted file, are deflated against a preset dictionary of
+ * common Java tokens. The flags byte then has FLAG_DEFLATED set and the count
+ * and segments are replaced by their uncompressed size (varint) and the
+ * deflated bytes. A compressed frame is only kept if it is at least an eighth
+ * smaller; keystroke-sized frames never reach the compressor.
+ *
+ * @author Luke Dawkes
+ */
+public final class CodeSegmentCodec
+{
+
+    public static final byte VERSION = 3;
+
+    public static final int FLAG_DEFLATED = 0x01;
+    static final int FLAG_KNOWN_BITS = FLAG_DEFLATED;
+
+    /**
+     * Smallest segment body, in bytes, that is worth trying to compress
+     */
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * Largest body a compressed frame may claim to inflate to
+     */
+    static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Most bytes deflate can inflate one compressed byte to
+     */
+    static final int MAX_DEFLATE_RATIO = 1032;
+
+    private static final int HEADER_LENGTH = 2;
+
+    /**
+     * Tokens that turn up in most Java sources. Deflate finds matches closest
+     * to the end of the dictionary cheapest, so the commonest come last.
+     */
+    private static final byte[] DICTIONARY = ("synchronized volatile transient native strictfp "
+                                              + "interface implements extends abstract enum instanceof "
+                                              + "throws throw catch (Exception ex) finally try { "
+                                              + "@Override\n    public @SuppressWarnings(\"unchecked\") @Deprecated "
+                                              + "java.util.List; java.util.Map; java.util.ArrayList; java.util.HashMap; "
+                                              + "java.io.IOException; import static import java. package "
+                                              + "Integer Long Boolean Object Override StringBuilder String[] args "
+                                              + "System.out.println(\"\"); .equals( .size() .get( .add( .length() "
+                                              + "else if (  == null) != null) && || ++) i < ; i++) for (int i = 0; "
+                                              + "while ( switch ( case default: break; continue; "
+                                              + "new this. super( null true false "
+                                              + "/**\n     * @param @return @throws \n     */\n "
+                                              + "protected static final private public class void int long boolean byte double float char String "
+                                              + "return ; } }\n\n    }\n    {\n        ) {\n        ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    static final int TAG_REMOVAL = 0x01;
+    static final int TAG_NEW_AUTHOR = 0x02;
+    static final int TAG_NEW_DOCUMENT = 0x04;
+    static final int TAG_KNOWN_BITS = TAG_REMOVAL | TAG_NEW_AUTHOR | TAG_NEW_DOCUMENT;
+
+    private CodeSegmentCodec()
+    {
+    }
+
+    /**
+     * Encodes a batch of segments into a single frame
+     *
+     * @param codeSegments The segments to encode, in the order they were made
+     * @return The encoded frame
+     */
+    public static byte[] encode(List<? extends ILiveBeansCodeSegment> codeSegments)
+    {
+        FrameWriter writer = new FrameWriter(16 + codeSegments.size() * 8);
+
+        writer.writeByte(VERSION);
+        writer.writeByte(0);
+        writer.writeVarInt(codeSegments.size());
+
+        ILiveBeansCodeSegment previous = null;
+        int previousOffset = 0;
+        long previousTime = 0;
+
+        for (ILiveBeansCodeSegment codeSegment : codeSegments)
+        {
+            boolean removal = codeSegment.isRemoval();
+            boolean newAuthor = previous == null || previous.getAuthorID() != codeSegment.getAuthorID();
+            boolean newDocument = previous == null || previous.getDocumentID() != codeSegment.getDocumentID();
+
+            writer.writeByte((removal ? TAG_REMOVAL : 0)
+                             | (newAuthor ? TAG_NEW_AUTHOR : 0)
+                             | (newDocument ? TAG_NEW_DOCUMENT : 0));
+
+            if (newAuthor)
+            {
+                writer.writeVarInt(codeSegment.getAuthorID());
+            }
+
+            writer.writeVarLong(zigZag(codeSegment.getAuthorTime() - previousTime));
+            writer.writeVarLong(zigZag((long) codeSegment.getDocumentOffset() - previousOffset));
+
+            if (newDocument)
+            {
+                writer.writeVarInt(codeSegment.getDocumentID());
+            }
+
+            if (removal)
+            {
+                writer.writeVarInt(codeSegment.getCodeLength());
+            }
+            else
+            {
+                writer.writeString(codeSegment.getCodeText());
+            }
+
+            previous = codeSegment;
+            previousOffset = codeSegment.getDocumentOffset();
+            previousTime = codeSegment.getAuthorTime();
+        }
+
+        byte[] frame = writer.toByteArray();
+
+        return frame.length - HEADER_LENGTH >= COMPRESSION_THRESHOLD ? compress(frame) : frame;
+    }
+
+    /**
+     * Decodes a frame produced by {@link #encode(List)}
+     *
+     * @param frame The encoded frame
+     * @return The segments contained in the frame, in their original order
+     * @throws IllegalArgumentException If the frame is malformed or was
+     * written by an unsupported version
+     */
+    public static List<LiveBeansCodeSegment> decode(byte[] frame)
+    {
+        FrameReader reader = new FrameReader(frame);
+
+        int version = reader.readByte();
+
+        if (version != VERSION)
+        {
+            throw new IllegalArgumentException(String.format("Unsupported segment frame version %d", version));
+        }
+
+        int flags = reader.readByte();
+
+        if ((flags & ~FLAG_KNOWN_BITS) != 0)
+        {
+            throw new IllegalArgumentException(String.format("Unsupported segment frame flags %d", flags));
+        }
+
+        if ((flags & FLAG_DEFLATED) != 0)
+        {
+            reader = new FrameReader(inflate(frame, reader));
+        }
+
+        // Each segment takes at least one byte, so a count larger than the
+        // frame cannot be honest and must not size the list
+        int count = reader.readLength();
+        List<LiveBeansCodeSegment> codeSegments = new ArrayList<>(Math.min(count, frame.length));
+
+        int authorID = 0, documentID = 0, previousOffset = 0;
+        long previousTime = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            int tag = reader.readByte();
+
+            if ((tag & ~TAG_KNOWN_BITS) != 0 || (i == 0 && (tag & (TAG_NEW_AUTHOR | TAG_NEW_DOCUMENT)) != (TAG_NEW_AUTHOR | TAG_NEW_DOCUMENT)))
+            {
+                throw new IllegalArgumentException(String.format("Invalid segment tag %d", tag));
+            }
+
+            if ((tag & TAG_NEW_AUTHOR) != 0)
+            {
+                authorID = reader.readVarInt();
+            }
+
+            long authorTime = previousTime + unZigZag(reader.readVarLong());
+            long documentOffset = previousOffset + unZigZag(reader.readVarLong());
+
+            if (documentOffset < 0 || documentOffset > Integer.MAX_VALUE)
+            {
+                throw new IllegalArgumentException(String.format("Segment frame contains an invalid offset %d", documentOffset));
+            }
+
+            if ((tag & TAG_NEW_DOCUMENT) != 0)
+            {
+                documentID = reader.readVarInt();
+            }
+
+            if ((tag & TAG_REMOVAL) != 0)
+            {
+                int codeLength = reader.readLength();
+                codeSegments.add(new LiveBeansCodeSegment(authorID, authorTime, documentID, (int) documentOffset, codeLength, null));
+            }
+            else
+            {
+                String codeText = reader.readString();
+
+                if (codeText == null)
+                {
+                    throw new IllegalArgumentException("Insertion segment has no code text");
+                }
+
+                codeSegments.add(new LiveBeansCodeSegment(authorID, authorTime, documentID, (int) documentOffset, codeText.length(), codeText));
+            }
+
+            previousOffset = (int) documentOffset;
+            previousTime = authorTime;
+        }
+
+        return codeSegments;
+    }
+
+    /**
+     * Deflates the body of a frame, keeping the original if that does not
+     * save enough to be worth inflating on every recipient
+     */
+    private static byte[] compress(byte[] frame)
+    {
+        int bodyLength = frame.length - HEADER_LENGTH;
+        int maximumLength = frame.length - frame.length / 8;
+
+        FrameWriter writer = new FrameWriter(maximumLength);
+        writer.writeByte(frame[0]);
+        writer.writeByte(frame[1] | FLAG_DEFLATED);
+        writer.writeVarInt(bodyLength);
+
+        Deflater deflater = DEFLATERS.get();
+
+        try
+        {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(frame, HEADER_LENGTH, bodyLength);
+            deflater.finish();
+
+            byte[] chunk = new byte[4096];
+
+            while (!deflater.finished())
+            {
+                int written = deflater.deflate(chunk);
+
+                if (writer.size() + written > maximumLength)
+                {
+                    return frame;
+                }
+
+                writer.writeBytes(chunk, written);
+            }
+        }
+        finally
+        {
+            deflater.reset();
+        }
+
+        return writer.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] frame, FrameReader reader)
+    {
+        int bodyLength = reader.readLength();
+        int compressedLength = frame.length - reader.position();
+
+        // Checked before the body is allocated, so a few bytes claiming a
+        // huge length cannot make the reader set aside that much memory
+        if (bodyLength > MAX_INFLATED_LENGTH || bodyLength > (long) compressedLength * MAX_DEFLATE_RATIO)
+        {
+            throw new IllegalArgumentException(String.format("Compressed segment frame claims an invalid length %d", bodyLength));
+        }
+
+        byte[] body = new byte[bodyLength];
+        Inflater inflater = INFLATERS.get();
+
+        try
+        {
+            inflater.setInput(frame, reader.position(), compressedLength);
+
+            int inflated = inflater.inflate(body);
+
+            if (inflated == 0 && inflater.needsDictionary())
+            {
+                inflater.setDictionary(DICTIONARY);
+                inflated = inflater.inflate(body);
+            }
+
+            while (inflated < bodyLength && !inflater.finished() && !inflater.needsInput())
+            {
+                inflated += inflater.inflate(body, inflated, bodyLength - inflated);
+            }
+
+            if (inflated != bodyLength || !inflater.finished())
+            {
+                throw new IllegalArgumentException("Compressed segment frame does not match its length");
+            }
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IllegalArgumentException("Compressed segment frame is corrupt", ex);
+        }
+        finally
+        {
+            inflater.reset();
+        }
+
+        return body;
+    }
+
+    static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Growable byte buffer with varint helpers
+     */
+    static final class FrameWriter
+    {
+
+        private byte[] _buffer;
+        private int _position;
+
+        FrameWriter(int initialCapacity)
+        {
+            _buffer = new byte[Math.max(initialCapacity, 16)];
+        }
+
+        void writeByte(int value)
+        {
+            ensureCapacity(1);
+            _buffer[_position++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes)
+        {
+            writeBytes(bytes, bytes.length);
+        }
+
+        void writeBytes(byte[] bytes, int length)
+        {
+            ensureCapacity(length);
+            System.arraycopy(bytes, 0, _buffer, _position, length);
+            _position += length;
+        }
+
+        void writeVarInt(int value)
+        {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value)
+        {
+            ensureCapacity(10);
+
+            while ((value & ~0x7FL) != 0)
+            {
+                _buffer[_position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            _buffer[_position++] = (byte) value;
+        }
+
+        /**
+         * Writes a string as its UTF-8 length plus one followed by its bytes,
+         * so that null can be written as a single zero byte
+         */
+        void writeString(String value)
+        {
+            if (value == null)
+            {
+                writeVarInt(0);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            writeBytes(bytes);
+        }
+
+        int size()
+        {
+            return _position;
+        }
+
+        byte[] toByteArray()
+        {
+            return Arrays.copyOf(_buffer, _position);
+        }
+
+        private void ensureCapacity(int extra)
+        {
+            if (_position + extra > _buffer.length)
+            {
+                _buffer = Arrays.copyOf(_buffer, Math.max(_buffer.length * 2, _position + extra));
+            }
+        }
+    }
+
+    /**
+     * Bounds-checked reader over an encoded frame
+     */
+    static final class FrameReader
+    {
+
+        private final byte[] _buffer;
+        private int _position;
+
+        FrameReader(byte[] buffer)
+        {
+            this(buffer, 0);
+        }
+
+        FrameReader(byte[] buffer, int position)
+        {
+            _buffer = buffer;
+            _position = position;
+        }
+
+        int readByte()
+        {
+            if (_position >= _buffer.length)
+            {
+                throw new IllegalArgumentException("Segment frame is truncated");
+            }
+
+            return _buffer[_position++] & 0xFF;
+        }
+
+        int readVarInt()
+        {
+            long value = readVarLong();
+
+            if (value < 0 || value > 0xFFFFFFFFL)
+            {
+                throw new IllegalArgumentException("Segment frame contains an oversized varint");
+            }
+
+            return (int) value;
+        }
+
+        /**
+         * Reads a count or a length, which unlike an ID can never be
+         * negative
+         */
+        int readLength()
+        {
+            long value = readVarLong();
+
+            // A ten-byte varint comes out negative
+            if (value < 0 || value > Integer.MAX_VALUE)
+            {
+                throw new IllegalArgumentException(String.format("Segment frame contains an invalid length %d", value));
+            }
+
+            return (int) value;
+        }
+
+        long readVarLong()
+        {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                int current = readByte();
+                value |= (long) (current & 0x7F) << shift;
+
+                if ((current & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("Segment frame contains a malformed varint");
+        }
+
+        String readString()
+        {
+            int length = readLength();
+
+            if (length == 0)
+            {
+                return null;
+            }
+
+            length--;
+
+            if (length < 0 || length > _buffer.length - _position)
+            {
+                throw new IllegalArgumentException("Segment frame is truncated");
+            }
+
+            String value = new String(_buffer, _position, length, StandardCharsets.UTF_8);
+            _position += length;
+
+            return value;
+        }
+
+        int position()
+        {
+            return _position;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes batches of {@link CrdtOperation}s into frames the server can relay
+ * alongside CodeSegmentCodec's, told apart by their version byte.
+ *
+ * A frame is laid out as:
+ * <pre>
+ *   version   (1 byte, VERSION)
+ *   flags     (1 byte, always 0)
+ *   count     (varint)
+ *   operation* (tag byte, then varint fields)
+ * </pre>
+ * The tag byte works as it does for segments. Author IDs are zig-zag
+ * varints, since the text a document was shared with has a negative author.
+ * Each operation's counter is a zig-zag varint holding the difference from
+ * the previous operation's. An insertion then has its anchor's author and
+ * how far back its anchor's counter is, which is 1 when typing, followed by
+ * its text. A removal has its count of identifier runs, then for each run
+ * its author, the difference between its counter and where the previous run
+ * ended, and its length, so removing a selection typed in one go costs a
+ * handful of bytes however long it is.
+ *
+ * @author Luke Dawkes
+ */
+public final class CrdtCodec
+{
+
+    /**
+     * First byte of every CRDT frame, which no segment frame starts with
+     */
+    public static final byte VERSION = 64;
+
+    private CrdtCodec()
+    {
+    }
+
+    /**
+     * Checks whether a frame holds CRDT operations rather than code segments
+     *
+     * @param frame The encoded frame
+     * @return True if the frame was written by {@link #encode(List)}
+     */
+    public static boolean isCrdtFrame(byte[] frame)
+    {
+        return frame.length > 0 && frame[0] == VERSION;
+    }
+
+    /**
+     * Encodes a batch of operations into a single frame
+     *
+     * @param operations The operations to encode, in the order they were made
+     * @return The encoded frame
+     */
+    public static byte[] encode(List<CrdtOperation> operations)
+    {
+        CodeSegmentCodec.FrameWriter writer = new CodeSegmentCodec.FrameWriter(16 + operations.size() * 8);
+
+        writer.writeByte(VERSION);
+        writer.writeByte(0);
+        writer.writeVarInt(operations.size());
+
+        CrdtOperation previous = null;
+        long previousCounter = 0;
+
+        for (CrdtOperation operation : operations)
+        {
+            boolean removal = operation.isRemoval();
+            boolean newAuthor = previous == null || previous.getAuthorID() != operation.getAuthorID();
+            boolean newDocument = previous == null || previous.getDocumentID() != operation.getDocumentID();
+
+            writer.writeByte((removal ? CodeSegmentCodec.TAG_REMOVAL : 0)
+                             | (newAuthor ? CodeSegmentCodec.TAG_NEW_AUTHOR : 0)
+                             | (newDocument ? CodeSegmentCodec.TAG_NEW_DOCUMENT : 0));
+
+            if (newAuthor)
+            {
+                writer.writeVarLong(CodeSegmentCodec.zigZag(operation.getAuthorID()));
+            }
+
+            if (newDocument)
+            {
+                writer.writeVarInt(operation.getDocumentID());
+            }
+
+            writer.writeVarLong(CodeSegmentCodec.zigZag(operation.getCounter() - previousCounter));
+
+            if (removal)
+            {
+                List<CrdtOperation.IdentifierRun> removedRuns = operation.getRemovedRuns();
+                long runEnd = operation.getCounter();
+
+                writer.writeVarInt(removedRuns.size());
+
+                for (CrdtOperation.IdentifierRun removedRun : removedRuns)
+                {
+                    writer.writeVarLong(CodeSegmentCodec.zigZag(removedRun.getAuthorID()));
+                    writer.writeVarLong(CodeSegmentCodec.zigZag(removedRun.getCounter() - runEnd));
+                    writer.writeVarInt(removedRun.getLength());
+
+                    runEnd = removedRun.getCounter() + removedRun.getLength();
+                }
+            }
+            else
+            {
+                writer.writeVarLong(CodeSegmentCodec.zigZag(operation.getAnchorAuthorID()));
+                writer.writeVarLong(CodeSegmentCodec.zigZag(operation.getCounter() - operation.getAnchorCounter()));
+                writer.writeString(operation.getCodeText());
+            }
+
+            previous = operation;
+            previousCounter = operation.getCounter();
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes a frame produced by {@link #encode(List)}
+     *
+     * @param frame The encoded frame
+     * @return The operations contained in the frame, in their original order
+     * @throws IllegalArgumentException If the frame is malformed or is not a
+     * CRDT frame
+     */
+    public static List<CrdtOperation> decode(byte[] frame)
+    {
+        CodeSegmentCodec.FrameReader reader = new CodeSegmentCodec.FrameReader(frame);
+
+        int version = reader.readByte();
+
+        if (version != VERSION)
+        {
+            throw new IllegalArgumentException(String.format("Unsupported operation frame version %d", version));
+        }
+
+        int flags = reader.readByte();
+
+        if (flags != 0)
+        {
+            throw new IllegalArgumentException(String.format("Unsupported operation frame flags %d", flags));
+        }
+
+        int count = reader.readLength();
+        List<CrdtOperation> operations = new ArrayList<>(Math.min(count, frame.length));
+
+        int authorID = 0, documentID = 0;
+        long previousCounter = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            int tag = reader.readByte();
+
+            if ((tag & ~CodeSegmentCodec.TAG_KNOWN_BITS) != 0
+                || (i == 0 && (tag & (CodeSegmentCodec.TAG_NEW_AUTHOR | CodeSegmentCodec.TAG_NEW_DOCUMENT)) != (CodeSegmentCodec.TAG_NEW_AUTHOR | CodeSegmentCodec.TAG_NEW_DOCUMENT)))
+            {
+                throw new IllegalArgumentException(String.format("Invalid operation tag %d", tag));
+            }
+
+            if ((tag & CodeSegmentCodec.TAG_NEW_AUTHOR) != 0)
+            {
+                authorID = (int) CodeSegmentCodec.unZigZag(reader.readVarLong());
+            }
+
+            if ((tag & CodeSegmentCodec.TAG_NEW_DOCUMENT) != 0)
+            {
+                documentID = reader.readVarInt();
+            }
+
+            long counter = previousCounter + CodeSegmentCodec.unZigZag(reader.readVarLong());
+
+            if ((tag & CodeSegmentCodec.TAG_REMOVAL) != 0)
+            {
+                int runCount = reader.readLength();
+                List<CrdtOperation.IdentifierRun> removedRuns = new ArrayList<>(Math.min(runCount, frame.length));
+                long runEnd = counter;
+
+                for (int run = 0; run < runCount; run++)
+                {
+                    int runAuthorID = (int) CodeSegmentCodec.unZigZag(reader.readVarLong());
+                    long runCounter = runEnd + CodeSegmentCodec.unZigZag(reader.readVarLong());
+                    int runLength = reader.readLength();
+
+                    if (runLength <= 0)
+                    {
+                        throw new IllegalArgumentException(String.format("Invalid identifier run length %d", runLength));
+                    }
+
+                    removedRuns.add(new CrdtOperation.IdentifierRun(runAuthorID, runCounter, runLength));
+                    runEnd = runCounter + runLength;
+                }
+
+                operations.add(CrdtOperation.removal(documentID, authorID, counter, removedRuns));
+            }
+            else
+            {
+                int anchorAuthorID = (int) CodeSegmentCodec.unZigZag(reader.readVarLong());
+                long anchorCounter = counter - CodeSegmentCodec.unZigZag(reader.readVarLong());
+                String codeText = reader.readString();
+
+                if (codeText == null)
+                {
+                    throw new IllegalArgumentException("Insertion operation has no code text");
+                }
+
+                operations.add(CrdtOperation.insertion(documentID, authorID, counter, anchorAuthorID, anchorCounter, codeText));
+            }
+
+            previousCounter = counter;
+        }
+
+        return operations;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An insertion or removal in a document synchronised as a {@link SequenceCrdt}.
+ * Every character carries an identifier made of the ID of the client that
+ * typed it and a Lamport counter, so an operation names the characters it
+ * acts on rather than giving offsets, and can be applied in any order after
+ * the operations it depends on.
+ *
+ * An insertion names the character its text follows, and its first
+ * character's counter; the rest of the text takes the counters after it. A
+ * removal names the characters it removes as runs of consecutive
+ * identifiers.
+ *
+ * @author Luke Dawkes
+ */
+public final class CrdtOperation
+{
+
+    /**
+     * Counter of the start of the document, used as the anchor of text
+     * inserted before every other character
+     */
+    public static final long DOCUMENT_START = 0;
+
+    /**
+     * Characters from one author with consecutive counters
+     */
+    public static final class IdentifierRun
+    {
+
+        private final int _authorID;
+        private final long _counter;
+        private final int _length;
+
+        public IdentifierRun(int authorID, long counter, int length)
+        {
+            _authorID = authorID;
+            _counter = counter;
+            _length = length;
+        }
+
+        public int getAuthorID()
+        {
+            return _authorID;
+        }
+
+        /**
+         * @return The counter of the first character in the run
+         */
+        public long getCounter()
+        {
+            return _counter;
+        }
+
+        public int getLength()
+        {
+            return _length;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof IdentifierRun))
+            {
+                return false;
+            }
+
+            IdentifierRun run = (IdentifierRun) other;
+
+            return _authorID == run._authorID && _counter == run._counter && _length == run._length;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * _authorID + Long.hashCode(_counter)) + _length;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d:%d+%d", _authorID, _counter, _length);
+        }
+    }
+
+    private final int _documentID;
+    private final int _authorID;
+    private final long _counter;
+    private final int _anchorAuthorID;
+    private final long _anchorCounter;
+    private final String _codeText;
+    private final List<IdentifierRun> _removedRuns;
+
+    private CrdtOperation(int documentID,
+            int authorID,
+            long counter,
+            int anchorAuthorID,
+            long anchorCounter,
+            String codeText,
+            List<IdentifierRun> removedRuns)
+    {
+        _documentID = documentID;
+        _authorID = authorID;
+        _counter = counter;
+        _anchorAuthorID = anchorAuthorID;
+        _anchorCounter = anchorCounter;
+        _codeText = codeText;
+        _removedRuns = removedRuns;
+    }
+
+    /**
+     * Creates an operation that inserts text after a character
+     *
+     * @param documentID The ID of the document the code is in
+     * @param authorID The ID of the client that wrote the code
+     * @param counter The Lamport counter of the first inserted character
+     * @param anchorAuthorID The author of the character the text follows
+     * @param anchorCounter The counter of the character the text follows, or
+     * DOCUMENT_START
+     * @param codeText The code that was inserted
+     * @return CrdtOperation
+     */
+    public static CrdtOperation insertion(int documentID,
+            int authorID,
+            long counter,
+            int anchorAuthorID,
+            long anchorCounter,
+            String codeText)
+    {
+        return new CrdtOperation(documentID, authorID, counter, anchorAuthorID, anchorCounter, codeText, Collections.emptyList());
+    }
+
+    /**
+     * Creates an operation that removes characters
+     *
+     * @param documentID The ID of the document the code is in
+     * @param authorID The ID of the client that removed the code
+     * @param counter The author's Lamport counter when it removed the code
+     * @param removedRuns The removed characters, in document order
+     * @return CrdtOperation
+     */
+    public static CrdtOperation removal(int documentID,
+            int authorID,
+            long counter,
+            List<IdentifierRun> removedRuns)
+    {
+        return new CrdtOperation(documentID, authorID, counter, 0, DOCUMENT_START, null, Collections.unmodifiableList(removedRuns));
+    }
+
+    public boolean isRemoval()
+    {
+        return _codeText == null;
+    }
+
+    public int getDocumentID()
+    {
+        return _documentID;
+    }
+
+    public int getAuthorID()
+    {
+        return _authorID;
+    }
+
+    public long getCounter()
+    {
+        return _counter;
+    }
+
+    public int getAnchorAuthorID()
+    {
+        return _anchorAuthorID;
+    }
+
+    public long getAnchorCounter()
+    {
+        return _anchorCounter;
+    }
+
+    /**
+     * @return The inserted code, or null for a removal
+     */
+    public String getCodeText()
+    {
+        return _codeText;
+    }
+
+    /**
+     * @return The removed characters, empty for an insertion
+     */
+    public List<IdentifierRun> getRemovedRuns()
+    {
+        return _removedRuns;
+    }
+
+    /**
+     * Gets the number of characters the operation inserts or removes
+     *
+     * @return The length
+     */
+    public int getLength()
+    {
+        if (!isRemoval())
+        {
+            return _codeText.length();
+        }
+
+        int length = 0;
+
+        for (IdentifierRun run : _removedRuns)
+        {
+            length += run.getLength();
+        }
+
+        return length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(author=%d, document=%d, counter=%d, length=%d)", isRemoval() ? "Removal" : "Insertion", _authorID, _documentID, _counter, getLength());
+    }
+}
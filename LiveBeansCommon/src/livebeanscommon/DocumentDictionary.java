@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maps each (project, document) pair seen during a session to a small integer
+ * ID. The server hands out the IDs; clients keep a copy so segments only need
+ * to carry the ID.
+ *
+ * @author Luke Dawkes
+ */
+public class DocumentDictionary
+{
+
+    public static final int NO_ID = -1;
+
+    private final Map<DocumentKey, Integer> _idsByKey;
+    private final Map<Integer, DocumentKey> _keysByID;
+    private final AtomicInteger _nextID;
+
+    public DocumentDictionary()
+    {
+        _idsByKey = new ConcurrentHashMap<>();
+        _keysByID = new ConcurrentHashMap<>();
+        _nextID = new AtomicInteger();
+    }
+
+    /**
+     * Gets the ID of a document, assigning a new one if it has not been seen
+     * before
+     *
+     * @param projectName The name of the project the document is in, or null
+     * @param documentName The name of the document
+     * @return The document's ID
+     */
+    public int register(String projectName, String documentName)
+    {
+        DocumentKey key = new DocumentKey(projectName, documentName);
+
+        return _idsByKey.computeIfAbsent(key, newKey ->
+        {
+            int newID = _nextID.getAndIncrement();
+            _keysByID.put(newID, newKey);
+            return newID;
+        });
+    }
+
+    /**
+     * Records an ID that was assigned elsewhere
+     *
+     * @param documentID The ID of the document
+     * @param projectName The name of the project the document is in, or null
+     * @param documentName The name of the document
+     */
+    public void put(int documentID, String projectName, String documentName)
+    {
+        DocumentKey key = new DocumentKey(projectName, documentName);
+
+        _keysByID.put(documentID, key);
+        _idsByKey.put(key, documentID);
+    }
+
+    /**
+     * Gets the ID of a document
+     *
+     * @param projectName The name of the project the document is in, or null
+     * @param documentName The name of the document
+     * @return The document's ID, or NO_ID if it is not known
+     */
+    public int getID(String projectName, String documentName)
+    {
+        Integer documentID = _idsByKey.get(new DocumentKey(projectName, documentName));
+
+        return documentID == null ? NO_ID : documentID;
+    }
+
+    public boolean contains(int documentID)
+    {
+        return _keysByID.containsKey(documentID);
+    }
+
+    public String getDocumentName(int documentID)
+    {
+        DocumentKey key = _keysByID.get(documentID);
+
+        return key == null ? null : key._documentName;
+    }
+
+    public String getProjectName(int documentID)
+    {
+        DocumentKey key = _keysByID.get(documentID);
+
+        return key == null ? null : key._projectName;
+    }
+
+    public Set<Integer> getIDs()
+    {
+        return _keysByID.keySet();
+    }
+
+    public void clear()
+    {
+        _idsByKey.clear();
+        _keysByID.clear();
+        _nextID.set(0);
+    }
+
+    private static final class DocumentKey
+    {
+
+        private final String _projectName, _documentName;
+
+        DocumentKey(String projectName, String documentName)
+        {
+            _projectName = projectName;
+            _documentName = documentName;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof DocumentKey))
+            {
+                return false;
+            }
+
+            DocumentKey otherKey = (DocumentKey) other;
+
+            return Objects.equals(_projectName, otherKey._projectName)
+                   && Objects.equals(_documentName, otherKey._documentName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(_projectName) * 31 + Objects.hashCode(_documentName);
+        }
+    }
+}
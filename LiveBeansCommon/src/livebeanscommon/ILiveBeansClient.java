@@ -25,7 +25,6 @@ package livebeanscommon;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.List;
 
 /**
  *
@@ -34,6 +33,18 @@ import java.util.List;
 public interface ILiveBeansClient extends Remote
 {
 
+    /**
+     * Sequence number acknowledged for a batch the server could not read
+     */
+    long REJECTED_SEQUENCE = -1;
+
+    /**
+     * Sequence number acknowledged for a batch the server was too busy to
+     * take. The client should send it again, with every batch after it,
+     * once it has given the server time to catch up.
+     */
+    long THROTTLED_SEQUENCE = -2;
+
     void setID(int newID) throws RemoteException;
 
     void setName(String newName) throws RemoteException;
@@ -42,7 +53,75 @@ public interface ILiveBeansClient extends Remote
 
     void disconnectFromServer() throws RemoteException;
 
-    void updateLocalCode(List<ILiveBeansCodeSegment> newCodeSegment) throws RemoteException;
+    /**
+     * Applies a batch of another client's code segments. The server relays
+     * the frame exactly as the author encoded it, so it must not be modified.
+     *
+     * @param segmentFrame The segments, encoded by CodeSegmentCodec
+     * @param sequence The sequence number the server gave the batch
+     * @throws RemoteException
+     */
+    void updateLocalCode(byte[] segmentFrame, long sequence) throws RemoteException;
+
+    /**
+     * Applies several batches of other clients' code segments at once, in the
+     * order given. The server merges the batches from every author within a
+     * short window into one call for each recipient.
+     *
+     * @param segmentFrames The frames, in sequence order and as their authors
+     * encoded them
+     * @param sequences The sequence number of each frame
+     * @throws RemoteException
+     */
+    void updateLocalCode(byte[][] segmentFrames, long[] sequences) throws RemoteException;
+
+    /**
+     * Replaces a document's text with the server's copy, sent in place of the
+     * batches for it when the client has fallen too far behind to be sent
+     * them one by one. Batches for the document up to the copy are not sent.
+     * The copy holds the client's own batches up to lastBatchID; any sent
+     * after it are applied again on top, as the server will apply them.
+     *
+     * @param documentID The ID assigned by the server
+     * @param text The server's copy of the text
+     * @param documentSequence The document's sequence number as of the copy
+     * @param sequence The sequence number of the last batch in the copy
+     * @param lastBatchID The last of the client's own batches in the copy, or
+     * 0 if it holds none
+     * @throws RemoteException
+     */
+    void resyncDocument(int documentID, String text, long documentSequence, long sequence, long lastBatchID) throws RemoteException;
+
+    /**
+     * Tells the client that the server has accepted one of its batches
+     *
+     * @param batchID The number the client sent with the batch
+     * @param sequence The sequence number the server gave the batch,
+     * REJECTED_SEQUENCE if it was discarded or THROTTLED_SEQUENCE if it
+     * should be sent again later
+     * @throws RemoteException
+     */
+    void acknowledgeBatch(long batchID, long sequence) throws RemoteException;
+
+    /**
+     * Tells a client in CRDT mode that every client has applied every batch
+     * up to a sequence number, and that no batch still to come was written
+     * before it, so the tombstones of removals up to it can be dropped
+     *
+     * @param sequence The stable sequence number
+     * @throws RemoteException
+     */
+    void collectGarbage(long sequence) throws RemoteException;
+
+    /**
+     * Tells the client which document a session document ID refers to
+     *
+     * @param documentID The ID assigned by the server
+     * @param projectName The name of the project the document is in, or null
+     * @param documentName The name of the document
+     * @throws RemoteException
+     */
+    void addDocumentMapping(int documentID, String projectName, String documentName) throws RemoteException;
 
     void updateRemoteCode() throws RemoteException;
 
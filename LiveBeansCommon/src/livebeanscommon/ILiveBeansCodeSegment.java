@@ -24,40 +24,42 @@
 package livebeanscommon;
 
 import java.io.Serializable;
-import java.rmi.Remote;
-import java.rmi.RemoteException;
-import java.util.Date;
 
 /**
+ * A single insertion or removal made by a client. Segments are passed by
+ * value, so none of these calls leave the local JVM.
  *
  * @author Luke Dawkes
  */
-public interface ILiveBeansCodeSegment extends Remote, Serializable
+public interface ILiveBeansCodeSegment extends Serializable
 {
 
-    void setDocumentOffset(int documentOffset) throws RemoteException;
+    int getDocumentOffset();
 
-    void setCodeLength(int codeLength) throws RemoteException;
+    int getCodeLength();
 
-    void setCodeText(String code) throws RemoteException;
+    String getCodeText();
 
-    void setAuthorID(int authorID) throws RemoteException;
+    int getAuthorID();
 
-    void setDocumentName(String documentName) throws RemoteException;
+    /**
+     * Gets the time the segment was created on the author's machine
+     *
+     * @return Milliseconds since the epoch
+     */
+    long getAuthorTime();
 
-    void setProjectName(String projectName) throws RemoteException;
+    /**
+     * Gets the session ID of the document the segment applies to
+     *
+     * @return The ID assigned by the server's DocumentDictionary
+     */
+    int getDocumentID();
 
-    int getDocumentOffset() throws RemoteException;
-
-    int getCodeLength() throws RemoteException;
-
-    String getCodeText() throws RemoteException;
-
-    int getAuthorID() throws RemoteException;
-
-    Date getAuthorDate() throws RemoteException;
-
-    String getDocumentName() throws RemoteException;
-
-    String getProjectName() throws RemoteException;
+    /**
+     * Checks whether this segment removes code rather than adding it
+     *
+     * @return True if the segment carries no code text
+     */
+    boolean isRemoval();
 }
@@ -25,7 +25,6 @@ package livebeanscommon;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.List;
 
 /**
  *
@@ -34,11 +33,111 @@ import java.util.List;
 public interface ILiveBeansServer extends Remote
 {
 
+    /**
+     * Base sequence for a batch written without knowing which batches its
+     * author had applied. The server applies such a batch exactly as it is
+     * written.
+     */
+    long UNKNOWN_BASE_SEQUENCE = -1;
+
     boolean registerClient(ILiveBeansClient client) throws RemoteException;
 
     boolean unRegisterClient(ILiveBeansClient client) throws RemoteException;
 
     void sendHeartbeat(int clientID) throws RemoteException;
 
-    void distributeCodeSegments(List<ILiveBeansCodeSegment> codeSegments, int clientID) throws RemoteException;
+    /**
+     * Gets the session ID of a document, assigning one and announcing it to
+     * every connected client if the document has not been seen before
+     *
+     * @param projectName The name of the project the document is in, or null
+     * @param documentName The name of the document
+     * @return The document's ID
+     * @throws RemoteException
+     */
+    int registerDocument(String projectName, String documentName) throws RemoteException;
+
+    /**
+     * Asks for the batches that change a document. The server only sends a
+     * client batches for documents it has subscribed to.
+     *
+     * @param clientID The ID of the client subscribing
+     * @param documentID The session ID of the document
+     * @throws RemoteException
+     */
+    void subscribeDocument(int clientID, int documentID) throws RemoteException;
+
+    /**
+     * Stops the batches that change a document, once the client no longer has
+     * it open
+     *
+     * @param clientID The ID of the client unsubscribing
+     * @param documentID The session ID of the document
+     * @throws RemoteException
+     */
+    void unsubscribeDocument(int clientID, int documentID) throws RemoteException;
+
+    /**
+     * Shares a client's copy of a document's text when it first opens the
+     * document. The server keeps the first copy it is given before the
+     * document is changed, and checks any others against it.
+     *
+     * @param clientID The ID of the client sharing the text
+     * @param documentID The session ID of the document
+     * @param documentText The document's text
+     * @throws RemoteException
+     */
+    void submitDocumentText(int clientID, int documentID, String documentText) throws RemoteException;
+
+    /**
+     * Sends a batch of code segments to the server for distribution. The
+     * server gives the batch the next sequence number and returns without
+     * waiting for other clients; the sequence number comes back later through
+     * {@link ILiveBeansClient#acknowledgeBatch(long, long)}. The batch goes to
+     * every client subscribed to any of the documents it changes.
+     *
+     * @param segmentFrame The batch, encoded by {@link CodeSegmentCodec}
+     * @param clientID The ID of the client that wrote the batch
+     * @param batchID The client's own number for the batch, echoed in the
+     * acknowledgement
+     * @param baseSequence The sequence number of the last batch the client
+     * had applied or had acknowledged when it wrote this one. The server
+     * transforms the batch against every batch it sequenced after that,
+     * since the client's offsets do not account for them
+     * @throws RemoteException
+     */
+    void distributeCodeSegments(byte[] segmentFrame, int clientID, long batchID, long baseSequence) throws RemoteException;
+
+    /**
+     * Tells the server how far a client in CRDT mode has got. Once every
+     * client has acknowledged a version, and no batch still being delivered
+     * was written before it, the server tells every client to collect the
+     * tombstones of removals up to it.
+     *
+     * @param clientID The ID of the client
+     * @param sequence The sequence number of the last batch the client has
+     * applied, or the base of its oldest batch the server has not
+     * acknowledged, whichever is lower
+     * @throws RemoteException
+     */
+    void acknowledgeVersion(int clientID, long sequence) throws RemoteException;
+
+    /**
+     * Reconnects a client that lost its connection without it having to join
+     * again. The server sends the client every document mapping and every
+     * batch from other clients after lastSequence, then carries on
+     * delivering to it as normal. Subscriptions are not carried over, so the
+     * client subscribes to its open documents again.
+     *
+     * @param client The client, as reached over its new connection
+     * @param clientID The ID the client was given when it registered
+     * @param lastSequence The sequence number of the last batch the client
+     * applied
+     * @return The highest batch ID the server has accepted from the client,
+     * so it can resend the rest, or
+     * {@link ILiveBeansClient#REJECTED_SEQUENCE} if the missed batches are no
+     * longer retained and the client must register again
+     * @throws RemoteException
+     */
+    long resumeSession(ILiveBeansClient client, int clientID, long lastSequence) throws RemoteException;
 }
@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable, serializable code segment. Unlike the old exported segment this
+ * is copied across the wire in one piece, so reading it on the server or on a
+ * peer never makes a remote call back to the author.
+ *
+ * @author Luke Dawkes
+ */
+public final class LiveBeansCodeSegment implements ILiveBeansCodeSegment
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final int _authorID, _documentID, _documentOffset, _codeLength;
+    private final long _authorTime;
+    private final String _codeText;
+
+    public LiveBeansCodeSegment(int authorID,
+            long authorTime,
+            int documentID,
+            int documentOffset,
+            int codeLength,
+            String codeText)
+    {
+        _authorID = authorID;
+        _authorTime = authorTime;
+        _documentID = documentID;
+        _documentOffset = documentOffset;
+        _codeLength = codeLength;
+        _codeText = codeText;
+    }
+
+    /**
+     * Creates a segment that inserts code into a document
+     *
+     * @param authorID The ID of the client that wrote the code
+     * @param documentID The ID of the document the code is in
+     * @param documentOffset The offset of the code within the document
+     * @param codeText The code that was inserted
+     * @return LiveBeansCodeSegment
+     */
+    public static LiveBeansCodeSegment insertion(int authorID,
+            int documentID,
+            int documentOffset,
+            String codeText)
+    {
+        return new LiveBeansCodeSegment(authorID, System.currentTimeMillis(), documentID, documentOffset, codeText.length(), codeText);
+    }
+
+    /**
+     * Creates the segments for an insertion, split into chunks of at most
+     * maxChunkLength characters at consecutive offsets. Applied in order the
+     * chunks insert the whole text, and each can be sent and applied on its
+     * own. A chunk never ends between the halves of a surrogate pair.
+     *
+     * @param authorID The ID of the client that wrote the code
+     * @param documentID The ID of the document the code is in
+     * @param documentOffset The offset of the code within the document
+     * @param codeText The code that was inserted
+     * @param maxChunkLength The most characters to put in one segment
+     * @return The segments, in the order they must be applied
+     */
+    public static List<LiveBeansCodeSegment> insertions(int authorID,
+            int documentID,
+            int documentOffset,
+            String codeText,
+            int maxChunkLength)
+    {
+        if (maxChunkLength < 2)
+        {
+            throw new IllegalArgumentException("Chunks must allow at least 2 characters");
+        }
+
+        List<LiveBeansCodeSegment> chunks = new ArrayList<>(codeText.length() / maxChunkLength + 1);
+        long authorTime = System.currentTimeMillis();
+        int start = 0;
+
+        do
+        {
+            int end = Math.min(start + maxChunkLength, codeText.length());
+
+            if (end < codeText.length() && Character.isHighSurrogate(codeText.charAt(end - 1)))
+            {
+                end--;
+            }
+
+            chunks.add(new LiveBeansCodeSegment(authorID, authorTime, documentID, documentOffset + start, end - start, codeText.substring(start, end)));
+            start = end;
+        }
+        while (start < codeText.length());
+
+        return chunks;
+    }
+
+    /**
+     * Creates a segment that removes code from a document
+     *
+     * @param authorID The ID of the client that removed the code
+     * @param documentID The ID of the document the code is in
+     * @param documentOffset The offset of the removed code within the document
+     * @param codeLength The length of the removed code
+     * @return LiveBeansCodeSegment
+     */
+    public static LiveBeansCodeSegment removal(int authorID,
+            int documentID,
+            int documentOffset,
+            int codeLength)
+    {
+        return new LiveBeansCodeSegment(authorID, System.currentTimeMillis(), documentID, documentOffset, codeLength, null);
+    }
+
+    @Override
+    public int getDocumentOffset()
+    {
+        return _documentOffset;
+    }
+
+    @Override
+    public int getCodeLength()
+    {
+        return _codeLength;
+    }
+
+    @Override
+    public String getCodeText()
+    {
+        return _codeText;
+    }
+
+    @Override
+    public int getAuthorID()
+    {
+        return _authorID;
+    }
+
+    @Override
+    public long getAuthorTime()
+    {
+        return _authorTime;
+    }
+
+    @Override
+    public int getDocumentID()
+    {
+        return _documentID;
+    }
+
+    @Override
+    public boolean isRemoval()
+    {
+        return _codeText == null || _codeText.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(author=%d, document=%d, offset=%d, length=%d)", isRemoval() ? "Removal" : "Insertion", _authorID, _documentID, _documentOffset, _codeLength);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rewrites code segments written at the same time against the same text so
+ * that each can be applied after the other. Segments carry absolute
+ * offsets, so an insertion or removal that lands first shifts every offset
+ * after it; transforming the later segments by what landed first keeps
+ * every copy of the document identical whatever order the edits arrive in.
+ *
+ * Applying a list of segments and then the other list transformed against
+ * it always gives the same text as the reverse, so the server and clients
+ * can each apply edits in the order they see them.
+ *
+ * @author Luke Dawkes
+ */
+public final class OperationalTransform
+{
+
+    /**
+     * Two lists of segments written against the same text, each rewritten
+     * to follow the other
+     */
+    public static final class Transformed
+    {
+
+        private final List<LiveBeansCodeSegment> _codeSegments;
+        private final List<LiveBeansCodeSegment> _concurrentSegments;
+
+        private Transformed(List<LiveBeansCodeSegment> codeSegments, List<LiveBeansCodeSegment> concurrentSegments)
+        {
+            _codeSegments = codeSegments;
+            _concurrentSegments = concurrentSegments;
+        }
+
+        /**
+         * @return The segments, rewritten to apply after the concurrent
+         * segments
+         */
+        public List<LiveBeansCodeSegment> getCodeSegments()
+        {
+            return _codeSegments;
+        }
+
+        /**
+         * @return The concurrent segments, rewritten to apply after the
+         * segments
+         */
+        public List<LiveBeansCodeSegment> getConcurrentSegments()
+        {
+            return _concurrentSegments;
+        }
+    }
+
+    private OperationalTransform()
+    {
+    }
+
+    /**
+     * Transforms two lists of segments written against the same text. Each
+     * list is applied in order, segments for different documents pass each
+     * other untouched, and a segment may come back split in two
+     * when the other list inserted text inside the range it removes, or
+     * dropped when the other list already removed all of it.
+     *
+     * @param codeSegments The segments to transform
+     * @param concurrentSegments The segments written at the same time
+     * @param segmentsFirst Whether codeSegments' text goes first when both
+     * lists insert at the same offset. The server and every client must
+     * agree on this, which they do by letting the edit the server sequenced
+     * first go first
+     * @return Both lists, each rewritten to apply after the other
+     */
+    public static Transformed transform(List<LiveBeansCodeSegment> codeSegments,
+            List<LiveBeansCodeSegment> concurrentSegments,
+            boolean segmentsFirst)
+    {
+        List<LiveBeansCodeSegment> transformed = new ArrayList<>(codeSegments.size());
+        List<LiveBeansCodeSegment> concurrent = concurrentSegments;
+
+        for (LiveBeansCodeSegment codeSegment : codeSegments)
+        {
+            Transformed passed = transformSegment(codeSegment, concurrent, segmentsFirst);
+
+            transformed.addAll(passed._codeSegments);
+            concurrent = passed._concurrentSegments;
+        }
+
+        return new Transformed(transformed, concurrent);
+    }
+
+    /**
+     * Passes one segment through a list of concurrent segments, rewriting
+     * each as they meet
+     */
+    private static Transformed transformSegment(LiveBeansCodeSegment codeSegment,
+            List<LiveBeansCodeSegment> concurrentSegments,
+            boolean segmentFirst)
+    {
+        List<LiveBeansCodeSegment> transformed = Collections.singletonList(codeSegment);
+        List<LiveBeansCodeSegment> concurrent = new ArrayList<>(concurrentSegments.size());
+
+        for (LiveBeansCodeSegment concurrentSegment : concurrentSegments)
+        {
+            // A segment only splits in two when it meets a removal, so this
+            // only nests as deep as the splits go
+            Transformed passed = transformed.size() == 1
+                    ? transformPair(transformed.get(0), concurrentSegment, segmentFirst)
+                    : transform(transformed, Collections.singletonList(concurrentSegment), segmentFirst);
+
+            transformed = passed._codeSegments;
+            concurrent.addAll(passed._concurrentSegments);
+        }
+
+        return new Transformed(transformed, concurrent);
+    }
+
+    private static Transformed transformPair(LiveBeansCodeSegment a, LiveBeansCodeSegment b, boolean aFirst)
+    {
+        if (a.getDocumentID() != b.getDocumentID() || isEmpty(a) || isEmpty(b))
+        {
+            return new Transformed(isEmpty(a) ? Collections.emptyList() : Collections.singletonList(a),
+                    isEmpty(b) ? Collections.emptyList() : Collections.singletonList(b));
+        }
+
+        if (!a.isRemoval() && !b.isRemoval())
+        {
+            int aOffset = a.getDocumentOffset();
+            int bOffset = b.getDocumentOffset();
+
+            if (aOffset < bOffset || (aOffset == bOffset && aFirst))
+            {
+                return pair(a, moveTo(b, bOffset + a.getCodeLength()));
+            }
+
+            return pair(moveTo(a, aOffset + b.getCodeLength()), b);
+        }
+
+        if (!a.isRemoval())
+        {
+            return transformInsertionRemoval(a, b);
+        }
+
+        if (!b.isRemoval())
+        {
+            Transformed swapped = transformInsertionRemoval(b, a);
+
+            return new Transformed(swapped._concurrentSegments, swapped._codeSegments);
+        }
+
+        return transformRemovals(a, b);
+    }
+
+    /**
+     * Rewrites an insertion and a removal against each other. Text inserted
+     * inside the removed range survives, and the removal is split around
+     * it.
+     */
+    private static Transformed transformInsertionRemoval(LiveBeansCodeSegment insertion, LiveBeansCodeSegment removal)
+    {
+        int insertAt = insertion.getDocumentOffset();
+        int insertLength = insertion.getCodeLength();
+        int removeAt = removal.getDocumentOffset();
+        int removeEnd = removeAt + removal.getCodeLength();
+
+        if (insertAt <= removeAt)
+        {
+            return pair(insertion, moveTo(removal, removeAt + insertLength));
+        }
+
+        if (insertAt >= removeEnd)
+        {
+            return pair(moveTo(insertion, insertAt - removal.getCodeLength()), removal);
+        }
+
+        List<LiveBeansCodeSegment> split = new ArrayList<>(2);
+        split.add(removal(removal, removeAt, insertAt - removeAt));
+        split.add(removal(removal, removeAt + insertLength, removeEnd - insertAt));
+
+        return new Transformed(Collections.singletonList(moveTo(insertion, removeAt)), split);
+    }
+
+    private static Transformed transformRemovals(LiveBeansCodeSegment a, LiveBeansCodeSegment b)
+    {
+        int aStart = a.getDocumentOffset();
+        int aEnd = aStart + a.getCodeLength();
+        int bStart = b.getDocumentOffset();
+        int bEnd = bStart + b.getCodeLength();
+        int overlap = Math.max(0, Math.min(aEnd, bEnd) - Math.max(aStart, bStart));
+
+        LiveBeansCodeSegment aAfter = removal(a, aStart - removedBefore(aStart, bStart, bEnd), a.getCodeLength() - overlap);
+        LiveBeansCodeSegment bAfter = removal(b, bStart - removedBefore(bStart, aStart, aEnd), b.getCodeLength() - overlap);
+
+        return new Transformed(aAfter.getCodeLength() == 0 ? Collections.emptyList() : Collections.singletonList(aAfter),
+                bAfter.getCodeLength() == 0 ? Collections.emptyList() : Collections.singletonList(bAfter));
+    }
+
+    // How many characters before offset the range [start, end) removes
+    private static int removedBefore(int offset, int start, int end)
+    {
+        return Math.max(0, Math.min(end, offset) - start);
+    }
+
+    private static boolean isEmpty(LiveBeansCodeSegment codeSegment)
+    {
+        return codeSegment.getCodeLength() == 0;
+    }
+
+    private static Transformed pair(LiveBeansCodeSegment a, LiveBeansCodeSegment b)
+    {
+        return new Transformed(Collections.singletonList(a), Collections.singletonList(b));
+    }
+
+    private static LiveBeansCodeSegment moveTo(LiveBeansCodeSegment codeSegment, int documentOffset)
+    {
+        if (codeSegment.getDocumentOffset() == documentOffset)
+        {
+            return codeSegment;
+        }
+
+        return new LiveBeansCodeSegment(codeSegment.getAuthorID(), codeSegment.getAuthorTime(), codeSegment.getDocumentID(), documentOffset, codeSegment.getCodeLength(), codeSegment.getCodeText());
+    }
+
+    private static LiveBeansCodeSegment removal(LiveBeansCodeSegment codeSegment, int documentOffset, int codeLength)
+    {
+        if (codeSegment.getDocumentOffset() == documentOffset && codeSegment.getCodeLength() == codeLength)
+        {
+            return codeSegment;
+        }
+
+        return new LiveBeansCodeSegment(codeSegment.getAuthorID(), codeSegment.getAuthorTime(), codeSegment.getDocumentID(), documentOffset, codeLength, null);
+    }
+}
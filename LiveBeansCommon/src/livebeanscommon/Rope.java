@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+/**
+ * Immutable text held as a balanced tree of short strings. Editing a rope
+ * gives a new rope that shares every part of the old one the edit did not
+ * touch, so inserting, removing and taking part of a large document only
+ * costs time logarithmic in its length, and the old version stays usable
+ * as a snapshot for free.
+ *
+ * @author Luke Dawkes
+ */
+public final class Rope implements CharSequence
+{
+
+    /**
+     * Longest string held in one leaf. Shorter leaves are joined when they
+     * meet.
+     */
+    public static final int MAX_LEAF_LENGTH = 1024;
+
+    public static final Rope EMPTY = new Rope("");
+
+    // Set for leaves, null for branches
+    private final String _text;
+
+    private final Rope _left;
+    private final Rope _right;
+    private final int _length;
+    private final int _height;
+
+    private Rope(String text)
+    {
+        _text = text;
+        _left = null;
+        _right = null;
+        _length = text.length();
+        _height = 0;
+    }
+
+    private Rope(Rope left, Rope right)
+    {
+        _text = null;
+        _left = left;
+        _right = right;
+        _length = left._length + right._length;
+        _height = 1 + Math.max(left._height, right._height);
+    }
+
+    /**
+     * Creates a rope holding some text
+     *
+     * @param text The text
+     * @return The rope
+     */
+    public static Rope of(CharSequence text)
+    {
+        if (text instanceof Rope)
+        {
+            return (Rope) text;
+        }
+
+        String string = text.toString();
+
+        return string.isEmpty() ? EMPTY : build(string, 0, string.length());
+    }
+
+    private static Rope build(String text, int start, int end)
+    {
+        if (end - start <= MAX_LEAF_LENGTH)
+        {
+            return new Rope(text.substring(start, end));
+        }
+
+        int middle = (start + end) >>> 1;
+
+        return new Rope(build(text, start, middle), build(text, middle, end));
+    }
+
+    @Override
+    public int length()
+    {
+        return _length;
+    }
+
+    /**
+     * Gets the height of the tree, for checking it stays balanced
+     *
+     * @return 0 for a single leaf
+     */
+    public int getHeight()
+    {
+        return _height;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        if (index < 0 || index >= _length)
+        {
+            throw new IndexOutOfBoundsException(String.format("Index %d is outside a rope of length %d", index, _length));
+        }
+
+        Rope rope = this;
+
+        while (rope._text == null)
+        {
+            if (index < rope._left._length)
+            {
+                rope = rope._left;
+            }
+            else
+            {
+                index -= rope._left._length;
+                rope = rope._right;
+            }
+        }
+
+        return rope._text.charAt(index);
+    }
+
+    @Override
+    public Rope subSequence(int start, int end)
+    {
+        checkRange(start, end - start);
+
+        return slice(start, end);
+    }
+
+    /**
+     * Gets a rope with text inserted
+     *
+     * @param offset Where to insert, from 0 to the rope's length
+     * @param text The text to insert
+     * @return The new rope
+     */
+    public Rope insert(int offset, CharSequence text)
+    {
+        checkRange(offset, 0);
+
+        if (text.length() == 0)
+        {
+            return this;
+        }
+
+        return join(join(slice(0, offset), of(text)), slice(offset, _length));
+    }
+
+    /**
+     * Gets a rope with text removed
+     *
+     * @param offset The first character to remove
+     * @param length The number of characters to remove
+     * @return The new rope
+     */
+    public Rope remove(int offset, int length)
+    {
+        checkRange(offset, length);
+
+        if (length == 0)
+        {
+            return this;
+        }
+
+        return join(slice(0, offset), slice(offset + length, _length));
+    }
+
+    /**
+     * Gets a rope with another's text added to the end
+     *
+     * @param other The text to add
+     * @return The new rope
+     */
+    public Rope concat(Rope other)
+    {
+        return join(this, other);
+    }
+
+    /**
+     * Gets a rope with a code segment applied to it
+     *
+     * @param codeSegment The insertion or removal to apply
+     * @return The new rope
+     */
+    public Rope apply(ILiveBeansCodeSegment codeSegment)
+    {
+        if (codeSegment.isRemoval())
+        {
+            return remove(codeSegment.getDocumentOffset(), codeSegment.getCodeLength());
+        }
+
+        return insert(codeSegment.getDocumentOffset(), codeSegment.getCodeText());
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder(_length);
+        appendTo(text);
+
+        return text.toString();
+    }
+
+    /**
+     * Copies the rope's text onto the end of a builder
+     *
+     * @param text The builder to copy into
+     */
+    public void appendTo(StringBuilder text)
+    {
+        if (_text != null)
+        {
+            text.append(_text);
+            return;
+        }
+
+        _left.appendTo(text);
+        _right.appendTo(text);
+    }
+
+    private void checkRange(int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset > _length - length)
+        {
+            throw new IndexOutOfBoundsException(String.format("Range %d+%d is outside a rope of length %d", offset, length, _length));
+        }
+    }
+
+    private Rope slice(int start, int end)
+    {
+        if (start == 0 && end == _length)
+        {
+            return this;
+        }
+
+        if (start == end)
+        {
+            return EMPTY;
+        }
+
+        if (_text != null)
+        {
+            return new Rope(_text.substring(start, end));
+        }
+
+        int leftLength = _left._length;
+
+        if (end <= leftLength)
+        {
+            return _left.slice(start, end);
+        }
+
+        if (start >= leftLength)
+        {
+            return _right.slice(start - leftLength, end - leftLength);
+        }
+
+        return join(_left.slice(start, leftLength), _right.slice(0, end - leftLength));
+    }
+
+    /**
+     * Joins two ropes, going down the taller one's edge until the heights
+     * match so the result stays balanced
+     */
+    private static Rope join(Rope left, Rope right)
+    {
+        if (left._length == 0)
+        {
+            return right;
+        }
+
+        if (right._length == 0)
+        {
+            return left;
+        }
+
+        if (left._text != null && right._text != null && left._length + right._length <= MAX_LEAF_LENGTH)
+        {
+            return new Rope(left._text.concat(right._text));
+        }
+
+        if (left._height > right._height + 1)
+        {
+            return balance(left._left, join(left._right, right));
+        }
+
+        if (right._height > left._height + 1)
+        {
+            return balance(join(left, right._left), right._right);
+        }
+
+        return new Rope(left, right);
+    }
+
+    /**
+     * Makes a branch from two ropes whose heights differ by at most two,
+     * rotating if they differ by two
+     */
+    private static Rope balance(Rope left, Rope right)
+    {
+        if (left._height > right._height + 1)
+        {
+            if (left._left._height >= left._right._height)
+            {
+                return new Rope(left._left, new Rope(left._right, right));
+            }
+
+            Rope middle = left._right;
+
+            return new Rope(new Rope(left._left, middle._left), new Rope(middle._right, right));
+        }
+
+        if (right._height > left._height + 1)
+        {
+            if (right._right._height >= right._left._height)
+            {
+                return new Rope(new Rope(left, right._left), right._right);
+            }
+
+            Rope middle = right._left;
+
+            return new Rope(new Rope(left, middle._left), new Rope(middle._right, right._right));
+        }
+
+        return new Rope(left, right);
+    }
+}
@@ -0,0 +1,709 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A document's text as a replicated growable array, which lets every client
+ * apply the others' edits as they arrive without a server transforming them.
+ * Each character is named by the ID of the client that typed it and a
+ * Lamport counter, an insertion is placed after the character it was typed
+ * after, and text inserted after the same character at the same time is
+ * ordered by its identifier, so every copy that has applied the same
+ * operations holds the same text whatever order they arrived in.
+ *
+ * Characters typed one after another by the same client are kept together
+ * as a run with a single identifier and length, so a document costs one node
+ * for each run rather than one for each character. Removed characters stay
+ * as tombstone runs, without their text, until every client has seen the
+ * removal, then {@link #collectGarbage(long)} drops them and joins the runs
+ * either side, leaving memory proportional to the live text.
+ *
+ * Not thread safe.
+ *
+ * @author Luke Dawkes
+ */
+public final class SequenceCrdt
+{
+
+    /**
+     * Author of the characters a document held when it was first shared.
+     * Every copy seeds the same text with the same identifiers.
+     */
+    public static final int INITIAL_AUTHOR_ID = -1;
+
+    /**
+     * Removal sequence number of a tombstone whose removal the server has not
+     * sequenced yet, which is never collected
+     */
+    public static final long PENDING_SEQUENCE = Long.MAX_VALUE;
+
+    private final int _documentID;
+
+    // Sentinel before the first run
+    private final Run _head;
+    private final Map<Integer, TreeMap<Long, Run>> _runsByAuthor;
+
+    private long _clock;
+    private int _length;
+    private int _tombstoneLength;
+    private int _runCount;
+
+    /**
+     * Creates an empty document
+     *
+     * @param documentID The session ID of the document
+     */
+    public SequenceCrdt(int documentID)
+    {
+        _documentID = documentID;
+        _head = new Run(INITIAL_AUTHOR_ID, CrdtOperation.DOCUMENT_START, 0, null, 0);
+        _runsByAuthor = new HashMap<>();
+    }
+
+    /**
+     * Creates a document holding the text it had when it was first shared,
+     * written by INITIAL_AUTHOR_ID with counters from 1
+     *
+     * @param documentID The session ID of the document
+     * @param text The document's text
+     * @return SequenceCrdt
+     */
+    public static SequenceCrdt of(int documentID, String text)
+    {
+        SequenceCrdt document = new SequenceCrdt(documentID);
+
+        if (!text.isEmpty())
+        {
+            Run run = new Run(INITIAL_AUTHOR_ID, 1, text.length(), new StringBuilder(text), 0);
+
+            document.linkAfter(document._head, run);
+            document._length = text.length();
+            document._clock = text.length();
+        }
+
+        return document;
+    }
+
+    /**
+     * Makes the operation for a local insertion and applies it
+     *
+     * @param authorID The ID of the client inserting the text
+     * @param offset The offset of the text in the document
+     * @param text The inserted text
+     * @return The operation to send to the other clients
+     * @throws IndexOutOfBoundsException If the offset is outside the
+     * document
+     * @throws IllegalArgumentException If the text is empty
+     */
+    public CrdtOperation insert(int authorID, int offset, String text)
+    {
+        if (offset < 0 || offset > _length)
+        {
+            throw new IndexOutOfBoundsException(String.format("Offset %d is outside document %d of length %d", offset, _documentID, _length));
+        }
+
+        if (text.isEmpty())
+        {
+            throw new IllegalArgumentException("Inserted text is empty");
+        }
+
+        int anchorAuthorID = INITIAL_AUTHOR_ID;
+        long anchorCounter = CrdtOperation.DOCUMENT_START;
+
+        // Anchored on the visible character before the text, never on a
+        // tombstone, which may be collected before the operation arrives
+        if (offset > 0)
+        {
+            int remaining = offset;
+            Run run = _head._next;
+
+            while (!run.isLive() || remaining > run._length)
+            {
+                remaining -= run.isLive() ? run._length : 0;
+                run = run._next;
+            }
+
+            anchorAuthorID = run._authorID;
+            anchorCounter = run._counter + remaining - 1;
+        }
+
+        CrdtOperation operation = CrdtOperation.insertion(_documentID, authorID, _clock + 1, anchorAuthorID, anchorCounter, text);
+
+        integrate(operation, PENDING_SEQUENCE);
+
+        return operation;
+    }
+
+    /**
+     * Makes the operation for a local removal and applies it
+     *
+     * @param authorID The ID of the client removing the text
+     * @param offset The offset of the first removed character
+     * @param length The number of characters removed
+     * @return The operation to send to the other clients
+     * @throws IndexOutOfBoundsException If the range is outside the document
+     */
+    public CrdtOperation remove(int authorID, int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset + length > _length)
+        {
+            throw new IndexOutOfBoundsException(String.format("Range %d+%d is outside document %d of length %d", offset, length, _documentID, _length));
+        }
+
+        List<CrdtOperation.IdentifierRun> removedRuns = new ArrayList<>();
+        int position = 0;
+
+        for (Run run = _head._next; run != null && position < offset + length; run = run._next)
+        {
+            if (!run.isLive())
+            {
+                continue;
+            }
+
+            int start = Math.max(offset - position, 0);
+            int end = Math.min(offset + length - position, run._length);
+
+            if (start < end)
+            {
+                addRun(removedRuns, run._authorID, run._counter + start, end - start);
+            }
+
+            position += run._length;
+        }
+
+        CrdtOperation operation = CrdtOperation.removal(_documentID, authorID, _clock + 1, removedRuns);
+
+        integrate(operation, PENDING_SEQUENCE);
+
+        return operation;
+    }
+
+    /**
+     * Makes the operation for a local edit and applies it
+     *
+     * @param codeSegment The edit, with offsets into this document's text
+     * @return The operation to send to the other clients
+     */
+    public CrdtOperation apply(ILiveBeansCodeSegment codeSegment)
+    {
+        if (codeSegment.isRemoval())
+        {
+            return remove(codeSegment.getAuthorID(), codeSegment.getDocumentOffset(), codeSegment.getCodeLength());
+        }
+
+        return insert(codeSegment.getAuthorID(), codeSegment.getDocumentOffset(), codeSegment.getCodeText());
+    }
+
+    /**
+     * Applies another client's operation. An insertion that has already been
+     * applied is ignored, as are removals of characters already removed.
+     *
+     * @param operation The operation, which must come after every operation
+     * its author had applied when it made it
+     * @param sequence The sequence number the server gave the operation's
+     * batch, which is when its tombstones may be collected
+     * @return The operation as segments with offsets into this document's
+     * text, in the order they should be applied to an editor's copy
+     * @throws IllegalArgumentException If an insertion follows a character
+     * this document does not have
+     */
+    public List<LiveBeansCodeSegment> integrate(CrdtOperation operation, long sequence)
+    {
+        if (operation.isRemoval())
+        {
+            _clock = Math.max(_clock, operation.getCounter());
+
+            return integrateRemoval(operation, sequence);
+        }
+
+        _clock = Math.max(_clock, operation.getCounter() + operation.getLength() - 1);
+
+        return integrateInsertion(operation);
+    }
+
+    private List<LiveBeansCodeSegment> integrateInsertion(CrdtOperation operation)
+    {
+        int authorID = operation.getAuthorID();
+        long counter = operation.getCounter();
+        String text = operation.getCodeText();
+
+        if (text.isEmpty() || find(authorID, counter) != null)
+        {
+            return Collections.emptyList();
+        }
+
+        Run anchor = _head;
+
+        if (operation.getAnchorCounter() != CrdtOperation.DOCUMENT_START)
+        {
+            anchor = find(operation.getAnchorAuthorID(), operation.getAnchorCounter());
+
+            if (anchor == null)
+            {
+                throw new IllegalArgumentException(String.format("Document %d has no character %d:%d to insert after", _documentID, operation.getAnchorAuthorID(), operation.getAnchorCounter()));
+            }
+
+            int anchorLength = (int) (operation.getAnchorCounter() - anchor._counter) + 1;
+
+            if (anchorLength < anchor._length)
+            {
+                split(anchor, anchorLength);
+            }
+        }
+
+        // Text inserted after the same character by an operation this one's
+        // author had not seen, and everything inserted after that text, goes
+        // first if it has the greater identifier
+        Run previous = anchor;
+
+        while (previous._next != null && comesBefore(previous._next, authorID, counter))
+        {
+            previous = previous._next;
+        }
+
+        int offset;
+
+        if (previous == anchor && anchor.isLive() && anchor._authorID == authorID && anchor.getEnd() == counter)
+        {
+            offset = getOffset(anchor) + anchor._length;
+            anchor._text.append(text);
+            anchor._length += text.length();
+        }
+        else
+        {
+            offset = getOffset(previous) + (previous.isLive() ? previous._length : 0);
+            linkAfter(previous, new Run(authorID, counter, text.length(), new StringBuilder(text), 0));
+        }
+
+        _length += text.length();
+
+        return Collections.singletonList(LiveBeansCodeSegment.insertion(authorID, _documentID, offset, text));
+    }
+
+    private List<LiveBeansCodeSegment> integrateRemoval(CrdtOperation operation, long sequence)
+    {
+        List<LiveBeansCodeSegment> removals = new ArrayList<>();
+
+        for (CrdtOperation.IdentifierRun removedRun : operation.getRemovedRuns())
+        {
+            for (Run run : claim(removedRun))
+            {
+                if (!run.isLive())
+                {
+                    run._deletedAt = Math.min(run._deletedAt, sequence);
+                    continue;
+                }
+
+                int offset = getOffset(run);
+                int last = removals.size() - 1;
+
+                // Runs removed one after another are one removal in the editor
+                if (last >= 0 && removals.get(last).getDocumentOffset() == offset)
+                {
+                    LiveBeansCodeSegment previous = removals.get(last);
+                    removals.set(last, LiveBeansCodeSegment.removal(operation.getAuthorID(), _documentID, offset, previous.getCodeLength() + run._length));
+                }
+                else
+                {
+                    removals.add(LiveBeansCodeSegment.removal(operation.getAuthorID(), _documentID, offset, run._length));
+                }
+
+                run._text = null;
+                run._deletedAt = sequence;
+                _length -= run._length;
+                _tombstoneLength += run._length;
+            }
+        }
+
+        return removals;
+    }
+
+    /**
+     * Records the sequence number the server gave one of this document's own
+     * operations, once its batch is acknowledged, so the tombstones it left
+     * can be collected
+     *
+     * @param operation The operation, as returned by insert or remove
+     * @param sequence The sequence number of its batch
+     */
+    public void acknowledge(CrdtOperation operation, long sequence)
+    {
+        for (CrdtOperation.IdentifierRun removedRun : operation.getRemovedRuns())
+        {
+            for (Run run : claim(removedRun))
+            {
+                if (!run.isLive())
+                {
+                    run._deletedAt = Math.min(run._deletedAt, sequence);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the tombstones of removals every client has applied, and joins
+     * runs that are left next to each other and can be one run again. The
+     * caller must be sure no operation still to be applied anywhere was made
+     * before the removals.
+     *
+     * @param stableSequence The sequence number every client has applied
+     * every batch up to, and which every unapplied batch was made after
+     * @return The number of removed characters dropped
+     */
+    public int collectGarbage(long stableSequence)
+    {
+        int collected = 0;
+        Run run = _head._next;
+
+        while (run != null)
+        {
+            Run next = run._next;
+
+            if (!run.isLive() && run._deletedAt <= stableSequence)
+            {
+                unlink(run);
+                collected += run._length;
+            }
+            else if (run._previous != _head && canJoin(run._previous, run))
+            {
+                join(run._previous, run);
+            }
+
+            run = next;
+        }
+
+        _tombstoneLength -= collected;
+
+        return collected;
+    }
+
+    /**
+     * Gets the visible text
+     *
+     * @return The text
+     */
+    public String getText()
+    {
+        StringBuilder text = new StringBuilder(_length);
+
+        for (Run run = _head._next; run != null; run = run._next)
+        {
+            if (run.isLive())
+            {
+                text.append(run._text);
+            }
+        }
+
+        return text.toString();
+    }
+
+    public int getDocumentID()
+    {
+        return _documentID;
+    }
+
+    /**
+     * Gets the length of the visible text
+     *
+     * @return The number of characters
+     */
+    public int length()
+    {
+        return _length;
+    }
+
+    /**
+     * Gets the number of removed characters still kept as tombstones
+     *
+     * @return The number of characters
+     */
+    public int getTombstoneLength()
+    {
+        return _tombstoneLength;
+    }
+
+    /**
+     * Gets the number of runs the document is held as, live and removed
+     *
+     * @return The number of runs
+     */
+    public int getRunCount()
+    {
+        return _runCount;
+    }
+
+    /**
+     * Gets the highest counter this document has seen
+     *
+     * @return The Lamport clock
+     */
+    public long getClock()
+    {
+        return _clock;
+    }
+
+    /**
+     * Whether the identifier of run's first character is greater than the
+     * given one, comparing counters and then authors
+     */
+    private static boolean comesBefore(Run run, int authorID, long counter)
+    {
+        return run._counter > counter || (run._counter == counter && run._authorID > authorID);
+    }
+
+    private static void addRun(List<CrdtOperation.IdentifierRun> runs, int authorID, long counter, int length)
+    {
+        int last = runs.size() - 1;
+
+        if (last >= 0)
+        {
+            CrdtOperation.IdentifierRun previous = runs.get(last);
+
+            if (previous.getAuthorID() == authorID && previous.getCounter() + previous.getLength() == counter)
+            {
+                runs.set(last, new CrdtOperation.IdentifierRun(authorID, previous.getCounter(), previous.getLength() + length));
+                return;
+            }
+        }
+
+        runs.add(new CrdtOperation.IdentifierRun(authorID, counter, length));
+    }
+
+    /**
+     * Finds the run holding a character
+     *
+     * @return The run, or null if the character is unknown or was collected
+     */
+    private Run find(int authorID, long counter)
+    {
+        TreeMap<Long, Run> runs = _runsByAuthor.get(authorID);
+
+        if (runs == null)
+        {
+            return null;
+        }
+
+        Map.Entry<Long, Run> entry = runs.floorEntry(counter);
+
+        return entry == null || counter >= entry.getValue().getEnd() ? null : entry.getValue();
+    }
+
+    /**
+     * Splits runs so that the characters in an identifier run are whole runs
+     * of their own
+     *
+     * @return The runs holding the characters still in the document
+     */
+    private List<Run> claim(CrdtOperation.IdentifierRun identifierRun)
+    {
+        TreeMap<Long, Run> runs = _runsByAuthor.get(identifierRun.getAuthorID());
+
+        if (runs == null)
+        {
+            return Collections.emptyList();
+        }
+
+        List<Run> claimed = new ArrayList<>();
+        long counter = identifierRun.getCounter();
+        long end = counter + identifierRun.getLength();
+
+        while (counter < end)
+        {
+            Run run = find(identifierRun.getAuthorID(), counter);
+
+            if (run == null)
+            {
+                Long next = runs.higherKey(counter);
+
+                if (next == null)
+                {
+                    break;
+                }
+
+                counter = next;
+                continue;
+            }
+
+            if (run._counter < counter)
+            {
+                run = split(run, (int) (counter - run._counter));
+            }
+
+            if (run.getEnd() > end)
+            {
+                split(run, (int) (end - run._counter));
+            }
+
+            claimed.add(run);
+            counter = run.getEnd();
+        }
+
+        return claimed;
+    }
+
+    /**
+     * Gets the offset of a run's first character in the visible text, which
+     * is 0 for the start of the document
+     */
+    private int getOffset(Run target)
+    {
+        int offset = 0;
+
+        if (target == _head)
+        {
+            return offset;
+        }
+
+        for (Run run = _head._next; run != target && run != null; run = run._next)
+        {
+            if (run.isLive())
+            {
+                offset += run._length;
+            }
+        }
+
+        return offset;
+    }
+
+    /**
+     * Cuts a run in two
+     *
+     * @return The second part, which starts length characters in
+     */
+    private Run split(Run run, int length)
+    {
+        Run tail = new Run(run._authorID,
+                           run._counter + length,
+                           run._length - length,
+                           run.isLive() ? new StringBuilder(run._text.substring(length)) : null,
+                           run._deletedAt);
+
+        if (run.isLive())
+        {
+            run._text.setLength(length);
+        }
+
+        run._length = length;
+        linkAfter(run, tail);
+
+        return tail;
+    }
+
+    private static boolean canJoin(Run first, Run second)
+    {
+        return first._authorID == second._authorID
+               && first.getEnd() == second._counter
+               && first.isLive() == second.isLive()
+               && first._deletedAt == second._deletedAt;
+    }
+
+    private void join(Run first, Run second)
+    {
+        if (first.isLive())
+        {
+            first._text.append(second._text);
+        }
+
+        first._length += second._length;
+        unlink(second);
+    }
+
+    private void linkAfter(Run previous, Run run)
+    {
+        run._previous = previous;
+        run._next = previous._next;
+
+        if (previous._next != null)
+        {
+            previous._next._previous = run;
+        }
+
+        previous._next = run;
+        _runsByAuthor.computeIfAbsent(run._authorID, authorID -> new TreeMap<>()).put(run._counter, run);
+        _runCount++;
+    }
+
+    private void unlink(Run run)
+    {
+        run._previous._next = run._next;
+
+        if (run._next != null)
+        {
+            run._next._previous = run._previous;
+        }
+
+        TreeMap<Long, Run> runs = _runsByAuthor.get(run._authorID);
+        runs.remove(run._counter);
+
+        if (runs.isEmpty())
+        {
+            _runsByAuthor.remove(run._authorID);
+        }
+
+        _runCount--;
+    }
+
+    /**
+     * Characters from one author with consecutive counters, next to each
+     * other in the document
+     */
+    private static final class Run
+    {
+
+        private final int _authorID;
+        private final long _counter;
+        private int _length;
+        // Null once the characters are removed
+        private StringBuilder _text;
+        private long _deletedAt;
+
+        private Run _previous, _next;
+
+        Run(int authorID, long counter, int length, StringBuilder text, long deletedAt)
+        {
+            _authorID = authorID;
+            _counter = counter;
+            _length = length;
+            _text = text;
+            _deletedAt = deletedAt;
+        }
+
+        boolean isLive()
+        {
+            return _text != null;
+        }
+
+        long getEnd()
+        {
+            return _counter + _length;
+        }
+    }
+}
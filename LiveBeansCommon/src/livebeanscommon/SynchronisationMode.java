@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon;
+
+/**
+ * How clients keep their copies of a document the same
+ *
+ * @author Luke Dawkes
+ */
+public enum SynchronisationMode
+{
+
+    /**
+     * Edits are sent as code segments, which the server transforms against
+     * the batches their author had not seen, the default
+     */
+    OPERATIONAL_TRANSFORM,
+    /**
+     * Edits are sent as CRDT operations, which the server only sequences and
+     * relays and every client applies as they are
+     */
+    CRDT;
+
+    /**
+     * System property used to pick a mode, e.g. -Dlivebeans.sync=crdt
+     */
+    public static final String PROPERTY = "livebeans.sync";
+
+    /**
+     * Gets the mode named by the livebeans.sync system property
+     *
+     * @return The configured mode, or OPERATIONAL_TRANSFORM if none or an
+     * unknown one is set
+     */
+    public static SynchronisationMode fromSystemProperty()
+    {
+        String configured = System.getProperty(PROPERTY);
+
+        if (configured != null)
+        {
+            for (SynchronisationMode mode : values())
+            {
+                if (mode.name().equalsIgnoreCase(configured.trim()))
+                {
+                    return mode;
+                }
+            }
+        }
+
+        return OPERATIONAL_TRANSFORM;
+    }
+}
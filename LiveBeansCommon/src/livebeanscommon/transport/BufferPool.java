@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in power-of-two size classes, from
+ * MIN_BUFFER_SIZE up to the pool's buffer size. Direct buffers are
+ * expensive to allocate and are written to sockets without an extra copy,
+ * so they are recycled rather than left to the garbage collector. Each
+ * message takes a buffer of the smallest class it fits, so an
+ * acknowledgement does not hold 64 KiB off the heap while it waits to be
+ * written. Once the pool has allocated as many direct bytes as it may pool,
+ * buffers come from the heap instead until some are collected. A direct
+ * buffer counts against the pool until the garbage collector has reclaimed
+ * it, so one dropped because its size is fully pooled, or never returned at
+ * all, only holds up direct allocation until the next collection.
+ *
+ * @author Luke Dawkes
+ */
+public class BufferPool
+{
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    public static final int MIN_BUFFER_SIZE = 256;
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> _buffers;
+    private final AtomicInteger[] _pooledCounts;
+    private final AtomicLong _directBytes;
+    // Each direct buffer allocated, until it has been collected
+    private final Set<DirectReference> _directBuffers;
+    private final ReferenceQueue<ByteBuffer> _collected;
+    private final int _bufferSize, _maxPooled;
+    private final long _maxDirectBytes;
+
+    /**
+     * @param bufferSize The largest buffer pooled, rounded up to a power of
+     * two
+     * @param maxPooled The most buffers pooled of each size. The pool
+     * allocates no more than this many of the largest buffers' worth of
+     * direct memory in all.
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        int classCount = sizeClass(Math.max(bufferSize, MIN_BUFFER_SIZE)) + 1;
+
+        _buffers = new ArrayList<>(classCount);
+        _pooledCounts = new AtomicInteger[classCount];
+
+        for (int i = 0; i < classCount; i++)
+        {
+            _buffers.add(new ConcurrentLinkedQueue<>());
+            _pooledCounts[i] = new AtomicInteger();
+        }
+
+        _directBytes = new AtomicLong();
+        _directBuffers = ConcurrentHashMap.newKeySet();
+        _collected = new ReferenceQueue<>();
+        _bufferSize = classSize(classCount - 1);
+        _maxPooled = maxPooled;
+        _maxDirectBytes = (long) _bufferSize * maxPooled;
+    }
+
+    /**
+     * Gets a cleared buffer of the largest size
+     *
+     * @return A buffer of getBufferSize() bytes
+     */
+    public ByteBuffer acquire()
+    {
+        return acquire(_bufferSize);
+    }
+
+    /**
+     * Gets a cleared buffer that holds at least a number of bytes, from the
+     * pool if one of the right size is free. Buffers larger than
+     * getBufferSize(), and any needed once the pool's direct memory is used
+     * up, come from the heap.
+     *
+     * @param capacity The bytes the buffer must hold
+     * @return A buffer of at least that capacity
+     */
+    public ByteBuffer acquire(int capacity)
+    {
+        if (capacity > _bufferSize)
+        {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer = _buffers.get(sizeClass).poll();
+
+        if (buffer != null)
+        {
+            _pooledCounts[sizeClass].decrementAndGet();
+            buffer.clear();
+
+            return buffer;
+        }
+
+        int classSize = classSize(sizeClass);
+
+        reclaimCollected();
+
+        if (_directBytes.addAndGet(classSize) > _maxDirectBytes)
+        {
+            _directBytes.addAndGet(-classSize);
+            return ByteBuffer.allocate(classSize);
+        }
+
+        buffer = ByteBuffer.allocateDirect(classSize);
+        _directBuffers.add(new DirectReference(buffer, _collected));
+
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that did not come from this pool
+     * are ignored. Buffers returned while their size is fully pooled are
+     * dropped, and their memory may be allocated again once collected.
+     *
+     * @param buffer The buffer to return
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() < MIN_BUFFER_SIZE || buffer.capacity() > _bufferSize
+                || Integer.bitCount(buffer.capacity()) != 1)
+        {
+            return;
+        }
+
+        int sizeClass = sizeClass(buffer.capacity());
+
+        if (_pooledCounts[sizeClass].incrementAndGet() > _maxPooled)
+        {
+            _pooledCounts[sizeClass].decrementAndGet();
+            return;
+        }
+
+        _buffers.get(sizeClass).offer(buffer);
+    }
+
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    /**
+     * Gets the direct memory allocated by the pool and not since collected,
+     * whether pooled, in use or dropped
+     *
+     * @return The bytes allocated
+     */
+    public long getDirectBytes()
+    {
+        reclaimCollected();
+
+        return _directBytes.get();
+    }
+
+    private void reclaimCollected()
+    {
+        Reference<? extends ByteBuffer> collected;
+
+        while ((collected = _collected.poll()) != null)
+        {
+            DirectReference reference = (DirectReference) collected;
+
+            if (_directBuffers.remove(reference))
+            {
+                _directBytes.addAndGet(-reference._capacity);
+            }
+        }
+    }
+
+    private static int sizeClass(int capacity)
+    {
+        int size = Math.max(capacity, MIN_BUFFER_SIZE);
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    private static int classSize(int sizeClass)
+    {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+
+    /**
+     * Tells the pool when a direct buffer it allocated has been collected
+     */
+    private static final class DirectReference extends PhantomReference<ByteBuffer>
+    {
+
+        private final int _capacity;
+
+        DirectReference(ByteBuffer buffer, ReferenceQueue<ByteBuffer> collected)
+        {
+            super(buffer, collected);
+            _capacity = buffer.capacity();
+        }
+    }
+}
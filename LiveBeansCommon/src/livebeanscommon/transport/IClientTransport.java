@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.io.IOException;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.ILiveBeansServer;
+
+/**
+ * Client half of a transport. Connecting returns a stand-in for the server
+ * whose calls are carried by the transport.
+ *
+ * @author Luke Dawkes
+ */
+public interface IClientTransport
+{
+
+    /**
+     * Connects to a server
+     *
+     * @param serverAddress The address of the server
+     * @param port The port the server is listening on
+     * @param client The local client that server callbacks are delivered to
+     * @return The server, as seen through this transport
+     * @throws IOException If the server cannot be reached
+     */
+    ILiveBeansServer connect(String serverAddress, int port, ILiveBeansClient client) throws IOException;
+
+    /**
+     * Closes the connection opened by connect, if there is one
+     */
+    void close();
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.io.IOException;
+import livebeanscommon.ILiveBeansServer;
+
+/**
+ * Server half of a transport. Binding makes the server reachable by clients
+ * using the matching IClientTransport.
+ *
+ * @author Luke Dawkes
+ */
+public interface IServerTransport
+{
+
+    /**
+     * Starts accepting clients
+     *
+     * @param server The server that client calls are delivered to
+     * @param port The port to listen on
+     * @throws IOException If the transport cannot listen on the port
+     */
+    void bind(ILiveBeansServer server, int port) throws IOException;
+
+    /**
+     * Stops accepting clients and drops every open connection
+     *
+     * @throws IOException If the transport could not be shut down cleanly
+     */
+    void close() throws IOException;
+
+    /**
+     * Gets a short name for the transport, used in log output
+     *
+     * @return The transport's name
+     */
+    String getName();
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes one length-prefixed message into a pooled buffer. The message
+ * starts in the smallest buffer the pool has and moves to a larger one as
+ * it grows, so each is held in a buffer close to its own size.
+ *
+ * @author Luke Dawkes
+ */
+public final class MessageBuilder
+{
+
+    private final BufferPool _pool;
+    private ByteBuffer _buffer;
+
+    public MessageBuilder(BufferPool pool, byte messageType)
+    {
+        _pool = pool;
+        _buffer = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+        _buffer.putInt(0);
+        _buffer.put(messageType);
+    }
+
+    public MessageBuilder putInt(int value)
+    {
+        ensureCapacity(Integer.BYTES);
+        _buffer.putInt(value);
+
+        return this;
+    }
+
+    public MessageBuilder putLong(long value)
+    {
+        ensureCapacity(Long.BYTES);
+        _buffer.putLong(value);
+
+        return this;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its bytes. Null is
+     * written as a length of -1.
+     *
+     * @param value The string to write, or null
+     * @return This builder
+     */
+    public MessageBuilder putString(String value)
+    {
+        return putBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a byte array as its length followed by its contents. Null is
+     * written as a length of -1.
+     *
+     * @param value The bytes to write, or null
+     * @return This builder
+     */
+    public MessageBuilder putBytes(byte[] value)
+    {
+        if (value == null)
+        {
+            return putInt(-1);
+        }
+
+        ensureCapacity(Integer.BYTES + value.length);
+        _buffer.putInt(value.length);
+        _buffer.put(value);
+
+        return this;
+    }
+
+    /**
+     * Fills in the length prefix and flips the buffer, ready to be written
+     *
+     * @return The finished message
+     */
+    public ByteBuffer build()
+    {
+        _buffer.putInt(0, _buffer.position() - Integer.BYTES);
+        _buffer.flip();
+
+        return _buffer;
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        if (_buffer.remaining() >= extra)
+        {
+            return;
+        }
+
+        ByteBuffer grown = _pool.acquire(Math.max(_buffer.capacity() * 2, _buffer.position() + extra));
+
+        _buffer.flip();
+        grown.put(_buffer);
+        _pool.release(_buffer);
+        _buffer = grown;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the payload of one message. The buffer's limit must be the end of
+ * the message, so a malformed payload cannot run into the next message.
+ *
+ * @author Luke Dawkes
+ */
+public final class MessageReader
+{
+
+    private final ByteBuffer _buffer;
+
+    public MessageReader(ByteBuffer buffer)
+    {
+        _buffer = buffer;
+    }
+
+    public int getInt()
+    {
+        return _buffer.getInt();
+    }
+
+    public long getLong()
+    {
+        return _buffer.getLong();
+    }
+
+    public String getString()
+    {
+        byte[] bytes = getBytes();
+
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public byte[] getBytes()
+    {
+        int length = _buffer.getInt();
+
+        if (length < 0)
+        {
+            return null;
+        }
+
+        if (length > _buffer.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+
+        byte[] bytes = new byte[length];
+        _buffer.get(bytes);
+
+        return bytes;
+    }
+}
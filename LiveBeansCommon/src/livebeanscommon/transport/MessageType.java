@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+/**
+ * Message types used by the NIO transport. Every message on the wire is an
+ * int length, then one of these type bytes, then the payload.
+ *
+ * @author Luke Dawkes
+ */
+public final class MessageType
+{
+
+    /* Server to client */
+    /**
+     * Answer to a call: call ID (int), result (long)
+     */
+    public static final byte REPLY = 1;
+    /**
+     * ILiveBeansClient.setID: client ID (int)
+     */
+    public static final byte SET_ID = 2;
+    /**
+     * ILiveBeansClient.updateLocalCode: sequence (long), segment frame
+     * (bytes)
+     */
+    public static final byte UPDATE_LOCAL_CODE = 3;
+    /**
+     * ILiveBeansClient.addDocumentMapping: document ID (int), project name
+     * (string), document name (string)
+     */
+    public static final byte ADD_DOCUMENT_MAPPING = 4;
+    /**
+     * ILiveBeansClient.acknowledgeBatch: batch ID (long), sequence (long)
+     */
+    public static final byte ACKNOWLEDGE_BATCH = 5;
+    /**
+     * ILiveBeansClient.collectGarbage: sequence (long)
+     */
+    public static final byte COLLECT_GARBAGE = 6;
+    /**
+     * ILiveBeansClient.resyncDocument: document ID (int), document sequence
+     * (long), sequence (long), last batch ID (long), document text (string)
+     */
+    public static final byte RESYNC_DOCUMENT = 7;
+
+    /* Client to server */
+    /**
+     * ILiveBeansServer.registerClient: call ID (int), client name (string)
+     */
+    public static final byte REGISTER_CLIENT = 32;
+    /**
+     * ILiveBeansServer.unRegisterClient: call ID (int)
+     */
+    public static final byte UNREGISTER_CLIENT = 33;
+    /**
+     * ILiveBeansServer.sendHeartbeat: client ID (int)
+     */
+    public static final byte HEARTBEAT = 34;
+    /**
+     * ILiveBeansServer.distributeCodeSegments: client ID (int), batch ID
+     * (long), base sequence (long), segment frame (bytes)
+     */
+    public static final byte DISTRIBUTE_SEGMENTS = 35;
+    /**
+     * ILiveBeansServer.registerDocument: call ID (int), project name
+     * (string), document name (string)
+     */
+    public static final byte REGISTER_DOCUMENT = 36;
+    /**
+     * ILiveBeansServer.resumeSession: call ID (int), client ID (int), last
+     * sequence (long), client name (string)
+     */
+    public static final byte RESUME_SESSION = 37;
+    /**
+     * ILiveBeansServer.subscribeDocument: client ID (int), document ID (int)
+     */
+    public static final byte SUBSCRIBE_DOCUMENT = 38;
+    /**
+     * ILiveBeansServer.unsubscribeDocument: client ID (int), document ID (int)
+     */
+    public static final byte UNSUBSCRIBE_DOCUMENT = 39;
+    /**
+     * ILiveBeansServer.submitDocumentText: client ID (int), document ID
+     * (int), document text (string)
+     */
+    public static final byte SUBMIT_DOCUMENT_TEXT = 40;
+    /**
+     * ILiveBeansServer.acknowledgeVersion: client ID (int), sequence (long)
+     */
+    public static final byte ACKNOWLEDGE_VERSION = 41;
+
+    /**
+     * Largest message either side will accept, so a corrupt length cannot
+     * make the reader allocate without bound
+     */
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+
+    private MessageType()
+    {
+    }
+}
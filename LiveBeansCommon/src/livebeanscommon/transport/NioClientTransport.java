@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.ILiveBeansServer;
+
+/**
+ * Connects to a NioServerTransport over a single socket. Calls that return a
+ * value wait for the matching REPLY; everything else is fire-and-forget. A
+ * reader thread delivers server callbacks to the local client.
+ *
+ * @author Luke Dawkes
+ */
+public class NioClientTransport implements IClientTransport
+{
+
+    private static final long CALL_TIMEOUT_SECONDS = 10;
+
+    private final BufferPool _bufferPool;
+    private final Map<Integer, CompletableFuture<Long>> _pendingCalls;
+    private final AtomicInteger _nextCallID;
+
+    private volatile SocketChannel _channel;
+    private ILiveBeansClient _client;
+
+    public NioClientTransport()
+    {
+        _bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 8);
+        _pendingCalls = new ConcurrentHashMap<>();
+        _nextCallID = new AtomicInteger();
+    }
+
+    @Override
+    public ILiveBeansServer connect(String serverAddress, int port, ILiveBeansClient client) throws IOException
+    {
+        return connect(SocketChannel.open(new InetSocketAddress(serverAddress, port)), client);
+    }
+
+    /**
+     * Starts talking to the server over an already connected channel
+     *
+     * @param channel A connected, blocking channel
+     * @param client The local client that server callbacks are delivered to
+     * @return The server, as seen through this transport
+     */
+    protected ILiveBeansServer connect(SocketChannel channel, ILiveBeansClient client)
+    {
+        _channel = channel;
+        _client = client;
+
+        Thread readerThread = new Thread(this::readMessages, "LiveBeans NIO reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        return new ServerProxy();
+    }
+
+    @Override
+    public void close()
+    {
+        SocketChannel channel = _channel;
+        _channel = null;
+
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                System.out.println("[CLIENT-WARNING] Failed to close server connection\r\n" + ex);
+            }
+        }
+
+        failPendingCalls();
+    }
+
+    private void readMessages()
+    {
+        SocketChannel channel = _channel;
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+
+        try
+        {
+            while (channel != null && channel.isOpen())
+            {
+                header.clear();
+                readFully(channel, header);
+
+                int length = header.getInt(0);
+
+                if (length < 1 || length > MessageType.MAX_MESSAGE_LENGTH)
+                {
+                    throw new IOException("Server sent a message of invalid length " + length);
+                }
+
+                ByteBuffer message = _bufferPool.acquire(length);
+                message.limit(length);
+                readFully(channel, message);
+                message.flip();
+
+                try
+                {
+                    dispatch(message.get(), new MessageReader(message));
+                }
+                catch (IllegalArgumentException ex)
+                {
+                    System.out.println("[CLIENT-WARNING] Ignored a malformed message from server\r\n" + ex);
+                }
+                finally
+                {
+                    _bufferPool.release(message);
+                }
+            }
+        }
+        catch (IOException | BufferUnderflowException ex)
+        {
+            if (_channel != null)
+            {
+                System.out.println("[CLIENT-WARNING] Lost connection to server\r\n" + ex);
+            }
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+    private void dispatch(byte messageType, MessageReader reader) throws RemoteException
+    {
+        switch (messageType)
+        {
+            case MessageType.REPLY:
+                CompletableFuture<Long> call = _pendingCalls.remove(reader.getInt());
+
+                if (call != null)
+                {
+                    call.complete(reader.getLong());
+                }
+                break;
+            case MessageType.SET_ID:
+                _client.setID(reader.getInt());
+                break;
+            case MessageType.UPDATE_LOCAL_CODE:
+                long sequence = reader.getLong();
+                _client.updateLocalCode(reader.getBytes(), sequence);
+                break;
+            case MessageType.ADD_DOCUMENT_MAPPING:
+                _client.addDocumentMapping(reader.getInt(), reader.getString(), reader.getString());
+                break;
+            case MessageType.ACKNOWLEDGE_BATCH:
+                long batchID = reader.getLong();
+                _client.acknowledgeBatch(batchID, reader.getLong());
+                break;
+            case MessageType.COLLECT_GARBAGE:
+                _client.collectGarbage(reader.getLong());
+                break;
+            case MessageType.RESYNC_DOCUMENT:
+                int documentID = reader.getInt();
+                long documentSequence = reader.getLong();
+                long resyncSequence = reader.getLong();
+                long lastBatchID = reader.getLong();
+                _client.resyncDocument(documentID, reader.getString(), documentSequence, resyncSequence, lastBatchID);
+                break;
+            default:
+                System.out.println(String.format("[CLIENT-WARNING] Ignored unknown message type %d from server", messageType));
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+    }
+
+    private void send(ByteBuffer message) throws RemoteException
+    {
+        SocketChannel channel = _channel;
+
+        if (channel == null)
+        {
+            _bufferPool.release(message);
+            throw new ConnectException("Not connected to a server");
+        }
+
+        try
+        {
+            synchronized (channel)
+            {
+                while (message.hasRemaining())
+                {
+                    channel.write(message);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            close();
+            throw new ConnectException("Failed to send to server", ex);
+        }
+        finally
+        {
+            _bufferPool.release(message);
+        }
+    }
+
+    private long call(int callID, ByteBuffer message) throws RemoteException
+    {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        _pendingCalls.put(callID, result);
+
+        try
+        {
+            send(message);
+
+            return result.get(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for the server", ex);
+        }
+        catch (ExecutionException | TimeoutException ex)
+        {
+            throw new RemoteException("No reply from the server", ex);
+        }
+        finally
+        {
+            _pendingCalls.remove(callID);
+        }
+    }
+
+    private void failPendingCalls()
+    {
+        for (CompletableFuture<Long> call : _pendingCalls.values())
+        {
+            call.completeExceptionally(new ConnectException("Connection to server closed"));
+        }
+
+        _pendingCalls.clear();
+    }
+
+    private MessageBuilder message(byte messageType)
+    {
+        return new MessageBuilder(_bufferPool, messageType);
+    }
+
+    /**
+     * The server as seen by the client
+     */
+    private final class ServerProxy implements ILiveBeansServer
+    {
+
+        @Override
+        public boolean registerClient(ILiveBeansClient client) throws RemoteException
+        {
+            int callID = _nextCallID.incrementAndGet();
+
+            return call(callID, message(MessageType.REGISTER_CLIENT).putInt(callID).putString(client.getName()).build()) != 0;
+        }
+
+        @Override
+        public boolean unRegisterClient(ILiveBeansClient client) throws RemoteException
+        {
+            int callID = _nextCallID.incrementAndGet();
+
+            return call(callID, message(MessageType.UNREGISTER_CLIENT).putInt(callID).build()) != 0;
+        }
+
+        @Override
+        public void sendHeartbeat(int clientID) throws RemoteException
+        {
+            send(message(MessageType.HEARTBEAT).putInt(clientID).build());
+        }
+
+        @Override
+        public int registerDocument(String projectName, String documentName) throws RemoteException
+        {
+            int callID = _nextCallID.incrementAndGet();
+
+            return (int) call(callID, message(MessageType.REGISTER_DOCUMENT).putInt(callID).putString(projectName).putString(documentName).build());
+        }
+
+        @Override
+        public void subscribeDocument(int clientID, int documentID) throws RemoteException
+        {
+            send(message(MessageType.SUBSCRIBE_DOCUMENT).putInt(clientID).putInt(documentID).build());
+        }
+
+        @Override
+        public void unsubscribeDocument(int clientID, int documentID) throws RemoteException
+        {
+            send(message(MessageType.UNSUBSCRIBE_DOCUMENT).putInt(clientID).putInt(documentID).build());
+        }
+
+        @Override
+        public void submitDocumentText(int clientID, int documentID, String documentText) throws RemoteException
+        {
+            send(message(MessageType.SUBMIT_DOCUMENT_TEXT).putInt(clientID).putInt(documentID).putString(documentText).build());
+        }
+
+        @Override
+        public long resumeSession(ILiveBeansClient client, int clientID, long lastSequence) throws RemoteException
+        {
+            int callID = _nextCallID.incrementAndGet();
+
+            return call(callID, message(MessageType.RESUME_SESSION).putInt(callID).putInt(clientID).putLong(lastSequence).putString(client.getName()).build());
+        }
+
+        @Override
+        public void distributeCodeSegments(byte[] segmentFrame, int clientID, long batchID, long baseSequence) throws RemoteException
+        {
+            send(message(MessageType.DISTRIBUTE_SEGMENTS).putInt(clientID).putLong(batchID).putLong(baseSequence).putBytes(segmentFrame).build());
+        }
+
+        @Override
+        public void acknowledgeVersion(int clientID, long sequence) throws RemoteException
+        {
+            send(message(MessageType.ACKNOWLEDGE_VERSION).putInt(clientID).putLong(sequence).build());
+        }
+    }
+}
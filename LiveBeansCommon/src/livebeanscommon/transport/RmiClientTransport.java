@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.ILiveBeansServer;
+
+/**
+ * Looks the server up in an RMI registry. Callbacks reach the client because
+ * the client is itself an exported remote object.
+ *
+ * @author Luke Dawkes
+ */
+public class RmiClientTransport implements IClientTransport
+{
+
+    public static final String BINDING_NAME = "LiveBeansServer";
+
+    @Override
+    public ILiveBeansServer connect(String serverAddress, int port, ILiveBeansClient client) throws IOException
+    {
+        Registry registry = LocateRegistry.getRegistry(serverAddress, port);
+
+        try
+        {
+            return (ILiveBeansServer) registry.lookup(BINDING_NAME);
+        }
+        catch (NotBoundException ex)
+        {
+            throw new IOException("No LiveBeans server is bound at " + serverAddress, ex);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        // RMI connections are pooled and reaped by the RMI runtime
+    }
+}
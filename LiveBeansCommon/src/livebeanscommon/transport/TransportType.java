@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+/**
+ * The transports a server and its clients can talk over
+ *
+ * @author Luke Dawkes
+ */
+public enum TransportType
+{
+
+    /**
+     * Java RMI through a registry, the default
+     */
+    RMI,
+    /**
+     * Length-prefixed frames over non-blocking sockets
+     */
+    NIO,
+    /**
+     * NIO frames over a Unix domain socket for clients on the server's
+     * machine, and over TCP for everyone else
+     */
+    UDS;
+
+    /**
+     * System property used to pick a transport, e.g.
+     * -Dlivebeans.transport=nio
+     */
+    public static final String PROPERTY = "livebeans.transport";
+
+    /**
+     * Gets the transport named by the livebeans.transport system property
+     *
+     * @return The configured transport, or RMI if none or an unknown one is
+     * set
+     */
+    public static TransportType fromSystemProperty()
+    {
+        String configured = System.getProperty(PROPERTY);
+
+        if (configured != null)
+        {
+            for (TransportType type : values())
+            {
+                if (type.name().equalsIgnoreCase(configured.trim()))
+                {
+                    return type;
+                }
+            }
+        }
+
+        return RMI;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Opens Unix domain socket channels. These arrived in Java 16, so they are
+ * reached reflectively and isSupported() reports whether the running JVM has
+ * them.
+ *
+ * @author Luke Dawkes
+ */
+public final class UnixSockets
+{
+
+    /**
+     * System property naming the directory socket files are created in,
+     * defaulting to java.io.tmpdir
+     */
+    public static final String DIRECTORY_PROPERTY = "livebeans.socketDir";
+
+    private static final ProtocolFamily UNIX_FAMILY;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_SERVER_CHANNEL;
+    private static final Method OPEN_CHANNEL;
+
+    static
+    {
+        ProtocolFamily family = null;
+        Method addressOf = null;
+        Method openServerChannel = null;
+        Method openChannel = null;
+
+        try
+        {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+            openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        }
+        catch (IllegalArgumentException | ClassNotFoundException | NoSuchMethodException ex)
+        {
+            family = null;
+        }
+
+        UNIX_FAMILY = family;
+        ADDRESS_OF = addressOf;
+        OPEN_SERVER_CHANNEL = openServerChannel;
+        OPEN_CHANNEL = openChannel;
+    }
+
+    private UnixSockets()
+    {
+    }
+
+    /**
+     * Checks whether this JVM can open Unix domain sockets
+     *
+     * @return True if it can
+     */
+    public static boolean isSupported()
+    {
+        return UNIX_FAMILY != null;
+    }
+
+    /**
+     * Gets the socket file a server listening on a port uses for local
+     * clients
+     *
+     * @param port The server's TCP port
+     * @return The path of the socket file
+     */
+    public static Path getSocketPath(int port)
+    {
+        String directory = System.getProperty(DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir"));
+
+        return Paths.get(directory, String.format("livebeans-%d.sock", port));
+    }
+
+    /**
+     * Checks whether an address belongs to this machine
+     *
+     * @param address A host name or IP address
+     * @return True if the address is a loopback address or one of this
+     * machine's interfaces
+     */
+    public static boolean isLocalAddress(String address)
+    {
+        try
+        {
+            InetAddress inetAddress = InetAddress.getByName(address);
+
+            return inetAddress.isLoopbackAddress()
+                    || inetAddress.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(inetAddress) != null;
+        }
+        catch (UnknownHostException | SocketException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a non-blocking server channel listening on a socket file. A file
+     * left behind by a server that did not shut down cleanly is replaced.
+     *
+     * @param socketPath The socket file to create
+     * @return The listening channel
+     * @throws IOException If the socket could not be created
+     */
+    public static ServerSocketChannel openServerChannel(Path socketPath) throws IOException
+    {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL);
+
+        try
+        {
+            Files.deleteIfExists(socketPath);
+
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(toAddress(socketPath));
+        }
+        catch (IOException ex)
+        {
+            serverChannel.close();
+            throw ex;
+        }
+
+        return serverChannel;
+    }
+
+    /**
+     * Opens a blocking channel connected to a socket file
+     *
+     * @param socketPath The server's socket file
+     * @return The connected channel
+     * @throws IOException If the server could not be reached
+     */
+    public static SocketChannel openChannel(Path socketPath) throws IOException
+    {
+        SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL);
+
+        try
+        {
+            channel.connect(toAddress(socketPath));
+        }
+        catch (IOException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+
+        return channel;
+    }
+
+    private static SocketAddress toAddress(Path socketPath) throws IOException
+    {
+        try
+        {
+            return (SocketAddress) ADDRESS_OF.invoke(null, socketPath);
+        }
+        catch (IllegalAccessException | InvocationTargetException ex)
+        {
+            throw new IOException("Could not create a Unix domain socket address for " + socketPath, ex);
+        }
+    }
+
+    private static Object invoke(Method openMethod) throws IOException
+    {
+        if (!isSupported())
+        {
+            throw new IOException("Unix domain sockets need Java 16 or later");
+        }
+
+        try
+        {
+            return openMethod.invoke(null, UNIX_FAMILY);
+        }
+        catch (InvocationTargetException ex)
+        {
+            if (ex.getCause() instanceof IOException)
+            {
+                throw (IOException) ex.getCause();
+            }
+
+            throw new IOException("Could not open a Unix domain socket", ex.getCause());
+        }
+        catch (IllegalAccessException ex)
+        {
+            throw new IOException("Could not open a Unix domain socket", ex);
+        }
+    }
+}
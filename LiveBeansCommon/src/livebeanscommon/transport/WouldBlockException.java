@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Luke Dawkes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package livebeanscommon.transport;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Thrown by a call on a client whose connection already has as much waiting
+ * to be written as it is allowed. Nothing from the call was queued, so the
+ * caller should hold on to it and make it again once the connection can take
+ * more.
+ *
+ * @author Luke Dawkes
+ */
+public class WouldBlockException extends RemoteException
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient CompletableFuture<Void> _writable;
+
+    public WouldBlockException(String message, CompletableFuture<Void> writable)
+    {
+        super(message);
+        _writable = writable;
+    }
+
+    /**
+     * Gets when the connection can take more. It also completes when the
+     * connection closes, so the call made again fails rather than waits.
+     *
+     * @return Completes once the connection has drained
+     */
+    public CompletableFuture<Void> getWritable()
+    {
+        return _writable;
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package livebeanscommon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Luke Dawkes
+ */
+public class CodeSegmentCodecTest
+{
+
+    private List<LiveBeansCodeSegment> codeSegments;
+
+    @Before
+    public void setUp()
+    {
+        codeSegments = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown()
+    {
+    }
+
+    private static void assertSegmentEquals(LiveBeansCodeSegment expected, LiveBeansCodeSegment result)
+    {
+        assertEquals(expected.getAuthorID(), result.getAuthorID());
+        assertEquals(expected.getAuthorTime(), result.getAuthorTime());
+        assertEquals(expected.getDocumentID(), result.getDocumentID());
+        assertEquals(expected.getDocumentOffset(), result.getDocumentOffset());
+        assertEquals(expected.getCodeLength(), result.getCodeLength());
+        assertEquals(expected.getCodeText(), result.getCodeText());
+        assertEquals(expected.isRemoval(), result.isRemoval());
+    }
+
+    private List<LiveBeansCodeSegment> roundTrip()
+    {
+        List<LiveBeansCodeSegment> result = CodeSegmentCodec.decode(CodeSegmentCodec.encode(codeSegments));
+
+        assertEquals(codeSegments.size(), result.size());
+
+        for (int i = 0; i < codeSegments.size(); i++)
+        {
+            assertSegmentEquals(codeSegments.get(i), result.get(i));
+        }
+
+        return result;
+    }
+
+    /**
+     * Test that an empty batch survives a round trip.
+     */
+    @Test
+    public void testEmptyBatch()
+    {
+        System.out.println("\r\nemptyBatch");
+
+        roundTrip();
+    }
+
+    /**
+     * Test that mixed insertions and removals survive a round trip.
+     */
+    @Test
+    public void testMixedBatch()
+    {
+        System.out.println("\r\nmixedBatch");
+
+        codeSegments.add(LiveBeansCodeSegment.insertion(3, 0, 120, "p"));
+        codeSegments.add(LiveBeansCodeSegment.insertion(3, 0, 121, "u"));
+        codeSegments.add(LiveBeansCodeSegment.removal(3, 0, 121, 1));
+        codeSegments.add(LiveBeansCodeSegment.insertion(5, 1, 4, "é中😀"));
+        codeSegments.add(LiveBeansCodeSegment.removal(3, 300, 0, 120));
+
+        roundTrip();
+    }
+
+    /**
+     * Test that offsets and times moving backwards are delta encoded
+     * correctly, including values at the edges of the int range.
+     */
+    @Test
+    public void testNegativeDeltas()
+    {
+        System.out.println("\r\nnegativeDeltas");
+
+        codeSegments.add(new LiveBeansCodeSegment(Integer.MAX_VALUE, Long.MAX_VALUE, 2, Integer.MAX_VALUE, 1, null));
+        codeSegments.add(new LiveBeansCodeSegment(0, 0, 2, 0, 1, "x"));
+        codeSegments.add(new LiveBeansCodeSegment(-1, -5, Integer.MAX_VALUE, Integer.MAX_VALUE, 0, null));
+
+        roundTrip();
+    }
+
+    /**
+     * Test that consecutive keystrokes encode to a handful of bytes each.
+     */
+    @Test
+    public void testKeystrokeSize()
+    {
+        System.out.println("\r\nkeystrokeSize");
+
+        long time = System.currentTimeMillis();
+
+        for (int i = 0; i < 50; i++)
+        {
+            codeSegments.add(new LiveBeansCodeSegment(7, time + i * 40, 0, 1000 + i, 1, "a"));
+        }
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+
+        // Header plus the first full timestamp, then a few bytes a key
+        assertTrue(frame.length < 16 + 50 * 5);
+        roundTrip();
+    }
+
+    /**
+     * Test that a large paste is deflated and still round trips.
+     */
+    @Test
+    public void testLargeInsertCompressed()
+    {
+        System.out.println("\r\nlargeInsertCompressed");
+
+        StringBuilder code = new StringBuilder();
+
+        for (int i = 0; code.length() < 16 * 1024; i++)
+        {
+            code.append(String.format("    public int getValue%d()\n    {\n        return _value%d;\n    }\n\n", i, i));
+        }
+
+        codeSegments.add(LiveBeansCodeSegment.insertion(2, 4, 0, code.toString()));
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+
+        assertEquals(CodeSegmentCodec.FLAG_DEFLATED, frame[1] & CodeSegmentCodec.FLAG_DEFLATED);
+        assertTrue(frame.length < code.length() / 4);
+        roundTrip();
+    }
+
+    /**
+     * Test that a frame below the compression threshold is left alone, however
+     * well it would compress.
+     */
+    @Test
+    public void testSmallFrameNotCompressed()
+    {
+        System.out.println("\r\nsmallFrameNotCompressed");
+
+        StringBuilder code = new StringBuilder();
+
+        while (code.length() < CodeSegmentCodec.COMPRESSION_THRESHOLD - 16)
+        {
+            code.append(' ');
+        }
+
+        codeSegments.add(LiveBeansCodeSegment.insertion(2, 4, 0, code.toString()));
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+
+        assertEquals(0, frame[1]);
+        roundTrip();
+    }
+
+    /**
+     * Test that a compressed frame with damaged contents is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCorruptCompressedFrame()
+    {
+        System.out.println("\r\ncorruptCompressedFrame");
+
+        StringBuilder code = new StringBuilder();
+
+        while (code.length() < 4096)
+        {
+            code.append("return null;\n");
+        }
+
+        codeSegments.add(LiveBeansCodeSegment.insertion(2, 4, 0, code.toString()));
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+
+        for (int i = frame.length / 2; i < frame.length; i++)
+        {
+            frame[i] = (byte) ~frame[i];
+        }
+
+        CodeSegmentCodec.decode(frame);
+    }
+
+    /**
+     * Test that a compressed frame claiming a body far larger than its
+     * contents could inflate to is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInflatedLengthBeyondInput()
+    {
+        System.out.println("\r\ninflatedLengthBeyondInput");
+
+        // 32 MiB, within the limit, from four bytes of input
+        CodeSegmentCodec.decode(new byte[]
+        {
+            CodeSegmentCodec.VERSION, CodeSegmentCodec.FLAG_DEFLATED, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 0, 0, 0, 0
+        });
+    }
+
+    /**
+     * Test that a frame from an unknown version is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedVersion()
+    {
+        System.out.println("\r\nunsupportedVersion");
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+        frame[0] = (byte) (CodeSegmentCodec.VERSION + 1);
+
+        CodeSegmentCodec.decode(frame);
+    }
+
+    /**
+     * Test that a truncated frame is rejected rather than read past its end.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedFrame()
+    {
+        System.out.println("\r\ntruncatedFrame");
+
+        codeSegments.add(LiveBeansCodeSegment.insertion(3, 0, 120, "public"));
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+        byte[] truncated = new byte[frame.length - 3];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+
+        CodeSegmentCodec.decode(truncated);
+    }
+
+    /**
+     * Test that a count no frame could hold is rejected before anything is
+     * sized by it.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testOversizedCount()
+    {
+        System.out.println("\r\noversizedCount");
+
+        CodeSegmentCodec.decode(new byte[]
+        {
+            CodeSegmentCodec.VERSION, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07
+        });
+    }
+
+    /**
+     * Test that a removal claiming a negative length is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLength()
+    {
+        System.out.println("\r\nnegativeLength");
+
+        codeSegments.add(LiveBeansCodeSegment.removal(3, 7, 0, 1));
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+        byte[] negative = Arrays.copyOf(frame, frame.length + 4);
+
+        // The length is the last byte, so becomes 0xFFFFFFFF
+        System.arraycopy(new byte[]
+        {
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F
+        }, 0, negative, frame.length - 1, 5);
+
+        CodeSegmentCodec.decode(negative);
+    }
+
+    /**
+     * Test that a removal length written as a ten-byte varint, which reads
+     * back as a negative long, is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testTenByteLength()
+    {
+        System.out.println("\r\ntenByteLength");
+
+        CodeSegmentCodec.decode(new byte[]
+        {
+            CodeSegmentCodec.VERSION, 0, 1, 7, 1, 0, 0, 0, (byte) 0xFB, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01
+        });
+    }
+
+    /**
+     * Test that a segment whose offset delta takes it before the start of
+     * the document is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeOffset()
+    {
+        System.out.println("\r\nnegativeOffset");
+
+        // Zig-zag 1 is a delta of -1 from the first segment's offset of 0
+        CodeSegmentCodec.decode(new byte[]
+        {
+            CodeSegmentCodec.VERSION, 0, 1, 7, 1, 0, 1, 0, 1
+        });
+    }
+
+    /**
+     * Test that the server's stamp reads back and leaves the frame it was
+     * written in front of as it was.
+     */
+    @Test
+    public void testBatchStamp()
+    {
+        System.out.println("\r\nbatchStamp");
+
+        codeSegments.add(LiveBeansCodeSegment.insertion(3, 7, 0, "public"));
+
+        byte[] frame = CodeSegmentCodec.encode(codeSegments);
+        byte[] stamped = BatchStamp.stamp(frame, new int[]
+        {
+            7, 300
+        }, new long[]
+        {
+            1, 1L << 40
+        });
+
+        assertTrue(BatchStamp.isStamped(stamped));
+        assertFalse(BatchStamp.isStamped(frame));
+        assertFalse(CrdtCodec.isCrdtFrame(stamped));
+
+        BatchStamp stamp = BatchStamp.read(stamped);
+
+        assertEquals(2, stamp.getDocumentCount());
+        assertEquals(300, stamp.getDocumentID(1));
+        assertEquals(1L << 40, stamp.getDocumentSequence(1));
+        assertArrayEquals(frame, stamp.getFrame());
+    }
+
+    /**
+     * Test that a frame cut off inside its stamp is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedStamp()
+    {
+        System.out.println("\r\ntruncatedStamp");
+
+        byte[] stamped = BatchStamp.stamp(CodeSegmentCodec.encode(codeSegments), new int[]
+        {
+            7
+        }, new long[]
+        {
+            1L << 40
+        });
+
+        BatchStamp.read(Arrays.copyOf(stamped, 4));
+    }
+
+    /**
+     * Test that a stamp whose document count is a ten-byte varint, which
+     * reads back as -1, is rejected as malformed rather than failing to
+     * size its arrays.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeStampCount()
+    {
+        System.out.println("\r\nnegativeStampCount");
+
+        BatchStamp.read(new byte[]
+        {
+            BatchStamp.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01, CodeSegmentCodec.VERSION, 0, 0
+        });
+    }
+}
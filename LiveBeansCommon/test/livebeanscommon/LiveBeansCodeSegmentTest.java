@@ -0,0 +1,151 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package livebeanscommon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Luke Dawkes
+ */
+public class LiveBeansCodeSegmentTest
+{
+
+    private LiveBeansCodeSegment insertion, removal;
+
+    @Before
+    public void setUp()
+    {
+        insertion = LiveBeansCodeSegment.insertion(3, 1, 10, "Test");
+        removal = LiveBeansCodeSegment.removal(4, 1, 12, 2);
+    }
+
+    @After
+    public void tearDown()
+    {
+    }
+
+    /**
+     * Test of the insertion factory, of class LiveBeansCodeSegment.
+     */
+    @Test
+    public void testInsertion()
+    {
+        System.out.println("\r\ninsertion");
+
+        assertEquals(3, insertion.getAuthorID());
+        assertEquals(1, insertion.getDocumentID());
+        assertEquals(10, insertion.getDocumentOffset());
+        assertEquals(4, insertion.getCodeLength());
+        assertEquals("Test", insertion.getCodeText());
+        assertFalse(insertion.isRemoval());
+        assertTrue(insertion.getAuthorTime() > 0);
+    }
+
+    /**
+     * Test of the removal factory, of class LiveBeansCodeSegment.
+     */
+    @Test
+    public void testRemoval()
+    {
+        System.out.println("\r\nremoval");
+
+        assertEquals(4, removal.getAuthorID());
+        assertEquals(1, removal.getDocumentID());
+        assertEquals(12, removal.getDocumentOffset());
+        assertEquals(2, removal.getCodeLength());
+        assertNull(removal.getCodeText());
+        assertTrue(removal.isRemoval());
+    }
+
+    /**
+     * Test that a long insertion is split into chunks that rebuild the text
+     * when applied in order.
+     */
+    @Test
+    public void testInsertionsChunked()
+    {
+        System.out.println("\r\ninsertionsChunked");
+
+        String code = "public class Test {}\n";
+        List<LiveBeansCodeSegment> result = LiveBeansCodeSegment.insertions(3, 1, 100, code, 8);
+
+        assertEquals(3, result.size());
+
+        StringBuilder document = new StringBuilder();
+
+        for (LiveBeansCodeSegment chunk : result)
+        {
+            assertTrue(chunk.getCodeLength() <= 8);
+            assertEquals(chunk.getCodeText().length(), chunk.getCodeLength());
+
+            document.insert(chunk.getDocumentOffset() - 100, chunk.getCodeText());
+        }
+
+        assertEquals(code, document.toString());
+        assertEquals(1, LiveBeansCodeSegment.insertions(3, 1, 0, "short", 8).size());
+    }
+
+    /**
+     * Test that a chunk boundary never splits a surrogate pair.
+     */
+    @Test
+    public void testInsertionsKeepSurrogatePairs()
+    {
+        System.out.println("\r\ninsertionsKeepSurrogatePairs");
+
+        String code = "abc\uD83D\uDE00def";
+        List<LiveBeansCodeSegment> result = LiveBeansCodeSegment.insertions(3, 1, 0, code, 4);
+
+        assertEquals("abc", result.get(0).getCodeText());
+        assertEquals("\uD83D\uDE00de", result.get(1).getCodeText());
+        assertEquals("f", result.get(2).getCodeText());
+    }
+
+    /**
+     * Test that a segment survives being serialized by value.
+     *
+     * @throws java.io.IOException
+     * @throws java.lang.ClassNotFoundException
+     */
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException
+    {
+        System.out.println("\r\nserialization");
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream outputStream = new ObjectOutputStream(byteStream))
+        {
+            outputStream.writeObject(insertion);
+        }
+
+        LiveBeansCodeSegment result;
+
+        try (ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(byteStream.toByteArray())))
+        {
+            result = (LiveBeansCodeSegment) inputStream.readObject();
+        }
+
+        assertEquals(insertion.getAuthorID(), result.getAuthorID());
+        assertEquals(insertion.getAuthorTime(), result.getAuthorTime());
+        assertEquals(insertion.getDocumentID(), result.getDocumentID());
+        assertEquals(insertion.getDocumentOffset(), result.getDocumentOffset());
+        assertEquals(insertion.getCodeText(), result.getCodeText());
+    }
+}
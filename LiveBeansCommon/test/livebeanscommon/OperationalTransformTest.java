@@ -0,0 +1,148 @@
+package livebeanscommon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class OperationalTransformTest
+{
+
+    private static String apply(String text, List<LiveBeansCodeSegment> codeSegments)
+    {
+        Rope rope = Rope.of(text);
+
+        for (LiveBeansCodeSegment codeSegment : codeSegments)
+        {
+            rope = rope.apply(codeSegment);
+        }
+
+        return rope.toString();
+    }
+
+    private static void assertConverges(String text, List<LiveBeansCodeSegment> a, List<LiveBeansCodeSegment> b, boolean aFirst)
+    {
+        OperationalTransform.Transformed transformed = OperationalTransform.transform(a, b, aFirst);
+
+        String aThenB = apply(apply(text, a), transformed.getConcurrentSegments());
+        String bThenA = apply(apply(text, b), transformed.getCodeSegments());
+
+        assertEquals(aThenB, bThenA);
+    }
+
+    /**
+     * Test of transform for two insertions, including the tie at the same
+     * offset.
+     */
+    @Test
+    public void testInsertions()
+    {
+        System.out.println("\r\ninsertions");
+
+        List<LiveBeansCodeSegment> a = Collections.singletonList(LiveBeansCodeSegment.insertion(1, 0, 0, "X"));
+        List<LiveBeansCodeSegment> b = Collections.singletonList(LiveBeansCodeSegment.insertion(2, 0, 3, "Y"));
+
+        OperationalTransform.Transformed transformed = OperationalTransform.transform(b, a, false);
+        assertEquals(4, transformed.getCodeSegments().get(0).getDocumentOffset());
+        assertEquals(0, transformed.getConcurrentSegments().get(0).getDocumentOffset());
+        assertEquals("XabcY", apply(apply("abc", a), transformed.getCodeSegments()));
+
+        List<LiveBeansCodeSegment> tie = Collections.singletonList(LiveBeansCodeSegment.insertion(2, 0, 0, "Y"));
+        assertEquals("XYabc", apply(apply("abc", a), OperationalTransform.transform(tie, a, false).getCodeSegments()));
+        assertEquals("YXabc", apply(apply("abc", a), OperationalTransform.transform(tie, a, true).getCodeSegments()));
+    }
+
+    /**
+     * Test that text inserted inside a concurrently removed range survives,
+     * with the removal split around it.
+     */
+    @Test
+    public void testInsertionInsideRemoval()
+    {
+        System.out.println("\r\ninsertionInsideRemoval");
+
+        List<LiveBeansCodeSegment> removal = Collections.singletonList(LiveBeansCodeSegment.removal(1, 0, 1, 4));
+        List<LiveBeansCodeSegment> insertion = Collections.singletonList(LiveBeansCodeSegment.insertion(2, 0, 3, "XY"));
+
+        OperationalTransform.Transformed transformed = OperationalTransform.transform(removal, insertion, true);
+
+        assertEquals(2, transformed.getCodeSegments().size());
+        assertEquals("aXYf", apply(apply("abcdef", insertion), transformed.getCodeSegments()));
+        assertEquals("aXYf", apply(apply("abcdef", removal), transformed.getConcurrentSegments()));
+    }
+
+    /**
+     * Test that overlapping removals only remove each character once.
+     */
+    @Test
+    public void testOverlappingRemovals()
+    {
+        System.out.println("\r\noverlappingRemovals");
+
+        List<LiveBeansCodeSegment> a = Collections.singletonList(LiveBeansCodeSegment.removal(1, 0, 1, 3));
+        List<LiveBeansCodeSegment> b = Collections.singletonList(LiveBeansCodeSegment.removal(2, 0, 2, 3));
+
+        OperationalTransform.Transformed transformed = OperationalTransform.transform(a, b, true);
+        assertEquals("af", apply(apply("abcdef", b), transformed.getCodeSegments()));
+
+        List<LiveBeansCodeSegment> inside = Collections.singletonList(LiveBeansCodeSegment.removal(2, 0, 2, 1));
+        assertTrue(OperationalTransform.transform(inside, a, true).getCodeSegments().isEmpty());
+
+        List<LiveBeansCodeSegment> otherDocument = Collections.singletonList(LiveBeansCodeSegment.removal(2, 1, 2, 1));
+        assertTrue(otherDocument.get(0) == OperationalTransform.transform(otherDocument, a, true).getCodeSegments().get(0));
+    }
+
+    /**
+     * Test that random lists of segments converge whichever is applied
+     * first.
+     */
+    @Test
+    public void testConvergence()
+    {
+        System.out.println("\r\nconvergence");
+
+        Random random = new Random(23);
+
+        for (int round = 0; round < 2000; round++)
+        {
+            String text = "abcdefghijklmnopqrstuvwxyz".substring(0, random.nextInt(27));
+            List<LiveBeansCodeSegment> a = randomSegments(random, 1, text, 1 + random.nextInt(4));
+            List<LiveBeansCodeSegment> b = randomSegments(random, 2, text, 1 + random.nextInt(4));
+
+            assertConverges(text, a, b, random.nextBoolean());
+        }
+
+        assertConverges("abc", Arrays.asList(LiveBeansCodeSegment.removal(1, 0, 0, 3)), new ArrayList<>(), true);
+    }
+
+    private static List<LiveBeansCodeSegment> randomSegments(Random random, int authorID, String text, int count)
+    {
+        List<LiveBeansCodeSegment> codeSegments = new ArrayList<>(count);
+        int length = text.length();
+
+        for (int i = 0; i < count; i++)
+        {
+            if (length > 0 && random.nextBoolean())
+            {
+                int offset = random.nextInt(length);
+                int removed = 1 + random.nextInt(Math.min(4, length - offset));
+
+                codeSegments.add(LiveBeansCodeSegment.removal(authorID, 0, offset, removed));
+                length -= removed;
+            }
+            else
+            {
+                String inserted = authorID == 1 ? "XY".substring(0, 1 + random.nextInt(2)) : "#";
+
+                codeSegments.add(LiveBeansCodeSegment.insertion(authorID, 0, random.nextInt(length + 1), inserted));
+                length += inserted.length();
+            }
+        }
+
+        return codeSegments;
+    }
+}
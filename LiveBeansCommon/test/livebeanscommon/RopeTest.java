@@ -0,0 +1,167 @@
+package livebeanscommon;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class RopeTest
+{
+
+    private static String repeat(String text, int count)
+    {
+        StringBuilder repeated = new StringBuilder(text.length() * count);
+
+        for (int i = 0; i < count; i++)
+        {
+            repeated.append(text);
+        }
+
+        return repeated.toString();
+    }
+
+    /**
+     * Test of insert, remove and subSequence on a rope many leaves long.
+     */
+    @Test
+    public void testEdits()
+    {
+        System.out.println("\r\nedits");
+
+        String text = repeat("0123456789", 1000);
+        Rope rope = Rope.of(text);
+
+        assertEquals(text, rope.toString());
+        assertEquals(text.length(), rope.length());
+        assertEquals('7', rope.charAt(5007));
+
+        Rope inserted = rope.insert(5000, "abc");
+        assertEquals(text.substring(0, 5000) + "abc" + text.substring(5000), inserted.toString());
+
+        Rope removed = inserted.remove(4999, 5);
+        assertEquals(text.substring(0, 4999) + text.substring(5001), removed.toString());
+
+        assertEquals(text.substring(1234, 8765), rope.subSequence(1234, 8765).toString());
+        assertEquals("", rope.subSequence(10, 10).toString());
+        assertEquals(text + "end", rope.concat(Rope.of("end")).toString());
+    }
+
+    /**
+     * Test that an edit leaves the rope it was made to unchanged, so old
+     * versions can be kept as snapshots.
+     */
+    @Test
+    public void testSnapshots()
+    {
+        System.out.println("\r\nsnapshots");
+
+        Rope original = Rope.of(repeat("abcdefgh", 500));
+        Rope edited = original.insert(100, "XYZ").remove(2000, 500);
+
+        assertEquals(repeat("abcdefgh", 500), original.toString());
+        assertEquals(4000 + 3 - 500, edited.length());
+        assertSame(original, original.insert(10, ""));
+        assertSame(original, original.remove(10, 0));
+        assertSame(original, original.subSequence(0, original.length()));
+    }
+
+    /**
+     * Test that code segments are applied like any other edit.
+     */
+    @Test
+    public void testApply()
+    {
+        System.out.println("\r\napply");
+
+        Rope rope = Rope.of("class A {}");
+
+        rope = rope.apply(LiveBeansCodeSegment.removal(0, 0, 6, 1));
+        rope = rope.apply(LiveBeansCodeSegment.insertion(0, 0, 6, "Main"));
+
+        assertEquals("class Main {}", rope.toString());
+    }
+
+    /**
+     * Test that ranges outside the rope are refused.
+     */
+    @Test
+    public void testOutOfRange()
+    {
+        System.out.println("\r\noutOfRange");
+
+        Rope rope = Rope.of("abc");
+
+        try
+        {
+            rope.insert(4, "d");
+            fail("Inserted past the end");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+        }
+
+        try
+        {
+            rope.remove(2, 2);
+            fail("Removed past the end");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+        }
+
+        try
+        {
+            rope.charAt(3);
+            fail("Read past the end");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+        }
+
+        assertEquals("abc", rope.toString());
+    }
+
+    /**
+     * Test random edits against the same edits made to a StringBuilder, and
+     * that the tree stays balanced throughout.
+     */
+    @Test
+    public void testRandomEdits()
+    {
+        System.out.println("\r\nrandomEdits");
+
+        Random random = new Random(7);
+        StringBuilder expected = new StringBuilder(repeat("The quick brown fox jumps over the lazy dog. ", 2000));
+        Rope rope = Rope.of(expected);
+
+        for (int i = 0; i < 5000; i++)
+        {
+            int offset = random.nextInt(expected.length() + 1);
+
+            if (random.nextInt(3) == 0)
+            {
+                int length = random.nextInt(Math.min(3000, expected.length() - offset) + 1);
+
+                expected.delete(offset, offset + length);
+                rope = rope.remove(offset, length);
+            }
+            else
+            {
+                String text = repeat(Integer.toString(i, 36), 1 + random.nextInt(600));
+
+                expected.insert(offset, text);
+                rope = rope.insert(offset, text);
+            }
+
+            assertEquals(expected.length(), rope.length());
+
+            // An AVL tree is never more than about 1.44 log2 of its leaves tall
+            int leaves = 1 + rope.length() / (Rope.MAX_LEAF_LENGTH / 2);
+            assertTrue("Height " + rope.getHeight(), rope.getHeight() <= 1.45 * (Math.log(leaves) / Math.log(2)) + 2);
+        }
+
+        assertEquals(expected.toString(), rope.toString());
+    }
+}
@@ -0,0 +1,336 @@
+package livebeanscommon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class SequenceCrdtTest
+{
+
+    private static String apply(String text, List<LiveBeansCodeSegment> codeSegments)
+    {
+        Rope rope = Rope.of(text);
+
+        for (LiveBeansCodeSegment codeSegment : codeSegments)
+        {
+            rope = rope.apply(codeSegment);
+        }
+
+        return rope.toString();
+    }
+
+    private static CrdtOperation relay(CrdtOperation operation)
+    {
+        List<CrdtOperation> decoded = CrdtCodec.decode(CrdtCodec.encode(Collections.singletonList(operation)));
+
+        assertEquals(1, decoded.size());
+
+        return decoded.get(0);
+    }
+
+    /**
+     * Test that text typed at the same place by two clients at once ends up
+     * in the same order on both.
+     */
+    @Test
+    public void testConcurrentInsertions()
+    {
+        System.out.println("\r\nconcurrentInsertions");
+
+        SequenceCrdt a = SequenceCrdt.of(0, "abc");
+        SequenceCrdt b = SequenceCrdt.of(0, "abc");
+
+        CrdtOperation x = a.insert(1, 1, "X");
+        CrdtOperation y = b.insert(2, 1, "Y");
+
+        List<LiveBeansCodeSegment> onA = a.integrate(relay(y), 2);
+        List<LiveBeansCodeSegment> onB = b.integrate(relay(x), 1);
+
+        assertEquals(a.getText(), b.getText());
+        assertEquals("aYXbc", a.getText());
+        assertEquals(a.getText(), apply("aXbc", onA));
+        assertEquals(b.getText(), apply("aYbc", onB));
+
+        // Applying an insertion twice changes nothing
+        assertTrue(a.integrate(relay(y), 2).isEmpty());
+        assertEquals("aYXbc", a.getText());
+    }
+
+    /**
+     * Test that typing keeps one run, and that removing it names it with a
+     * single identifier run.
+     */
+    @Test
+    public void testRuns()
+    {
+        System.out.println("\r\nruns");
+
+        SequenceCrdt document = SequenceCrdt.of(0, "ab");
+
+        for (int i = 0; i < 100; i++)
+        {
+            document.insert(1, 1 + i, "x");
+        }
+
+        assertEquals(3, document.getRunCount());
+        assertEquals(102, document.length());
+
+        CrdtOperation removal = document.remove(1, 1, 100);
+
+        assertEquals(Arrays.asList(new CrdtOperation.IdentifierRun(1, 3, 100)), removal.getRemovedRuns());
+        assertEquals("ab", document.getText());
+        assertTrue(CrdtCodec.encode(Collections.singletonList(removal)).length < 16);
+        assertEquals(removal.getRemovedRuns(), relay(removal).getRemovedRuns());
+    }
+
+    /**
+     * Test that collected tombstones leave the document holding only its
+     * live text, and that a removal the server has not sequenced is kept.
+     */
+    @Test
+    public void testCollectGarbage()
+    {
+        System.out.println("\r\ncollectGarbage");
+
+        SequenceCrdt document = SequenceCrdt.of(0, "abcdef");
+
+        CrdtOperation removal = document.remove(1, 2, 2);
+
+        assertEquals("abef", document.getText());
+        assertEquals(3, document.getRunCount());
+        assertEquals(0, document.collectGarbage(10));
+        assertEquals(2, document.getTombstoneLength());
+
+        document.acknowledge(removal, 5);
+
+        assertEquals(0, document.collectGarbage(4));
+        assertEquals(2, document.collectGarbage(5));
+        assertEquals(0, document.getTombstoneLength());
+        assertEquals(2, document.getRunCount());
+
+        // Putting the characters back joins the runs again
+        document.integrate(CrdtOperation.insertion(0, 2, 20, SequenceCrdt.INITIAL_AUTHOR_ID, 2, "CD"), 6);
+        document.integrate(CrdtOperation.removal(0, 2, 22, Arrays.asList(new CrdtOperation.IdentifierRun(2, 20, 2))), 7);
+
+        assertEquals(2, document.collectGarbage(7));
+        assertEquals("abef", document.getText());
+        assertEquals(2, document.getRunCount());
+    }
+
+    /**
+     * Test that clients editing at random converge once every operation is
+     * delivered, whatever order the server sequenced them in and however
+     * long each client took to apply them, that the segments each client
+     * applies to its editor keep the editor in step, and that garbage
+     * collection along the way leaves nothing but the live text.
+     */
+    @Test
+    public void testConvergence()
+    {
+        System.out.println("\r\nconvergence");
+
+        Random random = new Random(24);
+
+        for (int round = 0; round < 200; round++)
+        {
+            Simulation simulation = new Simulation(random, 3, "abcdefghij");
+
+            for (int step = 0; step < 200; step++)
+            {
+                simulation.step();
+            }
+
+            simulation.finish();
+        }
+    }
+
+    private static final class Replica
+    {
+
+        private final int _clientID;
+        private final SequenceCrdt _document;
+        private final List<CrdtOperation> _pending;
+        private final List<Long> _pendingBases;
+        private String _editor;
+        private int _delivered;
+
+        Replica(int clientID, String text)
+        {
+            _clientID = clientID;
+            _document = SequenceCrdt.of(0, text);
+            _pending = new ArrayList<>();
+            _pendingBases = new ArrayList<>();
+            _editor = text;
+        }
+
+        long getVersion()
+        {
+            return _pendingBases.isEmpty() ? _delivered : Math.min(_delivered, _pendingBases.get(0));
+        }
+    }
+
+    private static final class Simulation
+    {
+
+        private final Random _random;
+        private final List<Replica> _replicas;
+        private final List<CrdtOperation> _sequenced;
+        private final List<Integer> _authors;
+        private final List<Long> _bases;
+        private long _stableSequence;
+
+        Simulation(Random random, int clientCount, String text)
+        {
+            _random = random;
+            _replicas = new ArrayList<>();
+            _sequenced = new ArrayList<>();
+            _authors = new ArrayList<>();
+            _bases = new ArrayList<>();
+
+            for (int clientID = 0; clientID < clientCount; clientID++)
+            {
+                _replicas.add(new Replica(clientID, text));
+            }
+        }
+
+        void step()
+        {
+            Replica replica = _replicas.get(_random.nextInt(_replicas.size()));
+
+            switch (_random.nextInt(5))
+            {
+                case 0:
+                    edit(replica);
+                    break;
+                case 1:
+                    send(replica);
+                    break;
+                case 2:
+                case 3:
+                    deliver(replica);
+                    break;
+                default:
+                    updateStableSequence();
+                    replica._document.collectGarbage(_stableSequence);
+                    break;
+            }
+
+            assertEquals(replica._document.getText(), replica._editor);
+        }
+
+        void finish()
+        {
+            for (Replica replica : _replicas)
+            {
+                while (!replica._pending.isEmpty())
+                {
+                    send(replica);
+                }
+            }
+
+            for (Replica replica : _replicas)
+            {
+                while (replica._delivered < _sequenced.size())
+                {
+                    deliver(replica);
+                }
+            }
+
+            String text = _replicas.get(0)._document.getText();
+
+            for (Replica replica : _replicas)
+            {
+                assertEquals(text, replica._document.getText());
+                assertEquals(text, replica._editor);
+
+                replica._document.collectGarbage(_sequenced.size());
+
+                assertEquals(0, replica._document.getTombstoneLength());
+                assertEquals(text, replica._document.getText());
+            }
+        }
+
+        private void edit(Replica replica)
+        {
+            SequenceCrdt document = replica._document;
+            CrdtOperation operation;
+
+            if (document.length() > 0 && _random.nextBoolean())
+            {
+                int offset = _random.nextInt(document.length());
+                int length = 1 + _random.nextInt(Math.min(4, document.length() - offset));
+
+                operation = document.remove(replica._clientID, offset, length);
+                replica._editor = apply(replica._editor, Collections.singletonList(LiveBeansCodeSegment.removal(replica._clientID, 0, offset, length)));
+            }
+            else
+            {
+                int offset = _random.nextInt(document.length() + 1);
+                String text = "XYZ".substring(replica._clientID, replica._clientID + 1);
+
+                operation = document.insert(replica._clientID, offset, text);
+                replica._editor = apply(replica._editor, Collections.singletonList(LiveBeansCodeSegment.insertion(replica._clientID, 0, offset, text)));
+            }
+
+            replica._pending.add(operation);
+            replica._pendingBases.add((long) replica._delivered);
+        }
+
+        private void send(Replica replica)
+        {
+            if (replica._pending.isEmpty())
+            {
+                return;
+            }
+
+            CrdtOperation operation = replica._pending.remove(0);
+
+            _sequenced.add(relay(operation));
+            _authors.add(replica._clientID);
+            _bases.add(replica._pendingBases.remove(0));
+
+            replica._document.acknowledge(operation, _sequenced.size());
+        }
+
+        private void deliver(Replica replica)
+        {
+            if (replica._delivered == _sequenced.size())
+            {
+                return;
+            }
+
+            int index = replica._delivered++;
+
+            if (_authors.get(index) != replica._clientID)
+            {
+                replica._editor = apply(replica._editor, replica._document.integrate(_sequenced.get(index), index + 1));
+            }
+        }
+
+        /**
+         * Works out what the server would: the oldest version a client has
+         * acknowledged, held back to the base of any batch sequenced after it
+         */
+        private void updateStableSequence()
+        {
+            long stable = Long.MAX_VALUE;
+
+            for (Replica replica : _replicas)
+            {
+                stable = Math.min(stable, replica.getVersion());
+            }
+
+            for (int index = (int) stable; index < _sequenced.size(); index++)
+            {
+                stable = Math.min(stable, _bases.get(index));
+            }
+
+            _stableSequence = Math.max(_stableSequence, stable);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package livebeanscommon.transport;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BufferPoolTest
+{
+
+    /**
+     * Test that a small message is built in a small buffer, and that a
+     * released buffer is reused for the next message of its size.
+     */
+    @Test
+    public void testSizeClasses()
+    {
+        System.out.println("\r\nsizeClasses");
+
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 4);
+
+        ByteBuffer reply = new MessageBuilder(pool, MessageType.REPLY).putInt(1).putLong(2).build();
+
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, reply.capacity());
+        assertEquals(Integer.BYTES + 1 + Integer.BYTES + Long.BYTES, reply.remaining());
+
+        pool.release(reply);
+
+        assertSame(reply, pool.acquire(100));
+
+        ByteBuffer large = new MessageBuilder(pool, MessageType.UPDATE_LOCAL_CODE).putBytes(new byte[3000]).build();
+
+        assertEquals(4096, large.capacity());
+        assertEquals(Integer.BYTES + 1 + Integer.BYTES + 3000, large.remaining());
+        assertEquals(BufferPool.DEFAULT_BUFFER_SIZE, pool.acquire().capacity());
+        assertFalse(pool.acquire(BufferPool.DEFAULT_BUFFER_SIZE + 1).isDirect());
+    }
+
+    /**
+     * Test that the pool stops allocating direct buffers once it has as much
+     * direct memory as it may pool, and starts again once some is collected.
+     */
+    @Test
+    public void testDirectAllocationCap()
+    {
+        System.out.println("\r\ndirectAllocationCap");
+
+        BufferPool pool = new BufferPool(1024, 2);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+
+        assertTrue(first.isDirect());
+        assertTrue(second.isDirect());
+        assertEquals(2048, pool.getDirectBytes());
+
+        ByteBuffer overCap = pool.acquire(BufferPool.MIN_BUFFER_SIZE);
+
+        assertFalse(overCap.isDirect());
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, overCap.capacity());
+
+        // Heap buffers are not pooled
+        pool.release(overCap);
+        assertEquals(2048, pool.getDirectBytes());
+
+        pool.release(first);
+        pool.release(second);
+
+        // Both fit in the pool, so their memory is still held
+        assertEquals(2048, pool.getDirectBytes());
+        assertFalse(pool.acquire(BufferPool.MIN_BUFFER_SIZE).isDirect());
+        assertSame(first, pool.acquire());
+    }
+
+    /**
+     * Test that a direct buffer never returned to the pool, as when its
+     * connection closes mid-write, stops counting against the pool once it
+     * has been collected.
+     */
+    @Test
+    public void testUnreturnedBufferCollected() throws InterruptedException
+    {
+        System.out.println("\r\nunreturnedBufferCollected");
+
+        BufferPool pool = new BufferPool(1024, 1);
+        ByteBuffer held = pool.acquire();
+
+        assertTrue(held.isDirect());
+        assertFalse(pool.acquire().isDirect());
+
+        held = null;
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (pool.getDirectBytes() > 0 && System.currentTimeMillis() < deadline)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, pool.getDirectBytes());
+        assertTrue(pool.acquire().isDirect());
+    }
+}
@@ -0,0 +1,36 @@
+package livebeansserver;
+
+import java.rmi.RemoteException;
+import livebeanscommon.ILiveBeansClient;
+
+/**
+ * Tells a client the sequence number the server gave one of its batches
+ */
+final class AcknowledgementDelivery implements SequencedDelivery
+{
+
+    private final long _batchID;
+    private final long _sequence;
+
+    AcknowledgementDelivery(long batchID, long sequence)
+    {
+        _batchID = batchID;
+        _sequence = sequence;
+    }
+
+    long getBatchID()
+    {
+        return _batchID;
+    }
+
+    long getSequence()
+    {
+        return _sequence;
+    }
+
+    @Override
+    public void send(ILiveBeansClient client) throws RemoteException
+    {
+        client.acknowledgeBatch(_batchID, _sequence);
+    }
+}
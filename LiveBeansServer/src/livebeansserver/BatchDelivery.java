@@ -0,0 +1,206 @@
+package livebeansserver;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import livebeanscommon.ILiveBeansClient;
+
+/**
+ * One or more batches for a client, sent in a single call. Kept apart from
+ * the server's other messages so that a client which falls behind can have
+ * its waiting batches taken back and replaced with one catch-up.
+ */
+final class BatchDelivery implements SequencedDelivery
+{
+
+    private final ClientRecord _record;
+    private final byte[][] _segmentFrames;
+    private final long[] _sequences;
+
+    private BatchDelivery(ClientRecord record, byte[][] segmentFrames, long[] sequences)
+    {
+        _record = record;
+        _segmentFrames = segmentFrames;
+        _sequences = sequences;
+    }
+
+    /**
+     * @param record The client to send the batches to
+     * @param batches The batches, in sequence order
+     * @return The delivery
+     */
+    static BatchDelivery of(ClientRecord record, List<BroadcastBuffer.PendingBatch> batches)
+    {
+        byte[][] segmentFrames = new byte[batches.size()][];
+        long[] sequences = new long[batches.size()];
+
+        for (int i = 0; i < segmentFrames.length; i++)
+        {
+            segmentFrames[i] = batches.get(i).getSegmentFrame();
+            sequences[i] = batches.get(i).getSequence();
+        }
+
+        return new BatchDelivery(record, segmentFrames, sequences);
+    }
+
+    /**
+     * @param record The client to send the batches to
+     * @param batches The retained batches, in sequence order
+     * @return The delivery of the batches the client did not write, or null
+     * if it wrote them all
+     */
+    static BatchDelivery ofRetained(ClientRecord record, List<BatchRetentionBuffer.RetainedBatch> batches)
+    {
+        List<BatchRetentionBuffer.RetainedBatch> missed = new ArrayList<>();
+
+        for (BatchRetentionBuffer.RetainedBatch batch : batches)
+        {
+            if (batch.getAuthorID() != record.getClientID())
+            {
+                missed.add(batch);
+            }
+        }
+
+        if (missed.isEmpty())
+        {
+            return null;
+        }
+
+        byte[][] segmentFrames = new byte[missed.size()][];
+        long[] sequences = new long[missed.size()];
+
+        for (int i = 0; i < segmentFrames.length; i++)
+        {
+            segmentFrames[i] = missed.get(i).getSegmentFrame();
+            sequences[i] = missed.get(i).getSequence();
+        }
+
+        return new BatchDelivery(record, segmentFrames, sequences);
+    }
+
+    /**
+     * Joins each run of batch deliveries for the same client into one,
+     * leaving the acknowledgements between them where they are
+     *
+     * @param record The client to send the batches to
+     * @param deliveries The deliveries, in sequence order
+     * @return The joined deliveries, in sequence order
+     */
+    static List<SequencedDelivery> merge(ClientRecord record, List<SequencedDelivery> deliveries)
+    {
+        List<SequencedDelivery> merged = new ArrayList<>();
+        List<BatchDelivery> run = new ArrayList<>();
+
+        for (SequencedDelivery delivery : deliveries)
+        {
+            if (delivery instanceof BatchDelivery)
+            {
+                run.add((BatchDelivery) delivery);
+                continue;
+            }
+
+            if (!run.isEmpty())
+            {
+                merged.add(join(record, run));
+                run.clear();
+            }
+
+            merged.add(delivery);
+        }
+
+        if (!run.isEmpty())
+        {
+            merged.add(join(record, run));
+        }
+
+        return merged;
+    }
+
+    private static BatchDelivery join(ClientRecord record, List<BatchDelivery> deliveries)
+    {
+        if (deliveries.size() == 1)
+        {
+            return deliveries.get(0);
+        }
+
+        int batchCount = 0;
+
+        for (BatchDelivery delivery : deliveries)
+        {
+            batchCount += delivery._sequences.length;
+        }
+
+        byte[][] segmentFrames = new byte[batchCount][];
+        long[] sequences = new long[batchCount];
+        int position = 0;
+
+        for (BatchDelivery delivery : deliveries)
+        {
+            int length = delivery._sequences.length;
+
+            System.arraycopy(delivery._segmentFrames, 0, segmentFrames, position, length);
+            System.arraycopy(delivery._sequences, 0, sequences, position, length);
+            position += length;
+        }
+
+        return new BatchDelivery(record, segmentFrames, sequences);
+    }
+
+    /**
+     * Leaves out the batches up to a sequence number
+     *
+     * @param sequence The sequence number of the last batch to leave out
+     * @return The delivery of the later batches, this one if every batch is
+     * later, or null if none is
+     */
+    BatchDelivery after(long sequence)
+    {
+        int first = 0;
+
+        while (first < _sequences.length && _sequences[first] <= sequence)
+        {
+            first++;
+        }
+
+        if (first == 0)
+        {
+            return this;
+        }
+
+        if (first == _sequences.length)
+        {
+            return null;
+        }
+
+        return new BatchDelivery(_record, Arrays.copyOfRange(_segmentFrames, first, _segmentFrames.length), Arrays.copyOfRange(_sequences, first, _sequences.length));
+    }
+
+    int getBatchCount()
+    {
+        return _sequences.length;
+    }
+
+    long getFirstSequence()
+    {
+        return _sequences[0];
+    }
+
+    @Override
+    public void send(ILiveBeansClient client) throws RemoteException
+    {
+        if (_sequences.length == 1)
+        {
+            client.updateLocalCode(_segmentFrames[0], _sequences[0]);
+        }
+        else
+        {
+            client.updateLocalCode(_segmentFrames, _sequences);
+        }
+
+        for (byte[] segmentFrame : _segmentFrames)
+        {
+            _record.recordBatchDelivered(segmentFrame.length);
+        }
+    }
+}
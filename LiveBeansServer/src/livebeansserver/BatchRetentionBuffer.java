@@ -0,0 +1,160 @@
+package livebeansserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recently distributed batches so that a client whose
+ * connection dropped can be sent what it missed. The buffer is bounded both
+ * by batch count and by total frame size; the oldest batches go first.
+ */
+class BatchRetentionBuffer
+{
+
+    static final int DEFAULT_MAX_BATCHES = 4096;
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final ArrayDeque<RetainedBatch> _batches;
+    private final int _maxBatches;
+    private final long _maxBytes;
+
+    private long _retainedBytes;
+    private long _lastSequence;
+
+    BatchRetentionBuffer()
+    {
+        this(DEFAULT_MAX_BATCHES, DEFAULT_MAX_BYTES);
+    }
+
+    BatchRetentionBuffer(int maxBatches, long maxBytes)
+    {
+        _batches = new ArrayDeque<>();
+        _maxBatches = maxBatches;
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a batch. Batches must be added in sequence order.
+     *
+     * @param sequence The batch's sequence number
+     * @param authorID The client that wrote the batch
+     * @param segmentFrame The encoded batch
+     */
+    synchronized void add(long sequence, int authorID, byte[] segmentFrame)
+    {
+        if (sequence <= _lastSequence)
+        {
+            throw new IllegalArgumentException(String.format("Batch %d added after batch %d", sequence, _lastSequence));
+        }
+
+        _batches.addLast(new RetainedBatch(sequence, authorID, segmentFrame));
+        _retainedBytes += segmentFrame.length;
+        _lastSequence = sequence;
+
+        while (_batches.size() > _maxBatches || (_retainedBytes > _maxBytes && _batches.size() > 1))
+        {
+            _retainedBytes -= _batches.removeFirst().getSegmentFrame().length;
+        }
+    }
+
+    /**
+     * Gets every batch after a sequence number
+     *
+     * @param sequence The last sequence number the caller has
+     * @return The later batches in order, or null if some of them are no
+     * longer retained
+     */
+    synchronized List<RetainedBatch> getSince(long sequence)
+    {
+        if (sequence > _lastSequence)
+        {
+            return null;
+        }
+
+        RetainedBatch oldest = _batches.peekFirst();
+
+        if (sequence < _lastSequence && (oldest == null || oldest.getSequence() > sequence + 1))
+        {
+            return null;
+        }
+
+        List<RetainedBatch> missed = new ArrayList<>();
+
+        for (RetainedBatch batch : _batches)
+        {
+            if (batch.getSequence() > sequence)
+            {
+                missed.add(batch);
+            }
+        }
+
+        return missed;
+    }
+
+    /**
+     * Checks whether a batch is still retained
+     *
+     * @param sequence The sequence number of the batch
+     * @return True if the batch has not been evicted
+     */
+    synchronized boolean isRetained(long sequence)
+    {
+        RetainedBatch oldest = _batches.peekFirst();
+
+        return oldest != null && sequence >= oldest.getSequence() && sequence <= _lastSequence;
+    }
+
+    /**
+     * Drops every batch, so sequence numbers can start again from 1
+     */
+    synchronized void clear()
+    {
+        _batches.clear();
+        _retainedBytes = 0;
+        _lastSequence = 0;
+    }
+
+    synchronized int size()
+    {
+        return _batches.size();
+    }
+
+    synchronized long getRetainedBytes()
+    {
+        return _retainedBytes;
+    }
+
+    /**
+     * A distributed batch and where it came from
+     */
+    static final class RetainedBatch
+    {
+
+        private final long _sequence;
+        private final int _authorID;
+        private final byte[] _segmentFrame;
+
+        RetainedBatch(long sequence, int authorID, byte[] segmentFrame)
+        {
+            _sequence = sequence;
+            _authorID = authorID;
+            _segmentFrame = segmentFrame;
+        }
+
+        long getSequence()
+        {
+            return _sequence;
+        }
+
+        int getAuthorID()
+        {
+            return _authorID;
+        }
+
+        byte[] getSegmentFrame()
+        {
+            return _segmentFrame;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package livebeansserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The batches accepted since the last broadcast tick. At each tick the
+ * server sends every client all of its batches from the window in one call,
+ * rather than one call per batch per author. Each batch goes to the clients
+ * subscribed to its documents when it was accepted, so one that subscribes
+ * or takes over a recycled ID during the window is not sent older batches.
+ * An author's acknowledgements wait here too while it has batches waiting,
+ * so each client still hears about sequence numbers in order. Only used on
+ * the delivery thread.
+ */
+class BroadcastBuffer
+{
+
+    private LinkedHashMap<ClientRecord, Recipient> _recipients;
+
+    BroadcastBuffer()
+    {
+        _recipients = new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds a batch. Batches must be added in sequence order.
+     *
+     * @param segmentFrame The batch as its author encoded it
+     * @param sequence The batch's sequence number
+     * @param recipients The clients to send the batch to
+     */
+    void add(byte[] segmentFrame, long sequence, List<ClientRecord> recipients)
+    {
+        PendingBatch batch = new PendingBatch(segmentFrame, sequence);
+
+        for (ClientRecord recipient : recipients)
+        {
+            _recipients.computeIfAbsent(recipient, Recipient::new)._batches.add(batch);
+        }
+    }
+
+    /**
+     * Holds an author's acknowledgement until the tick if the author has
+     * earlier batches waiting, so the acknowledgement does not reach it
+     * before batches sequenced ahead of its own
+     *
+     * @param author The author of the batch
+     * @param batchID The author's number for the batch
+     * @param sequence The batch's sequence number
+     * @return False if nothing is waiting for the author, so the
+     * acknowledgement can be sent straight away
+     */
+    boolean holdAcknowledgement(ClientRecord author, long batchID, long sequence)
+    {
+        Recipient recipient = _recipients.get(author);
+
+        if (recipient == null)
+        {
+            return false;
+        }
+
+        recipient.closeBatches();
+        recipient._deliveries.add(new AcknowledgementDelivery(batchID, sequence));
+
+        return true;
+    }
+
+    boolean isEmpty()
+    {
+        return _recipients.isEmpty();
+    }
+
+    /**
+     * Takes everything waiting, as the deliveries for each client. A client's
+     * batches between two of its acknowledgements are joined into one
+     * delivery, and everything is in sequence order.
+     *
+     * @return The deliveries for each client
+     */
+    LinkedHashMap<ClientRecord, List<SequencedDelivery>> drain()
+    {
+        LinkedHashMap<ClientRecord, List<SequencedDelivery>> deliveriesByRecipient = new LinkedHashMap<>();
+
+        for (Recipient recipient : _recipients.values())
+        {
+            recipient.closeBatches();
+            deliveriesByRecipient.put(recipient._record, recipient._deliveries);
+        }
+
+        _recipients = new LinkedHashMap<>();
+
+        return deliveriesByRecipient;
+    }
+
+    /**
+     * What is waiting for one client
+     */
+    private static final class Recipient
+    {
+
+        private final ClientRecord _record;
+        private final List<SequencedDelivery> _deliveries;
+        private List<PendingBatch> _batches;
+
+        Recipient(ClientRecord record)
+        {
+            _record = record;
+            _deliveries = new ArrayList<>(1);
+            _batches = new ArrayList<>();
+        }
+
+        void closeBatches()
+        {
+            if (!_batches.isEmpty())
+            {
+                _deliveries.add(BatchDelivery.of(_record, _batches));
+                _batches = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * A batch waiting for the next tick
+     */
+    static final class PendingBatch
+    {
+
+        private final byte[] _segmentFrame;
+        private final long _sequence;
+
+        PendingBatch(byte[] segmentFrame, long sequence)
+        {
+            _segmentFrame = segmentFrame;
+            _sequence = sequence;
+        }
+
+        byte[] getSegmentFrame()
+        {
+            return _segmentFrame;
+        }
+
+        long getSequence()
+        {
+            return _sequence;
+        }
+    }
+}
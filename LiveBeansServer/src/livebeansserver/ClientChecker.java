@@ -1,28 +1,70 @@
-
 package livebeansserver;
 
-import java.rmi.RemoteException;
-import java.util.HashMap;
-
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Removes clients that stop sending heartbeats, using a hashed timing wheel.
+ *
+ * Each client has one deadline on the wheel: its last heartbeat plus the
+ * server's heartbeat timeout. A heartbeat only writes the client's
+ * timestamp. When the deadline comes round, a client that has sent a
+ * heartbeat since it was armed is armed again for its new deadline, and one
+ * that has not is removed. Each tick only looks at one slot of the wheel, so
+ * the cost of a tick does not grow with the number of clients, and a silent
+ * client is removed within a tick of its deadline.
+ */
 class ClientChecker implements Runnable
 {
 
-    private static ClientChecker _instance;
+    /**
+     * How often the wheel should be advanced, in milliseconds
+     */
+    static final long TICK_MILLIS = 250;
+
+    // Must be a power of two
+    private static final int WHEEL_SIZE = 64;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
 
-    public static ClientChecker getInstance()
+    private final LiveBeansServer _server;
+    private final long _tickNanos;
+    private final long _startTime;
+    private final List<List<Timeout>> _wheel;
+
+    // The next tick to be processed
+    private long _currentTick;
+
+    ClientChecker(LiveBeansServer server)
     {
-        if (_instance == null)
+        _server = server;
+        _tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        _startTime = System.nanoTime();
+        _wheel = new ArrayList<>(WHEEL_SIZE);
+
+        for (int i = 0; i < WHEEL_SIZE; i++)
         {
-            _instance = new ClientChecker();
+            _wheel.add(new ArrayList<>());
         }
+    }
 
-        return _instance;
+    /**
+     * Starts watching a newly registered client
+     *
+     * @param record The client's record
+     */
+    void arm(ClientRecord record)
+    {
+        arm(record, record.getLastHeartbeat() + TimeUnit.MILLISECONDS.toNanos(_server.getHeartbeatTimeout()));
     }
-    private final int _checkTime = 5;
 
-    private ClientChecker()
+    private synchronized void arm(ClientRecord record, long deadline)
     {
+        // Rounds up, so a client is never checked before its deadline
+        long tick = Math.max(Math.floorDiv(deadline - _startTime + _tickNanos - 1, _tickNanos), _currentTick);
+
+        _wheel.get((int) (tick & WHEEL_MASK)).add(new Timeout(record, tick));
     }
 
     @Override
@@ -30,26 +72,99 @@ class ClientChecker implements Runnable
     {
         try
         {
-            LiveBeansServer serverInstance = LiveBeansServer.getInstance();
-            HashMap<Integer, Long> clientHeartbeats
-                                   = serverInstance.getClientHeartbeats();
+            long now = System.nanoTime();
+            List<ClientRecord> due = takeDue(now);
 
-            for (HashMap.Entry<Integer, Long> heartbeat
-                 : clientHeartbeats.entrySet())
+            for (ClientRecord record : due)
             {
-                if ((System.nanoTime() - heartbeat.getValue())
-                    / 1000000000 > _checkTime)
-                {
-                    System.out.println("[SERVER-LOG] Found a disconnected/crashed"
-                                       + " client, removing...");
+                check(record, now);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            System.out.println("[SERVER-ERROR] There was a problem updating the client list:\r\n\r\n" + ex.toString());
+        }
+    }
+
+    /**
+     * Removes the timeouts due by now from the wheel
+     */
+    private synchronized List<ClientRecord> takeDue(long now)
+    {
+        long targetTick = Math.floorDiv(now - _startTime, _tickNanos);
+        List<ClientRecord> due = new ArrayList<>();
 
-                    serverInstance.unRegisterClient(heartbeat.getKey());
+        // After a long pause every slot is due at most once
+        long lastTick = Math.min(targetTick, _currentTick + WHEEL_SIZE - 1);
+
+        for (long tick = _currentTick; tick <= lastTick; tick++)
+        {
+            Iterator<Timeout> timeouts = _wheel.get((int) (tick & WHEEL_MASK)).iterator();
+
+            while (timeouts.hasNext())
+            {
+                Timeout timeout = timeouts.next();
+
+                // Later timeouts in the slot are a whole turn or more away
+                if (timeout._tick <= targetTick)
+                {
+                    timeouts.remove();
+                    due.add(timeout._record);
                 }
             }
         }
-        catch (RemoteException ex)
+
+        _currentTick = Math.max(_currentTick, targetTick + 1);
+
+        return due;
+    }
+
+    private void check(ClientRecord record, long now)
+    {
+        // Dropped without a timeout if the client has already gone
+        if (_server.getClientRegistry().get(record.getClientID()) != record)
         {
-            System.out.println("[SERVER-ERROR] There was a problem updating the client list:\r\n\r\n" + ex.toString());
+            return;
+        }
+
+        long deadline = record.getLastHeartbeat() + TimeUnit.MILLISECONDS.toNanos(_server.getHeartbeatTimeout());
+
+        if (now - deadline >= 0)
+        {
+            System.out.println(String.format("[SERVER-LOG] Found a disconnected/crashed"
+                                             + " client (%d), removing...",
+                                             record.getClientID()));
+
+            _server.expireClient(record);
+        }
+        else if (record.getOutbox().isStalled(now, TimeUnit.MILLISECONDS.toNanos(_server.getDeliveryTimeout())))
+        {
+            System.out.println(String.format("[SERVER-LOG] Client %d has not"
+                                             + " taken a message in %d ms, removing...",
+                                             record.getClientID(),
+                                             _server.getDeliveryTimeout()));
+
+            _server.expireClient(record);
+        }
+        else
+        {
+            arm(record, deadline);
+        }
+    }
+
+    /**
+     * A client's place on the wheel
+     */
+    private static final class Timeout
+    {
+
+        private final ClientRecord _record;
+        private final long _tick;
+
+        Timeout(ClientRecord record, long tick)
+        {
+            _record = record;
+            _tick = tick;
         }
     }
 }
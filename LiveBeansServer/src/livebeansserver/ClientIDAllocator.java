@@ -0,0 +1,150 @@
+package livebeansserver;
+
+import java.util.BitSet;
+
+/**
+ * Hands out client IDs in constant time without asking any client for its
+ * ID. IDs that have never been used come from a counter. Released IDs are
+ * recycled oldest first, so an ID stays free for as long as possible before
+ * another client gets it, giving a dropped client time to resume under it.
+ *
+ * Not thread safe; the ClientRegistry calls it while holding its own lock.
+ */
+final class ClientIDAllocator
+{
+
+    private final int _maxID;
+    private final BitSet _allocated;
+    private final BitSet _queued;
+
+    // Ring buffer of released IDs waiting to be reused
+    private int[] _free;
+    private int _freeHead;
+    private int _freeCount;
+
+    private int _next;
+
+    ClientIDAllocator(int maxID)
+    {
+        _maxID = maxID;
+        _allocated = new BitSet();
+        _queued = new BitSet();
+        _free = new int[16];
+    }
+
+    /**
+     * Allocates an unused ID
+     *
+     * @return The ID, or -1 if every ID up to the maximum is in use
+     */
+    int allocate()
+    {
+        while (_freeCount > 0)
+        {
+            int clientID = _free[_freeHead];
+
+            _freeHead = (_freeHead + 1) % _free.length;
+            _freeCount--;
+            _queued.clear(clientID);
+
+            // Skips IDs that were reserved while they waited in the queue
+            if (!_allocated.get(clientID))
+            {
+                _allocated.set(clientID);
+                return clientID;
+            }
+        }
+
+        if (_next > _maxID)
+        {
+            return -1;
+        }
+
+        _allocated.set(_next);
+
+        return _next++;
+    }
+
+    /**
+     * Allocates a particular ID, for a client resuming under the ID it had
+     * before
+     *
+     * @param clientID The ID to allocate
+     * @return False if the ID is already in use
+     */
+    boolean reserve(int clientID)
+    {
+        if (_allocated.get(clientID))
+        {
+            return false;
+        }
+
+        // IDs skipped over by the counter become free to allocate
+        while (_next < clientID)
+        {
+            enqueue(_next++);
+        }
+
+        if (_next == clientID)
+        {
+            _next++;
+        }
+
+        _allocated.set(clientID);
+
+        return true;
+    }
+
+    /**
+     * Returns an ID so it can be given to another client
+     *
+     * @param clientID The ID to release
+     */
+    void release(int clientID)
+    {
+        if (_allocated.get(clientID))
+        {
+            _allocated.clear(clientID);
+            enqueue(clientID);
+        }
+    }
+
+    boolean isAllocated(int clientID)
+    {
+        return _allocated.get(clientID);
+    }
+
+    void clear()
+    {
+        _allocated.clear();
+        _queued.clear();
+        _freeHead = 0;
+        _freeCount = 0;
+        _next = 0;
+    }
+
+    private void enqueue(int clientID)
+    {
+        if (_queued.get(clientID))
+        {
+            return;
+        }
+
+        if (_freeCount == _free.length)
+        {
+            int[] grown = new int[_free.length * 2];
+
+            for (int i = 0; i < _freeCount; i++)
+            {
+                grown[i] = _free[(_freeHead + i) % _free.length];
+            }
+
+            _free = grown;
+            _freeHead = 0;
+        }
+
+        _free[(_freeHead + _freeCount) % _free.length] = clientID;
+        _freeCount++;
+        _queued.set(clientID);
+    }
+}
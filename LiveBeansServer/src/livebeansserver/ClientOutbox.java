@@ -0,0 +1,290 @@
+package livebeansserver;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.transport.WouldBlockException;
+
+/**
+ * The messages waiting to be sent to one client. Each outbox is drained by at
+ * most one sender at a time, borrowed from a pool shared by every client, so
+ * messages reach the client in the order they were queued, and a client that
+ * is slow to take them only holds up its own queue.
+ *
+ * The queue is bounded. A client that lets it fill, or that takes too long
+ * over a single message, is reported as stalled so the server can drop it.
+ * A client whose connection refuses a message because it would block keeps
+ * the message at the head of its queue until the connection can take it,
+ * and counts as taking that long over it.
+ */
+public final class ClientOutbox implements Runnable
+{
+
+    /**
+     * A message for the client, sent by calling it
+     */
+    public interface Delivery
+    {
+
+        void send(ILiveBeansClient client) throws RemoteException;
+
+        /**
+         * Gets when the message is ready to be sent, for one still being
+         * put together. It waits at the front of the queue until then.
+         *
+         * @return Completes once the message is ready, or null if it already
+         * is
+         */
+        default CompletableFuture<Void> getReady()
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Most messages a client can have waiting before it is dropped
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Messages sent before the sender goes back to the pool, so a busy client
+    // cannot keep a sender to itself
+    private static final int MAX_DRAIN_COUNT = 64;
+
+    private final ClientRecord _record;
+    private final Executor _senders;
+    private final ArrayBlockingQueue<Delivery> _queue;
+    private final AtomicBoolean _scheduled;
+
+    private volatile boolean _closed;
+    private volatile long _sendStartTime;
+    private volatile int _maxDepth;
+    // The message the client's connection last refused, only touched by the
+    // sender
+    private volatile Delivery _blocked;
+
+    ClientOutbox(ClientRecord record, Executor senders, int capacity)
+    {
+        _record = record;
+        _senders = senders;
+        _queue = new ArrayBlockingQueue<>(capacity);
+        _scheduled = new AtomicBoolean();
+    }
+
+    /**
+     * Queues a message for the client
+     *
+     * @param delivery The message
+     * @return False if the queue is full or the outbox has been closed
+     */
+    public boolean offer(Delivery delivery)
+    {
+        if (_closed || !_queue.offer(delivery))
+        {
+            return false;
+        }
+
+        int depth = getDepth();
+
+        if (depth > _maxDepth)
+        {
+            _maxDepth = depth;
+        }
+
+        // A sender is already waiting on the client's connection
+        if (_blocked == null)
+        {
+            schedule();
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the number of messages waiting to be sent
+     *
+     * @return The queue depth
+     */
+    public int getDepth()
+    {
+        return _queue.size() + (_blocked == null ? 0 : 1);
+    }
+
+    /**
+     * Takes every waiting message of one type out of the queue. The rest
+     * stay queued in order. A message already taken by the sender, or
+     * refused by the client's connection, is not included.
+     *
+     * @param <T> The type of message
+     * @param type The class of the messages to take
+     * @return The messages taken, oldest first
+     */
+    public <T extends Delivery> List<T> take(Class<T> type)
+    {
+        List<T> taken = new ArrayList<>();
+
+        _queue.removeIf(delivery ->
+        {
+            if (!type.isInstance(delivery))
+            {
+                return false;
+            }
+
+            taken.add(type.cast(delivery));
+            return true;
+        });
+
+        return taken;
+    }
+
+    /**
+     * Gets the most messages that have been waiting at once
+     *
+     * @return The deepest the queue has been
+     */
+    public int getMaxDepth()
+    {
+        return _maxDepth;
+    }
+
+    /**
+     * Checks whether the message being sent has been in progress for longer
+     * than a timeout
+     *
+     * @param now The current time, from System.nanoTime()
+     * @param timeoutNanos The longest a message may take to send
+     * @return True if the client has stopped taking messages
+     */
+    public boolean isStalled(long now, long timeoutNanos)
+    {
+        long sendStartTime = _sendStartTime;
+
+        return sendStartTime != 0 && now - sendStartTime > timeoutNanos;
+    }
+
+    /**
+     * Discards every waiting message and refuses any more
+     */
+    public void close()
+    {
+        _closed = true;
+        _queue.clear();
+        _blocked = null;
+    }
+
+    public boolean isClosed()
+    {
+        return _closed;
+    }
+
+    @Override
+    public void run()
+    {
+        CompletableFuture<Void> writable = null;
+
+        try
+        {
+            for (int sent = 0; sent < MAX_DRAIN_COUNT && !_closed; sent++)
+            {
+                Delivery delivery = _blocked == null ? _queue.poll() : _blocked;
+
+                if (delivery == null)
+                {
+                    break;
+                }
+
+                _blocked = null;
+                writable = send(delivery);
+
+                if (writable != null)
+                {
+                    _blocked = delivery;
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            _scheduled.set(false);
+        }
+
+        // A refused message is tried again once the connection drains, and
+        // the rest wait behind it
+        if (writable != null)
+        {
+            writable.thenRun(this::schedule);
+            return;
+        }
+
+        // Catches messages queued after the last poll, and any left over
+        // once the drain count ran out
+        if (!_queue.isEmpty() && !_closed)
+        {
+            schedule();
+        }
+    }
+
+    /**
+     * Sends a message to the client
+     *
+     * @return Null once the message has been sent or has failed, or when it
+     * can be sent again if the message was not ready or the client's
+     * connection refused it
+     */
+    private CompletableFuture<Void> send(Delivery delivery)
+    {
+        CompletableFuture<Void> ready = delivery.getReady();
+
+        // Not the client's doing, so not counted towards a stall
+        if (ready != null && !ready.isDone())
+        {
+            return ready;
+        }
+
+        // Left running while a message is refused, so a connection that
+        // never drains shows up as stalled
+        if (_sendStartTime == 0)
+        {
+            _sendStartTime = Math.max(System.nanoTime(), 1);
+        }
+
+        try
+        {
+            delivery.send(_record.getClient());
+        }
+        catch (WouldBlockException ex)
+        {
+            return ex.getWritable();
+        }
+        catch (RemoteException | RuntimeException ex)
+        {
+            _record.recordDeliveryFailure();
+            System.out.println(String.format("[SERVER-WARNING] Failed to send to client %d\r\n\tError: %s", _record.getClientID(), ex.getMessage()));
+        }
+
+        _sendStartTime = 0;
+
+        return null;
+    }
+
+    private void schedule()
+    {
+        if (_scheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                _senders.execute(this);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                _scheduled.set(false);
+                System.out.println(String.format("[SERVER-WARNING] No sender available for client %d", _record.getClientID()));
+            }
+        }
+    }
+}
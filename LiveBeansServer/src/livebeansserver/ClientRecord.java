@@ -0,0 +1,230 @@
+package livebeansserver;
+
+import java.util.BitSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import livebeanscommon.ILiveBeansClient;
+
+/**
+ * Everything the server keeps about one connected client. Reads never lock:
+ * the heartbeat is a volatile long and the subscription set is replaced, not
+ * changed, when it is written. Everything sent to the client goes through
+ * its outbox.
+ */
+public final class ClientRecord
+{
+
+    private final int _clientID;
+    private final ILiveBeansClient _client;
+    private final ClientOutbox _outbox;
+
+    private volatile String _clientName;
+    private volatile long _lastHeartbeat;
+    private volatile BitSet _subscriptions;
+    private volatile long _acknowledgedVersion;
+    private volatile long _resyncSequence;
+
+    private final AtomicLong _batchesReceived;
+    private final AtomicLong _batchesDelivered;
+    private final AtomicLong _bytesDelivered;
+    private final AtomicLong _deliveryFailures;
+    private final AtomicLong _resyncs;
+
+    ClientRecord(int clientID, ILiveBeansClient client, Executor senders)
+    {
+        _clientID = clientID;
+        _client = client;
+        _outbox = new ClientOutbox(this, senders, ClientOutbox.DEFAULT_CAPACITY);
+        _lastHeartbeat = System.nanoTime();
+        _subscriptions = new BitSet();
+
+        _batchesReceived = new AtomicLong();
+        _batchesDelivered = new AtomicLong();
+        _bytesDelivered = new AtomicLong();
+        _deliveryFailures = new AtomicLong();
+        _resyncs = new AtomicLong();
+    }
+
+    public int getClientID()
+    {
+        return _clientID;
+    }
+
+    public ILiveBeansClient getClient()
+    {
+        return _client;
+    }
+
+    public ClientOutbox getOutbox()
+    {
+        return _outbox;
+    }
+
+    /**
+     * Records the name the client registered with, which it must give again
+     * to resume its session
+     *
+     * @param clientName The client's name
+     */
+    void setClientName(String clientName)
+    {
+        _clientName = clientName;
+    }
+
+    /**
+     * Gets the name the client registered with
+     *
+     * @return The name, or null if the client has not finished registering
+     */
+    public String getClientName()
+    {
+        return _clientName;
+    }
+
+    /**
+     * Records that the client has just sent a heartbeat
+     */
+    public void heartbeat()
+    {
+        _lastHeartbeat = System.nanoTime();
+    }
+
+    /**
+     * Gets when the client last sent a heartbeat, or registered if it has not
+     * sent one yet
+     *
+     * @return The time, from System.nanoTime()
+     */
+    public long getLastHeartbeat()
+    {
+        return _lastHeartbeat;
+    }
+
+    /**
+     * Records how far the client has got, for a client in CRDT mode
+     *
+     * @param sequence The version the client acknowledged
+     */
+    public void acknowledgeVersion(long sequence)
+    {
+        _acknowledgedVersion = sequence;
+    }
+
+    /**
+     * Gets the last version the client acknowledged
+     *
+     * @return The sequence number, or 0 if the client has not acknowledged
+     * one
+     */
+    public long getAcknowledgedVersion()
+    {
+        return _acknowledgedVersion;
+    }
+
+    /**
+     * Records that the client was sent copies of its documents in place of
+     * the batches up to a sequence number
+     *
+     * @param sequence The sequence number of the last batch in the copies
+     */
+    void resync(long sequence)
+    {
+        _resyncSequence = sequence;
+    }
+
+    /**
+     * Gets the sequence number the client's documents were last copied at.
+     * Batches up to it are not sent to the client, and its batches written
+     * before it had the copies are taken to be written against them.
+     *
+     * @return The sequence number, or 0 if the client has not been sent
+     * copies
+     */
+    public long getResyncSequence()
+    {
+        return _resyncSequence;
+    }
+
+    synchronized void subscribe(int documentID)
+    {
+        BitSet subscriptions = (BitSet) _subscriptions.clone();
+        subscriptions.set(documentID);
+
+        _subscriptions = subscriptions;
+    }
+
+    synchronized void unsubscribe(int documentID)
+    {
+        BitSet subscriptions = (BitSet) _subscriptions.clone();
+        subscriptions.clear(documentID);
+
+        _subscriptions = subscriptions;
+    }
+
+    public boolean isSubscribed(int documentID)
+    {
+        return _subscriptions.get(documentID);
+    }
+
+    /**
+     * Gets the documents the client is subscribed to
+     *
+     * @return A copy of the subscribed document IDs
+     */
+    public BitSet getSubscriptions()
+    {
+        return (BitSet) _subscriptions.clone();
+    }
+
+    public void recordBatchReceived()
+    {
+        _batchesReceived.incrementAndGet();
+    }
+
+    public void recordBatchDelivered(int frameLength)
+    {
+        _batchesDelivered.incrementAndGet();
+        _bytesDelivered.addAndGet(frameLength);
+    }
+
+    public void recordDeliveryFailure()
+    {
+        _deliveryFailures.incrementAndGet();
+    }
+
+    public void recordResync()
+    {
+        _resyncs.incrementAndGet();
+    }
+
+    public long getBatchesReceived()
+    {
+        return _batchesReceived.get();
+    }
+
+    public long getBatchesDelivered()
+    {
+        return _batchesDelivered.get();
+    }
+
+    public long getBytesDelivered()
+    {
+        return _bytesDelivered.get();
+    }
+
+    public long getDeliveryFailures()
+    {
+        return _deliveryFailures.get();
+    }
+
+    /**
+     * Gets the number of times the client fell behind and had its waiting
+     * batches replaced with a catch-up
+     *
+     * @return The number of resyncs
+     */
+    public long getResyncs()
+    {
+        return _resyncs.get();
+    }
+}
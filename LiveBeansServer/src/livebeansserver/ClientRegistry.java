@@ -0,0 +1,547 @@
+package livebeansserver;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import livebeanscommon.ILiveBeansClient;
+
+/**
+ * The connected clients, indexed directly by their int IDs. Lookups and
+ * iteration read a table of records without locking or boxing; registering
+ * and removing clients lock the registry, and grow the table when an ID
+ * falls outside it. New clients are given the lowest free ID the allocator
+ * has, so the table stays about as large as the number of clients.
+ *
+ * The registry also indexes which clients are subscribed to each document,
+ * so a batch can be routed to just the clients that have its documents open.
+ * The set of subscribers to a document is replaced, not changed, when a
+ * client subscribes or unsubscribes, so routing reads it without locking.
+ *
+ * The registry also owns the sender threads that drain the clients' outboxes,
+ * chosen by the DeliveryMode. Platform threads are pooled, started as
+ * outboxes need them and stopped once idle; virtual threads are started for
+ * each turn at an outbox. As an outbox uses one sender at a time there are
+ * never more senders than clients with messages waiting.
+ *
+ * Iteration sees every record present for its whole duration, and may or may
+ * not see records added or removed while it runs.
+ */
+public final class ClientRegistry implements Iterable<ClientRecord>
+{
+
+    /**
+     * Largest ID a client can be registered under
+     */
+    public static final int MAX_CLIENT_ID = 65535;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final long SENDER_KEEP_ALIVE_SECONDS = 60;
+
+    private volatile AtomicReferenceArray<ClientRecord> _records;
+    private volatile int _size;
+
+    private final ClientIDAllocator _ids;
+    private final ConcurrentHashMap<ILiveBeansClient, ClientRecord> _recordsByClient;
+    private final ConcurrentHashMap<Integer, BitSet> _subscribers;
+    // The name of the last client to have each ID that is now free, so one
+    // that timed out can still show the ID was its own
+    private final ConcurrentHashMap<Integer, String> _departedNames;
+    private final Executor _senders;
+    private volatile ExecutorService _senderExecutor;
+    private volatile DeliveryMode _deliveryMode;
+
+    public ClientRegistry()
+    {
+        _records = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        _ids = new ClientIDAllocator(MAX_CLIENT_ID);
+        _recordsByClient = new ConcurrentHashMap<>();
+        _departedNames = new ConcurrentHashMap<>();
+        _subscribers = new ConcurrentHashMap<>();
+
+        // Outboxes keep this executor, so they follow changes of mode
+        _senders = this::executeSender;
+        _senderExecutor = createPlatformSenders();
+        _deliveryMode = DeliveryMode.PLATFORM_THREADS;
+    }
+
+    /**
+     * Changes the threads senders run on. Outboxes already being drained
+     * finish their turn on the old threads.
+     *
+     * @param deliveryMode The mode to change to
+     * @return The mode now in use, which is PLATFORM_THREADS if virtual
+     * threads were asked for and the JVM does not have them
+     */
+    public synchronized DeliveryMode setDeliveryMode(DeliveryMode deliveryMode)
+    {
+        if (deliveryMode == DeliveryMode.VIRTUAL_THREADS && !VirtualThreads.isSupported())
+        {
+            System.out.println("[SERVER-WARNING] Virtual threads need JDK 21 or later, delivering on platform threads");
+            deliveryMode = DeliveryMode.PLATFORM_THREADS;
+        }
+
+        if (deliveryMode == _deliveryMode)
+        {
+            return deliveryMode;
+        }
+
+        ExecutorService previous = _senderExecutor;
+
+        _senderExecutor = deliveryMode == DeliveryMode.VIRTUAL_THREADS
+                          ? VirtualThreads.newThreadPerTaskExecutor("LiveBeans sender ")
+                          : createPlatformSenders();
+        _deliveryMode = deliveryMode;
+
+        previous.shutdown();
+
+        return deliveryMode;
+    }
+
+    public DeliveryMode getDeliveryMode()
+    {
+        return _deliveryMode;
+    }
+
+    /**
+     * Gets the record of a client
+     *
+     * @param clientID The client's ID
+     * @return The client's record, or null if no client has that ID
+     */
+    public ClientRecord get(int clientID)
+    {
+        AtomicReferenceArray<ClientRecord> records = _records;
+
+        return clientID >= 0 && clientID < records.length() ? records.get(clientID) : null;
+    }
+
+    /**
+     * Finds the record of a client by the client itself, so no call is made to
+     * the client to ask for its ID
+     *
+     * @param client The client to look for
+     * @return The client's record, or null if it is not registered
+     */
+    public ClientRecord find(ILiveBeansClient client)
+    {
+        return _recordsByClient.get(client);
+    }
+
+    /**
+     * Records the time of a client's heartbeat
+     *
+     * @param clientID The client's ID
+     * @return False if no client has that ID
+     */
+    public boolean heartbeat(int clientID)
+    {
+        ClientRecord record = get(clientID);
+
+        if (record == null)
+        {
+            return false;
+        }
+
+        record.heartbeat();
+        return true;
+    }
+
+    /**
+     * Subscribes a client to a document
+     *
+     * @param clientID The client's ID
+     * @param documentID The document's session ID
+     * @return False if no client has that ID
+     */
+    public synchronized boolean subscribe(int clientID, int documentID)
+    {
+        ClientRecord record = get(clientID);
+
+        if (record == null)
+        {
+            return false;
+        }
+
+        record.subscribe(documentID);
+        _subscribers.compute(documentID, (id, subscribers) ->
+        {
+            BitSet updated = subscribers == null ? new BitSet() : (BitSet) subscribers.clone();
+            updated.set(clientID);
+            return updated;
+        });
+
+        return true;
+    }
+
+    /**
+     * Unsubscribes a client from a document
+     *
+     * @param clientID The client's ID
+     * @param documentID The document's session ID
+     * @return False if no client has that ID
+     */
+    public synchronized boolean unsubscribe(int clientID, int documentID)
+    {
+        ClientRecord record = get(clientID);
+
+        if (record == null)
+        {
+            return false;
+        }
+
+        record.unsubscribe(documentID);
+        removeSubscriber(clientID, documentID);
+
+        return true;
+    }
+
+    /**
+     * Adds the IDs of the clients subscribed to a document to a set
+     *
+     * @param documentID The document's session ID
+     * @param clientIDs The set to add the subscribers to
+     */
+    public void collectSubscribers(int documentID, BitSet clientIDs)
+    {
+        BitSet subscribers = _subscribers.get(documentID);
+
+        if (subscribers != null)
+        {
+            clientIDs.or(subscribers);
+        }
+    }
+
+    /**
+     * Registers a client under a newly allocated ID
+     *
+     * @param client The client
+     * @return The client's new record, or null if every ID is in use
+     */
+    public synchronized ClientRecord add(ILiveBeansClient client)
+    {
+        int clientID = _ids.allocate();
+
+        return clientID < 0 ? null : store(clientID, client);
+    }
+
+    /**
+     * Registers a client under an ID that is not already in use
+     *
+     * @param clientID The ID to register the client under
+     * @param client The client
+     * @return The client's new record, or null if the ID is taken
+     */
+    public synchronized ClientRecord putIfAbsent(int clientID, ILiveBeansClient client)
+    {
+        if (clientID < 0 || clientID > MAX_CLIENT_ID || !_ids.reserve(clientID))
+        {
+            return null;
+        }
+
+        return store(clientID, client);
+    }
+
+    /**
+     * Registers a client, replacing whichever client had the ID before
+     *
+     * @param clientID The ID to register the client under
+     * @param client The client
+     * @return The client's new record
+     */
+    public synchronized ClientRecord put(int clientID, ILiveBeansClient client)
+    {
+        if (clientID < 0 || clientID > MAX_CLIENT_ID)
+        {
+            throw new IllegalArgumentException(String.format("Client ID %d is outside 0-%d", clientID, MAX_CLIENT_ID));
+        }
+
+        _ids.reserve(clientID);
+
+        return store(clientID, client);
+    }
+
+    /**
+     * Registers a client resuming a session under its old ID, if the ID was
+     * its own: the client with the ID, or the last one if the ID is free,
+     * registered with the same name
+     *
+     * @param clientID The ID the client had
+     * @param client The client, as reached over its new connection
+     * @param clientName The client's name
+     * @return The client's new record, or null if the ID is not the client's
+     */
+    public synchronized ClientRecord resume(int clientID, ILiveBeansClient client, String clientName)
+    {
+        if (clientID < 0 || clientID > MAX_CLIENT_ID || clientName == null)
+        {
+            return null;
+        }
+
+        ClientRecord owner = get(clientID);
+
+        if (!clientName.equals(owner == null ? _departedNames.get(clientID) : owner.getClientName()))
+        {
+            return null;
+        }
+
+        _ids.reserve(clientID);
+
+        ClientRecord record = store(clientID, client);
+        record.setClientName(clientName);
+
+        return record;
+    }
+
+    /**
+     * Removes whichever client has an ID
+     *
+     * @param clientID The ID to remove
+     * @return The removed record, or null if no client had the ID
+     */
+    public synchronized ClientRecord remove(int clientID)
+    {
+        AtomicReferenceArray<ClientRecord> records = _records;
+
+        if (clientID < 0 || clientID >= records.length())
+        {
+            return null;
+        }
+
+        ClientRecord removed = records.getAndSet(clientID, null);
+
+        if (removed != null)
+        {
+            removed(removed);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes a record, unless its ID has since been given to another client
+     *
+     * @param record The record to remove
+     * @return True if the record was removed
+     */
+    public synchronized boolean remove(ClientRecord record)
+    {
+        AtomicReferenceArray<ClientRecord> records = _records;
+
+        if (record.getClientID() < records.length() && records.compareAndSet(record.getClientID(), record, null))
+        {
+            removed(record);
+            return true;
+        }
+
+        return false;
+    }
+
+    public synchronized void clear()
+    {
+        for (ClientRecord record : this)
+        {
+            record.getOutbox().close();
+        }
+
+        _records = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        _size = 0;
+        _ids.clear();
+        _recordsByClient.clear();
+        _subscribers.clear();
+        _departedNames.clear();
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    public boolean isEmpty()
+    {
+        return _size == 0;
+    }
+
+    @Override
+    public Iterator<ClientRecord> iterator()
+    {
+        return new RecordIterator(_records);
+    }
+
+    private ClientRecord store(int clientID, ILiveBeansClient client)
+    {
+        AtomicReferenceArray<ClientRecord> records = ensureCapacity(clientID + 1);
+        ClientRecord record = new ClientRecord(clientID, client, _senders);
+        ClientRecord replaced = records.getAndSet(clientID, record);
+
+        if (replaced == null)
+        {
+            _size++;
+        }
+        else
+        {
+            replaced.getOutbox().close();
+            removeSubscriptions(replaced);
+            _recordsByClient.remove(replaced.getClient(), replaced);
+        }
+
+        _recordsByClient.put(client, record);
+        _departedNames.remove(clientID);
+
+        return record;
+    }
+
+    private void removed(ClientRecord record)
+    {
+        _size--;
+        record.getOutbox().close();
+        removeSubscriptions(record);
+        _ids.release(record.getClientID());
+        _recordsByClient.remove(record.getClient(), record);
+
+        if (record.getClientName() != null)
+        {
+            _departedNames.put(record.getClientID(), record.getClientName());
+        }
+    }
+
+    private void executeSender(Runnable sender)
+    {
+        ExecutorService senderExecutor = _senderExecutor;
+
+        try
+        {
+            senderExecutor.execute(sender);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // Lost a race with a change of mode
+            if (senderExecutor == _senderExecutor)
+            {
+                throw ex;
+            }
+
+            _senderExecutor.execute(sender);
+        }
+    }
+
+    private static ExecutorService createPlatformSenders()
+    {
+        AtomicInteger senderCount = new AtomicInteger();
+
+        return new ThreadPoolExecutor(0, MAX_CLIENT_ID + 1,
+                                      SENDER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                      new SynchronousQueue<>(),
+                                      runnable ->
+                                      {
+                                          Thread sender = new Thread(runnable, "LiveBeans sender " + senderCount.incrementAndGet());
+                                          sender.setDaemon(true);
+                                          return sender;
+                                      });
+    }
+
+    private void removeSubscriptions(ClientRecord record)
+    {
+        BitSet subscriptions = record.getSubscriptions();
+
+        for (int documentID = subscriptions.nextSetBit(0); documentID >= 0; documentID = subscriptions.nextSetBit(documentID + 1))
+        {
+            removeSubscriber(record.getClientID(), documentID);
+        }
+    }
+
+    private void removeSubscriber(int clientID, int documentID)
+    {
+        _subscribers.computeIfPresent(documentID, (id, subscribers) ->
+        {
+            BitSet updated = (BitSet) subscribers.clone();
+            updated.clear(clientID);
+            return updated.isEmpty() ? null : updated;
+        });
+    }
+
+    private AtomicReferenceArray<ClientRecord> ensureCapacity(int capacity)
+    {
+        AtomicReferenceArray<ClientRecord> records = _records;
+
+        if (capacity <= records.length())
+        {
+            return records;
+        }
+
+        int newLength = records.length();
+
+        while (newLength < capacity)
+        {
+            newLength *= 2;
+        }
+
+        AtomicReferenceArray<ClientRecord> grown = new AtomicReferenceArray<>(newLength);
+
+        for (int i = 0; i < records.length(); i++)
+        {
+            grown.set(i, records.get(i));
+        }
+
+        _records = grown;
+
+        return grown;
+    }
+
+    /**
+     * Walks one version of the table, skipping empty slots
+     */
+    private static final class RecordIterator implements Iterator<ClientRecord>
+    {
+
+        private final AtomicReferenceArray<ClientRecord> _records;
+        private int _index;
+        private ClientRecord _next;
+
+        RecordIterator(AtomicReferenceArray<ClientRecord> records)
+        {
+            _records = records;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return _next != null;
+        }
+
+        @Override
+        public ClientRecord next()
+        {
+            ClientRecord current = _next;
+
+            if (current == null)
+            {
+                throw new NoSuchElementException();
+            }
+
+            advance();
+
+            return current;
+        }
+
+        private void advance()
+        {
+            _next = null;
+
+            while (_next == null && _index < _records.length())
+            {
+                _next = _records.get(_index++);
+            }
+        }
+    }
+}
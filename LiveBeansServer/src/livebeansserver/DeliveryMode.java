@@ -0,0 +1,50 @@
+package livebeansserver;
+
+/**
+ * The threads the server's senders run on when calling clients
+ */
+public enum DeliveryMode
+{
+
+    /**
+     * A pool of platform threads, started as clients need them and stopped
+     * once idle, the default
+     */
+    PLATFORM_THREADS,
+    /**
+     * A new virtual thread for each turn at draining a client's outbox, so a
+     * client blocking a callback costs almost nothing. Needs JDK 21 or later;
+     * on older JVMs the server falls back to platform threads.
+     */
+    VIRTUAL_THREADS;
+
+    /**
+     * System property used to pick a delivery mode, e.g.
+     * -Dlivebeans.delivery=virtual_threads
+     */
+    public static final String PROPERTY = "livebeans.delivery";
+
+    /**
+     * Gets the delivery mode named by the livebeans.delivery system property
+     *
+     * @return The configured mode, or PLATFORM_THREADS if none or an unknown
+     * one is set
+     */
+    public static DeliveryMode fromSystemProperty()
+    {
+        String configured = System.getProperty(PROPERTY);
+
+        if (configured != null)
+        {
+            for (DeliveryMode mode : values())
+            {
+                if (mode.name().equalsIgnoreCase(configured.trim()))
+                {
+                    return mode;
+                }
+            }
+        }
+
+        return PLATFORM_THREADS;
+    }
+}
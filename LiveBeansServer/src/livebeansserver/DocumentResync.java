@@ -0,0 +1,60 @@
+package livebeansserver;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import livebeanscommon.ILiveBeansClient;
+
+/**
+ * Gives a client that has fallen behind the server's copy of one of its
+ * documents, in place of the batches that would have brought it up to date.
+ * The copy is read on the document's shard, and the message waits at the
+ * front of the client's queue until it has been.
+ */
+final class DocumentResync implements SequencedDelivery
+{
+
+    private final int _documentID;
+    private final CompletableFuture<String> _text;
+    private final CompletableFuture<Void> _ready;
+    private final long _documentSequence;
+    private final long _sequence;
+    private final long _lastBatchID;
+
+    DocumentResync(int documentID, CompletableFuture<String> text, long documentSequence, long sequence, long lastBatchID)
+    {
+        _documentID = documentID;
+        _text = text;
+        _ready = text.handle((ignored, ex) -> null);
+        _documentSequence = documentSequence;
+        _sequence = sequence;
+        _lastBatchID = lastBatchID;
+    }
+
+    int getDocumentID()
+    {
+        return _documentID;
+    }
+
+    long getSequence()
+    {
+        return _sequence;
+    }
+
+    @Override
+    public CompletableFuture<Void> getReady()
+    {
+        return _ready;
+    }
+
+    @Override
+    public void send(ILiveBeansClient client) throws RemoteException
+    {
+        String text = _text.isCompletedExceptionally() ? null : _text.join();
+
+        // The server removes a client it could not copy every document for
+        if (text != null)
+        {
+            client.resyncDocument(_documentID, text, _documentSequence, _sequence, _lastBatchID);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package livebeansserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import livebeanscommon.CrdtOperation;
+import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.LiveBeansCodeSegment;
+
+/**
+ * Runs the work on each document on one of a fixed number of single-threaded
+ * shards, picked by the document's ID. A document's batches are applied one
+ * at a time in the order they were submitted, and each shard owns the state
+ * of its documents outright, so documents on different shards are worked on
+ * in parallel without any locking.
+ *
+ * A batch that changes several documents is split, and each document's
+ * segments go to that document's shard.
+ */
+final class DocumentShards
+{
+
+    private final ExecutorService[] _shards;
+
+    // Each map is only used on its own shard
+    private final List<Map<Integer, DocumentState>> _documents;
+    // Documents whose text can be copied, updated on their shards after
+    // each task, so a resync can check without waiting on the shards
+    private final Set<Integer> _copyableDocuments;
+
+    DocumentShards(int shardCount)
+    {
+        _shards = new ExecutorService[shardCount];
+        _documents = new ArrayList<>(shardCount);
+        _copyableDocuments = ConcurrentHashMap.newKeySet();
+
+        for (int i = 0; i < shardCount; i++)
+        {
+            String name = "LiveBeans shard " + i;
+
+            _shards[i] = Executors.newSingleThreadExecutor(runnable ->
+            {
+                Thread shard = new Thread(runnable, name);
+                shard.setDaemon(true);
+                return shard;
+            });
+            _documents.add(new HashMap<>());
+        }
+    }
+
+    int getShardCount()
+    {
+        return _shards.length;
+    }
+
+    /**
+     * Gets the shard a document's work runs on. Document IDs are handed out
+     * in order, so documents are spread evenly.
+     *
+     * @param documentID The document's session ID
+     * @return The shard's index
+     */
+    int getShard(int documentID)
+    {
+        return Math.floorMod(documentID, _shards.length);
+    }
+
+    /**
+     * Applies a batch to every document it changes, each on its own shard,
+     * as it was written
+     *
+     * @param codeSegments The batch's segments
+     * @param sequence The sequence number of the batch
+     * @return Completes with the segments once every document has applied
+     * them
+     */
+    CompletableFuture<List<LiveBeansCodeSegment>> apply(List<LiveBeansCodeSegment> codeSegments, long sequence)
+    {
+        return apply(codeSegments, sequence, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE, -1);
+    }
+
+    /**
+     * Transforms a batch against the batches its author had not seen and
+     * applies it to every document it changes, each on its own shard.
+     * Callers must submit batches in sequence order.
+     *
+     * @param codeSegments The batch's segments
+     * @param sequence The sequence number of the batch
+     * @param baseSequence The last sequence number the author had seen
+     * @param authorID The ID of the client that wrote the batch
+     * @return Completes with the segments as they were applied once every
+     * document has applied them. This is codeSegments itself if no document
+     * had to transform them.
+     */
+    CompletableFuture<List<LiveBeansCodeSegment>> apply(List<LiveBeansCodeSegment> codeSegments, long sequence, long baseSequence, int authorID)
+    {
+        Map<Integer, List<LiveBeansCodeSegment>> segmentsByDocument = new LinkedHashMap<>();
+
+        for (LiveBeansCodeSegment codeSegment : codeSegments)
+        {
+            segmentsByDocument.computeIfAbsent(codeSegment.getDocumentID(), documentID -> new ArrayList<>()).add(codeSegment);
+        }
+
+        List<CompletableFuture<List<LiveBeansCodeSegment>>> applied = new ArrayList<>(segmentsByDocument.size());
+        List<List<LiveBeansCodeSegment>> submitted = new ArrayList<>(segmentsByDocument.size());
+
+        for (Map.Entry<Integer, List<LiveBeansCodeSegment>> entry : segmentsByDocument.entrySet())
+        {
+            int documentID = entry.getKey();
+            List<LiveBeansCodeSegment> documentSegments = entry.getValue();
+
+            submitted.add(documentSegments);
+            applied.add(onShard(documentID, state -> state.apply(documentSegments, sequence, baseSequence, authorID)));
+        }
+
+        return CompletableFuture.allOf(applied.toArray(new CompletableFuture<?>[applied.size()])).thenApply(ignored ->
+        {
+            List<LiveBeansCodeSegment> transformed = new ArrayList<>(codeSegments.size());
+            boolean changed = false;
+
+            for (int i = 0; i < applied.size(); i++)
+            {
+                List<LiveBeansCodeSegment> documentSegments = applied.get(i).join();
+
+                changed |= documentSegments != submitted.get(i);
+                transformed.addAll(documentSegments);
+            }
+
+            return changed ? transformed : codeSegments;
+        });
+    }
+
+    /**
+     * Applies a batch of CRDT operations to the replica of every document it
+     * changes, each on its own shard. Callers must submit batches in
+     * sequence order, along with those given to apply.
+     *
+     * @param operations The batch's operations
+     * @param sequence The sequence number of the batch
+     * @return Completes once every document has applied them
+     */
+    CompletableFuture<Void> integrate(List<CrdtOperation> operations, long sequence)
+    {
+        Map<Integer, List<CrdtOperation>> operationsByDocument = new LinkedHashMap<>();
+
+        for (CrdtOperation operation : operations)
+        {
+            operationsByDocument.computeIfAbsent(operation.getDocumentID(), documentID -> new ArrayList<>()).add(operation);
+        }
+
+        List<CompletableFuture<?>> integrated = new ArrayList<>(operationsByDocument.size());
+
+        for (Map.Entry<Integer, List<CrdtOperation>> entry : operationsByDocument.entrySet())
+        {
+            List<CrdtOperation> documentOperations = entry.getValue();
+
+            integrated.add(onShard(entry.getKey(), state -> state.integrate(documentOperations, sequence)));
+        }
+
+        return CompletableFuture.allOf(integrated.toArray(new CompletableFuture<?>[integrated.size()]));
+    }
+
+    /**
+     * Drops the tombstones every client is done with from every document's
+     * replica, on each shard after any work already submitted to it
+     *
+     * @param stableSequence The sequence number every client has applied up
+     * to, and which every batch still to be applied was written after
+     * @return Completes with the number of removed characters dropped
+     */
+    CompletableFuture<Integer> collectGarbage(long stableSequence)
+    {
+        List<CompletableFuture<Integer>> collected = new ArrayList<>(_shards.length);
+
+        for (int shard = 0; shard < _shards.length; shard++)
+        {
+            Map<Integer, DocumentState> documents = _documents.get(shard);
+
+            collected.add(CompletableFuture.supplyAsync(() ->
+            {
+                int collectedLength = 0;
+
+                for (DocumentState state : documents.values())
+                {
+                    collectedLength += state.collectGarbage(stableSequence);
+                }
+
+                return collectedLength;
+            }, _shards[shard]));
+        }
+
+        return CompletableFuture.allOf(collected.toArray(new CompletableFuture<?>[collected.size()]))
+                .thenApply(ignored -> collected.stream().mapToInt(CompletableFuture::join).sum());
+    }
+
+    /**
+     * Gives a document a client's copy of its text, on the document's shard
+     *
+     * @param documentID The document's session ID
+     * @param text The client's copy of the text
+     * @param clientID The ID of the client that sent it
+     * @return Completes with false if the copy differs from the server's
+     */
+    CompletableFuture<Boolean> share(int documentID, String text, int clientID)
+    {
+        return onShard(documentID, state -> state.share(text, clientID));
+    }
+
+    /**
+     * Gets a document's text, read on its shard after any work already
+     * submitted for it
+     *
+     * @param documentID The document's session ID
+     * @return Completes with the text, or null if it is not known
+     */
+    CompletableFuture<String> getText(int documentID)
+    {
+        return onShard(documentID, DocumentState::getText);
+    }
+
+    /**
+     * Gets a document's revision, read on its shard after any work already
+     * submitted for it
+     *
+     * @param documentID The document's session ID
+     * @return The number of segments applied to the document
+     */
+    CompletableFuture<Long> getRevision(int documentID)
+    {
+        return onShard(documentID, DocumentState::getRevision);
+    }
+
+    /**
+     * Runs a function against a document's state on its shard, after any
+     * work already submitted for it
+     *
+     * @param <T> The type of the result
+     * @param documentID The document's session ID
+     * @param function Called with the document's state
+     * @return Completes with the function's result
+     */
+    <T> CompletableFuture<T> onShard(int documentID, Function<DocumentState, T> function)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            DocumentState state = getState(documentID);
+
+            try
+            {
+                return function.apply(state);
+            }
+            finally
+            {
+                if (state.isCopyable())
+                {
+                    _copyableDocuments.add(documentID);
+                }
+                else
+                {
+                    _copyableDocuments.remove(documentID);
+                }
+            }
+        }, _shards[getShard(documentID)]);
+    }
+
+    /**
+     * Checks whether a document's text could be copied as of the last task
+     * its shard finished, without waiting for the shard
+     *
+     * @param documentID The document's session ID
+     * @return True if the text is known and not kept as a CRDT replica
+     */
+    boolean isCopyable(int documentID)
+    {
+        return _copyableDocuments.contains(documentID);
+    }
+
+    /**
+     * Forgets every document, on each shard after any work already submitted
+     * to it, so a document ID handed out again starts with no history or text
+     *
+     * @return Completes once every shard has forgotten its documents
+     */
+    CompletableFuture<Void> clear()
+    {
+        List<CompletableFuture<?>> cleared = new ArrayList<>(_shards.length);
+
+        for (int shard = 0; shard < _shards.length; shard++)
+        {
+            Map<Integer, DocumentState> documents = _documents.get(shard);
+
+            cleared.add(CompletableFuture.runAsync(() ->
+            {
+                _copyableDocuments.removeAll(documents.keySet());
+                documents.clear();
+            }, _shards[shard]));
+        }
+
+        return CompletableFuture.allOf(cleared.toArray(new CompletableFuture<?>[cleared.size()]));
+    }
+
+    void shutdown()
+    {
+        for (ExecutorService shard : _shards)
+        {
+            shard.shutdown();
+        }
+    }
+
+    /**
+     * Gets a document's state. Only called on the document's shard.
+     */
+    private DocumentState getState(int documentID)
+    {
+        return _documents.get(getShard(documentID)).computeIfAbsent(documentID, DocumentState::new);
+    }
+}
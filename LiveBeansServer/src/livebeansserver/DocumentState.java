@@ -0,0 +1,519 @@
+package livebeansserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import livebeanscommon.CrdtOperation;
+import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.LiveBeansCodeSegment;
+import livebeanscommon.OperationalTransform;
+import livebeanscommon.SequenceCrdt;
+
+/**
+ * What the server knows about one document: how far it has got through the
+ * sequence, the batches it applied most recently and, once a client has
+ * shared it, the document's text. Every batch is applied to the text, so it
+ * stays the copy the clients' copies can be checked against. Only ever
+ * touched by the document's shard, so needs no locking.
+ *
+ * A batch's offsets are only right for the text its author had, so before a
+ * batch is applied it is transformed against the recent batches its author
+ * had not seen. An author may send several batches before it hears back, so
+ * each later one was written on top of its earlier ones as well. The server
+ * keeps a bridge for each author: the other authors' batches it has not seen,
+ * rewritten to follow every batch of its own the server has applied, just as
+ * the author rewrites them when they arrive. A batch of CRDT operations needs
+ * no transforming; it is applied to the document's own replica, which turns
+ * it into the segments applied to the text.
+ */
+class DocumentState
+{
+
+    /**
+     * Most recent batches kept to transform late batches against
+     */
+    static final int MAX_HISTORY_BATCHES = 1024;
+
+    /**
+     * Most characters of inserted text kept in the recent batches
+     */
+    static final int MAX_HISTORY_LENGTH = 1024 * 1024;
+
+    /**
+     * Author given to batches of CRDT operations, which no bridge needs
+     */
+    private static final int NO_AUTHOR_ID = -1;
+
+    private final int _documentID;
+
+    private final ArrayDeque<AppliedBatch> _history;
+    private int _historyLength;
+    // The newest batch dropped from the history
+    private long _forgottenSequence;
+    // Keyed by author, dropped once one grows past the history's limits
+    private final Map<Integer, Bridge> _bridges;
+
+    private long _revision;
+    private long _lastSequence;
+
+    // Null until a client shares the document, or after a batch did not fit
+    private PieceTable _text;
+    // Null until the first batch of CRDT operations
+    private SequenceCrdt _replica;
+
+    DocumentState(int documentID)
+    {
+        _documentID = documentID;
+        _history = new ArrayDeque<>();
+        _bridges = new HashMap<>();
+    }
+
+    /**
+     * Transforms one batch's segments for the document against the batches
+     * applied since its author's base sequence, then applies them
+     *
+     * @param codeSegments The segments, in the order they were written
+     * @param sequence The sequence number of the batch
+     * @param baseSequence The last sequence number the author had seen, or
+     * ILiveBeansServer.UNKNOWN_BASE_SEQUENCE to apply the segments as written
+     * @param authorID The ID of the client that wrote the batch
+     * @return The segments as applied, which is codeSegments itself if
+     * nothing was transformed
+     * @throws IllegalStateException If batches arrive out of sequence order
+     */
+    List<LiveBeansCodeSegment> apply(List<LiveBeansCodeSegment> codeSegments, long sequence, long baseSequence, int authorID)
+    {
+        if (sequence <= _lastSequence)
+        {
+            throw new IllegalStateException(String.format("Document %d was given batch %d after batch %d", _documentID, sequence, _lastSequence));
+        }
+
+        List<LiveBeansCodeSegment> transformed = transform(codeSegments, sequence, baseSequence, authorID);
+
+        _lastSequence = sequence;
+        _revision += transformed.size();
+        remember(sequence, transformed, authorID);
+        bridge(sequence, transformed, authorID);
+        applyToText(transformed, sequence);
+
+        return transformed;
+    }
+
+    /**
+     * Applies one batch's CRDT operations for the document to its replica,
+     * and the segments they come to to its text. The replica is seeded from
+     * the shared text by the first batch, as every client's is when it opens
+     * the document.
+     *
+     * @param operations The operations, in the order they were made
+     * @param sequence The sequence number of the batch
+     * @return The segments the operations were applied to the text as
+     * @throws IllegalStateException If batches arrive out of sequence order
+     */
+    List<LiveBeansCodeSegment> integrate(List<CrdtOperation> operations, long sequence)
+    {
+        if (sequence <= _lastSequence)
+        {
+            throw new IllegalStateException(String.format("Document %d was given batch %d after batch %d", _documentID, sequence, _lastSequence));
+        }
+
+        if (_replica == null && _text != null)
+        {
+            if (_lastSequence == 0)
+            {
+                _replica = SequenceCrdt.of(_documentID, _text.getText());
+            }
+            else
+            {
+                System.out.println(String.format("[SERVER-WARNING] Document %d was changed by code segments before batch %d of CRDT operations, its text is no longer known", _documentID, sequence));
+                _text = null;
+            }
+        }
+
+        _lastSequence = sequence;
+
+        // Which author made the operations is not known here, so batches of
+        // segments go back to being transformed against the history
+        _bridges.clear();
+
+        List<LiveBeansCodeSegment> applied = new ArrayList<>();
+
+        if (_replica != null)
+        {
+            try
+            {
+                for (CrdtOperation operation : operations)
+                {
+                    applied.addAll(_replica.integrate(operation, sequence));
+                }
+            }
+            catch (IllegalArgumentException ex)
+            {
+                System.out.println(String.format("[SERVER-WARNING] Batch %d does not fit document %d's replica, its text is no longer known\r\n\tError: %s", sequence, _documentID, ex.getMessage()));
+                _replica = null;
+                _text = null;
+            }
+        }
+
+        _revision += applied.size();
+        remember(sequence, applied, NO_AUTHOR_ID);
+        applyToText(applied, sequence);
+
+        return applied;
+    }
+
+    private void applyToText(List<LiveBeansCodeSegment> codeSegments, long sequence)
+    {
+        if (_text == null)
+        {
+            return;
+        }
+
+        for (LiveBeansCodeSegment codeSegment : codeSegments)
+        {
+            try
+            {
+                if (codeSegment.isRemoval())
+                {
+                    _text.remove(codeSegment.getDocumentOffset(), codeSegment.getCodeLength());
+                }
+                else
+                {
+                    _text.insert(codeSegment.getDocumentOffset(), codeSegment.getCodeText());
+                }
+            }
+            catch (IndexOutOfBoundsException ex)
+            {
+                // The author's copy was not the same as the server's, so the
+                // text can no longer be trusted
+                System.out.println(String.format("[SERVER-WARNING] Batch %d does not fit document %d, its text is no longer known\r\n\tError: %s", sequence, _documentID, ex.getMessage()));
+                _text = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the replica's tombstones of removals every client has applied
+     *
+     * @param stableSequence The sequence number every client has applied up
+     * to, and which every batch still to be applied was written after
+     * @return The number of removed characters dropped
+     */
+    int collectGarbage(long stableSequence)
+    {
+        return _replica == null ? 0 : _replica.collectGarbage(stableSequence);
+    }
+
+    /**
+     * Rewrites a batch to follow the batches sequenced after its base, which
+     * its author had not applied when it wrote it. Those batches were
+     * sequenced first, so their text goes first where both insert at the
+     * same offset. The author's bridge holds them as they follow its own
+     * batches still in flight when it wrote this one; without a bridge they
+     * are taken from the history.
+     */
+    private List<LiveBeansCodeSegment> transform(List<LiveBeansCodeSegment> codeSegments, long sequence, long baseSequence, int authorID)
+    {
+        if (baseSequence == ILiveBeansServer.UNKNOWN_BASE_SEQUENCE)
+        {
+            return codeSegments;
+        }
+
+        Bridge bridge = _bridges.get(authorID);
+
+        // Each author's bases only go up, so one that has gone back is from a
+        // client that started over, which the bridge does not describe
+        if (bridge == null || baseSequence < bridge._baseSequence)
+        {
+            if (baseSequence < _lastSequence && baseSequence < _forgottenSequence)
+            {
+                System.out.println(String.format("[SERVER-WARNING] Batch %d was written against batch %d, which document %d no longer remembers, applying it as written", sequence, baseSequence, _documentID));
+                return codeSegments;
+            }
+
+            bridge = new Bridge(unseen(baseSequence, authorID), baseSequence);
+            _bridges.put(authorID, bridge);
+        }
+
+        return bridge.cross(codeSegments, baseSequence);
+    }
+
+    /**
+     * Gets the batches in the history sequenced after a base, other than the
+     * author's own, oldest first
+     */
+    private List<AppliedBatch> unseen(long baseSequence, int authorID)
+    {
+        List<AppliedBatch> unseen = new ArrayList<>();
+        Iterator<AppliedBatch> newestFirst = _history.descendingIterator();
+
+        while (newestFirst.hasNext())
+        {
+            AppliedBatch batch = newestFirst.next();
+
+            if (batch._sequence <= baseSequence)
+            {
+                break;
+            }
+
+            if (batch._authorID != authorID)
+            {
+                unseen.add(batch);
+            }
+        }
+
+        Collections.reverse(unseen);
+
+        return unseen;
+    }
+
+    /**
+     * Adds a batch to every other author's bridge, as applied, since it
+     * follows everything the server has applied before it
+     */
+    private void bridge(long sequence, List<LiveBeansCodeSegment> codeSegments, int authorID)
+    {
+        if (codeSegments.isEmpty())
+        {
+            return;
+        }
+
+        Iterator<Map.Entry<Integer, Bridge>> bridges = _bridges.entrySet().iterator();
+
+        while (bridges.hasNext())
+        {
+            Map.Entry<Integer, Bridge> entry = bridges.next();
+
+            if (entry.getKey() != authorID && !entry.getValue().add(new AppliedBatch(sequence, codeSegments, authorID)))
+            {
+                // An author this far behind has most likely gone, and if not
+                // its next batch is transformed against the history
+                bridges.remove();
+            }
+        }
+    }
+
+    private void remember(long sequence, List<LiveBeansCodeSegment> codeSegments, int authorID)
+    {
+        AppliedBatch batch = new AppliedBatch(sequence, codeSegments, authorID);
+
+        _history.addLast(batch);
+        _historyLength += batch._length;
+
+        while (_history.size() > MAX_HISTORY_BATCHES || (_historyLength > MAX_HISTORY_LENGTH && _history.size() > 1))
+        {
+            AppliedBatch forgotten = _history.removeFirst();
+
+            _historyLength -= forgotten._length;
+            _forgottenSequence = forgotten._sequence;
+        }
+    }
+
+    /**
+     * Takes a client's copy of the document's text. The first copy is kept as
+     * the document's text, provided no batch has changed the document
+     * before it, and any later copy taken at that point is checked against
+     * it.
+     *
+     * @param text The client's copy of the text
+     * @param clientID The ID of the client that sent it
+     * @return False if the copy differs from the server's
+     */
+    boolean share(String text, int clientID)
+    {
+        if (_lastSequence != 0)
+        {
+            return true;
+        }
+
+        if (_text == null)
+        {
+            _text = new PieceTable(text);
+            return true;
+        }
+
+        if (_text.length() != text.length() || !_text.getText().equals(text))
+        {
+            System.out.println(String.format("[SERVER-WARNING] Client %d's copy of document %d differs from the server's", clientID, _documentID));
+            return false;
+        }
+
+        return true;
+    }
+
+    int getDocumentID()
+    {
+        return _documentID;
+    }
+
+    /**
+     * Gets the number of segments applied to the document
+     *
+     * @return The document's revision
+     */
+    long getRevision()
+    {
+        return _revision;
+    }
+
+    long getLastSequence()
+    {
+        return _lastSequence;
+    }
+
+    /**
+     * Gets the oldest sequence number a batch can still be written against
+     * and be transformed
+     *
+     * @return The newest sequence number dropped from the history, or 0
+     */
+    long getForgottenSequence()
+    {
+        return _forgottenSequence;
+    }
+
+    /**
+     * Gets the document's text
+     *
+     * @return The text, or null if it is not known
+     */
+    String getText()
+    {
+        return _text == null ? null : _text.getText();
+    }
+
+    /**
+     * Checks whether the document's text is known and kept as text, rather
+     * than as a CRDT replica, so it can be copied to a client
+     *
+     * @return True if getText() has the document's text
+     */
+    boolean isCopyable()
+    {
+        return _replica == null && _text != null;
+    }
+
+    PieceTable getPieceTable()
+    {
+        return _text;
+    }
+
+    SequenceCrdt getReplica()
+    {
+        return _replica;
+    }
+
+    /**
+     * The batches one author had not seen when it last sent a batch, each
+     * rewritten to follow every batch of the author's applied since
+     */
+    private static final class Bridge
+    {
+
+        private final ArrayDeque<AppliedBatch> _unseen;
+        private int _length;
+        // The base of the author's last batch
+        private long _baseSequence;
+
+        Bridge(List<AppliedBatch> unseen, long baseSequence)
+        {
+            _unseen = new ArrayDeque<>(unseen);
+            _baseSequence = baseSequence;
+
+            for (AppliedBatch batch : unseen)
+            {
+                _length += batch._length;
+            }
+        }
+
+        /**
+         * Adds a batch the author has not seen
+         *
+         * @return False if the bridge has grown past the history's limits
+         */
+        boolean add(AppliedBatch batch)
+        {
+            _unseen.addLast(batch);
+            _length += batch._length;
+
+            return _unseen.size() <= MAX_HISTORY_BATCHES && _length <= MAX_HISTORY_LENGTH;
+        }
+
+        /**
+         * Takes the author's next batch across the bridge. The batches up to
+         * its base were applied by the author before it wrote the batch, so
+         * are dropped, and the rest are rebased to follow the batch as the
+         * author will rebase them when they arrive.
+         *
+         * @return The batch rewritten to follow the bridge
+         */
+        List<LiveBeansCodeSegment> cross(List<LiveBeansCodeSegment> codeSegments, long baseSequence)
+        {
+            _baseSequence = baseSequence;
+
+            while (!_unseen.isEmpty() && _unseen.peekFirst()._sequence <= baseSequence)
+            {
+                _length -= _unseen.removeFirst()._length;
+            }
+
+            if (_unseen.isEmpty())
+            {
+                return codeSegments;
+            }
+
+            List<LiveBeansCodeSegment> crossed = codeSegments;
+            ArrayDeque<AppliedBatch> rebased = new ArrayDeque<>(_unseen.size());
+
+            for (AppliedBatch batch : _unseen)
+            {
+                OperationalTransform.Transformed transformed = OperationalTransform.transform(crossed, batch._codeSegments, false);
+
+                crossed = transformed.getCodeSegments();
+                rebased.addLast(new AppliedBatch(batch._sequence, transformed.getConcurrentSegments(), batch._authorID));
+            }
+
+            _unseen.clear();
+            _length = 0;
+
+            for (AppliedBatch batch : rebased)
+            {
+                _unseen.addLast(batch);
+                _length += batch._length;
+            }
+
+            return crossed;
+        }
+    }
+
+    /**
+     * A batch as it was applied to the document
+     */
+    private static final class AppliedBatch
+    {
+
+        private final long _sequence;
+        private final List<LiveBeansCodeSegment> _codeSegments;
+        private final int _authorID;
+        private final int _length;
+
+        AppliedBatch(long sequence, List<LiveBeansCodeSegment> codeSegments, int authorID)
+        {
+            int length = 0;
+
+            for (LiveBeansCodeSegment codeSegment : codeSegments)
+            {
+                length += codeSegment.isRemoval() ? 0 : codeSegment.getCodeLength();
+            }
+
+            _sequence = sequence;
+            _codeSegments = codeSegments;
+            _authorID = authorID;
+            _length = length;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package livebeansserver;
+
+/**
+ * How incoming batches reach the thread that numbers them
+ */
+public enum IngestMode
+{
+
+    /**
+     * Each batch is decoded and numbered on the thread that received it, the
+     * default. Measured on a single core this beats the ring buffer on both
+     * throughput and tail latency.
+     */
+    INLINE,
+    /**
+     * Each batch is published to a ring buffer and numbered by a single
+     * ingest thread, so receiving threads never contend on the sequence
+     * lock. Only worth it with many cores and many authors.
+     */
+    RING_BUFFER;
+
+    /**
+     * System property used to pick an ingest mode, e.g.
+     * -Dlivebeans.ingest=ring_buffer
+     */
+    public static final String PROPERTY = "livebeans.ingest";
+
+    /**
+     * Gets the ingest mode named by the livebeans.ingest system property
+     *
+     * @return The configured mode, or INLINE if none or an unknown one is set
+     */
+    public static IngestMode fromSystemProperty()
+    {
+        String configured = System.getProperty(PROPERTY);
+
+        if (configured != null)
+        {
+            for (IngestMode mode : values())
+            {
+                if (mode.name().equalsIgnoreCase(configured.trim()))
+                {
+                    return mode;
+                }
+            }
+        }
+
+        return INLINE;
+    }
+}
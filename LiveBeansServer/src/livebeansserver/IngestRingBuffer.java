@@ -0,0 +1,190 @@
+package livebeansserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands incoming batches from the threads that receive them to a single
+ * ingest thread, through a fixed ring of reusable slots. Publishing claims
+ * the next slot, fills it in place and marks it with its position, so
+ * nothing is allocated and the only contended step is the claim. When the
+ * ring is full, publishers wait for the ingest thread to free a slot.
+ *
+ * Batches are handled in the order their slots were claimed.
+ */
+final class IngestRingBuffer
+{
+
+    public interface Handler
+    {
+
+        void handleBatch(byte[] segmentFrame, int authorID, long batchID, long baseSequence);
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final long FULL_WAIT_NANOS = 50_000;
+
+    private static final class Slot
+    {
+
+        // The position last published into the slot, written after the
+        // other fields so reading it makes them visible
+        private volatile long _published = -1;
+
+        private byte[] _segmentFrame;
+        private int _authorID;
+        private long _batchID;
+        private long _baseSequence;
+    }
+
+    private final Slot[] _slots;
+    private final int _mask;
+    private final Handler _handler;
+    private final AtomicLong _claimed;
+    private final Thread _consumer;
+
+    private volatile long _consumed;
+    private volatile boolean _consumerParked;
+    private volatile boolean _closed;
+
+    /**
+     * @param capacity The number of slots, a power of two
+     * @param handler Handles each batch on the ingest thread
+     */
+    IngestRingBuffer(int capacity, Handler handler)
+    {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+        {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+
+        _slots = new Slot[capacity];
+        _mask = capacity - 1;
+        _handler = handler;
+        _claimed = new AtomicLong(-1);
+        _consumed = -1;
+
+        for (int i = 0; i < capacity; i++)
+        {
+            _slots[i] = new Slot();
+        }
+
+        _consumer = new Thread(this::consume, "LiveBeans ingest");
+        _consumer.setDaemon(true);
+        _consumer.start();
+    }
+
+    /**
+     * Queues a batch for the ingest thread, waiting while the ring is full
+     *
+     * @param segmentFrame The encoded batch
+     * @param authorID The ID of the client that sent it
+     * @param batchID The author's ID for the batch
+     * @param baseSequence The last sequence number the author had seen
+     */
+    void publish(byte[] segmentFrame, int authorID, long batchID, long baseSequence)
+    {
+        long position = _claimed.incrementAndGet();
+
+        while (position - _slots.length > _consumed && !_closed)
+        {
+            LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+        }
+
+        Slot slot = _slots[(int) position & _mask];
+
+        slot._segmentFrame = segmentFrame;
+        slot._authorID = authorID;
+        slot._batchID = batchID;
+        slot._baseSequence = baseSequence;
+        slot._published = position;
+
+        if (_consumerParked)
+        {
+            LockSupport.unpark(_consumer);
+        }
+    }
+
+    int getCapacity()
+    {
+        return _slots.length;
+    }
+
+    /**
+     * Gets the number of batches claimed but not yet taken by the ingest
+     * thread
+     *
+     * @return The depth of the ring
+     */
+    long getDepth()
+    {
+        return Math.max(0, _claimed.get() - _consumed);
+    }
+
+    /**
+     * Stops the ingest thread, waiting for it to finish the batch it is
+     * handling. Batches still in the ring are dropped.
+     */
+    void close()
+    {
+        _closed = true;
+        LockSupport.unpark(_consumer);
+
+        if (Thread.currentThread() == _consumer)
+        {
+            return;
+        }
+
+        try
+        {
+            _consumer.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume()
+    {
+        long next = 0;
+
+        while (!_closed)
+        {
+            Slot slot = _slots[(int) next & _mask];
+
+            if (slot._published != next)
+            {
+                _consumerParked = true;
+
+                // Checked again after announcing the park, so a publish that
+                // missed the flag is still seen
+                if (slot._published != next && !_closed)
+                {
+                    LockSupport.park(this);
+                }
+
+                _consumerParked = false;
+                continue;
+            }
+
+            byte[] segmentFrame = slot._segmentFrame;
+            int authorID = slot._authorID;
+            long batchID = slot._batchID;
+            long baseSequence = slot._baseSequence;
+
+            slot._segmentFrame = null;
+            _consumed = next++;
+
+            try
+            {
+                _handler.handleBatch(segmentFrame, authorID, batchID, baseSequence);
+            }
+            catch (RuntimeException ex)
+            {
+                System.out.println(String.format("[SERVER-WARNING] Failed to ingest batch %d from client %d\r\n\tError: %s", batchID, authorID, ex));
+            }
+        }
+    }
+}
@@ -1,29 +1,45 @@
 
 package livebeansserver;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.ExportException;
 import java.rmi.server.UnicastRemoteObject;
 import java.security.AccessControlException;
 import java.lang.SecurityException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import livebeanscommon.CodeSegmentCodec;
+import livebeanscommon.BatchStamp;
+import livebeanscommon.CrdtCodec;
+import livebeanscommon.CrdtOperation;
+import livebeanscommon.DocumentDictionary;
 import livebeanscommon.ILiveBeansClient;
-import livebeanscommon.ILiveBeansCodeSegment;
 import livebeanscommon.ILiveBeansServer;
 import livebeanscommon.IServerWatcher;
+import livebeanscommon.LiveBeansCodeSegment;
+import livebeanscommon.transport.IServerTransport;
+import livebeanscommon.transport.TransportType;
+import livebeanscommon.transport.UnixSockets;
+import livebeansserver.transport.NioServerTransport;
+import livebeansserver.transport.RmiServerTransport;
 import livebeansserver.util.ServerConstants.ServerStatus;
 
 
@@ -32,6 +48,12 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
 
     private static LiveBeansServer _instance;
 
+    /**
+     * How often the server works out which removals every client in CRDT
+     * mode is done with
+     */
+    private static final long GARBAGE_COLLECTION_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
     /**
      * Gets the singleton instance of the server
      *
@@ -55,11 +77,44 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
     }
 
     private transient final ArrayList<IServerWatcher> _watchers;
-    private final HashMap<Integer, ILiveBeansClient> _connectedClients;
-    private final HashMap<Integer, Long> _clientHeartbeats;
-    private transient final ScheduledExecutorService _scheduler;
+    private final ClientRegistry _clients;
+    private final DocumentDictionary _documents;
+    // Started with the server and shut down when it closes, so a closed
+    // server holds no threads. Null while the server is offline.
+    private transient volatile ScheduledExecutorService _scheduler;
+    private transient volatile ExecutorService _deliveryExecutor;
+    private transient final Object _sequenceLock;
+    private long _lastSequence;
+    private transient volatile DocumentShards _shards;
+    private transient CompletableFuture<?> _delivered;
+    private IngestMode _ingestMode;
+    // Null unless the server is online in RING_BUFFER mode
+    private transient volatile IngestRingBuffer _ingest;
+    private transient final HashMap<Integer, Long> _lastBatchIDs;
+    // Number of batches that have changed each document
+    private transient final HashMap<Integer, Long> _documentSequences;
+    private transient final HashMap<Integer, Long> _throttledBatchIDs;
+    private transient final AtomicInteger _pendingBatches;
+    private transient final AtomicLong _pendingBytes;
+    private volatile int _maxPendingBatches;
+    private volatile long _maxPendingBytes;
+    private volatile int _resyncDepth;
+    private transient final BatchRetentionBuffer _retention;
+    private transient final BroadcastBuffer _broadcast;
+    private boolean _broadcastScheduled;
+    private volatile long _broadcastWindow;
+    private volatile long _deliveryTimeout;
+    private volatile long _heartbeatTimeout;
+    private transient final ClientChecker _clientChecker;
+    // Base of each batch of CRDT operations some client may not have applied
+    private transient final ConcurrentSkipListMap<Long, Long> _operationBases;
+    private volatile long _stableSequence;
+    // Null while the server is offline
+    private transient ScheduledFuture<?> _clientCheck;
+    private transient ScheduledFuture<?> _garbageCollection;
 
-    private Registry _serverRegistry;
+    private IServerTransport _serverTransport;
+    private TransportType _transportType;
 
     private ServerStatus _currentStatus;
 
@@ -67,20 +122,86 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
     {
         _watchers = new ArrayList<>();
 
-        _connectedClients = new HashMap<>();
-        _clientHeartbeats = new HashMap<>();
+        _clients = new ClientRegistry();
+        _documents = new DocumentDictionary();
+
+        _sequenceLock = new Object();
+        _delivered = CompletableFuture.completedFuture(null);
+        _lastBatchIDs = new HashMap<>();
+        _documentSequences = new HashMap<>();
+        _throttledBatchIDs = new HashMap<>();
+        _pendingBatches = new AtomicInteger();
+        _pendingBytes = new AtomicLong();
+        _maxPendingBatches = 4096;
+        _maxPendingBytes = 16 * 1024 * 1024;
+        _resyncDepth = ClientOutbox.DEFAULT_CAPACITY / 2;
+        _retention = new BatchRetentionBuffer();
+        _broadcast = new BroadcastBuffer();
+        _broadcastWindow = 20;
+        _deliveryTimeout = TimeUnit.SECONDS.toMillis(30);
+        _heartbeatTimeout = TimeUnit.SECONDS.toMillis(5);
+        _clientChecker = new ClientChecker(this);
+        _operationBases = new ConcurrentSkipListMap<>();
+        _ingestMode = IngestMode.fromSystemProperty();
+
+        DeliveryMode deliveryMode = DeliveryMode.fromSystemProperty();
+
+        if (deliveryMode != DeliveryMode.PLATFORM_THREADS)
+        {
+            _clients.setDeliveryMode(deliveryMode);
+        }
+
+        _transportType = TransportType.fromSystemProperty();
+    }
+
+    /**
+     * Sets the transport clients will use to reach the server. Takes effect
+     * the next time the server is started.
+     *
+     * @param transportType The transport to listen with
+     */
+    public void setTransportType(TransportType transportType)
+    {
+        _transportType = transportType;
+    }
+
+    public TransportType getTransportType()
+    {
+        return _transportType;
+    }
+
+    /**
+     * Sets how incoming batches reach the thread that numbers them. Takes
+     * effect the next time the server is started.
+     *
+     * @param ingestMode The mode to ingest batches in
+     */
+    public void setIngestMode(IngestMode ingestMode)
+    {
+        _ingestMode = ingestMode;
+    }
 
-        _scheduler = Executors.newScheduledThreadPool(1);
+    public IngestMode getIngestMode()
+    {
+        return _ingestMode;
     }
 
     public void serverInit(Integer port)
     {
-        if (_serverRegistry != null)
+        if (_serverTransport != null)
         {
             System.out.println("[SERVER-WARNING] Server is already online.");
             return;
         }
 
+        // Kept from a start that failed to bind
+        if (_deliveryExecutor == null)
+        {
+            _scheduler = Executors.newScheduledThreadPool(1, daemonThreads("LiveBeans scheduler"));
+            _deliveryExecutor = Executors.newSingleThreadExecutor(daemonThreads("LiveBeans delivery"));
+            _shards = new DocumentShards(Runtime.getRuntime().availableProcessors());
+        }
+
         try
         {
             InetAddress localHost = InetAddress.getLocalHost();
@@ -88,30 +209,32 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
 
             System.out.println(String.format("[SERVER-SETUP] Using LocalHost: %s\r\n[SERVER-SETUP] Using Host Address (%s)", localHost.toString(), ipAddress));
 
-            _serverRegistry = getRegistry(port);
+            IServerTransport serverTransport = createTransport(_transportType, port);
+            serverTransport.bind(getInstance(), port);
+            _serverTransport = serverTransport;
 
-            if (_serverRegistry == null)
+            if (_ingestMode == IngestMode.RING_BUFFER)
             {
-                _serverRegistry = LocateRegistry.createRegistry(port);
+                _ingest = new IngestRingBuffer(IngestRingBuffer.DEFAULT_CAPACITY, this::ingestBatch);
             }
 
-            _serverRegistry.rebind("LiveBeansServer", getInstance());
-            System.out.println("[SERVER-SETUP] LiveBeansServer bound to host address");
-            _scheduler.scheduleAtFixedRate(ClientChecker.getInstance(), 1, 5, TimeUnit.SECONDS);
+            System.out.println(String.format("[SERVER-SETUP] LiveBeansServer bound to host address using %s", serverTransport.getName()));
+            _clientCheck = _scheduler.scheduleAtFixedRate(_clientChecker, ClientChecker.TICK_MILLIS, ClientChecker.TICK_MILLIS, TimeUnit.MILLISECONDS);
+            _garbageCollection = _scheduler.scheduleAtFixedRate(this::collectGarbage, GARBAGE_COLLECTION_MILLIS, GARBAGE_COLLECTION_MILLIS, TimeUnit.MILLISECONDS);
 
             _currentStatus = ServerStatus.ONLINE;
             notifyWatchers();
 
         }
-        catch (RemoteException ex)
+        catch (UnknownHostException ex)
         {
-            System.out.println("[SERVER-ERROR] There was a problem setting up the server.\r\n\tError: " + ex.getMessage());
-            ex.printStackTrace();
+            System.out.println("[SERVER-ERROR] There was a problem locating your localhost address.\r\n\tError: " + ex.getMessage());
             notifyError();
         }
-        catch (UnknownHostException ex)
+        catch (IOException ex)
         {
-            System.out.println("[SERVER-ERROR] There was a problem locating your localhost address.\r\n\tError: " + ex.getMessage());
+            System.out.println("[SERVER-ERROR] There was a problem setting up the server.\r\n\tError: " + ex.getMessage());
+            ex.printStackTrace();
             notifyError();
         }
        // catch (AccessControlException ex)
@@ -129,23 +252,132 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
     {
         try
         {
-            _connectedClients.clear();
-            _clientHeartbeats.clear();
+            // Stopped first, so no batch is numbered once the server is closed
+            if (_ingest != null)
+            {
+                _ingest.close();
+                _ingest = null;
+            }
+
+            _clients.clear();
+            _documents.clear();
+
+            if (_deliveryExecutor != null)
+            {
+                resetSession();
+            }
+
+            // Started again by the next serverInit, so a rehosted server only
+            // ever collects on one task
+            if (_garbageCollection != null)
+            {
+                _garbageCollection.cancel(false);
+                _garbageCollection = null;
+            }
+
+            if (_clientCheck != null)
+            {
+                _clientCheck.cancel(false);
+                _clientCheck = null;
+            }
+
+            if (_serverTransport != null)
+            {
+                IServerTransport serverTransport = _serverTransport;
+                _serverTransport = null;
+                serverTransport.close();
+            }
 
-            _serverRegistry.unbind("LiveBeansServer");
-            _serverRegistry = null;
+            shutdownExecutors();
 
             _currentStatus = ServerStatus.OFFLINE;
             notifyWatchers();
 
             System.out.println("[SERVER-LOG] Server closed.");
         }
-        catch (RemoteException | NotBoundException ex)
+        catch (IOException ex)
         {
             System.out.println("[SERVER-ERROR] Failed to close down server.\r\n\tError: " + ex);
         }
     }
 
+    /**
+     * Forgets everything about the session's batches and documents, so a
+     * document or client ID handed out again after a restart starts afresh.
+     * The sequence state is reset under the sequence lock, and the documents
+     * and delivery state once every batch already accepted has been applied
+     * and delivered, so nothing from the old session lands in the new one.
+     */
+    private void resetSession()
+    {
+        CompletableFuture<?> reset;
+
+        synchronized (_sequenceLock)
+        {
+            _lastSequence = 0;
+            _lastBatchIDs.clear();
+            _throttledBatchIDs.clear();
+            _documentSequences.clear();
+
+            CompletableFuture<Void> cleared = _shards.clear();
+
+            _delivered = CompletableFuture.allOf(_delivered, cleared).handleAsync((ignored, ex) ->
+            {
+                _retention.clear();
+                _broadcast.drain();
+                // Its scheduled broadcast goes with the scheduler
+                _broadcastScheduled = false;
+                _operationBases.clear();
+                _stableSequence = 0;
+                return null;
+            }, _deliveryExecutor);
+            reset = _delivered;
+        }
+
+        try
+        {
+            reset.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex)
+        {
+            System.out.println("[SERVER-WARNING] Failed to reset the session's documents\r\n\tError: " + ex.getCause());
+        }
+    }
+
+    /**
+     * Stops the threads started with the server. Called once the session
+     * has been reset, so nothing is left queued on them.
+     */
+    private void shutdownExecutors()
+    {
+        if (_deliveryExecutor == null)
+        {
+            return;
+        }
+
+        _scheduler.shutdownNow();
+        _deliveryExecutor.shutdown();
+        _shards.shutdown();
+
+        _scheduler = null;
+        _deliveryExecutor = null;
+        _shards = null;
+    }
+
+    private static ThreadFactory daemonThreads(String name)
+    {
+        return runnable ->
+        {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
     public void addWatcher(IServerWatcher newWatcher)
     {
         if (!_watchers.contains(newWatcher))
@@ -175,19 +407,14 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
     }
 
     /**
-     * Gets a HashMap of client heartbeats on the server
+     * Gets the registry of connected clients, which holds each client's
+     * heartbeat, subscriptions and counters
      *
-     * @return HashMap<Integer, Long>
-     * @see HashMap
+     * @return ClientRegistry
      */
-    public HashMap<Integer, Long> getClientHeartbeats()
-    {
-        return _clientHeartbeats;
-    }
-
-    public HashMap<Integer, ILiveBeansClient> getConectedClients()
+    public ClientRegistry getClientRegistry()
     {
-        return _connectedClients;
+        return _clients;
     }
 
     /**
@@ -200,17 +427,43 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
     @Override
     public boolean registerClient(ILiveBeansClient client) throws RemoteException
     {
-        if (!_connectedClients.containsValue(client))
+        if (_clients.find(client) == null)
         {
-            int newClientID = generateUniqueID();
+            ClientRecord record = _clients.add(client);
+
+            if (record == null)
+            {
+                System.out.println(String.format("[SERVER-WARNING] Client %s could not connect, all %d client IDs are in use",
+                                                 client.getName(),
+                                                 ClientRegistry.MAX_CLIENT_ID + 1));
+                return false;
+            }
+
+            int newClientID = record.getClientID();
+
+            _clientChecker.arm(record);
 
             client.setID(newClientID);
-            _connectedClients.put(newClientID, client);
+            record.setClientName(client.getName());
+
+            // Batch IDs start again with a new registration
+            synchronized (_sequenceLock)
+            {
+                _lastBatchIDs.remove(newClientID);
+                _throttledBatchIDs.remove(newClientID);
+            }
+
+            // Tell the new client about every document named so far, so it
+            // can read the IDs in the segments it is about to receive
+            for (Integer documentID : _documents.getIDs())
+            {
+                client.addDocumentMapping(documentID, _documents.getProjectName(documentID), _documents.getDocumentName(documentID));
+            }
 
             System.out.println(String.format("[SERVER-LOG] Client %s(%d)#"
                                              + " connected to server",
-                                             client.getName(),
-                                             client.getID()));
+                                             record.getClientName(),
+                                             newClientID));
             return true;
         }
         else
@@ -229,11 +482,10 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
     @Override
     public boolean unRegisterClient(ILiveBeansClient client) throws RemoteException
     {
-        if (_connectedClients.containsValue(client))
-        {
-            _clientHeartbeats.remove(client.getID());
-            _connectedClients.remove(client.getID());
+        ClientRecord record = _clients.find(client);
 
+        if (record != null && _clients.remove(record))
+        {
             System.out.println("[SERVER-LOG] Client disconnected from server");
             return true;
         }
@@ -251,19 +503,10 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
      * @return Returns true if successful, false if otherwise
      * @throws RemoteException
      */
-    public boolean unRegisterClient(Integer clientID) throws RemoteException
+    public boolean unRegisterClient(int clientID) throws RemoteException
     {
-        ILiveBeansClient client = getClientByID(clientID);
-
-        if (client == null)
-        {
-            return false;
-        }
-
-        if (_connectedClients.containsValue(client))
+        if (_clients.remove(clientID) != null)
         {
-            _clientHeartbeats.remove(clientID);
-            _connectedClients.remove(clientID);
             System.out.println("[SERVER-LOG] Client disconnected from server");
             return true;
         }
@@ -274,6 +517,19 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
         }
     }
 
+    /**
+     * Removes a client that has stopped sending heartbeats. Only that
+     * registration is removed, so a client that has since resumed under the
+     * same ID is left alone.
+     *
+     * @param record The record of the silent client
+     * @return True if the client was removed
+     */
+    boolean expireClient(ClientRecord record)
+    {
+        return _clients.remove(record);
+    }
+
     /**
      * Updates a client heartbeat on the server to let the server know they are
      * still connected
@@ -284,134 +540,940 @@ public class LiveBeansServer extends UnicastRemoteObject implements ILiveBeansSe
     @Override
     public void sendHeartbeat(int clientID) throws RemoteException
     {
-        for (Integer storedID : _clientHeartbeats.keySet())
+        if (!_clients.heartbeat(clientID))
         {
-            if (storedID == clientID)
-            {
-                _clientHeartbeats.put(storedID, System.nanoTime());
-                return;
-            }
+            System.out.println(String.format("[SERVER-WARNING] Received a heartbeat from unknown client %d", clientID));
         }
+    }
 
-        _clientHeartbeats.put(clientID, System.nanoTime());
 
-        System.out.println(String.format("[SERVER-LOG] Created a new client heartbeat entry for %s", getClientByID(clientID).getName()));
+    @Override
+    public void subscribeDocument(int clientID, int documentID) throws RemoteException
+    {
+        if (!_clients.subscribe(clientID, documentID))
+        {
+            System.out.println(String.format("[SERVER-WARNING] Unknown client %d attempted to subscribe to document %d", clientID, documentID));
+        }
     }
 
-    private ILiveBeansClient getClientByID(int clientID) throws RemoteException
+    @Override
+    public void unsubscribeDocument(int clientID, int documentID) throws RemoteException
     {
-        for (HashMap.Entry<Integer, ILiveBeansClient> client : _connectedClients.entrySet())
+        if (!_clients.unsubscribe(clientID, documentID))
         {
-            // Could attempt to contact client first to ask for client ID
-            // but that would risk throwing RemoteException errors, and
-            // I'd prefer to keep the chance of throwing them at a minimum
-            if (client.getKey() == clientID)
-            {
-                return client.getValue();
-            }
+            System.out.println(String.format("[SERVER-WARNING] Unknown client %d attempted to unsubscribe from document %d", clientID, documentID));
         }
+    }
 
-        System.out.println(String.format("[SERVER-WARNING] Attempted to get a client by invalid ID (%s)", clientID));
+    /**
+     * Takes a client's copy of a document's text. It is handed to the
+     * document's shard behind any of the client's batches already queued
+     * there, and ahead of any it sends after.
+     *
+     * @param clientID The ID of the client sharing the text
+     * @param documentID The session ID of the document
+     * @param documentText The document's text
+     * @throws RemoteException
+     */
+    @Override
+    public void submitDocumentText(int clientID, int documentID, String documentText) throws RemoteException
+    {
+        if (_clients.get(clientID) == null || documentText == null)
+        {
+            System.out.println(String.format("[SERVER-WARNING] Unknown client %d attempted to share document %d", clientID, documentID));
+            return;
+        }
 
-        return null;
+        _shards.share(documentID, documentText, clientID);
     }
 
-    private int generateUniqueID() throws RemoteException
+    /**
+     * Gets the session ID of a document, announcing newly named documents to
+     * every connected client
+     *
+     * @param projectName The name of the project the document is in, or null
+     * @param documentName The name of the document
+     * @return The document's ID
+     * @throws RemoteException
+     */
+    @Override
+    public int registerDocument(String projectName, String documentName) throws RemoteException
     {
-        Random randomGenerator = new Random();
+        int documentID;
 
-        boolean foundNumber = false;
-        int randNumber = 0;
-
-        while (!foundNumber)
+        synchronized (_documents)
         {
-            // Using Integer.SIZE guarantees a positive number is generated
-            // rather than have some clients given a negative number
-            randNumber = randomGenerator.nextInt(Integer.SIZE - 1);
+            documentID = _documents.getID(projectName, documentName);
 
-            if (_connectedClients.isEmpty())
-            {
-                foundNumber = true;
-            }
-            else
+            if (documentID != DocumentDictionary.NO_ID)
             {
-                for (HashMap.Entry<Integer, ILiveBeansClient> client : _connectedClients.entrySet())
-                {
-                    try
-                    {
-                        if (client.getValue().getID() == randNumber)
-                        {
-                            continue;
-                        }
-
-                        foundNumber = true;
-                    }
-                    catch (RemoteException ex)
-                    {
-                        System.out.println("[SERVER-WARNING] Found a non-responsive client");
-                    }
-                }
+                return documentID;
             }
+
+            documentID = _documents.register(projectName, documentName);
+        }
+
+        System.out.println(String.format("[SERVER-LOG] Registered document %s (%s) as %d", documentName, projectName, documentID));
+
+        final int newDocumentID = documentID;
+
+        // Queued ahead of any batch that uses the new ID
+        for (ClientRecord record : _clients)
+        {
+            send(record, client -> client.addDocumentMapping(newDocumentID, projectName, documentName));
         }
 
-        return randNumber;
+        return documentID;
+    }
+
+    private ILiveBeansClient getClientByID(int clientID)
+    {
+        ClientRecord record = _clients.get(clientID);
+
+        if (record == null)
+        {
+            System.out.println(String.format("[SERVER-WARNING] Attempted to get a client by invalid ID (%s)", clientID));
+            return null;
+        }
+
+        return record.getClient();
+    }
+
+
+    /**
+     * Gets the sequence number given to the most recent batch
+     *
+     * @return The last sequence number, or 0 if no batch has been accepted
+     */
+    public long getLastSequence()
+    {
+        synchronized (_sequenceLock)
+        {
+            return _lastSequence;
+        }
     }
 
     /**
-     * Tells the server to distribute the code segments between all clients
+     * Tells the server to distribute the code segments between all clients.
+     * The batch is numbered on the calling thread, or in RING_BUFFER mode
+     * only queued for the ingest thread, which numbers it. Delivery happens
+     * on the delivery thread, so neither the calling thread nor the author
+     * waits for its peers. Only clients subscribed to a
+     * document the batch changes are sent it.
      *
-     * @param codeSegments The list of code segments that will be sent to the
-     * server
+     * @param segmentFrame The code segments that will be sent to the server,
+     * encoded by CodeSegmentCodec
      * @param authorID The author of the code segments
+     * @param batchID The author's number for the batch
+     * @param baseSequence The last sequence number the author had seen
      * @throws RemoteException
      */
     @Override
-    public void distributeCodeSegments(List<ILiveBeansCodeSegment> codeSegments, int authorID) throws RemoteException
-    {
-        System.out.println(String.format("[SERVER-INFO] Received %d code segment(s) from client %d", codeSegments.size(), authorID));
-
-        //.filter(client -> client.getKey() != clientID)
-        _connectedClients.entrySet()
-                .stream()
-                .filter(client -> client.getKey() != authorID)
-                .forEach((client)
-                        ->
-                        {
-                            try
-                            {
-                                client.getValue().updateLocalCode(codeSegments);
-                            }
-                            catch (RemoteException ex)
-                            {
-                                System.out.println("[SERVER-WARNING] Found a "
-                                                   + "non-responsive client");
-                            }
-                });
-    }
-
-    private Registry getRegistry(Integer port)
+    public void distributeCodeSegments(byte[] segmentFrame, int authorID, long batchID, long baseSequence) throws RemoteException
+    {
+        IngestRingBuffer ingest = _ingest;
+
+        if (ingest == null)
+        {
+            ingestBatch(segmentFrame, authorID, batchID, baseSequence);
+        }
+        else
+        {
+            ingest.publish(segmentFrame, authorID, batchID, baseSequence);
+        }
+    }
+
+    /**
+     * Decodes, checks and numbers a batch, then hands it to the shards, which
+     * transform it against the batches its author had not seen, and the
+     * delivery thread. Called on the thread that received the batch, or in
+     * RING_BUFFER mode only on the ingest thread.
+     */
+    private void ingestBatch(byte[] segmentFrame, int authorID, long batchID, long baseSequence)
     {
+        List<LiveBeansCodeSegment> codeSegments = null;
+        List<CrdtOperation> operations = null;
+
         try
         {
-            return LocateRegistry.createRegistry(port);
+            if (CrdtCodec.isCrdtFrame(segmentFrame))
+            {
+                operations = CrdtCodec.decode(segmentFrame);
+            }
+            else
+            {
+                codeSegments = CodeSegmentCodec.decode(segmentFrame);
+            }
+        }
+        catch (IllegalArgumentException ex)
+        {
+            System.out.println(String.format("[SERVER-WARNING] Discarded a malformed code segment frame from client %d\r\n\tError: %s", authorID, ex.getMessage()));
+            _deliveryExecutor.execute(() -> acknowledgeBatch(authorID, batchID, ILiveBeansClient.REJECTED_SEQUENCE));
+            return;
         }
-        catch (ExportException ex)
+
+        if (operations == null)
         {
-            try
+            System.out.println(String.format("[SERVER-INFO] Received %d code segment(s) from client %d", codeSegments.size(), authorID));
+        }
+        else
+        {
+            System.out.println(String.format("[SERVER-INFO] Received %d CRDT operation(s) from client %d", operations.size(), authorID));
+        }
+
+        // Numbering and queueing under one lock keeps the order each document
+        // is applied in, and the delivery order, the same as the sequence order
+        synchronized (_sequenceLock)
+        {
+            Long lastBatchID = _lastBatchIDs.get(authorID);
+
+            if (lastBatchID != null && batchID <= lastBatchID)
+            {
+                System.out.println(String.format("[SERVER-WARNING] Discarded batch %d from client %d, which was already accepted", batchID, authorID));
+                _deliveryExecutor.execute(() -> acknowledgeBatch(authorID, batchID, ILiveBeansClient.REJECTED_SEQUENCE));
+                return;
+            }
+
+            // Once a batch is turned away, every later one from the author is
+            // too until it is sent again, so the author's batches stay in order
+            Long throttledBatchID = _throttledBatchIDs.get(authorID);
+
+            if ((throttledBatchID != null && batchID > throttledBatchID) || isOverloaded(segmentFrame.length))
+            {
+                if (throttledBatchID == null)
+                {
+                    System.out.println(String.format("[SERVER-WARNING] Server is overloaded with %d batch(es) waiting, asking client %d to slow down", _pendingBatches.get(), authorID));
+                    _throttledBatchIDs.put(authorID, batchID);
+                }
+
+                // Sent straight away rather than behind the deliveries that
+                // are holding things up
+                acknowledgeBatch(authorID, batchID, ILiveBeansClient.THROTTLED_SEQUENCE);
+                return;
+            }
+
+            _throttledBatchIDs.remove(authorID);
+            _lastBatchIDs.put(authorID, batchID);
+            _pendingBatches.incrementAndGet();
+            _pendingBytes.addAndGet(segmentFrame.length);
+
+            ClientRecord author = _clients.get(authorID);
+            long transformBase = baseSequence;
+
+            if (author != null)
             {
-                return LocateRegistry.getRegistry(port);
+                author.recordBatchReceived();
+
+                // A batch written before its author was sent copies of its
+                // documents is applied to the copies, as the author applies
+                // it again on top of them
+                if (operations == null && baseSequence != ILiveBeansServer.UNKNOWN_BASE_SEQUENCE)
+                {
+                    transformBase = Math.max(baseSequence, author.getResyncSequence());
+                }
             }
-            catch (RemoteException ex1)
+
+            // The author's base is always below the new sequence number, so
+            // it serves as the batch's Lamport timestamp without another clock
+            long sequence = ++_lastSequence;
+            int[] documentIDs = operations == null
+                                ? codeSegments.stream().mapToInt(LiveBeansCodeSegment::getDocumentID).distinct().toArray()
+                                : operations.stream().mapToInt(CrdtOperation::getDocumentID).distinct().toArray();
+            long[] documentSequences = new long[documentIDs.length];
+
+            for (int i = 0; i < documentIDs.length; i++)
             {
-                System.out.println("[SERVER-ERROR] There was a problem retrieving the server registry.\r\n\tError: " + ex.getMessage());
+                documentSequences[i] = _documentSequences.merge(documentIDs[i], 1L, Long::sum);
             }
+
+            CompletableFuture<byte[]> applied = apply(segmentFrame, codeSegments, operations, sequence, transformBase, authorID)
+                    .exceptionally(ex ->
+                    {
+                        System.out.println(String.format("[SERVER-WARNING] Failed to apply batch %d from client %d\r\n\tError: %s", batchID, authorID, ex));
+                        return segmentFrame;
+                    })
+                    .thenApply(frame -> BatchStamp.stamp(frame, documentIDs, documentSequences));
+
+            // Each batch is delivered once its documents have applied it and
+            // the batch before it has been delivered
+            _delivered = CompletableFuture.allOf(_delivered, applied)
+                    .whenCompleteAsync((ignored, ex) -> deliverBatch(applied.join(), segmentFrame.length, documentIDs, authorID, batchID, sequence), _deliveryExecutor);
+        }
+    }
+
+    /**
+     * Hands a batch to the shards. A batch of segments is only encoded again
+     * if a document had to transform it, and a batch of CRDT operations is
+     * never changed, so otherwise every recipient is sent the author's bytes.
+     * Called holding the sequence lock.
+     *
+     * @return Completes with the frame to deliver once every document has
+     * applied the batch
+     */
+    private CompletableFuture<byte[]> apply(byte[] segmentFrame, List<LiveBeansCodeSegment> codeSegments, List<CrdtOperation> operations, long sequence, long baseSequence, int authorID)
+    {
+        if (operations != null)
+        {
+            _operationBases.put(sequence, baseSequence);
+
+            return _shards.integrate(operations, sequence).thenApply(ignored -> segmentFrame);
+        }
+
+        return _shards.apply(codeSegments, sequence, baseSequence, authorID)
+                .thenApply(transformed -> transformed == codeSegments ? segmentFrame : CodeSegmentCodec.encode(transformed));
+    }
+
+    /**
+     * Checks whether accepting another batch would take the work waiting for
+     * the delivery thread past its limits. A single batch is always accepted
+     * when nothing is waiting, however large it is.
+     */
+    private boolean isOverloaded(int frameLength)
+    {
+        int pendingBatches = _pendingBatches.get();
+
+        return pendingBatches >= _maxPendingBatches
+               || (pendingBatches > 0 && _pendingBytes.get() + frameLength > _maxPendingBytes);
+    }
+
+    private void acknowledgeBatch(int authorID, long batchID, long sequence)
+    {
+        ClientRecord author = _clients.get(authorID);
+
+        if (author == null)
+        {
+            System.out.println(String.format("[SERVER-WARNING] Failed to acknowledge batch %d from client %d, it is not connected", batchID, authorID));
+            return;
+        }
+
+        send(author, new AcknowledgementDelivery(batchID, sequence));
+    }
+
+    /**
+     * Acknowledges a batch to its author and holds it for the next broadcast
+     * tick. The acknowledgement waits for the tick too if the author has
+     * earlier batches waiting for it. Only called on the delivery thread,
+     * which never waits on a client.
+     *
+     * @param segmentFrame The batch as it was applied, stamped with its
+     * documents' sequence numbers
+     * @param receivedLength The length of the batch as it was received
+     */
+    private void deliverBatch(byte[] segmentFrame, int receivedLength, int[] documentIDs, int authorID, long batchID, long sequence)
+    {
+        _pendingBatches.decrementAndGet();
+        _pendingBytes.addAndGet(-receivedLength);
+
+        _retention.add(sequence, authorID, segmentFrame);
+
+        ClientRecord author = _clients.get(authorID);
+
+        if (author == null || !_broadcast.holdAcknowledgement(author, batchID, sequence))
+        {
+            acknowledgeBatch(authorID, batchID, sequence);
         }
-        catch (RemoteException ex)
+
+        BitSet recipientIDs = new BitSet();
+
+        for (int documentID : documentIDs)
         {
-            System.out.println("[SERVER-ERROR] There was a problem creating the server registry.\r\n\tError: " + ex.getMessage());
+            _clients.collectSubscribers(documentID, recipientIDs);
         }
 
-        return null;
+        recipientIDs.clear(authorID);
+
+        List<ClientRecord> recipients = new ArrayList<>(recipientIDs.cardinality());
+
+        for (int clientID = recipientIDs.nextSetBit(0); clientID >= 0; clientID = recipientIDs.nextSetBit(clientID + 1))
+        {
+            ClientRecord record = _clients.get(clientID);
+
+            if (record != null)
+            {
+                recipients.add(record);
+            }
+        }
+
+        _broadcast.add(segmentFrame, sequence, recipients);
+
+        long broadcastWindow = _broadcastWindow;
+
+        if (broadcastWindow <= 0)
+        {
+            broadcast();
+        }
+        else if (!_broadcastScheduled)
+        {
+            _broadcastScheduled = true;
+            _scheduler.schedule(() -> _deliveryExecutor.execute(this::broadcast), broadcastWindow, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records how far a client in CRDT mode has got, which is what the
+     * server's garbage collection waits on
+     *
+     * @param clientID The ID of the client
+     * @param sequence The version the client acknowledged
+     * @throws RemoteException
+     */
+    @Override
+    public void acknowledgeVersion(int clientID, long sequence) throws RemoteException
+    {
+        ClientRecord record = _clients.get(clientID);
+
+        if (record == null)
+        {
+            System.out.println(String.format("[SERVER-WARNING] Received a version from unknown client %d", clientID));
+            return;
+        }
+
+        record.acknowledgeVersion(sequence);
+    }
+
+    /**
+     * Works out, on the delivery thread, the newest sequence number every
+     * client has acknowledged and that no batch some client has not applied
+     * was written before. If it has moved on, every document's replica and
+     * every client is told to drop the tombstones of removals up to it.
+     *
+     * @return Completes with the stable sequence number, which only moves
+     * forward, once the server's replicas have collected up to it
+     */
+    CompletableFuture<Long> collectGarbage()
+    {
+        CompletableFuture<Long> collected = new CompletableFuture<>();
+
+        _deliveryExecutor.execute(() ->
+        {
+            long stableSequence = updateStableSequence();
+
+            if (stableSequence <= _stableSequence)
+            {
+                collected.complete(_stableSequence);
+                return;
+            }
+
+            _stableSequence = stableSequence;
+
+            for (ClientRecord record : _clients)
+            {
+                send(record, client -> client.collectGarbage(stableSequence));
+            }
+
+            _shards.collectGarbage(stableSequence).whenComplete((collectedLength, ex) ->
+            {
+                if (ex != null)
+                {
+                    System.out.println(String.format("[SERVER-WARNING] Failed to collect removals up to batch %d\r\n\tError: %s", stableSequence, ex));
+                }
+                else if (collectedLength > 0)
+                {
+                    System.out.println(String.format("[SERVER-LOG] Collected %d removed character(s) up to batch %d", collectedLength, stableSequence));
+                }
+
+                collected.complete(stableSequence);
+            });
+        });
+
+        return collected;
+    }
+
+    /**
+     * Gets the oldest version any client has acknowledged, held back to the
+     * base of any batch of CRDT operations sequenced after it, which some
+     * client may still have to apply and may have been written against a
+     * character removed since. Only called on the delivery thread.
+     */
+    private long updateStableSequence()
+    {
+        // Read first, so every batch up to it has been handed to the shards
+        long stableSequence = getLastSequence();
+        boolean connected = false;
+
+        for (ClientRecord record : _clients)
+        {
+            stableSequence = Math.min(stableSequence, record.getAcknowledgedVersion());
+            connected = true;
+        }
+
+        if (!connected)
+        {
+            return _stableSequence;
+        }
+
+        // Every client has applied these, so they hold nothing back
+        _operationBases.headMap(stableSequence, true).clear();
+
+        for (long baseSequence : _operationBases.values())
+        {
+            stableSequence = Math.min(stableSequence, baseSequence);
+        }
+
+        return stableSequence;
+    }
+
+    /**
+     * Sends every client the batches from the window that are for it, in one
+     * call each. Only called on the delivery thread.
+     */
+    private void broadcast()
+    {
+        _broadcastScheduled = false;
+
+        if (_broadcast.isEmpty())
+        {
+            return;
+        }
+
+        for (Map.Entry<ClientRecord, List<SequencedDelivery>> entry : _broadcast.drain().entrySet())
+        {
+            ClientRecord record = entry.getKey();
+            List<SequencedDelivery> deliveries = skipCopied(record, entry.getValue());
+
+            if (record.getOutbox().getDepth() >= _resyncDepth)
+            {
+                deliveries = resync(record, deliveries);
+
+                if (deliveries == null)
+                {
+                    continue;
+                }
+            }
+
+            for (SequencedDelivery delivery : deliveries)
+            {
+                send(record, delivery);
+            }
+        }
+    }
+
+    /**
+     * Replaces what a client that has fallen behind still has waiting, so it
+     * catches up in as few calls as possible and its queue is left with only
+     * the server's other messages. Where the server knows the text of every
+     * document the client is subscribed to, the client is sent a copy of
+     * each in place of its batches. Otherwise the batches are sent as one
+     * catch-up, which shares its frames with the retention buffer; a client
+     * behind the oldest retained batch is removed instead, so it resumes or
+     * reconnects and memory stays bounded by the retention buffer. Either
+     * way the client's acknowledgements are kept in order.
+     *
+     * @param record The client that has fallen behind
+     * @param deliveries The deliveries from this tick
+     * @return The catch-up, or null if the client was removed
+     */
+    private List<SequencedDelivery> resync(ClientRecord record, List<SequencedDelivery> deliveries)
+    {
+        ClientOutbox outbox = record.getOutbox();
+        int depth = outbox.getDepth();
+        List<SequencedDelivery> waiting = outbox.take(SequencedDelivery.class);
+
+        waiting.addAll(deliveries);
+
+        List<SequencedDelivery> copies = copyDocuments(record, waiting);
+
+        if (copies != null)
+        {
+            record.recordResync();
+
+            System.out.println(String.format("[SERVER-WARNING] Client %d has %d messages waiting, sending copies of its documents as of batch %d", record.getClientID(), depth, record.getResyncSequence()));
+
+            return copies;
+        }
+
+        List<SequencedDelivery> catchUp = BatchDelivery.merge(record, waiting);
+        int batchCount = 0;
+        long firstSequence = -1;
+
+        for (SequencedDelivery delivery : catchUp)
+        {
+            if (delivery instanceof BatchDelivery)
+            {
+                BatchDelivery batches = (BatchDelivery) delivery;
+
+                if (batchCount == 0)
+                {
+                    firstSequence = batches.getFirstSequence();
+                }
+
+                batchCount += batches.getBatchCount();
+            }
+        }
+
+        if (batchCount > 0 && !_retention.isRetained(firstSequence))
+        {
+            System.out.println(String.format("[SERVER-WARNING] Client %d is further behind than the retained batches, removing...", record.getClientID()));
+            record.recordDeliveryFailure();
+            expireClient(record);
+            return null;
+        }
+
+        record.recordResync();
+
+        System.out.println(String.format("[SERVER-WARNING] Client %d has %d messages waiting, sending %d batch(es) as one catch-up", record.getClientID(), depth, batchCount));
+
+        return catchUp;
+    }
+
+    /**
+     * Copies every document a client is subscribed to as of the last batch
+     * numbered, to be sent after its waiting acknowledgements in place of its
+     * waiting batches. The reads are queued on the shards with the sequence
+     * lock held, so each copy holds exactly the batches up to that number and
+     * the client's later batches are taken to be written against it. Nothing
+     * waits for the reads: each copy waits in the client's queue instead.
+     * A document that stops being copyable before it is read leaves the
+     * client without a copy, so the client is removed and resumes.
+     *
+     * @param record The client that has fallen behind
+     * @param waiting Everything the client has waiting, in order
+     * @return The acknowledgements and copies, or null if the text of a
+     * document is not known or it is edited with CRDT operations
+     */
+    private List<SequencedDelivery> copyDocuments(ClientRecord record, List<SequencedDelivery> waiting)
+    {
+        BitSet subscriptions = record.getSubscriptions();
+
+        if (subscriptions.isEmpty())
+        {
+            return null;
+        }
+
+        for (int documentID = subscriptions.nextSetBit(0); documentID >= 0; documentID = subscriptions.nextSetBit(documentID + 1))
+        {
+            if (!_shards.isCopyable(documentID))
+            {
+                return null;
+            }
+        }
+
+        List<SequencedDelivery> copies = new ArrayList<>();
+        List<CompletableFuture<String>> texts = new ArrayList<>();
+
+        for (SequencedDelivery delivery : waiting)
+        {
+            if (delivery instanceof AcknowledgementDelivery)
+            {
+                copies.add(delivery);
+            }
+        }
+
+        synchronized (_sequenceLock)
+        {
+            long sequence = _lastSequence;
+            long lastBatchID = _lastBatchIDs.getOrDefault(record.getClientID(), 0L);
+
+            for (int documentID = subscriptions.nextSetBit(0); documentID >= 0; documentID = subscriptions.nextSetBit(documentID + 1))
+            {
+                CompletableFuture<String> text = _shards.onShard(documentID, state -> state.isCopyable() ? state.getText() : null);
+
+                texts.add(text);
+                copies.add(new DocumentResync(documentID, text, _documentSequences.getOrDefault(documentID, 0L), sequence, lastBatchID));
+            }
+
+            record.resync(sequence);
+        }
+
+        CompletableFuture.allOf(texts.toArray(new CompletableFuture<?>[texts.size()])).whenCompleteAsync((ignored, ex) ->
+        {
+            if (ex != null || texts.stream().anyMatch(text -> text.join() == null))
+            {
+                System.out.println(String.format("[SERVER-WARNING] Failed to copy the documents of client %d, removing...", record.getClientID()));
+                record.recordDeliveryFailure();
+                expireClient(record);
+            }
+        }, _deliveryExecutor);
+
+        return copies;
+    }
+
+    /**
+     * Leaves out the batches a client was sent copies of its documents in
+     * place of
+     */
+    private List<SequencedDelivery> skipCopied(ClientRecord record, List<SequencedDelivery> deliveries)
+    {
+        long resyncSequence = record.getResyncSequence();
+
+        if (resyncSequence == 0)
+        {
+            return deliveries;
+        }
+
+        List<SequencedDelivery> kept = new ArrayList<>(deliveries.size());
+
+        for (SequencedDelivery delivery : deliveries)
+        {
+            if (delivery instanceof BatchDelivery)
+            {
+                delivery = ((BatchDelivery) delivery).after(resyncSequence);
+            }
+
+            if (delivery != null)
+            {
+                kept.add(delivery);
+            }
+        }
+
+        return kept;
+    }
+
+    /**
+     * Sets how long the server collects batches from every author before
+     * sending them on together. A window of 0 sends each batch as soon as it
+     * is accepted.
+     *
+     * @param window The window, in milliseconds
+     */
+    public void setBroadcastWindow(long window)
+    {
+        _broadcastWindow = window;
+    }
+
+    public long getBroadcastWindow()
+    {
+        return _broadcastWindow;
+    }
+
+    /**
+     * Queues a message in a client's outbox, dropping the client if it has
+     * fallen too far behind to take it
+     */
+    private void send(ClientRecord record, ClientOutbox.Delivery delivery)
+    {
+        ClientOutbox outbox = record.getOutbox();
+
+        if (!outbox.offer(delivery) && !outbox.isClosed())
+        {
+            System.out.println(String.format("[SERVER-WARNING] Client %d has %d messages waiting, removing...", record.getClientID(), outbox.getDepth()));
+            record.recordDeliveryFailure();
+            expireClient(record);
+        }
+    }
+
+    /**
+     * Sets how long a client may take over a single message before it is
+     * treated as stalled and removed
+     *
+     * @param timeout The timeout, in milliseconds
+     */
+    public void setDeliveryTimeout(long timeout)
+    {
+        _deliveryTimeout = timeout;
+    }
+
+    public long getDeliveryTimeout()
+    {
+        return _deliveryTimeout;
+    }
+
+    /**
+     * Sets how many accepted batches may wait for the delivery thread before
+     * authors are asked to slow down
+     *
+     * @param maxPendingBatches The most batches waiting
+     */
+    public void setMaxPendingBatches(int maxPendingBatches)
+    {
+        _maxPendingBatches = maxPendingBatches;
+    }
+
+    public int getMaxPendingBatches()
+    {
+        return _maxPendingBatches;
+    }
+
+    /**
+     * Sets how many bytes of accepted batches may wait for the delivery
+     * thread before authors are asked to slow down
+     *
+     * @param maxPendingBytes The most bytes waiting
+     */
+    public void setMaxPendingBytes(long maxPendingBytes)
+    {
+        _maxPendingBytes = maxPendingBytes;
+    }
+
+    public long getMaxPendingBytes()
+    {
+        return _maxPendingBytes;
+    }
+
+    /**
+     * Sets how many messages a client may have waiting before its waiting
+     * batches are replaced with one catch-up
+     *
+     * @param resyncDepth The depth of the client's queue
+     */
+    public void setResyncDepth(int resyncDepth)
+    {
+        _resyncDepth = resyncDepth;
+    }
+
+    public int getResyncDepth()
+    {
+        return _resyncDepth;
+    }
+
+    /**
+     * Sets the threads deliveries to clients run on. Takes effect
+     * immediately.
+     *
+     * @param deliveryMode The mode to deliver in
+     * @return The mode now in use, which is PLATFORM_THREADS if virtual
+     * threads were asked for and the JVM does not have them
+     */
+    public DeliveryMode setDeliveryMode(DeliveryMode deliveryMode)
+    {
+        return _clients.setDeliveryMode(deliveryMode);
+    }
+
+    public DeliveryMode getDeliveryMode()
+    {
+        return _clients.getDeliveryMode();
+    }
+
+    /**
+     * Sets how long a client may go without sending a heartbeat before it is
+     * removed
+     *
+     * @param timeout The timeout, in milliseconds
+     */
+    public void setHeartbeatTimeout(long timeout)
+    {
+        _heartbeatTimeout = timeout;
+    }
+
+    public long getHeartbeatTimeout()
+    {
+        return _heartbeatTimeout;
+    }
+
+    ClientChecker getClientChecker()
+    {
+        return _clientChecker;
+    }
+
+    DocumentShards getDocumentShards()
+    {
+        return _shards;
+    }
+
+    /**
+     * Reconnects a client that lost its connection, replaying the batches it
+     * missed. The client must give the name its old ID was registered with.
+     * The replay is queued on the delivery thread, so nothing delivered while
+     * it is queued can be missed or sent twice, and sent through the
+     * client's own outbox, so a slow client holds up no one else.
+     *
+     * @param client The client, as reached over its new connection
+     * @param clientID The ID the client had before it lost its connection
+     * @param lastSequence The last sequence number the client applied
+     * @return The highest batch ID accepted from the client, or
+     * ILiveBeansClient.REJECTED_SEQUENCE if it cannot be resumed
+     * @throws RemoteException
+     */
+    @Override
+    public long resumeSession(ILiveBeansClient client, int clientID, long lastSequence) throws RemoteException
+    {
+        String clientName = client.getName();
+
+        try
+        {
+            return _deliveryExecutor.submit(() -> replayBatches(client, clientID, clientName, lastSequence)).get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while resuming a session", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new RemoteException("Failed to resume a session", ex.getCause());
+        }
+    }
+
+    private long replayBatches(ILiveBeansClient client, int clientID, String clientName, long lastSequence)
+    {
+        // Batches still waiting for a tick are in the replay, so must not be
+        // sent to the new connection again afterwards
+        broadcast();
+
+        List<BatchRetentionBuffer.RetainedBatch> missedBatches = _retention.getSince(lastSequence);
+
+        if (missedBatches == null)
+        {
+            System.out.println(String.format("[SERVER-WARNING] Client %d cannot resume from batch %d, it is no longer retained", clientID, lastSequence));
+            return ILiveBeansClient.REJECTED_SEQUENCE;
+        }
+
+        // Replaces the registration from the old connection, if it has not
+        // already timed out
+        ClientRecord record = _clients.resume(clientID, client, clientName);
+
+        if (record == null)
+        {
+            System.out.println(String.format("[SERVER-WARNING] Client %s cannot resume as client %d, the ID is not its own", clientName, clientID));
+            return ILiveBeansClient.REJECTED_SEQUENCE;
+        }
+
+        List<Integer> documentIDs = new ArrayList<>(_documents.getIDs());
+        BatchDelivery replay = BatchDelivery.ofRetained(record, missedBatches);
+        ClientOutbox outbox = record.getOutbox();
+
+        boolean queued = outbox.offer(resumedClient ->
+        {
+            resumedClient.setID(clientID);
+
+            for (Integer documentID : documentIDs)
+            {
+                resumedClient.addDocumentMapping(documentID, _documents.getProjectName(documentID), _documents.getDocumentName(documentID));
+            }
+        });
+
+        // A client told it has resumed must be sent everything it missed, so
+        // one that cannot be is turned away and connects again
+        if (!queued || (replay != null && !outbox.offer(replay)))
+        {
+            System.out.println(String.format("[SERVER-WARNING] Client %s cannot resume as client %d, its replay could not be queued", clientName, clientID));
+            record.recordDeliveryFailure();
+            expireClient(record);
+            return ILiveBeansClient.REJECTED_SEQUENCE;
+        }
+
+        _clientChecker.arm(record);
+
+        Long lastBatchID;
+
+        synchronized (_sequenceLock)
+        {
+            lastBatchID = _lastBatchIDs.get(clientID);
+        }
+
+        System.out.println(String.format("[SERVER-LOG] Client %s(%d)# resumed, replaying %d batch(es)", clientName, clientID, replay == null ? 0 : replay.getBatchCount()));
+
+        return lastBatchID == null ? 0 : lastBatchID;
+    }
+
+    private IServerTransport createTransport(TransportType transportType, int port)
+    {
+        switch (transportType)
+        {
+            case NIO:
+                return new NioServerTransport();
+            case UDS:
+                if (!UnixSockets.isSupported())
+                {
+                    System.out.println("[SERVER-WARNING] Unix domain sockets need Java 16 or later, local clients will use TCP.");
+                    return new NioServerTransport();
+                }
+
+                return new NioServerTransport(UnixSockets.getSocketPath(port));
+            case RMI:
+            default:
+                return new RmiServerTransport();
+        }
     }
 
     public ServerStatus getCurrentStatus()
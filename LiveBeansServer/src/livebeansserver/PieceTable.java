@@ -0,0 +1,321 @@
+package livebeansserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The text of a document as a sequence of pieces, each a run of characters
+ * from either the document's original text or an append-only buffer of
+ * everything inserted since. Edits only split pieces and add new ones, so
+ * neither buffer is ever copied. The pieces are held in a treap ordered by
+ * position, so finding, inserting and removing at an offset takes
+ * O(log n) in the number of pieces.
+ *
+ * Not thread safe; each table is owned by its document's shard.
+ */
+final class PieceTable
+{
+
+    private static final class Piece
+    {
+
+        private final CharSequence _buffer;
+        private final int _start;
+        private int _length;
+
+        private final int _priority;
+        private Piece _left;
+        private Piece _right;
+
+        // Characters in this piece and everything below it
+        private int _subtreeLength;
+        private int _subtreeCount;
+
+        private Piece(CharSequence buffer, int start, int length)
+        {
+            _buffer = buffer;
+            _start = start;
+            _length = length;
+            _priority = ThreadLocalRandom.current().nextInt();
+            _subtreeLength = length;
+            _subtreeCount = 1;
+        }
+
+        private void update()
+        {
+            _subtreeLength = _length + length(_left) + length(_right);
+            _subtreeCount = 1 + count(_left) + count(_right);
+        }
+    }
+
+    private final StringBuilder _added;
+
+    private Piece _root;
+
+    PieceTable()
+    {
+        this("");
+    }
+
+    /**
+     * @param original The document's text when it was first seen
+     */
+    PieceTable(String original)
+    {
+        _added = new StringBuilder();
+
+        if (!original.isEmpty())
+        {
+            _root = new Piece(original, 0, original.length());
+        }
+    }
+
+    int length()
+    {
+        return length(_root);
+    }
+
+    /**
+     * Gets the number of pieces the text is split into
+     *
+     * @return The piece count
+     */
+    int getPieceCount()
+    {
+        return count(_root);
+    }
+
+    /**
+     * Inserts text into the document
+     *
+     * @param offset Where to insert, from 0 to the document's length
+     * @param text The text to insert
+     * @throws IndexOutOfBoundsException If the offset is outside the document
+     */
+    void insert(int offset, String text)
+    {
+        checkRange(offset, 0);
+
+        if (text.isEmpty())
+        {
+            return;
+        }
+
+        int addedStart = _added.length();
+        _added.append(text);
+
+        Piece[] parts = split(_root, offset);
+
+        // Typing adds to the end of the previous insertion, which can then be
+        // extended rather than given a piece of its own
+        Piece last = parts[0];
+
+        while (last != null && last._right != null)
+        {
+            last = last._right;
+        }
+
+        if (last != null && last._buffer == _added && last._start + last._length == addedStart)
+        {
+            extendLast(parts[0], text.length());
+            _root = merge(parts[0], parts[1]);
+        }
+        else
+        {
+            _root = merge(merge(parts[0], new Piece(_added, addedStart, text.length())), parts[1]);
+        }
+    }
+
+    /**
+     * Removes text from the document
+     *
+     * @param offset The first character to remove
+     * @param length The number of characters to remove
+     * @throws IndexOutOfBoundsException If the range is outside the document
+     */
+    void remove(int offset, int length)
+    {
+        checkRange(offset, length);
+
+        Piece[] before = split(_root, offset);
+        Piece[] after = split(before[1], length);
+
+        _root = merge(before[0], after[1]);
+    }
+
+    /**
+     * Copies part of the text out of the table
+     *
+     * @param offset The first character to copy
+     * @param length The number of characters to copy
+     * @return The text
+     * @throws IndexOutOfBoundsException If the range is outside the document
+     */
+    String getText(int offset, int length)
+    {
+        checkRange(offset, length);
+
+        StringBuilder text = new StringBuilder(length);
+        appendText(_root, offset, offset + length, 0, text);
+
+        return text.toString();
+    }
+
+    String getText()
+    {
+        return getText(0, length());
+    }
+
+    @Override
+    public String toString()
+    {
+        return getText();
+    }
+
+    private void checkRange(int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset > length() - length)
+        {
+            throw new IndexOutOfBoundsException(String.format("Range %d+%d is outside a document of length %d", offset, length, length()));
+        }
+    }
+
+    /**
+     * Copies the characters between two document offsets from a subtree
+     *
+     * @param piece The root of the subtree
+     * @param from The first offset to copy
+     * @param to The offset after the last to copy
+     * @param subtreeStart The document offset the subtree starts at
+     */
+    private static void appendText(Piece piece, int from, int to, int subtreeStart, StringBuilder text)
+    {
+        if (piece == null || from >= to)
+        {
+            return;
+        }
+
+        int pieceStart = subtreeStart + length(piece._left);
+        int pieceEnd = pieceStart + piece._length;
+
+        if (from < pieceStart)
+        {
+            appendText(piece._left, from, to, subtreeStart, text);
+        }
+
+        if (from < pieceEnd && to > pieceStart)
+        {
+            int start = Math.max(from, pieceStart) - pieceStart;
+            int end = Math.min(to, pieceEnd) - pieceStart;
+
+            text.append(piece._buffer, piece._start + start, piece._start + end);
+        }
+
+        if (to > pieceEnd)
+        {
+            appendText(piece._right, from, to, pieceEnd, text);
+        }
+    }
+
+    /**
+     * Splits a subtree into the pieces before an offset and those after it,
+     * cutting the piece the offset falls inside
+     *
+     * @return The subtree before the offset, then the subtree after it
+     */
+    private static Piece[] split(Piece piece, int offset)
+    {
+        if (piece == null)
+        {
+            return new Piece[2];
+        }
+
+        int leftLength = length(piece._left);
+
+        if (offset <= leftLength)
+        {
+            Piece[] parts = split(piece._left, offset);
+            piece._left = parts[1];
+            piece.update();
+            parts[1] = piece;
+
+            return parts;
+        }
+
+        if (offset >= leftLength + piece._length)
+        {
+            Piece[] parts = split(piece._right, offset - leftLength - piece._length);
+            piece._right = parts[0];
+            piece.update();
+            parts[0] = piece;
+
+            return parts;
+        }
+
+        int cut = offset - leftLength;
+        Piece tail = new Piece(piece._buffer, piece._start + cut, piece._length - cut);
+        Piece right = piece._right;
+
+        piece._length = cut;
+        piece._right = null;
+        piece.update();
+
+        return new Piece[]
+        {
+            piece, merge(tail, right)
+        };
+    }
+
+    /**
+     * Joins two subtrees, every piece of the first coming before the second
+     */
+    private static Piece merge(Piece first, Piece second)
+    {
+        if (first == null)
+        {
+            return second;
+        }
+
+        if (second == null)
+        {
+            return first;
+        }
+
+        if (first._priority > second._priority)
+        {
+            first._right = merge(first._right, second);
+            first.update();
+
+            return first;
+        }
+
+        second._left = merge(first, second._left);
+        second.update();
+
+        return second;
+    }
+
+    /**
+     * Lengthens the last piece of a subtree, and the subtree lengths above it
+     */
+    private static void extendLast(Piece piece, int length)
+    {
+        while (piece._right != null)
+        {
+            piece._subtreeLength += length;
+            piece = piece._right;
+        }
+
+        piece._length += length;
+        piece._subtreeLength += length;
+    }
+
+    private static int length(Piece piece)
+    {
+        return piece == null ? 0 : piece._subtreeLength;
+    }
+
+    private static int count(Piece piece)
+    {
+        return piece == null ? 0 : piece._subtreeCount;
+    }
+}
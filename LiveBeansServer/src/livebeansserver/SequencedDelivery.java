@@ -0,0 +1,12 @@
+package livebeansserver;
+
+/**
+ * A message that tells a client about a sequence number: a batch from
+ * another author, or the acknowledgement of one of its own. A client works
+ * out which batches its edits were written against from these, so they must
+ * reach it in sequence order, and a catch-up that replaces them keeps that
+ * order.
+ */
+interface SequencedDelivery extends ClientOutbox.Delivery
+{
+}
@@ -0,0 +1,91 @@
+package livebeansserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, for JDK 21 and later. The project is built for Java 8, so
+ * the JDK's methods are reached reflectively and isSupported() reports
+ * whether the running JVM has them.
+ */
+final class VirtualThreads
+{
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static
+    {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+
+        try
+        {
+            // Looked up on the public interface, as the builder classes
+            // themselves are not accessible
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        }
+        catch (ClassNotFoundException | NoSuchMethodException ex)
+        {
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads()
+    {
+    }
+
+    /**
+     * Checks whether the running JVM has virtual threads
+     *
+     * @return True on JDK 21 and later
+     */
+    static boolean isSupported()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread
+     *
+     * @param namePrefix The start of each thread's name, followed by a count
+     * @return The executor
+     * @throws UnsupportedOperationException If the JVM has no virtual threads
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix)
+    {
+        if (!isSupported())
+        {
+            throw new UnsupportedOperationException("Virtual threads need JDK 21 or later");
+        }
+
+        try
+        {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+            ThreadFactory threadFactory = (ThreadFactory) FACTORY.invoke(builder);
+
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+        }
+        catch (IllegalAccessException | InvocationTargetException ex)
+        {
+            throw new UnsupportedOperationException("Failed to create virtual threads", ex);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+
+package livebeansserver.transport;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.transport.BufferPool;
+import livebeanscommon.transport.MessageBuilder;
+import livebeanscommon.transport.MessageReader;
+import livebeanscommon.transport.MessageType;
+import livebeanscommon.transport.WouldBlockException;
+
+/**
+ * One client connected to a NioServerTransport. To the server this is the
+ * client: calls on it are queued as messages and written by the selector
+ * thread, so they never block the caller.
+ *
+ * Batches are only queued while less than MAX_QUEUED_BYTES is waiting to be
+ * written. Past that, a call that sends batches throws WouldBlockException
+ * instead, so the client's outbox holds them and a client that is not
+ * reading falls behind there, where it is caught up or dropped. The small
+ * replies and notices are always queued.
+ */
+class NioConnection implements ILiveBeansClient
+{
+
+    /**
+     * Most bytes waiting to be written before batches are refused
+     */
+    static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    // Refused batches are taken again once the queue is down to this
+    private static final int RESUME_QUEUED_BYTES = MAX_QUEUED_BYTES / 2;
+
+    private final NioServerTransport _transport;
+    private final BufferPool _bufferPool;
+    private final SocketChannel _channel;
+    private final Queue<ByteBuffer> _writeQueue;
+    private final AtomicInteger _queuedBytes;
+
+    // Completed once the queue has drained, guarded by this
+    private CompletableFuture<Void> _writable;
+
+    private SelectionKey _selectionKey;
+    private ByteBuffer _readBuffer;
+
+    private volatile int _clientID;
+    private volatile String _clientName;
+
+    NioConnection(NioServerTransport transport, BufferPool bufferPool, SocketChannel channel)
+    {
+        _transport = transport;
+        _bufferPool = bufferPool;
+        _channel = channel;
+        _writeQueue = new ConcurrentLinkedQueue<>();
+        _queuedBytes = new AtomicInteger();
+        _readBuffer = bufferPool.acquire();
+    }
+
+    void setSelectionKey(SelectionKey selectionKey)
+    {
+        _selectionKey = selectionKey;
+    }
+
+    SelectionKey getSelectionKey()
+    {
+        return _selectionKey;
+    }
+
+    boolean isOpen()
+    {
+        return _channel.isOpen();
+    }
+
+    /**
+     * Reads whatever is available and dispatches every complete message.
+     * Only called on the selector thread.
+     *
+     * @return False if the client has closed the connection
+     * @throws IOException If the connection failed or sent garbage
+     */
+    boolean read() throws IOException
+    {
+        if (_channel.read(_readBuffer) < 0)
+        {
+            return false;
+        }
+
+        _readBuffer.flip();
+
+        while (_readBuffer.remaining() >= Integer.BYTES)
+        {
+            int length = _readBuffer.getInt(_readBuffer.position());
+
+            if (length < 1 || length > MessageType.MAX_MESSAGE_LENGTH)
+            {
+                throw new IOException("Client sent a message of invalid length " + length);
+            }
+
+            if (_readBuffer.remaining() < Integer.BYTES + length)
+            {
+                if (Integer.BYTES + length > _readBuffer.capacity())
+                {
+                    growReadBuffer(Integer.BYTES + length);
+                }
+
+                break;
+            }
+
+            int messageEnd = _readBuffer.position() + Integer.BYTES + length;
+            int bufferLimit = _readBuffer.limit();
+
+            _readBuffer.position(_readBuffer.position() + Integer.BYTES);
+            _readBuffer.limit(messageEnd);
+
+            try
+            {
+                _transport.dispatch(this, _readBuffer.get(), new MessageReader(_readBuffer));
+            }
+            catch (IllegalArgumentException | BufferUnderflowException ex)
+            {
+                System.out.println(String.format("[SERVER-WARNING] Ignored a malformed message from client %d\r\n\tError: %s", _clientID, ex));
+            }
+            finally
+            {
+                _readBuffer.limit(bufferLimit);
+                _readBuffer.position(messageEnd);
+            }
+        }
+
+        _readBuffer.compact();
+
+        // Go back to a pooled buffer once an oversized message has been read
+        if (_readBuffer.capacity() > _bufferPool.getBufferSize() && _readBuffer.position() == 0)
+        {
+            _readBuffer = _bufferPool.acquire();
+        }
+
+        return true;
+    }
+
+    private void growReadBuffer(int capacity)
+    {
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+
+        grown.put(_readBuffer);
+        grown.flip();
+
+        _bufferPool.release(_readBuffer);
+        _readBuffer = grown;
+    }
+
+    /**
+     * Writes as much of the queue as the socket will take. Only called on the
+     * selector thread.
+     *
+     * @return True if the queue was emptied
+     * @throws IOException If the connection failed
+     */
+    boolean flush() throws IOException
+    {
+        try
+        {
+            ByteBuffer message;
+
+            while ((message = _writeQueue.peek()) != null)
+            {
+                int remaining = message.remaining();
+
+                _channel.write(message);
+                _queuedBytes.addAndGet(message.remaining() - remaining);
+
+                if (message.hasRemaining())
+                {
+                    return false;
+                }
+
+                _writeQueue.poll();
+                _bufferPool.release(message);
+            }
+
+            return true;
+        }
+        finally
+        {
+            if (_queuedBytes.get() <= RESUME_QUEUED_BYTES)
+            {
+                resumeWrites();
+            }
+        }
+    }
+
+    /**
+     * Tells whoever had batches refused that the queue can take more
+     */
+    private void resumeWrites()
+    {
+        CompletableFuture<Void> writable;
+
+        synchronized (this)
+        {
+            writable = _writable;
+            _writable = null;
+        }
+
+        if (writable != null)
+        {
+            writable.complete(null);
+        }
+    }
+
+    int getQueuedBytes()
+    {
+        return _queuedBytes.get();
+    }
+
+    void close()
+    {
+        try
+        {
+            _channel.close();
+        }
+        catch (IOException ex)
+        {
+            System.out.println("[SERVER-WARNING] Failed to close client connection\r\n\tError: " + ex);
+        }
+
+        releaseQueued();
+
+        _bufferPool.release(_readBuffer);
+        _readBuffer = null;
+    }
+
+    private void releaseQueued()
+    {
+        ByteBuffer message;
+
+        while ((message = _writeQueue.poll()) != null)
+        {
+            _bufferPool.release(message);
+        }
+
+        _queuedBytes.set(0);
+        resumeWrites();
+    }
+
+    void send(ByteBuffer message) throws RemoteException
+    {
+        if (!_channel.isOpen())
+        {
+            _bufferPool.release(message);
+            throw new ConnectException(String.format("Client %d is no longer connected", _clientID));
+        }
+
+        _queuedBytes.addAndGet(message.remaining());
+        _writeQueue.offer(message);
+
+        if (!_channel.isOpen())
+        {
+            // Closed while queueing, so close() may already have drained
+            releaseQueued();
+            throw new ConnectException(String.format("Client %d is no longer connected", _clientID));
+        }
+
+        _transport.requestWrite(this);
+    }
+
+    /**
+     * Queues messages carrying batches, all or none of them. A run bigger
+     * than the limit is still taken when nothing else is waiting, so it
+     * cannot be refused forever.
+     *
+     * @throws WouldBlockException If the queue is too full to take them
+     */
+    private void sendBatches(ByteBuffer... messages) throws RemoteException
+    {
+        int length = 0;
+
+        for (ByteBuffer message : messages)
+        {
+            length += message.remaining();
+        }
+
+        CompletableFuture<Void> writable = null;
+
+        synchronized (this)
+        {
+            int queuedBytes = _queuedBytes.get();
+
+            if (queuedBytes > 0 && queuedBytes + length > MAX_QUEUED_BYTES)
+            {
+                if (_writable == null)
+                {
+                    _writable = new CompletableFuture<>();
+                }
+
+                writable = _writable;
+            }
+        }
+
+        if (writable != null)
+        {
+            for (ByteBuffer message : messages)
+            {
+                _bufferPool.release(message);
+            }
+
+            throw new WouldBlockException(String.format("Client %d has %d bytes waiting to be written", _clientID, _queuedBytes.get()), writable);
+        }
+
+        for (int i = 0; i < messages.length; i++)
+        {
+            try
+            {
+                send(messages[i]);
+            }
+            catch (RemoteException ex)
+            {
+                for (int j = i + 1; j < messages.length; j++)
+                {
+                    _bufferPool.release(messages[j]);
+                }
+
+                throw ex;
+            }
+        }
+    }
+
+    void reply(int callID, long result) throws RemoteException
+    {
+        send(message(MessageType.REPLY).putInt(callID).putLong(result).build());
+    }
+
+    private MessageBuilder message(byte messageType)
+    {
+        return new MessageBuilder(_bufferPool, messageType);
+    }
+
+    @Override
+    public void setID(int newID) throws RemoteException
+    {
+        _clientID = newID;
+        send(message(MessageType.SET_ID).putInt(newID).build());
+    }
+
+    @Override
+    public void setName(String newName) throws RemoteException
+    {
+        _clientName = newName;
+    }
+
+    @Override
+    public void connectToServer(String ipAddress) throws RemoteException
+    {
+        throw new RemoteException("Not supported on a server-side connection");
+    }
+
+    @Override
+    public void disconnectFromServer() throws RemoteException
+    {
+        _transport.closeConnection(this);
+    }
+
+    @Override
+    public void updateLocalCode(byte[] segmentFrame, long sequence) throws RemoteException
+    {
+        sendBatches(_transport.getRelayMessage(segmentFrame, sequence));
+    }
+
+    @Override
+    public void updateLocalCode(byte[][] segmentFrames, long[] sequences) throws RemoteException
+    {
+        // Each frame keeps its shared message; they are queued back to back,
+        // so are written together
+        ByteBuffer[] messages = new ByteBuffer[segmentFrames.length];
+
+        for (int i = 0; i < segmentFrames.length; i++)
+        {
+            messages[i] = _transport.getRelayMessage(segmentFrames[i], sequences[i]);
+        }
+
+        sendBatches(messages);
+    }
+
+    @Override
+    public void resyncDocument(int documentID, String text, long documentSequence, long sequence, long lastBatchID) throws RemoteException
+    {
+        // As big as the document, so it waits its turn like a batch
+        sendBatches(message(MessageType.RESYNC_DOCUMENT).putInt(documentID).putLong(documentSequence).putLong(sequence).putLong(lastBatchID).putString(text).build());
+    }
+
+    @Override
+    public void acknowledgeBatch(long batchID, long sequence) throws RemoteException
+    {
+        send(message(MessageType.ACKNOWLEDGE_BATCH).putLong(batchID).putLong(sequence).build());
+    }
+
+    @Override
+    public void collectGarbage(long sequence) throws RemoteException
+    {
+        send(message(MessageType.COLLECT_GARBAGE).putLong(sequence).build());
+    }
+
+    @Override
+    public void addDocumentMapping(int documentID, String projectName, String documentName) throws RemoteException
+    {
+        send(message(MessageType.ADD_DOCUMENT_MAPPING).putInt(documentID).putString(projectName).putString(documentName).build());
+    }
+
+    @Override
+    public void updateRemoteCode() throws RemoteException
+    {
+        throw new RemoteException("Not supported on a server-side connection");
+    }
+
+    @Override
+    public int getID() throws RemoteException
+    {
+        return _clientID;
+    }
+
+    @Override
+    public String getName() throws RemoteException
+    {
+        return _clientName;
+    }
+
+    @Override
+    public ILiveBeansServer getServer() throws RemoteException
+    {
+        return _transport.getServer();
+    }
+}
@@ -0,0 +1,501 @@
+
+package livebeansserver.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.transport.BufferPool;
+import livebeanscommon.transport.IServerTransport;
+import livebeanscommon.transport.MessageReader;
+import livebeanscommon.transport.MessageType;
+import livebeanscommon.transport.UnixSockets;
+
+/**
+ * Serves every client from one selector thread. Messages are length-prefixed
+ * frames read into and written from pooled direct buffers. Given a socket
+ * file, the same selector also accepts clients over a Unix domain socket.
+ *
+ * Client calls are dispatched on the selector thread, so the server methods
+ * they reach must not block for long; calls back to NIO clients only queue a
+ * write.
+ */
+public class NioServerTransport implements IServerTransport, Runnable
+{
+
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    // Must be a power of two
+    private static final int RECENT_RELAY_COUNT = 64;
+
+    private final BufferPool _bufferPool;
+    private final Queue<NioConnection> _pendingWrites;
+    private final Path _localSocketPath;
+    private final AtomicReferenceArray<RelayMessage> _recentRelays;
+
+    private ILiveBeansServer _server;
+    private Selector _selector;
+    private ServerSocketChannel _serverChannel;
+    private ServerSocketChannel _localServerChannel;
+    private Thread _selectorThread;
+    // Runs the calls that wait on the server, so the selector never does
+    private ExecutorService _callExecutor;
+    private volatile boolean _running;
+
+    public NioServerTransport()
+    {
+        this(null);
+    }
+
+    /**
+     * Creates a transport that also listens on a Unix domain socket
+     *
+     * @param localSocketPath The socket file to create, or null to only
+     * listen on TCP
+     */
+    public NioServerTransport(Path localSocketPath)
+    {
+        _bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+        _pendingWrites = new ConcurrentLinkedQueue<>();
+        _localSocketPath = localSocketPath;
+        _recentRelays = new AtomicReferenceArray<>(RECENT_RELAY_COUNT);
+    }
+
+    @Override
+    public void bind(ILiveBeansServer server, int port) throws IOException
+    {
+        _server = server;
+        _selector = Selector.open();
+
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.configureBlocking(false);
+        _serverChannel.bind(new InetSocketAddress(port));
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+
+        if (_localSocketPath != null)
+        {
+            try
+            {
+                _localServerChannel = UnixSockets.openServerChannel(_localSocketPath);
+                _localServerChannel.register(_selector, SelectionKey.OP_ACCEPT);
+            }
+            catch (IOException ex)
+            {
+                _serverChannel.close();
+                _selector.close();
+                throw ex;
+            }
+        }
+
+        _running = true;
+        _callExecutor = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "LiveBeans NIO calls");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _selectorThread = new Thread(this, "LiveBeans NIO selector");
+        _selectorThread.setDaemon(true);
+        _selectorThread.start();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _running = false;
+
+        if (_selector != null)
+        {
+            _selector.wakeup();
+        }
+
+        if (_selectorThread != null)
+        {
+            try
+            {
+                _selectorThread.join(5000);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            _selectorThread = null;
+        }
+
+        if (_callExecutor != null)
+        {
+            _callExecutor.shutdownNow();
+            _callExecutor = null;
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return _localSocketPath == null ? "NIO" : "NIO with local socket " + _localSocketPath;
+    }
+
+    ILiveBeansServer getServer()
+    {
+        return _server;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (_running)
+            {
+                _selector.select();
+
+                registerPendingWrites();
+
+                Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
+
+                while (selectedKeys.hasNext())
+                {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    handleKey(key);
+                }
+            }
+        }
+        catch (IOException | ClosedSelectorException ex)
+        {
+            System.out.println("[SERVER-ERROR] NIO selector failed\r\n\tError: " + ex);
+        }
+        finally
+        {
+            shutDown();
+        }
+    }
+
+    private void handleKey(SelectionKey key)
+    {
+        if (!key.isValid())
+        {
+            return;
+        }
+
+        if (key.isAcceptable())
+        {
+            accept((ServerSocketChannel) key.channel());
+            return;
+        }
+
+        NioConnection connection = (NioConnection) key.attachment();
+
+        try
+        {
+            if (key.isReadable() && !connection.read())
+            {
+                closeConnection(connection);
+                return;
+            }
+
+            if (key.isValid() && key.isWritable() && connection.flush())
+            {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        catch (IOException ex)
+        {
+            System.out.println("[SERVER-WARNING] Dropped a client connection\r\n\tError: " + ex);
+            closeConnection(connection);
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel)
+    {
+        try
+        {
+            SocketChannel channel = serverChannel.accept();
+
+            if (channel == null)
+            {
+                return;
+            }
+
+            channel.configureBlocking(false);
+
+            // Keystroke-sized messages should go out immediately
+            if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY))
+            {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+
+            NioConnection connection = new NioConnection(this, _bufferPool, channel);
+            connection.setSelectionKey(channel.register(_selector, SelectionKey.OP_READ, connection));
+        }
+        catch (IOException ex)
+        {
+            System.out.println("[SERVER-WARNING] Failed to accept a client connection\r\n\tError: " + ex);
+        }
+    }
+
+    /**
+     * Asks the selector thread to write a connection's queued messages
+     *
+     * @param connection The connection with messages waiting
+     */
+    void requestWrite(NioConnection connection)
+    {
+        if (Thread.currentThread() == _selectorThread)
+        {
+            enableWrites(connection);
+            return;
+        }
+
+        _pendingWrites.offer(connection);
+
+        Selector selector = _selector;
+
+        if (selector != null)
+        {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Gets the UPDATE_LOCAL_CODE message carrying a segment frame. The server
+     * relays each frame to every recipient, so the message is built once for
+     * the first and shared, read-only, with the rest. Messages for the most
+     * recent sequence numbers are kept, so a merged delivery of several
+     * frames still shares all of them.
+     *
+     * @param segmentFrame The frame being relayed
+     * @param sequence The sequence number of the frame
+     * @return A view of the message for one connection to write
+     */
+    ByteBuffer getRelayMessage(byte[] segmentFrame, long sequence)
+    {
+        int slot = (int) (sequence & (RECENT_RELAY_COUNT - 1));
+        RelayMessage relay = _recentRelays.get(slot);
+
+        if (relay == null || relay._segmentFrame != segmentFrame || relay._sequence != sequence)
+        {
+            relay = new RelayMessage(segmentFrame, sequence);
+            _recentRelays.set(slot, relay);
+        }
+
+        return relay._message.duplicate();
+    }
+
+    private void registerPendingWrites()
+    {
+        NioConnection connection;
+
+        while ((connection = _pendingWrites.poll()) != null)
+        {
+            enableWrites(connection);
+        }
+    }
+
+    private void enableWrites(NioConnection connection)
+    {
+        SelectionKey key = connection.getSelectionKey();
+
+        if (key != null && key.isValid())
+        {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void closeConnection(NioConnection connection)
+    {
+        if (!connection.isOpen())
+        {
+            return;
+        }
+
+        connection.close();
+
+        try
+        {
+            _server.unRegisterClient(connection);
+        }
+        catch (RemoteException ex)
+        {
+            System.out.println("[SERVER-WARNING] Failed to unregister a closed connection\r\n\tError: " + ex);
+        }
+    }
+
+    /**
+     * Delivers one message from a client to the server
+     *
+     * @param connection The connection the message arrived on
+     * @param messageType The type of the message
+     * @param reader The message payload
+     * @throws RemoteException If a reply could not be queued
+     */
+    void dispatch(NioConnection connection, byte messageType, MessageReader reader) throws RemoteException
+    {
+        int callID;
+
+        switch (messageType)
+        {
+            case MessageType.REGISTER_CLIENT:
+                callID = reader.getInt();
+                connection.setName(reader.getString());
+                connection.reply(callID, _server.registerClient(connection) ? 1 : 0);
+                break;
+            case MessageType.UNREGISTER_CLIENT:
+                callID = reader.getInt();
+                connection.reply(callID, _server.unRegisterClient(connection) ? 1 : 0);
+                break;
+            case MessageType.HEARTBEAT:
+                _server.sendHeartbeat(reader.getInt());
+                break;
+            case MessageType.DISTRIBUTE_SEGMENTS:
+                int clientID = reader.getInt();
+                long batchID = reader.getLong();
+                long baseSequence = reader.getLong();
+                _server.distributeCodeSegments(reader.getBytes(), clientID, batchID, baseSequence);
+                break;
+            case MessageType.RESUME_SESSION:
+                callID = reader.getInt();
+                int resumingID = reader.getInt();
+                long lastSequence = reader.getLong();
+                connection.setName(reader.getString());
+                resumeSession(connection, callID, resumingID, lastSequence);
+                break;
+            case MessageType.REGISTER_DOCUMENT:
+                callID = reader.getInt();
+                connection.reply(callID, _server.registerDocument(reader.getString(), reader.getString()));
+                break;
+            case MessageType.SUBSCRIBE_DOCUMENT:
+                _server.subscribeDocument(reader.getInt(), reader.getInt());
+                break;
+            case MessageType.UNSUBSCRIBE_DOCUMENT:
+                _server.unsubscribeDocument(reader.getInt(), reader.getInt());
+                break;
+            case MessageType.SUBMIT_DOCUMENT_TEXT:
+                _server.submitDocumentText(reader.getInt(), reader.getInt(), reader.getString());
+                break;
+            case MessageType.ACKNOWLEDGE_VERSION:
+                _server.acknowledgeVersion(reader.getInt(), reader.getLong());
+                break;
+            default:
+                System.out.println(String.format("[SERVER-WARNING] Ignored unknown message type %d", messageType));
+        }
+    }
+
+    /**
+     * Resumes a session off the selector thread, which would otherwise stop
+     * reading and writing for every client while the server queues the
+     * replay, and replies once it is done
+     */
+    private void resumeSession(NioConnection connection, int callID, int clientID, long lastSequence) throws RemoteException
+    {
+        try
+        {
+            _callExecutor.execute(() ->
+            {
+                long lastBatchID;
+
+                try
+                {
+                    lastBatchID = _server.resumeSession(connection, clientID, lastSequence);
+                }
+                catch (RemoteException | RuntimeException ex)
+                {
+                    System.out.println(String.format("[SERVER-WARNING] Failed to resume client %d\r\n\tError: %s", clientID, ex));
+                    lastBatchID = ILiveBeansClient.REJECTED_SEQUENCE;
+                }
+
+                try
+                {
+                    connection.reply(callID, lastBatchID);
+                }
+                catch (RemoteException ex)
+                {
+                    System.out.println(String.format("[SERVER-WARNING] Failed to reply to client %d\r\n\tError: %s", clientID, ex));
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            connection.reply(callID, ILiveBeansClient.REJECTED_SEQUENCE);
+        }
+    }
+
+    /**
+     * A segment frame and the message that carries it
+     */
+    private static final class RelayMessage
+    {
+
+        private final byte[] _segmentFrame;
+        private final long _sequence;
+        private final ByteBuffer _message;
+
+        RelayMessage(byte[] segmentFrame, long sequence)
+        {
+            ByteBuffer message = ByteBuffer.allocate(Integer.BYTES + 1 + Long.BYTES + Integer.BYTES + segmentFrame.length);
+
+            message.putInt(message.capacity() - Integer.BYTES);
+            message.put(MessageType.UPDATE_LOCAL_CODE);
+            message.putLong(sequence);
+            message.putInt(segmentFrame.length);
+            message.put(segmentFrame);
+            message.flip();
+
+            _segmentFrame = segmentFrame;
+            _sequence = sequence;
+            _message = message.asReadOnlyBuffer();
+        }
+    }
+
+    private void shutDown()
+    {
+        if (_selector.isOpen())
+        {
+            for (SelectionKey key : _selector.keys())
+            {
+                if (key.attachment() instanceof NioConnection)
+                {
+                    closeConnection((NioConnection) key.attachment());
+                }
+            }
+        }
+
+        try
+        {
+            _serverChannel.close();
+
+            if (_localServerChannel != null)
+            {
+                _localServerChannel.close();
+                Files.deleteIfExists(_localSocketPath);
+            }
+
+            _selector.close();
+        }
+        catch (IOException ex)
+        {
+            System.out.println("[SERVER-WARNING] Failed to close NIO listener\r\n\tError: " + ex);
+        }
+
+        _pendingWrites.clear();
+    }
+}
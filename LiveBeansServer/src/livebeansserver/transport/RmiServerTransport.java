@@ -0,0 +1,88 @@
+
+package livebeansserver.transport;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.transport.IServerTransport;
+import livebeanscommon.transport.RmiClientTransport;
+
+/**
+ * Binds the server in an RMI registry on the given port, creating the
+ * registry if there is not one already
+ */
+public class RmiServerTransport implements IServerTransport
+{
+
+    private Registry _serverRegistry;
+
+    @Override
+    public void bind(ILiveBeansServer server, int port) throws IOException
+    {
+        _serverRegistry = getRegistry(port);
+
+        if (_serverRegistry == null)
+        {
+            _serverRegistry = LocateRegistry.createRegistry(port);
+        }
+
+        _serverRegistry.rebind(RmiClientTransport.BINDING_NAME, server);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (_serverRegistry == null)
+        {
+            return;
+        }
+
+        try
+        {
+            _serverRegistry.unbind(RmiClientTransport.BINDING_NAME);
+        }
+        catch (NotBoundException ex)
+        {
+            throw new IOException("Server was not bound in the registry", ex);
+        }
+        finally
+        {
+            _serverRegistry = null;
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "RMI";
+    }
+
+    private Registry getRegistry(int port)
+    {
+        try
+        {
+            return LocateRegistry.createRegistry(port);
+        }
+        catch (ExportException ex)
+        {
+            try
+            {
+                return LocateRegistry.getRegistry(port);
+            }
+            catch (RemoteException ex1)
+            {
+                System.out.println("[SERVER-ERROR] There was a problem retrieving the server registry.\r\n\tError: " + ex.getMessage());
+            }
+        }
+        catch (RemoteException ex)
+        {
+            System.out.println("[SERVER-ERROR] There was a problem creating the server registry.\r\n\tError: " + ex.getMessage());
+        }
+
+        return null;
+    }
+}
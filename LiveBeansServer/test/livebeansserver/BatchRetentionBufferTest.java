@@ -0,0 +1,124 @@
+package livebeansserver;
+
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BatchRetentionBufferTest
+{
+
+    /**
+     * Test that getSince returns every later batch in order.
+     */
+    @Test
+    public void testGetSince()
+    {
+        System.out.println("\r\ngetSince");
+
+        BatchRetentionBuffer instance = new BatchRetentionBuffer(10, 1024);
+
+        for (long sequence = 1; sequence <= 5; sequence++)
+        {
+            instance.add(sequence, (int) sequence, new byte[]
+            {
+                (byte) sequence
+            });
+        }
+
+        List<BatchRetentionBuffer.RetainedBatch> result = instance.getSince(2);
+
+        assertEquals(3, result.size());
+        assertEquals(3, result.get(0).getSequence());
+        assertEquals(5, result.get(2).getSequence());
+        assertEquals(4, result.get(1).getAuthorID());
+
+        assertTrue(instance.getSince(5).isEmpty());
+        assertEquals(5, instance.getSince(0).size());
+    }
+
+    /**
+     * Test that the buffer drops its oldest batches once over either limit,
+     * and refuses to resume from before what it still holds.
+     */
+    @Test
+    public void testBounded()
+    {
+        System.out.println("\r\nbounded");
+
+        BatchRetentionBuffer instance = new BatchRetentionBuffer(3, 1024);
+
+        for (long sequence = 1; sequence <= 5; sequence++)
+        {
+            instance.add(sequence, 1, new byte[10]);
+        }
+
+        assertEquals(3, instance.size());
+        assertEquals(30, instance.getRetainedBytes());
+        assertEquals(3, instance.getSince(2).size());
+        assertNull(instance.getSince(1));
+
+        instance = new BatchRetentionBuffer(100, 25);
+
+        for (long sequence = 1; sequence <= 5; sequence++)
+        {
+            instance.add(sequence, 1, new byte[10]);
+        }
+
+        assertEquals(2, instance.size());
+        assertNull(instance.getSince(2));
+    }
+
+    /**
+     * Test that only batches still held count as retained.
+     */
+    @Test
+    public void testIsRetained()
+    {
+        System.out.println("\r\nisRetained");
+
+        BatchRetentionBuffer buffer = new BatchRetentionBuffer(2, Long.MAX_VALUE);
+
+        assertFalse(buffer.isRetained(1));
+
+        for (long sequence = 1; sequence <= 3; sequence++)
+        {
+            buffer.add(sequence, 0, new byte[1]);
+        }
+
+        assertFalse(buffer.isRetained(1));
+        assertTrue(buffer.isRetained(2));
+        assertTrue(buffer.isRetained(3));
+        assertFalse(buffer.isRetained(4));
+    }
+
+    /**
+     * Test that a client claiming a sequence the server never issued cannot
+     * resume.
+     */
+    @Test
+    public void testFutureSequence()
+    {
+        System.out.println("\r\nfutureSequence");
+
+        BatchRetentionBuffer instance = new BatchRetentionBuffer();
+        instance.add(1, 1, new byte[1]);
+
+        assertNull(instance.getSince(2));
+    }
+
+    /**
+     * Test that batches must arrive in sequence order.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfOrder()
+    {
+        System.out.println("\r\noutOfOrder");
+
+        BatchRetentionBuffer instance = new BatchRetentionBuffer();
+        instance.add(2, 1, new byte[1]);
+        instance.add(1, 1, new byte[1]);
+    }
+}
@@ -0,0 +1,328 @@
+package livebeansserver;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import livebeanscommon.transport.WouldBlockException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientOutboxTest
+{
+
+    private ExecutorService senders;
+
+    @Before
+    public void setUp()
+    {
+        senders = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown()
+    {
+        senders.shutdownNow();
+    }
+
+    /**
+     * Test that messages reach the client in the order they were queued.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testOrder() throws Exception
+    {
+        System.out.println("\r\norder");
+
+        RecordingClient client = new RecordingClient("Client");
+        ClientOutbox outbox = new ClientOutbox(new ClientRecord(0, client, senders), senders, 1000);
+
+        for (long sequence = 1; sequence <= 500; sequence++)
+        {
+            long batchID = sequence;
+            assertTrue(outbox.offer(recipient -> recipient.acknowledgeBatch(batchID, batchID)));
+        }
+
+        for (long sequence = 1; sequence <= 500; sequence++)
+        {
+            long[] acknowledgement = client.acknowledgements.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(acknowledgement);
+            assertEquals(sequence, acknowledgement[0]);
+        }
+    }
+
+    /**
+     * Test that a client that stops taking messages fills its own queue, is
+     * reported as stalled, and does not hold up another client.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSlowClient() throws Exception
+    {
+        System.out.println("\r\nslowClient");
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+
+        RecordingClient slowClient = new RecordingClient("Slow")
+        {
+            @Override
+            public void acknowledgeBatch(long batchID, long sequence) throws RemoteException
+            {
+                blocked.countDown();
+
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        RecordingClient fastClient = new RecordingClient("Fast");
+
+        ClientOutbox slowOutbox = new ClientOutbox(new ClientRecord(0, slowClient, senders), senders, 4);
+        ClientOutbox fastOutbox = new ClientOutbox(new ClientRecord(1, fastClient, senders), senders, 4);
+
+        assertTrue(slowOutbox.offer(client -> client.acknowledgeBatch(1, 1)));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(slowOutbox.offer(client -> client.acknowledgeBatch(2, 2)));
+        }
+
+        assertFalse(slowOutbox.offer(client -> client.acknowledgeBatch(3, 3)));
+        assertEquals(4, slowOutbox.getDepth());
+        assertEquals(4, slowOutbox.getMaxDepth());
+
+        assertTrue(fastOutbox.offer(client -> client.acknowledgeBatch(1, 1)));
+        assertNotNull(fastClient.acknowledgements.poll(5, TimeUnit.SECONDS));
+
+        Thread.sleep(20);
+
+        assertTrue(slowOutbox.isStalled(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(10)));
+        assertFalse(slowOutbox.isStalled(System.nanoTime(), TimeUnit.SECONDS.toNanos(10)));
+        assertFalse(fastOutbox.isStalled(System.nanoTime(), 0));
+
+        slowOutbox.close();
+        release.countDown();
+
+        assertEquals(0, slowOutbox.getDepth());
+        assertFalse(slowOutbox.offer(client -> client.acknowledgeBatch(4, 4)));
+    }
+
+    /**
+     * Test that a message the client's connection refuses stays at the head
+     * of the queue, counts towards its depth and the send's time, and is
+     * sent with the rest once the connection can take it.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testWouldBlock() throws Exception
+    {
+        System.out.println("\r\nwouldBlock");
+
+        CompletableFuture<Void> writable = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+        RecordingClient client = new RecordingClient("Client")
+        {
+            @Override
+            public void acknowledgeBatch(long batchID, long sequence) throws RemoteException
+            {
+                attempts.incrementAndGet();
+
+                if (!writable.isDone())
+                {
+                    throw new WouldBlockException("Test", writable);
+                }
+
+                super.acknowledgeBatch(batchID, sequence);
+            }
+        };
+        ClientRecord record = new ClientRecord(0, client, senders);
+        ClientOutbox outbox = new ClientOutbox(record, senders, 10);
+
+        assertTrue(outbox.offer(recipient -> recipient.acknowledgeBatch(1, 1)));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (attempts.get() == 0 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        for (long batchID = 2; batchID <= 3; batchID++)
+        {
+            long id = batchID;
+            assertTrue(outbox.offer(recipient -> recipient.acknowledgeBatch(id, id)));
+        }
+
+        Thread.sleep(20);
+
+        // Later messages wait rather than each trying the connection again
+        assertEquals(1, attempts.get());
+        assertEquals(3, outbox.getDepth());
+        assertTrue(outbox.isStalled(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(10)));
+        assertEquals(0, record.getDeliveryFailures());
+
+        writable.complete(null);
+
+        for (long batchID = 1; batchID <= 3; batchID++)
+        {
+            long[] acknowledgement = client.acknowledgements.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(acknowledgement);
+            assertEquals(batchID, acknowledgement[0]);
+        }
+
+        // The last send finishes just after the client has the message
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (outbox.isStalled(System.nanoTime(), 0) && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertFalse(outbox.isStalled(System.nanoTime(), 0));
+        assertEquals(0, outbox.getDepth());
+    }
+
+    /**
+     * Test that a copy still being read waits at the head of the queue, with
+     * the messages behind it, without counting as a stall, and is sent first
+     * once it has been read.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testNotReady() throws Exception
+    {
+        System.out.println("\r\nnotReady");
+
+        CompletableFuture<String> text = new CompletableFuture<>();
+        RecordingClient client = new RecordingClient("Client");
+        ClientOutbox outbox = new ClientOutbox(new ClientRecord(0, client, senders), senders, 10);
+
+        assertTrue(outbox.offer(new DocumentResync(4, text, 2, 9, 0)));
+        assertTrue(outbox.offer(recipient -> recipient.acknowledgeBatch(1, 10)));
+
+        Thread.sleep(50);
+
+        assertEquals(0, client.resyncs.size());
+        assertEquals(0, client.acknowledgements.size());
+        assertEquals(2, outbox.getDepth());
+        assertFalse(outbox.isStalled(System.nanoTime(), 0));
+
+        text.complete("abc");
+
+        assertEquals("4:2:9:0:abc", client.resyncs.poll(5, TimeUnit.SECONDS));
+        assertNotNull(client.acknowledgements.poll(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a failed send is counted and does not stop later messages.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testFailedSend() throws Exception
+    {
+        System.out.println("\r\nfailedSend");
+
+        RecordingClient client = new RecordingClient("Client");
+        ClientRecord record = new ClientRecord(0, client, senders);
+        ClientOutbox outbox = new ClientOutbox(record, senders, 10);
+
+        assertTrue(outbox.offer(recipient ->
+        {
+            throw new RemoteException("Test");
+        }));
+        assertTrue(outbox.offer(recipient -> recipient.acknowledgeBatch(2, 2)));
+
+        assertNotNull(client.acknowledgements.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, record.getDeliveryFailures());
+    }
+
+    /**
+     * Test that batches can be taken back out of the queue, leaving the
+     * other messages in order.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testTake() throws Exception
+    {
+        System.out.println("\r\ntake");
+
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingClient client = new RecordingClient("Client");
+        ClientRecord record = new ClientRecord(0, client, senders);
+        ClientOutbox outbox = new ClientOutbox(record, senders, 16);
+        BroadcastBuffer broadcast = new BroadcastBuffer();
+
+        // Holds the sender so everything after it waits
+        assertTrue(outbox.offer(recipient ->
+        {
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        for (long sequence = 1; sequence <= 3; sequence++)
+        {
+            broadcast.add(new byte[0], sequence, Collections.singletonList(record));
+            assertTrue(outbox.offer(broadcast.drain().get(record).get(0)));
+
+            long batchID = sequence;
+            assertTrue(outbox.offer(recipient -> recipient.acknowledgeBatch(batchID, batchID)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (outbox.getDepth() > 6 && System.nanoTime() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        List<BatchDelivery> taken = outbox.take(BatchDelivery.class);
+
+        assertEquals(3, taken.size());
+        assertEquals(1, taken.get(0).getFirstSequence());
+        assertEquals(3, taken.get(2).getFirstSequence());
+        assertEquals(3, outbox.getDepth());
+
+        release.countDown();
+
+        for (long batchID = 1; batchID <= 3; batchID++)
+        {
+            long[] acknowledgement = client.acknowledgements.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(acknowledgement);
+            assertEquals(batchID, acknowledgement[0]);
+        }
+
+        assertTrue(client.frames.isEmpty());
+    }
+}
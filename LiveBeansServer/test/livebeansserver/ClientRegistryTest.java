@@ -0,0 +1,378 @@
+package livebeansserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientRegistryTest
+{
+
+    private ClientRegistry instance;
+
+    @Before
+    public void setUp()
+    {
+        instance = new ClientRegistry();
+    }
+
+    /**
+     * Test of putIfAbsent, get and find.
+     */
+    @Test
+    public void testPutIfAbsent()
+    {
+        System.out.println("\r\nputIfAbsent");
+
+        RecordingClient first = new RecordingClient("First");
+        RecordingClient second = new RecordingClient("Second");
+
+        ClientRecord record = instance.putIfAbsent(3, first);
+
+        assertNotNull(record);
+        assertNull(instance.putIfAbsent(3, second));
+        assertEquals(record, instance.get(3));
+        assertEquals(record, instance.find(first));
+        assertNull(instance.find(second));
+        assertNull(instance.get(4));
+        assertNull(instance.get(-1));
+        assertEquals(1, instance.size());
+    }
+
+    /**
+     * Test that IDs beyond the initial table grow it, and that every record is
+     * iterated.
+     */
+    @Test
+    public void testGrowth()
+    {
+        System.out.println("\r\ngrowth");
+
+        for (int clientID = 0; clientID <= 1000; clientID += 10)
+        {
+            instance.put(clientID, new RecordingClient("Client"));
+        }
+
+        int count = 0;
+
+        for (ClientRecord record : instance)
+        {
+            assertEquals(0, record.getClientID() % 10);
+            count++;
+        }
+
+        assertEquals(101, count);
+        assertEquals(101, instance.size());
+        assertNotNull(instance.get(1000));
+    }
+
+    /**
+     * Test that removing a record leaves a newer registration under the same
+     * ID alone.
+     */
+    @Test
+    public void testRemoveRecord()
+    {
+        System.out.println("\r\nremoveRecord");
+
+        ClientRecord stale = instance.put(5, new RecordingClient("Old"));
+        ClientRecord current = instance.put(5, new RecordingClient("New"));
+
+        assertFalse(instance.remove(stale));
+        assertEquals(current, instance.get(5));
+        assertTrue(instance.remove(current));
+        assertTrue(instance.isEmpty());
+    }
+
+    /**
+     * Test that new clients get the lowest unused IDs, and that released IDs
+     * are reused oldest first.
+     */
+    @Test
+    public void testAdd()
+    {
+        System.out.println("\r\nadd");
+
+        for (int clientID = 0; clientID < 5; clientID++)
+        {
+            assertEquals(clientID, instance.add(new RecordingClient("Client")).getClientID());
+        }
+
+        instance.remove(3);
+        instance.remove(1);
+
+        assertEquals(3, instance.add(new RecordingClient("Client")).getClientID());
+        assertEquals(1, instance.add(new RecordingClient("Client")).getClientID());
+        assertEquals(5, instance.add(new RecordingClient("Client")).getClientID());
+    }
+
+    /**
+     * Test that an ID taken directly, as a resuming client does, is never
+     * handed out again while in use, and that the IDs skipped over still are.
+     */
+    @Test
+    public void testAddAfterPut()
+    {
+        System.out.println("\r\naddAfterPut");
+
+        instance.put(2, new RecordingClient("Resumed"));
+
+        Set<Integer> clientIDs = new HashSet<>();
+
+        for (int i = 0; i < 3; i++)
+        {
+            clientIDs.add(instance.add(new RecordingClient("Client")).getClientID());
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 3)), clientIDs);
+    }
+
+    /**
+     * Test that registering fails, rather than spinning, once every ID is in
+     * use.
+     */
+    @Test
+    public void testAddWhenFull()
+    {
+        System.out.println("\r\naddWhenFull");
+
+        for (int clientID = 0; clientID <= ClientRegistry.MAX_CLIENT_ID; clientID++)
+        {
+            assertNotNull(instance.add(new RecordingClient("Client")));
+        }
+
+        assertNull(instance.add(new RecordingClient("Client")));
+
+        instance.remove(42);
+
+        assertEquals(42, instance.add(new RecordingClient("Client")).getClientID());
+    }
+
+    /**
+     * Test that IDs outside the allowed range are refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testIDOutOfRange()
+    {
+        System.out.println("\r\nIDOutOfRange");
+
+        instance.put(ClientRegistry.MAX_CLIENT_ID + 1, new RecordingClient("Client"));
+    }
+
+    /**
+     * Test of subscribing and unsubscribing, and that a removed client's
+     * subscriptions go with it.
+     */
+    @Test
+    public void testSubscriptions()
+    {
+        System.out.println("\r\nsubscriptions");
+
+        ClientRecord first = instance.put(1, new RecordingClient("First"));
+        instance.put(2, new RecordingClient("Second"));
+
+        assertTrue(instance.subscribe(1, 4));
+        assertTrue(instance.subscribe(1, 70));
+        assertTrue(instance.subscribe(2, 4));
+        assertFalse(instance.subscribe(3, 4));
+
+        assertTrue(first.isSubscribed(4));
+        assertTrue(first.isSubscribed(70));
+        assertFalse(first.isSubscribed(5));
+        assertEquals(bits(1, 2), subscribers(4));
+
+        first.getSubscriptions().clear();
+        instance.unsubscribe(1, 4);
+
+        assertFalse(first.isSubscribed(4));
+        assertTrue(first.isSubscribed(70));
+        assertEquals(bits(2), subscribers(4));
+
+        instance.remove(1);
+
+        assertEquals(bits(), subscribers(70));
+
+        // The ID's next client starts with no subscriptions
+        instance.put(2, new RecordingClient("Replacement"));
+
+        assertEquals(bits(), subscribers(4));
+    }
+
+    private BitSet subscribers(int documentID)
+    {
+        BitSet clientIDs = new BitSet();
+        instance.collectSubscribers(documentID, clientIDs);
+
+        return clientIDs;
+    }
+
+    private static BitSet bits(int... clientIDs)
+    {
+        BitSet bits = new BitSet();
+
+        for (int clientID : clientIDs)
+        {
+            bits.set(clientID);
+        }
+
+        return bits;
+    }
+
+    /**
+     * Test that outboxes are drained in either delivery mode, falling back to
+     * platform threads where the JVM has no virtual threads.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testDeliveryMode() throws Exception
+    {
+        System.out.println("\r\ndeliveryMode");
+
+        BlockingQueue<String> senderNames = new LinkedBlockingQueue<>();
+        ClientRecord record = instance.add(new RecordingClient("Client"));
+
+        assertEquals(DeliveryMode.PLATFORM_THREADS, instance.getDeliveryMode());
+
+        record.getOutbox().offer(client -> senderNames.add(Thread.currentThread().getName()));
+
+        assertTrue(senderNames.poll(5, TimeUnit.SECONDS).startsWith("LiveBeans sender "));
+
+        DeliveryMode expected = VirtualThreads.isSupported() ? DeliveryMode.VIRTUAL_THREADS : DeliveryMode.PLATFORM_THREADS;
+
+        assertEquals(expected, instance.setDeliveryMode(DeliveryMode.VIRTUAL_THREADS));
+        assertEquals(expected, instance.getDeliveryMode());
+
+        record.getOutbox().offer(client -> senderNames.add(Thread.currentThread().getName()));
+
+        assertTrue(senderNames.poll(5, TimeUnit.SECONDS).startsWith("LiveBeans sender "));
+
+        assertEquals(DeliveryMode.PLATFORM_THREADS, instance.setDeliveryMode(DeliveryMode.PLATFORM_THREADS));
+    }
+
+    /**
+     * Stress test: many threads registering, heartbeating, looking up and
+     * unregistering clients while another keeps iterating, as ClientChecker
+     * does. Every operation must leave the registry consistent.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testConcurrentStress() throws Exception
+    {
+        System.out.println("\r\nconcurrentStress");
+
+        final int threadCount = 16;
+        final int operations = 20000;
+        final int idRange = 512;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<?>> workers = new ArrayList<>();
+
+        try
+        {
+            Future<?> iterator = executor.submit(() ->
+            {
+                start.await();
+
+                while (running.get())
+                {
+                    for (ClientRecord record : instance)
+                    {
+                        assertNotNull(record.getClient());
+                        assertTrue(record.getClientID() >= 0 && record.getClientID() < idRange);
+                    }
+                }
+
+                return null;
+            });
+
+            for (int t = 0; t < threadCount; t++)
+            {
+                workers.add(executor.submit(() ->
+                {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    start.await();
+
+                    for (int i = 0; i < operations; i++)
+                    {
+                        int clientID = random.nextInt(idRange);
+
+                        switch (random.nextInt(4))
+                        {
+                            case 0:
+                                ClientRecord added = instance.putIfAbsent(clientID, new RecordingClient("Stress"));
+
+                                if (added != null)
+                                {
+                                    assertEquals(clientID, added.getClientID());
+                                }
+                                break;
+                            case 1:
+                                instance.heartbeat(clientID);
+                                break;
+                            case 2:
+                                ClientRecord found = instance.get(clientID);
+
+                                if (found != null)
+                                {
+                                    assertEquals(clientID, found.getClientID());
+                                    found.recordBatchDelivered(10);
+                                }
+                                break;
+                            default:
+                                instance.remove(clientID);
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<?> worker : workers)
+            {
+                worker.get(60, TimeUnit.SECONDS);
+            }
+
+            running.set(false);
+            iterator.get(60, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            running.set(false);
+            executor.shutdownNow();
+        }
+
+        int count = 0;
+
+        for (ClientRecord record : instance)
+        {
+            assertEquals(record, instance.get(record.getClientID()));
+            count++;
+        }
+
+        assertEquals(count, instance.size());
+    }
+}
@@ -0,0 +1,280 @@
+package livebeansserver;
+
+import java.util.Random;
+import livebeanscommon.Rope;
+
+/**
+ * Times the edit patterns seen in practice against a 10 MB document held
+ * as a StringBuilder, the server's PieceTable and a Rope. Not a test; run
+ * the main method from the test classpath.
+ */
+public class DocumentEditBenchmark
+{
+
+    private static final int DOCUMENT_LENGTH = 10 * 1024 * 1024;
+    private static final int EDIT_COUNT = 2000;
+    private static final int PASTE_LENGTH = 64 * 1024;
+
+    /**
+     * One way of holding a document's text
+     */
+    private interface Buffer
+    {
+
+        int length();
+
+        void insert(int offset, String text);
+
+        void remove(int offset, int length);
+
+        String getText(int offset, int length);
+
+        /**
+         * Keeps a copy of the document as it is now
+         */
+        Object snapshot();
+    }
+
+    private static final class StringBuilderBuffer implements Buffer
+    {
+
+        private final StringBuilder _text;
+
+        StringBuilderBuffer(String text)
+        {
+            _text = new StringBuilder(text);
+        }
+
+        @Override
+        public int length()
+        {
+            return _text.length();
+        }
+
+        @Override
+        public void insert(int offset, String text)
+        {
+            _text.insert(offset, text);
+        }
+
+        @Override
+        public void remove(int offset, int length)
+        {
+            _text.delete(offset, offset + length);
+        }
+
+        @Override
+        public String getText(int offset, int length)
+        {
+            return _text.substring(offset, offset + length);
+        }
+
+        @Override
+        public Object snapshot()
+        {
+            return _text.toString();
+        }
+    }
+
+    private static final class PieceTableBuffer implements Buffer
+    {
+
+        private final PieceTable _text;
+
+        PieceTableBuffer(String text)
+        {
+            _text = new PieceTable(text);
+        }
+
+        @Override
+        public int length()
+        {
+            return _text.length();
+        }
+
+        @Override
+        public void insert(int offset, String text)
+        {
+            _text.insert(offset, text);
+        }
+
+        @Override
+        public void remove(int offset, int length)
+        {
+            _text.remove(offset, length);
+        }
+
+        @Override
+        public String getText(int offset, int length)
+        {
+            return _text.getText(offset, length);
+        }
+
+        @Override
+        public Object snapshot()
+        {
+            return _text.getText();
+        }
+    }
+
+    private static final class RopeBuffer implements Buffer
+    {
+
+        private Rope _text;
+
+        RopeBuffer(String text)
+        {
+            _text = Rope.of(text);
+        }
+
+        @Override
+        public int length()
+        {
+            return _text.length();
+        }
+
+        @Override
+        public void insert(int offset, String text)
+        {
+            _text = _text.insert(offset, text);
+        }
+
+        @Override
+        public void remove(int offset, int length)
+        {
+            _text = _text.remove(offset, length);
+        }
+
+        @Override
+        public String getText(int offset, int length)
+        {
+            return _text.subSequence(offset, offset + length).toString();
+        }
+
+        @Override
+        public Object snapshot()
+        {
+            return _text;
+        }
+    }
+
+    /**
+     * A run of edits against a buffer
+     */
+    private interface Pattern
+    {
+
+        void run(Buffer buffer, Random random, String paste);
+    }
+
+    public static void main(String[] args)
+    {
+        StringBuilder source = new StringBuilder(DOCUMENT_LENGTH);
+
+        while (source.length() < DOCUMENT_LENGTH)
+        {
+            source.append("    public static int value").append(source.length()).append(" = 0;\n");
+        }
+
+        String document = source.substring(0, DOCUMENT_LENGTH);
+        String paste = document.substring(0, PASTE_LENGTH);
+
+        String[] names =
+        {
+            "Type at end", "Type in middle", "Random inserts", "Backspace", "Random removes", "Paste 64 KB", "Read 1 KB", "Snapshot"
+        };
+        Pattern[] patterns =
+        {
+            (buffer, random, text) ->
+            {
+                for (int i = 0; i < EDIT_COUNT; i++)
+                {
+                    buffer.insert(buffer.length(), "x");
+                }
+            },
+            (buffer, random, text) ->
+            {
+                int cursor = buffer.length() / 2;
+
+                for (int i = 0; i < EDIT_COUNT; i++)
+                {
+                    buffer.insert(cursor++, "x");
+                }
+            },
+            (buffer, random, text) ->
+            {
+                for (int i = 0; i < EDIT_COUNT; i++)
+                {
+                    buffer.insert(random.nextInt(buffer.length() + 1), "x");
+                }
+            },
+            (buffer, random, text) ->
+            {
+                int cursor = buffer.length() / 2;
+
+                for (int i = 0; i < EDIT_COUNT; i++)
+                {
+                    buffer.remove(--cursor, 1);
+                }
+            },
+            (buffer, random, text) ->
+            {
+                for (int i = 0; i < EDIT_COUNT; i++)
+                {
+                    buffer.remove(random.nextInt(buffer.length() - 10), 10);
+                }
+            },
+            (buffer, random, text) ->
+            {
+                for (int i = 0; i < EDIT_COUNT / 10; i++)
+                {
+                    buffer.insert(random.nextInt(buffer.length() + 1), text);
+                }
+            },
+            (buffer, random, text) ->
+            {
+                for (int i = 0; i < EDIT_COUNT; i++)
+                {
+                    buffer.getText(random.nextInt(buffer.length() - 1024), 1024);
+                }
+            },
+            (buffer, random, text) ->
+            {
+                for (int i = 0; i < 10; i++)
+                {
+                    buffer.insert(random.nextInt(buffer.length() + 1), "x");
+                    buffer.snapshot();
+                }
+            }
+        };
+
+        System.out.println(String.format("%d character document, %d edits per pattern (%d pastes, 10 snapshots)", DOCUMENT_LENGTH, EDIT_COUNT, EDIT_COUNT / 10));
+        System.out.println(String.format("%-16s %14s %14s %14s", "Pattern", "StringBuilder", "PieceTable", "Rope"));
+
+        for (int p = 0; p < patterns.length; p++)
+        {
+            StringBuilder line = new StringBuilder(String.format("%-16s", names[p]));
+
+            for (int kind = 0; kind < 3; kind++)
+            {
+                long bestNanos = Long.MAX_VALUE;
+
+                // The first runs warm the JIT up
+                for (int run = 0; run < 3; run++)
+                {
+                    Buffer buffer = kind == 0 ? new StringBuilderBuffer(document)
+                                    : kind == 1 ? new PieceTableBuffer(document)
+                                      : new RopeBuffer(document);
+                    long start = System.nanoTime();
+
+                    patterns[p].run(buffer, new Random(run), paste);
+                    bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                }
+
+                line.append(String.format(" %11.2f ms", bestNanos / 1e6));
+            }
+
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package livebeansserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import livebeanscommon.LiveBeansCodeSegment;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DocumentShardsTest
+{
+
+    private DocumentShards shards;
+
+    @Before
+    public void setUp()
+    {
+        shards = new DocumentShards(4);
+    }
+
+    @After
+    public void tearDown()
+    {
+        shards.shutdown();
+    }
+
+    /**
+     * Test that documents are spread across the shards by ID.
+     */
+    @Test
+    public void testGetShard()
+    {
+        System.out.println("\r\ngetShard");
+
+        assertEquals(4, shards.getShardCount());
+
+        for (int documentID = 0; documentID < 16; documentID++)
+        {
+            assertEquals(documentID % 4, shards.getShard(documentID));
+        }
+
+        assertNotEquals(shards.getShard(0), shards.getShard(1));
+    }
+
+    /**
+     * Test that batches for one document are applied in sequence order, and
+     * that a batch which changes several documents is applied to each.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testApply() throws Exception
+    {
+        System.out.println("\r\napply");
+
+        List<CompletableFuture<List<LiveBeansCodeSegment>>> applied = new ArrayList<>();
+
+        for (long sequence = 1; sequence <= 1000; sequence++)
+        {
+            applied.add(shards.apply(Arrays.asList(
+                    LiveBeansCodeSegment.insertion(0, 5, 0, "a"),
+                    LiveBeansCodeSegment.insertion(0, 6, 0, "b"),
+                    LiveBeansCodeSegment.insertion(0, 6, 1, "c")), sequence));
+        }
+
+        CompletableFuture.allOf(applied.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+        for (CompletableFuture<List<LiveBeansCodeSegment>> batch : applied)
+        {
+            assertTrue(batch.isDone() && !batch.isCompletedExceptionally());
+        }
+
+        assertEquals(1000L, (long) shards.getRevision(5).get(5, TimeUnit.SECONDS));
+        assertEquals(2000L, (long) shards.getRevision(6).get(5, TimeUnit.SECONDS));
+        assertEquals(0L, (long) shards.getRevision(7).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a shared copy of a document becomes its text, that batches
+     * are applied to it, and that later copies are checked against it.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testShare() throws Exception
+    {
+        System.out.println("\r\nshare");
+
+        assertNull(shards.getText(2).get(5, TimeUnit.SECONDS));
+        assertTrue(shards.share(2, "class A {}", 0).get(5, TimeUnit.SECONDS));
+        assertTrue(shards.share(2, "class A {}", 1).get(5, TimeUnit.SECONDS));
+        assertFalse(shards.share(2, "class B {}", 2).get(5, TimeUnit.SECONDS));
+
+        shards.apply(Arrays.asList(
+                LiveBeansCodeSegment.removal(0, 2, 6, 1),
+                LiveBeansCodeSegment.insertion(0, 2, 6, "Main")), 1).get(5, TimeUnit.SECONDS);
+
+        assertEquals("class Main {}", shards.getText(2).get(5, TimeUnit.SECONDS));
+
+        // Once the document has changed, a copy could be from before or after
+        // any batch, so it is neither taken nor checked
+        assertTrue(shards.share(2, "class B {}", 2).get(5, TimeUnit.SECONDS));
+        assertEquals("class Main {}", shards.getText(2).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a batch is transformed against the batches sequenced after
+     * its base, and that one based on a forgotten batch is applied as
+     * written.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testTransform() throws Exception
+    {
+        System.out.println("\r\ntransform");
+
+        assertTrue(shards.share(3, "abc", 0).get(5, TimeUnit.SECONDS));
+
+        shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(1, 3, 0, "X")), 1, 0, 1).get(5, TimeUnit.SECONDS);
+
+        List<LiveBeansCodeSegment> unchanged = Arrays.asList(LiveBeansCodeSegment.insertion(2, 3, 4, "Y"));
+        assertTrue(unchanged == shards.apply(unchanged, 2, 1, 2).get(5, TimeUnit.SECONDS));
+
+        List<LiveBeansCodeSegment> transformed = shards.apply(Arrays.asList(
+                LiveBeansCodeSegment.insertion(3, 3, 3, "Z"),
+                LiveBeansCodeSegment.insertion(3, 4, 0, "other")), 3, 0, 3).get(5, TimeUnit.SECONDS);
+
+        assertEquals(5, transformed.get(0).getDocumentOffset());
+        assertEquals(0, transformed.get(1).getDocumentOffset());
+        assertEquals("XabcYZ", shards.getText(3).get(5, TimeUnit.SECONDS));
+
+        long sequence = 3;
+
+        while (shards.onShard(3, DocumentState::getForgottenSequence).get(5, TimeUnit.SECONDS) == 0)
+        {
+            shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(1, 3, 0, "")), ++sequence, sequence - 1, 1).get(5, TimeUnit.SECONDS);
+        }
+
+        List<LiveBeansCodeSegment> late = Arrays.asList(LiveBeansCodeSegment.removal(2, 3, 0, 1));
+        assertTrue(late == shards.apply(late, ++sequence, 0, 2).get(5, TimeUnit.SECONDS));
+        assertEquals("abcYZ", shards.getText(3).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a batch sent before its author heard back about the one
+     * before it is transformed against the other authors' batches as they
+     * follow that one, not against the author's own batch again.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPipelinedBatches() throws Exception
+    {
+        System.out.println("\r\npipelinedBatches");
+
+        assertTrue(shards.share(3, "abc", 0).get(5, TimeUnit.SECONDS));
+
+        shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(2, 3, 0, "YY")), 1, 0, 2).get(5, TimeUnit.SECONDS);
+
+        // Client 1 typed "X" then "Z" and sent each as it was typed, both
+        // before it had seen client 2's batch
+        shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(1, 3, 3, "X")), 2, 0, 1).get(5, TimeUnit.SECONDS);
+
+        List<LiveBeansCodeSegment> second = shards.apply(Arrays.asList(
+                LiveBeansCodeSegment.insertion(1, 3, 4, "Z"),
+                LiveBeansCodeSegment.removal(1, 3, 0, 1)), 3, 0, 1).get(5, TimeUnit.SECONDS);
+
+        assertEquals(6, second.get(0).getDocumentOffset());
+        assertEquals(2, second.get(1).getDocumentOffset());
+        assertEquals("YYbcXZ", shards.getText(3).get(5, TimeUnit.SECONDS));
+
+        // Once client 1 has seen client 2's batch, its next batch is
+        // applied as written
+        List<LiveBeansCodeSegment> caughtUp = Arrays.asList(LiveBeansCodeSegment.insertion(1, 3, 6, "!"));
+        assertTrue(caughtUp == shards.apply(caughtUp, 4, 3, 1).get(5, TimeUnit.SECONDS));
+        assertEquals("YYbcXZ!", shards.getText(3).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a batch which does not fit the text leaves the text unknown,
+     * while the document's revision still counts it.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testApplyDoesNotFit() throws Exception
+    {
+        System.out.println("\r\napplyDoesNotFit");
+
+        shards.share(3, "abc", 0).get(5, TimeUnit.SECONDS);
+        shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(0, 3, 10, "d")), 1).get(5, TimeUnit.SECONDS);
+
+        assertNull(shards.getText(3).get(5, TimeUnit.SECONDS));
+        assertEquals(1L, (long) shards.getRevision(3).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a batch given out of sequence order is refused.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testApplyOutOfOrder() throws Exception
+    {
+        System.out.println("\r\napplyOutOfOrder");
+
+        shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(0, 1, 0, "a")), 2).get(5, TimeUnit.SECONDS);
+
+        CompletableFuture<List<LiveBeansCodeSegment>> late = shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(0, 1, 0, "b")), 1);
+
+        try
+        {
+            late.get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        assertTrue(late.isCompletedExceptionally());
+        assertEquals(1L, (long) shards.getRevision(1).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a busy document does not hold up documents on other shards.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testShardsRunInParallel() throws Exception
+    {
+        System.out.println("\r\nshardsRunInParallel");
+
+        CountDownLatch release = new CountDownLatch(1);
+
+        // Holds document 0's shard until released
+        CompletableFuture<Object> blocked = shards.onShard(0, state ->
+        {
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            return null;
+        });
+        CompletableFuture<List<LiveBeansCodeSegment>> queued = shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(0, 0, 0, "a")), 1);
+
+        shards.apply(Arrays.asList(LiveBeansCodeSegment.insertion(0, 1, 0, "b")), 2).get(5, TimeUnit.SECONDS);
+        assertEquals(1L, (long) shards.getRevision(1).get(5, TimeUnit.SECONDS));
+
+        assertFalse(queued.isDone());
+
+        release.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(1L, (long) shards.getRevision(0).get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,250 @@
+package livebeansserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+
+public class IngestRingBufferTest
+{
+
+    private IngestRingBuffer ring;
+
+    @After
+    public void tearDown()
+    {
+        if (ring != null)
+        {
+            ring.close();
+        }
+    }
+
+    /**
+     * Test that batches are handled in the order they were published, over
+     * many laps of the ring.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testOrder() throws Exception
+    {
+        System.out.println("\r\norder");
+
+        BlockingQueue<long[]> handled = new LinkedBlockingQueue<>();
+
+        ring = new IngestRingBuffer(8, (segmentFrame, authorID, batchID, baseSequence) -> handled.add(new long[]
+        {
+            authorID, batchID, segmentFrame.length
+        }));
+
+        for (long batchID = 1; batchID <= 1000; batchID++)
+        {
+            ring.publish(new byte[(int) batchID % 7], 3, batchID, 0);
+        }
+
+        for (long batchID = 1; batchID <= 1000; batchID++)
+        {
+            long[] batch = handled.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(batch);
+            assertEquals(3, batch[0]);
+            assertEquals(batchID, batch[1]);
+            assertEquals(batchID % 7, batch[2]);
+        }
+    }
+
+    /**
+     * Test that batches from many publishers are all handled, each
+     * publisher's in the order it published them.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testConcurrentPublishers() throws Exception
+    {
+        System.out.println("\r\nconcurrentPublishers");
+
+        int threadCount = 8;
+        int batchCount = 5000;
+        long[] lastBatchIDs = new long[threadCount];
+        CountDownLatch handled = new CountDownLatch(threadCount * batchCount);
+        List<String> errors = new ArrayList<>();
+
+        // Only touched on the ingest thread
+        ring = new IngestRingBuffer(64, (segmentFrame, authorID, batchID, baseSequence) ->
+        {
+            if (batchID != lastBatchIDs[authorID] + 1)
+            {
+                errors.add(String.format("Client %d batch %d after %d", authorID, batchID, lastBatchIDs[authorID]));
+            }
+
+            lastBatchIDs[authorID] = batchID;
+            handled.countDown();
+        });
+
+        ExecutorService publishers = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+
+        try
+        {
+            for (int i = 0; i < threadCount; i++)
+            {
+                int authorID = i;
+
+                results.add(publishers.submit(() ->
+                {
+                    start.await();
+
+                    for (long batchID = 1; batchID <= batchCount; batchID++)
+                    {
+                        ring.publish(new byte[0], authorID, batchID, 0);
+                    }
+
+                    return null;
+                }));
+            }
+
+            start.countDown();
+
+            for (Future<?> result : results)
+            {
+                result.get(30, TimeUnit.SECONDS);
+            }
+
+            assertTrue(handled.await(30, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            publishers.shutdownNow();
+        }
+
+        synchronized (errors)
+        {
+            assertTrue(errors.toString(), errors.isEmpty());
+        }
+    }
+
+    /**
+     * Test that publishers wait while the ring is full, and carry on once the
+     * ingest thread frees a slot.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testPublishWaitsWhenFull() throws Exception
+    {
+        System.out.println("\r\npublishWaitsWhenFull");
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch handled = new CountDownLatch(6);
+
+        ring = new IngestRingBuffer(4, (segmentFrame, authorID, batchID, baseSequence) ->
+        {
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            handled.countDown();
+        });
+
+        ExecutorService publisher = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            // The first batch is taken and held by the ingest thread, the
+            // next four fill the ring and the sixth has to wait
+            Future<?> published = publisher.submit(() ->
+            {
+                for (long batchID = 1; batchID <= 6; batchID++)
+                {
+                    ring.publish(new byte[0], 0, batchID, 0);
+                }
+            });
+
+            long deadline = System.currentTimeMillis() + 5000;
+
+            while (ring.getDepth() < 5 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+
+            Thread.sleep(100);
+            assertFalse(published.isDone());
+
+            release.countDown();
+            published.get(5, TimeUnit.SECONDS);
+            assertTrue(handled.await(5, TimeUnit.SECONDS));
+            assertEquals(0, ring.getDepth());
+        }
+        finally
+        {
+            publisher.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a batch the handler fails on does not stop the ones after it.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testHandlerFailure() throws Exception
+    {
+        System.out.println("\r\nhandlerFailure");
+
+        BlockingQueue<Long> handled = new LinkedBlockingQueue<>();
+
+        ring = new IngestRingBuffer(IngestRingBuffer.DEFAULT_CAPACITY, (segmentFrame, authorID, batchID, baseSequence) ->
+        {
+            if (batchID == 1)
+            {
+                throw new IllegalStateException("Test");
+            }
+
+            handled.add(batchID);
+        });
+
+        ring.publish(new byte[0], 0, 1, 0);
+        ring.publish(new byte[0], 0, 2, 0);
+
+        Long batchID = handled.poll(5, TimeUnit.SECONDS);
+
+        if (batchID == null)
+        {
+            fail("The batch after the failure was not handled");
+        }
+
+        assertEquals(2L, (long) batchID);
+    }
+
+    /**
+     * Test that the capacity must be a power of two.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacity()
+    {
+        System.out.println("\r\ncapacity");
+
+        ring = new IngestRingBuffer(6, (segmentFrame, authorID, batchID, baseSequence) ->
+        {
+        });
+    }
+}
@@ -3,17 +3,33 @@ package livebeansserver;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import livebeanscommon.BatchStamp;
+import livebeanscommon.CodeSegmentCodec;
+import livebeanscommon.CrdtCodec;
+import livebeanscommon.CrdtOperation;
 import livebeanscommon.ILiveBeansClient;
-import livebeanscommon.ILiveBeansCodeSegment;
+import livebeanscommon.ILiveBeansServer;
 import livebeanscommon.IServerWatcher;
+import livebeanscommon.LiveBeansCodeSegment;
+import livebeanscommon.SequenceCrdt;
 import livebeansserver.util.ServerConstants.ServerStatus;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
@@ -43,6 +59,8 @@ public class LiveBeansServerTest
     @After
     public void tearDown()
     {
+        // Every test starts on a server with no clients, documents or batches
+        instance.closeServer();
     }
 
     private void rehostServer()
@@ -95,19 +113,19 @@ public class LiveBeansServerTest
     }
 
     /**
-     * Test of getClientHeartbeats method, of class LiveBeansServer.
+     * Test of getClientRegistry method, of class LiveBeansServer.
      *
      * @throws java.rmi.RemoteException
      */
     @Test
-    public void testGetClientHeartbeats() throws RemoteException
+    public void testGetClientRegistry() throws RemoteException
     {
-        System.out.println("\r\ngetClientHeartbeats");
+        System.out.println("\r\ngetClientRegistry");
 
         rehostServer();
 
-        // Return initial heartbeats
-        HashMap<Integer, Long> result = instance.getClientHeartbeats();
+        // Return initial registry
+        ClientRegistry result = instance.getClientRegistry();
 
         assertTrue(result.isEmpty());
 
@@ -118,23 +136,17 @@ public class LiveBeansServerTest
 
         instance.registerClient(mockClient);
 
-        // Grab the generated ID and make the mocked client return that ID
-        HashMap<Integer, ILiveBeansClient> connectedClients;
-        connectedClients = instance.getConectedClients();
-
-        HashMap.Entry<Integer, ILiveBeansClient> entry;
-        entry = connectedClients.entrySet().iterator().next();
-
-        Mockito.when(mockClient.getID()).thenReturn(entry.getKey());
-
-        // Send a heartbeat using that ID
-        instance.sendHeartbeat(mockClient.getID());
+        ClientRecord record = result.find(mockClient);
 
-        // Get new list of heartbeats
-        result = instance.getClientHeartbeats();
+        assertNotNull(record);
+        assertEquals(1, result.size());
 
-        assertFalse(result.isEmpty());
+        // Send a heartbeat using the generated ID
+        long registeredAt = record.getLastHeartbeat();
+        instance.sendHeartbeat(record.getClientID());
 
+        assertTrue(record.getLastHeartbeat() >= registeredAt);
+        assertEquals(record, result.get(record.getClientID()));
     }
 
     /**
@@ -197,7 +209,7 @@ public class LiveBeansServerTest
         System.out.println("\r\nunRegisterClient");
 
         // Test against a non-existent client
-        Integer clientID = 0;
+        Integer clientID = ClientRegistry.MAX_CLIENT_ID;
         boolean result = instance.unRegisterClient(clientID);
         assertFalse(result);
 
@@ -209,9 +221,8 @@ public class LiveBeansServerTest
         instance.registerClient(mockClient);
 
         // Grab the generated ID and make the mocked client return that ID
-        HashMap<Integer, ILiveBeansClient> connectedClients = instance.getConectedClients();
-        HashMap.Entry<Integer, ILiveBeansClient> entry = connectedClients.entrySet().iterator().next();
-        Mockito.when(mockClient.getID()).thenReturn(entry.getKey());
+        clientID = instance.getClientRegistry().find(mockClient).getClientID();
+        Mockito.when(mockClient.getID()).thenReturn(clientID);
 
         // Test against a client that should exist
         result = instance.unRegisterClient(mockClient.getID());
@@ -236,13 +247,81 @@ public class LiveBeansServerTest
         instance.registerClient(mockClient);
 
         // Grab the generated ID and make the mocked client return that ID
-        HashMap<Integer, ILiveBeansClient> connectedClients = instance.getConectedClients();
-        HashMap.Entry<Integer, ILiveBeansClient> entry = connectedClients.entrySet().iterator().next();
-        Mockito.when(mockClient.getID()).thenReturn(entry.getKey());
+        int clientID = instance.getClientRegistry().find(mockClient).getClientID();
+        Mockito.when(mockClient.getID()).thenReturn(clientID);
 
         instance.sendHeartbeat(mockClient.getID());
     }
 
+    /**
+     * Test that a client is removed soon after its heartbeat timeout passes,
+     * while one that keeps sending heartbeats stays.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testHeartbeatTimeout() throws Exception
+    {
+        System.out.println("\r\nheartbeatTimeout");
+
+        long previousTimeout = instance.getHeartbeatTimeout();
+
+        RecordingClient silentClient = new RecordingClient("Silent");
+        RecordingClient liveClient = new RecordingClient("Live");
+
+        try
+        {
+            instance.setHeartbeatTimeout(600);
+            instance.registerClient(silentClient);
+            instance.registerClient(liveClient);
+
+            long start = System.nanoTime();
+            long removedAfter = 0;
+
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500))
+            {
+                instance.sendHeartbeat(liveClient.getID());
+
+                if (removedAfter == 0 && instance.getClientRegistry().find(silentClient) == null)
+                {
+                    removedAfter = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+
+                Thread.sleep(50);
+            }
+
+            assertTrue(removedAfter >= 500);
+            assertTrue(removedAfter < 600 + 4 * ClientChecker.TICK_MILLIS);
+            assertNotNull(instance.getClientRegistry().find(liveClient));
+        }
+        finally
+        {
+            instance.setHeartbeatTimeout(previousTimeout);
+            instance.unRegisterClient(silentClient);
+            instance.unRegisterClient(liveClient);
+        }
+    }
+
+    /**
+     * Test of registerDocument method, of class LiveBeansServer.
+     *
+     * @throws java.rmi.RemoteException
+     */
+    @Test
+    public void testRegisterDocument() throws RemoteException
+    {
+        System.out.println("\r\nregisterDocument");
+
+        rehostServer();
+
+        int firstID = instance.registerDocument("LiveBeans", "Main.java");
+        int secondID = instance.registerDocument(null, "Main.java");
+
+        assertTrue(firstID != secondID);
+        assertEquals(firstID, instance.registerDocument("LiveBeans", "Main.java"));
+        assertEquals(secondID, instance.registerDocument(null, "Main.java"));
+    }
+
     /**
      * Test of distributeCodeSegments method, of class LiveBeansServer.
      *
@@ -252,8 +331,8 @@ public class LiveBeansServerTest
     public void testDistributeCodeSegments() throws RemoteException
     {
         System.out.println("\r\ndistributeCodeSegments");
-        List<ILiveBeansCodeSegment> codeSegments = new ArrayList<>();
-        codeSegments.add(Mockito.mock(ILiveBeansCodeSegment.class));
+        List<LiveBeansCodeSegment> codeSegments = new ArrayList<>();
+        codeSegments.add(LiveBeansCodeSegment.insertion(0, 0, 0, "Test"));
 
         // Mock a client to register
         ILiveBeansClient mockClient = Mockito.mock(ILiveBeansClient.class);
@@ -263,11 +342,1060 @@ public class LiveBeansServerTest
         instance.registerClient(mockClient);
 
         // Grab the generated ID and make the mocked client return that ID
-        HashMap<Integer, ILiveBeansClient> connectedClients = instance.getConectedClients();
-        HashMap.Entry<Integer, ILiveBeansClient> entry = connectedClients.entrySet().iterator().next();
-        Mockito.when(mockClient.getID()).thenReturn(entry.getKey());
+        int clientID = instance.getClientRegistry().find(mockClient).getClientID();
+        Mockito.when(mockClient.getID()).thenReturn(clientID);
+
+        instance.distributeCodeSegments(CodeSegmentCodec.encode(codeSegments), mockClient.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+    }
+
+    /**
+     * Test that distributeCodeSegments acknowledges a batch to its author with
+     * the next sequence number, and rejects a malformed one.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testDistributeAcknowledgesAuthor() throws Exception
+    {
+        System.out.println("\r\ndistributeAcknowledgesAuthor");
+
+        RecordingClient author = new RecordingClient("Author");
+        instance.registerClient(author);
+
+        long previousSequence = instance.getLastSequence();
+        byte[] segmentFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), 0, 0, "Test")));
+
+        instance.distributeCodeSegments(segmentFrame, author.getID(), 42, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+        long[] acknowledgement = author.acknowledgements.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(acknowledgement);
+        assertEquals(42, acknowledgement[0]);
+        assertEquals(previousSequence + 1, acknowledgement[1]);
+        assertTrue(author.frames.isEmpty());
+
+        instance.distributeCodeSegments(new byte[]
+        {
+            0
+        }, author.getID(), 43, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+        acknowledgement = author.acknowledgements.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(acknowledgement);
+        assertEquals(43, acknowledgement[0]);
+        assertEquals(ILiveBeansClient.REJECTED_SEQUENCE, acknowledgement[1]);
+        assertEquals(previousSequence + 1, instance.getLastSequence());
+
+        instance.unRegisterClient(author);
+    }
+
+    /**
+     * Test that batches are numbered in the order they were sent when they
+     * go through the ingest ring buffer rather than inline.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testRingBufferIngest() throws Exception
+    {
+        System.out.println("\r\nringBufferIngest");
+
+        assertEquals(IngestMode.INLINE, instance.getIngestMode());
+
+        instance.setIngestMode(IngestMode.RING_BUFFER);
+        rehostServer();
+
+        RecordingClient author = new RecordingClient("RingAuthor");
+        instance.registerClient(author);
+
+        try
+        {
+            long previousSequence = instance.getLastSequence();
+
+            for (long batchID = 1; batchID <= 3; batchID++)
+            {
+                instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), 0, 0, "Ring"))), author.getID(), batchID, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+            }
+
+            for (long batchID = 1; batchID <= 3; batchID++)
+            {
+                assertArrayEquals(new long[]
+                {
+                    batchID, previousSequence + batchID
+                }, author(author));
+            }
+        }
+        finally
+        {
+            instance.unRegisterClient(author);
+            instance.setIngestMode(IngestMode.INLINE);
+        }
+    }
+
+    /**
+     * Test that a batch is only sent to the clients subscribed to the
+     * documents it changes.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSubscribedRouting() throws Exception
+    {
+        System.out.println("\r\nsubscribedRouting");
+
+        RecordingClient author = new RecordingClient("Author");
+        RecordingClient mainReader = new RecordingClient("MainReader");
+        RecordingClient otherReader = new RecordingClient("OtherReader");
+
+        instance.registerClient(author);
+        instance.registerClient(mainReader);
+        instance.registerClient(otherReader);
+
+        try
+        {
+            int mainID = instance.registerDocument("Routing", "Main.java");
+            int otherID = instance.registerDocument("Routing", "Other.java");
+
+            instance.subscribeDocument(author.getID(), mainID);
+            instance.subscribeDocument(mainReader.getID(), mainID);
+            instance.subscribeDocument(otherReader.getID(), otherID);
+
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), mainID, 0, "Main"))), author.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            assertNotNull(author.acknowledgements.poll(5, TimeUnit.SECONDS));
+            assertEquals("Main", mainReader.segments.poll(5, TimeUnit.SECONDS).get(0).getCodeText());
+
+            // A batch changing both documents reaches both readers once
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Arrays.asList(LiveBeansCodeSegment.insertion(author.getID(), mainID, 0, "Both"),
+                                                                                  LiveBeansCodeSegment.insertion(author.getID(), otherID, 0, "Both"))), author.getID(), 2, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            assertNotNull(author.acknowledgements.poll(5, TimeUnit.SECONDS));
+            assertEquals(2, mainReader.segments.poll(5, TimeUnit.SECONDS).size());
+            assertEquals(2, otherReader.segments.poll(5, TimeUnit.SECONDS).size());
+
+            instance.unsubscribeDocument(mainReader.getID(), mainID);
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), mainID, 0, "Nobody"))), author.getID(), 3, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            assertNotNull(author.acknowledgements.poll(5, TimeUnit.SECONDS));
+
+            // Delivered in the same tick as the batch before, or a later one
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), otherID, 0, "Other"))), author.getID(), 4, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            assertEquals("Other", otherReader.segments.poll(5, TimeUnit.SECONDS).get(0).getCodeText());
+            Thread.sleep(100);
+
+            assertTrue(mainReader.segments.isEmpty());
+            assertTrue(otherReader.segments.isEmpty());
+            assertTrue(author.frames.isEmpty());
+        }
+        finally
+        {
+            instance.unRegisterClient(author);
+            instance.unRegisterClient(mainReader);
+            instance.unRegisterClient(otherReader);
+        }
+    }
+
+    /**
+     * Test that every batch is stamped with the sequence number of each
+     * document it changes, counting the author's own batches too.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testDocumentSequences() throws Exception
+    {
+        System.out.println("\r\ndocumentSequences");
+
+        RecordingClient author = new RecordingClient("Author");
+        RecordingClient reader = new RecordingClient("Reader");
+
+        instance.registerClient(author);
+        instance.registerClient(reader);
+
+        try
+        {
+            int mainID = instance.registerDocument("Stamps", "Main.java");
+            int otherID = instance.registerDocument("Stamps", "Other.java");
+
+            instance.subscribeDocument(author.getID(), mainID);
+            instance.subscribeDocument(author.getID(), otherID);
+            instance.subscribeDocument(reader.getID(), mainID);
+            instance.subscribeDocument(reader.getID(), otherID);
+
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), mainID, 0, "Main"))), author.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            long firstSequence = author.acknowledgements.poll(5, TimeUnit.SECONDS)[1];
+            BatchStamp stamp = reader.stamps.poll(5, TimeUnit.SECONDS);
+
+            assertEquals(1, stamp.getDocumentCount());
+            assertEquals(mainID, stamp.getDocumentID(0));
+            assertEquals(1, stamp.getDocumentSequence(0));
+            assertEquals("Main", CodeSegmentCodec.decode(stamp.getFrame()).get(0).getCodeText());
+
+            // The reader's batch moves the main document on without the other
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(reader.getID(), mainID, 0, "Reader"))), reader.getID(), 1, firstSequence);
+
+            assertNotNull(reader.acknowledgements.poll(5, TimeUnit.SECONDS));
+            assertEquals(2, author.stamps.poll(5, TimeUnit.SECONDS).getDocumentSequence(0));
+
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Arrays.asList(LiveBeansCodeSegment.insertion(author.getID(), otherID, 0, "Both"),
+                                                                                  LiveBeansCodeSegment.insertion(author.getID(), mainID, 0, "Both"))), author.getID(), 2, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            stamp = reader.stamps.poll(5, TimeUnit.SECONDS);
+
+            assertEquals(2, stamp.getDocumentCount());
+            assertEquals(otherID, stamp.getDocumentID(0));
+            assertEquals(1, stamp.getDocumentSequence(0));
+            assertEquals(mainID, stamp.getDocumentID(1));
+            assertEquals(3, stamp.getDocumentSequence(1));
+            assertTrue(author.stamps.isEmpty());
+        }
+        finally
+        {
+            instance.unRegisterClient(author);
+            instance.unRegisterClient(reader);
+        }
+    }
+
+    /**
+     * Test that batches from several authors within one broadcast window
+     * reach each recipient in one call, in sequence order, leaving out the
+     * recipient's own.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testBroadcastWindow() throws Exception
+    {
+        System.out.println("\r\nbroadcastWindow");
+
+        long previousWindow = instance.getBroadcastWindow();
+
+        RecordingClient firstAuthor = new RecordingClient("FirstAuthor");
+        RecordingClient secondAuthor = new RecordingClient("SecondAuthor");
+        RecordingClient reader = new RecordingClient("Reader");
+
+        instance.registerClient(firstAuthor);
+        instance.registerClient(secondAuthor);
+        instance.registerClient(reader);
+
+        try
+        {
+            instance.setBroadcastWindow(300);
+
+            int documentID = instance.registerDocument("Broadcast", "Main.java");
+
+            instance.subscribeDocument(firstAuthor.getID(), documentID);
+            instance.subscribeDocument(secondAuthor.getID(), documentID);
+            instance.subscribeDocument(reader.getID(), documentID);
+
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(firstAuthor.getID(), documentID, 0, "A"))), firstAuthor.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(secondAuthor.getID(), documentID, 0, "B"))), secondAuthor.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(firstAuthor.getID(), documentID, 1, "C"))), firstAuthor.getID(), 2, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            long firstSequence = author(firstAuthor)[1];
+            long secondSequence = author(secondAuthor)[1];
+            long thirdSequence = author(firstAuthor)[1];
+
+            assertArrayEquals(new long[]
+            {
+                firstSequence, secondSequence, thirdSequence
+            }, reader.deliveries.poll(5, TimeUnit.SECONDS));
+            // The second author's acknowledgement waited between the batches
+            // sequenced either side of its own
+            assertArrayEquals(new long[]
+            {
+                firstSequence
+            }, secondAuthor.deliveries.poll(5, TimeUnit.SECONDS));
+            assertArrayEquals(new long[]
+            {
+                thirdSequence
+            }, secondAuthor.deliveries.poll(5, TimeUnit.SECONDS));
+            assertArrayEquals(new long[]
+            {
+                secondSequence
+            }, firstAuthor.deliveries.poll(5, TimeUnit.SECONDS));
+            assertEquals("A", reader.segments.poll().get(0).getCodeText());
+            assertEquals("B", reader.segments.poll().get(0).getCodeText());
+            assertEquals("C", reader.segments.poll().get(0).getCodeText());
+        }
+        finally
+        {
+            instance.setBroadcastWindow(previousWindow);
+            instance.unRegisterClient(firstAuthor);
+            instance.unRegisterClient(secondAuthor);
+            instance.unRegisterClient(reader);
+        }
+    }
+
+    /**
+     * Test that accepted batches are applied to their documents, on the
+     * documents' shards, before they are acknowledged, including to the text
+     * of a document a client has shared.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testDocumentShards() throws Exception
+    {
+        System.out.println("\r\ndocumentShards");
+
+        RecordingClient author = new RecordingClient("ShardAuthor");
+
+        instance.registerClient(author);
+
+        try
+        {
+            int firstDocumentID = instance.registerDocument("Shards", "First.java");
+            int secondDocumentID = instance.registerDocument("Shards", "Second.java");
+            DocumentShards shards = instance.getDocumentShards();
+
+            instance.submitDocumentText(author.getID(), secondDocumentID, "x");
+            long firstRevision = shards.getRevision(firstDocumentID).get(5, TimeUnit.SECONDS);
+            long secondRevision = shards.getRevision(secondDocumentID).get(5, TimeUnit.SECONDS);
+
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Arrays.asList(
+                    LiveBeansCodeSegment.insertion(author.getID(), firstDocumentID, 0, "A"),
+                    LiveBeansCodeSegment.insertion(author.getID(), secondDocumentID, 0, "B"),
+                    LiveBeansCodeSegment.insertion(author.getID(), secondDocumentID, 1, "C"))), author.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            author(author);
+
+            assertEquals(firstRevision + 1, (long) shards.getRevision(firstDocumentID).get(5, TimeUnit.SECONDS));
+            assertNull(shards.getText(firstDocumentID).get(5, TimeUnit.SECONDS));
+            assertEquals("BCx", shards.getText(secondDocumentID).get(5, TimeUnit.SECONDS));
+            assertEquals(secondRevision + 2, (long) shards.getRevision(secondDocumentID).get(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            instance.unRegisterClient(author);
+        }
+    }
+
+    /**
+     * Test that closing the server forgets the session's batches and
+     * documents, so a document ID handed out again after a restart takes a
+     * new client's text and nothing old can be resumed.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testCloseServerResetsSession() throws Exception
+    {
+        System.out.println("\r\ncloseServerResetsSession");
+
+        RecordingClient author = new RecordingClient("OldSession");
+
+        instance.registerClient(author);
+
+        int documentID = instance.registerDocument("Restart", "Main.java");
+
+        instance.submitDocumentText(author.getID(), documentID, "old");
+        instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), documentID, 0, "X"))), author.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+        long oldSequence = author(author)[1];
+
+        rehostServer();
+
+        RecordingClient newAuthor = new RecordingClient("NewSession");
+
+        instance.registerClient(newAuthor);
+
+        try
+        {
+            assertEquals(0, instance.getLastSequence());
+            assertEquals(documentID, instance.registerDocument("Restart", "Other.java"));
+
+            instance.submitDocumentText(newAuthor.getID(), documentID, "new");
+
+            assertEquals("new", instance.getDocumentShards().getText(documentID).get(5, TimeUnit.SECONDS));
+            assertEquals(ILiveBeansClient.REJECTED_SEQUENCE, instance.resumeSession(author, author.getID(), oldSequence));
+
+            // The author's batch IDs from before the restart are not held
+            // against it
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(newAuthor.getID(), documentID, 3, "Y"))), newAuthor.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            assertArrayEquals(new long[]
+            {
+                1, 1
+            }, author(newAuthor));
+            assertEquals("newY", instance.getDocumentShards().getText(documentID).get(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            instance.unRegisterClient(newAuthor);
+        }
+    }
+
+    private static long[] author(RecordingClient author) throws InterruptedException
+    {
+        long[] acknowledgement = author.acknowledgements.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(acknowledgement);
+
+        return acknowledgement;
+    }
+
+    /**
+     * Test that batches two authors wrote against the same text are
+     * transformed so every copy of the document ends up the same.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testConcurrentEdits() throws Exception
+    {
+        System.out.println("\r\nconcurrentEdits");
+
+        RecordingClient firstAuthor = new RecordingClient("FirstEditor");
+        RecordingClient secondAuthor = new RecordingClient("SecondEditor");
+
+        instance.registerClient(firstAuthor);
+        instance.registerClient(secondAuthor);
+
+        try
+        {
+            int documentID = instance.registerDocument("Concurrent", "Main.java");
+            DocumentShards shards = instance.getDocumentShards();
+
+            instance.subscribeDocument(firstAuthor.getID(), documentID);
+            instance.subscribeDocument(secondAuthor.getID(), documentID);
+            instance.submitDocumentText(firstAuthor.getID(), documentID, "abc");
+
+            long baseSequence = instance.getLastSequence();
+
+            // Both write against "abc", neither having seen the other's edit
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(firstAuthor.getID(), documentID, 0, "X"))), firstAuthor.getID(), 1, baseSequence);
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(secondAuthor.getID(), documentID, 3, "Y"))), secondAuthor.getID(), 1, baseSequence);
+
+            author(firstAuthor);
+            baseSequence = author(secondAuthor)[1];
+
+            assertEquals(4, received(firstAuthor).get(0).getDocumentOffset());
+            assertEquals(0, received(secondAuthor).get(0).getDocumentOffset());
+            assertEquals("XabcY", shards.getText(documentID).get(5, TimeUnit.SECONDS));
+
+            // Text inserted inside a range removed at the same time survives
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.removal(firstAuthor.getID(), documentID, 1, 2))), firstAuthor.getID(), 2, baseSequence);
+            instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(secondAuthor.getID(), documentID, 2, "Z"))), secondAuthor.getID(), 2, baseSequence);
+
+            author(firstAuthor);
+            author(secondAuthor);
+
+            // The removal was sequenced first, so only the insertion moves
+            assertEquals(1, received(firstAuthor).get(0).getDocumentOffset());
+            assertEquals(2, received(secondAuthor).get(0).getCodeLength());
+            assertEquals("XZcY", shards.getText(documentID).get(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            instance.unRegisterClient(firstAuthor);
+            instance.unRegisterClient(secondAuthor);
+        }
+    }
+
+    /**
+     * Test that batches of CRDT operations are relayed untouched and kept in
+     * the server's replica, and that removals are only collected once every
+     * client has acknowledged a version past them.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testCrdtEdits() throws Exception
+    {
+        System.out.println("\r\ncrdtEdits");
+
+        RecordingClient firstAuthor = new RecordingClient("FirstReplica");
+        RecordingClient secondAuthor = new RecordingClient("SecondReplica");
+
+        instance.registerClient(firstAuthor);
+        instance.registerClient(secondAuthor);
+
+        try
+        {
+            int documentID = instance.registerDocument("Crdt", "Main.java");
+            DocumentShards shards = instance.getDocumentShards();
+            SequenceCrdt first = SequenceCrdt.of(documentID, "abc");
+            SequenceCrdt second = SequenceCrdt.of(documentID, "abc");
+
+            instance.subscribeDocument(firstAuthor.getID(), documentID);
+            instance.subscribeDocument(secondAuthor.getID(), documentID);
+            instance.submitDocumentText(firstAuthor.getID(), documentID, "abc");
+
+            long baseSequence = instance.getLastSequence();
+            byte[] firstFrame = CrdtCodec.encode(Collections.singletonList(first.insert(firstAuthor.getID(), 0, "X")));
+            byte[] secondFrame = CrdtCodec.encode(Collections.singletonList(second.insert(secondAuthor.getID(), 3, "Y")));
+
+            instance.distributeCodeSegments(firstFrame, firstAuthor.getID(), 1, baseSequence);
+            instance.distributeCodeSegments(secondFrame, secondAuthor.getID(), 1, baseSequence);
+
+            long firstSequence = author(firstAuthor)[1];
+            long secondSequence = author(secondAuthor)[1];
+
+            assertArrayEquals(secondFrame, firstAuthor.frames.poll(5, TimeUnit.SECONDS));
+            assertArrayEquals(firstFrame, secondAuthor.frames.poll(5, TimeUnit.SECONDS));
+
+            first.integrate(CrdtCodec.decode(secondFrame).get(0), secondSequence);
+            second.integrate(CrdtCodec.decode(firstFrame).get(0), firstSequence);
+
+            assertEquals("XabcY", first.getText());
+            assertEquals("XabcY", second.getText());
+            assertEquals("XabcY", shards.getText(documentID).get(5, TimeUnit.SECONDS));
+
+            CrdtOperation removal = first.remove(firstAuthor.getID(), 1, 3);
+
+            instance.distributeCodeSegments(CrdtCodec.encode(Collections.singletonList(removal)), firstAuthor.getID(), 2, secondSequence);
+
+            long removalSequence = author(firstAuthor)[1];
+
+            first.acknowledge(removal, removalSequence);
+            second.integrate(CrdtCodec.decode(secondAuthor.frames.poll(5, TimeUnit.SECONDS)).get(0), removalSequence);
+
+            assertEquals("XY", second.getText());
+            assertEquals("XY", shards.getText(documentID).get(5, TimeUnit.SECONDS));
+
+            // Clients other tests left connected would hold collection back
+            for (ClientRecord record : instance.getClientRegistry())
+            {
+                record.acknowledgeVersion(Long.MAX_VALUE);
+            }
+
+            // Nothing is collected until every client is past the removal
+            instance.acknowledgeVersion(firstAuthor.getID(), 0);
 
-        instance.distributeCodeSegments(codeSegments, mockClient.getID());
+            assertTrue(instance.collectGarbage().get(5, TimeUnit.SECONDS) < removalSequence);
+
+            instance.acknowledgeVersion(firstAuthor.getID(), removalSequence);
+            instance.acknowledgeVersion(secondAuthor.getID(), 0);
+
+            assertTrue(instance.collectGarbage().get(5, TimeUnit.SECONDS) < removalSequence);
+
+            instance.acknowledgeVersion(secondAuthor.getID(), removalSequence);
+
+            assertEquals(removalSequence, (long) instance.collectGarbage().get(5, TimeUnit.SECONDS));
+            assertEquals(removalSequence, (long) firstAuthor.garbageCollections.poll(5, TimeUnit.SECONDS));
+            assertEquals(removalSequence, (long) secondAuthor.garbageCollections.poll(5, TimeUnit.SECONDS));
+            assertEquals(0, (int) shards.onShard(documentID, state -> state.getReplica().getTombstoneLength()).get(5, TimeUnit.SECONDS));
+            assertEquals(3, first.collectGarbage(removalSequence));
+            assertEquals(3, second.collectGarbage(removalSequence));
+        }
+        finally
+        {
+            instance.unRegisterClient(firstAuthor);
+            instance.unRegisterClient(secondAuthor);
+        }
+    }
+
+    private static List<LiveBeansCodeSegment> received(RecordingClient recipient) throws InterruptedException
+    {
+        List<LiveBeansCodeSegment> codeSegments = recipient.segments.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(codeSegments);
+
+        return codeSegments;
+    }
+
+    /**
+     * Test that a client that is slow to take batches does not delay delivery
+     * to the others.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSlowClientIsolated() throws Exception
+    {
+        System.out.println("\r\nslowClientIsolated");
+
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        RecordingClient slowClient = new RecordingClient("Slow")
+        {
+            @Override
+            public void updateLocalCode(byte[] segmentFrame, long sequence) throws RemoteException
+            {
+                sending.countDown();
+
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.updateLocalCode(segmentFrame, sequence);
+            }
+        };
+        RecordingClient fastClient = new RecordingClient("Fast");
+        RecordingClient author = new RecordingClient("Author");
+
+        instance.registerClient(slowClient);
+        instance.registerClient(fastClient);
+        instance.registerClient(author);
+        instance.subscribeDocument(slowClient.getID(), 0);
+        instance.subscribeDocument(fastClient.getID(), 0);
+
+        // Each batch is sent on its own, so the slow client's queue fills
+        long previousWindow = instance.getBroadcastWindow();
+        instance.setBroadcastWindow(0);
+
+        try
+        {
+            for (int batchID = 1; batchID <= 3; batchID++)
+            {
+                byte[] segmentFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), 0, 0, "Test" + batchID)));
+                instance.distributeCodeSegments(segmentFrame, author.getID(), batchID, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+            }
+
+            for (int batchID = 1; batchID <= 3; batchID++)
+            {
+                assertNotNull(fastClient.frames.poll(5, TimeUnit.SECONDS));
+                assertNotNull(author.acknowledgements.poll(5, TimeUnit.SECONDS));
+            }
+
+            // The other two batches wait behind the first, which is still
+            // being sent
+            ClientOutbox slowOutbox = instance.getClientRegistry().find(slowClient).getOutbox();
+
+            assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+            assertTrue(slowClient.frames.isEmpty());
+            assertEquals(2, slowOutbox.getDepth());
+
+            release.countDown();
+
+            for (int batchID = 1; batchID <= 3; batchID++)
+            {
+                assertNotNull(slowClient.frames.poll(5, TimeUnit.SECONDS));
+            }
+        }
+        finally
+        {
+            instance.setBroadcastWindow(previousWindow);
+            release.countDown();
+            instance.unRegisterClient(slowClient);
+            instance.unRegisterClient(fastClient);
+            instance.unRegisterClient(author);
+        }
+    }
+
+    /**
+     * Test that a client which falls behind has its waiting batches replaced
+     * with one catch-up, and still gets every batch in order.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testResync() throws Exception
+    {
+        System.out.println("\r\nresync");
+
+        CountDownLatch release = new CountDownLatch(1);
+
+        RecordingClient slowClient = new RecordingClient("Lagging")
+        {
+            @Override
+            public void updateLocalCode(byte[] segmentFrame, long sequence) throws RemoteException
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.updateLocalCode(segmentFrame, sequence);
+            }
+        };
+        RecordingClient fastClient = new RecordingClient("Keeping");
+        RecordingClient author = new RecordingClient("Flooding");
+
+        instance.registerClient(slowClient);
+        instance.registerClient(fastClient);
+        instance.registerClient(author);
+        instance.subscribeDocument(slowClient.getID(), 0);
+        instance.subscribeDocument(fastClient.getID(), 0);
+
+        long previousWindow = instance.getBroadcastWindow();
+        int previousResyncDepth = instance.getResyncDepth();
+        instance.setBroadcastWindow(0);
+        instance.setResyncDepth(3);
+
+        try
+        {
+            ClientRecord slowRecord = instance.getClientRegistry().find(slowClient);
+            long[] sequences = new long[6];
+
+            for (int batchID = 1; batchID <= 6; batchID++)
+            {
+                byte[] segmentFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), 0, 0, "Test" + batchID)));
+                instance.distributeCodeSegments(segmentFrame, author.getID(), batchID, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+                sequences[batchID - 1] = author(author)[1];
+                assertNotNull(fastClient.frames.poll(5, TimeUnit.SECONDS));
+
+                // The first batch is held by the slow client's sender, so the
+                // rest queue up behind it
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+                while (batchID == 1 && slowRecord.getOutbox().getDepth() > 0 && System.nanoTime() < deadline)
+                {
+                    Thread.sleep(10);
+                }
+            }
+
+            // Batches 2 to 4 filled the queue, so they were taken back and
+            // sent with batch 5. The fast client can be sent batch 6 before
+            // the slow client's outbox is offered it.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+            while (slowRecord.getOutbox().getDepth() < 2 && System.nanoTime() < deadline)
+            {
+                Thread.sleep(10);
+            }
+
+            assertEquals(2, slowRecord.getOutbox().getDepth());
+            assertEquals(1, slowRecord.getResyncs());
+
+            release.countDown();
+
+            assertArrayEquals(new long[]
+            {
+                sequences[0]
+            }, slowClient.deliveries.poll(5, TimeUnit.SECONDS));
+            assertArrayEquals(Arrays.copyOfRange(sequences, 1, 5), slowClient.deliveries.poll(5, TimeUnit.SECONDS));
+            assertArrayEquals(new long[]
+            {
+                sequences[5]
+            }, slowClient.deliveries.poll(5, TimeUnit.SECONDS));
+            assertEquals(6, slowClient.frames.size());
+        }
+        finally
+        {
+            instance.setBroadcastWindow(previousWindow);
+            instance.setResyncDepth(previousResyncDepth);
+            release.countDown();
+            instance.unRegisterClient(slowClient);
+            instance.unRegisterClient(fastClient);
+            instance.unRegisterClient(author);
+        }
+    }
+
+    /**
+     * Test that a client which falls behind, on documents whose text the
+     * server knows, is sent a copy of each in place of its waiting batches,
+     * is not sent those batches afterwards, and has a batch it wrote before
+     * it had the copy applied to the copy.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testResyncCopies() throws Exception
+    {
+        System.out.println("\r\nresyncCopies");
+
+        CountDownLatch release = new CountDownLatch(1);
+
+        RecordingClient slowClient = new RecordingClient("Lagging")
+        {
+            @Override
+            public void updateLocalCode(byte[] segmentFrame, long sequence) throws RemoteException
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                super.updateLocalCode(segmentFrame, sequence);
+            }
+        };
+        RecordingClient author = new RecordingClient("Flooding");
+
+        instance.registerClient(slowClient);
+        instance.registerClient(author);
+        instance.subscribeDocument(slowClient.getID(), 0);
+        instance.submitDocumentText(author.getID(), 0, "abc");
+
+        long previousWindow = instance.getBroadcastWindow();
+        int previousResyncDepth = instance.getResyncDepth();
+        instance.setBroadcastWindow(0);
+        instance.setResyncDepth(3);
+
+        try
+        {
+            ClientRecord slowRecord = instance.getClientRegistry().find(slowClient);
+            long[] sequences = new long[6];
+
+            for (int batchID = 1; batchID <= 6; batchID++)
+            {
+                byte[] segmentFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), 0, 0, "T" + batchID)));
+                instance.distributeCodeSegments(segmentFrame, author.getID(), batchID, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+                sequences[batchID - 1] = author(author)[1];
+
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+                while (batchID == 1 && slowRecord.getOutbox().getDepth() > 0 && System.nanoTime() < deadline)
+                {
+                    Thread.sleep(10);
+                }
+
+                // Batch 5 fills the queue, so batches 2 to 5 are replaced
+                // with a copy before batch 6 is numbered
+                while (batchID == 5 && slowRecord.getResyncs() == 0 && System.nanoTime() < deadline)
+                {
+                    Thread.sleep(10);
+                }
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+            while (slowRecord.getOutbox().getDepth() < 2 && System.nanoTime() < deadline)
+            {
+                Thread.sleep(10);
+            }
+
+            assertEquals(1, slowRecord.getResyncs());
+            assertEquals(sequences[4], slowRecord.getResyncSequence());
+
+            // Written against "abc" before the client had the copy
+            byte[] lateFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(slowClient.getID(), 0, 1, "X")));
+            instance.distributeCodeSegments(lateFrame, slowClient.getID(), 1, 0);
+
+            release.countDown();
+
+            assertArrayEquals(new long[]
+            {
+                sequences[0]
+            }, slowClient.deliveries.poll(5, TimeUnit.SECONDS));
+            assertEquals("0:5:" + sequences[4] + ":0:T5T4T3T2T1abc", slowClient.resyncs.poll(5, TimeUnit.SECONDS));
+            assertArrayEquals(new long[]
+            {
+                sequences[5]
+            }, slowClient.deliveries.poll(5, TimeUnit.SECONDS));
+
+            long[] acknowledgement = slowClient.acknowledgements.poll(5, TimeUnit.SECONDS);
+
+            assertNotNull(acknowledgement);
+            assertNull(slowClient.deliveries.poll(100, TimeUnit.MILLISECONDS));
+
+            // Applied as written to the copy, after batch 6
+            assertEquals("T6TX5T4T3T2T1abc", instance.getDocumentShards().getText(0).get(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            instance.setBroadcastWindow(previousWindow);
+            instance.setResyncDepth(previousResyncDepth);
+            release.countDown();
+            instance.unRegisterClient(slowClient);
+            instance.unRegisterClient(author);
+        }
+    }
+
+    /**
+     * Test that an author is asked to slow down while the server is
+     * overloaded, and that its batches are taken in order once it sends them
+     * again.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testThrottle() throws Exception
+    {
+        System.out.println("\r\nthrottle");
+
+        RecordingClient author = new RecordingClient("Throttled");
+
+        instance.registerClient(author);
+
+        int previousMaxPendingBatches = instance.getMaxPendingBatches();
+
+        try
+        {
+            byte[] firstFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), 0, 0, "A")));
+            byte[] secondFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), 0, 1, "B")));
+
+            instance.setMaxPendingBatches(0);
+            instance.distributeCodeSegments(firstFrame, author.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            assertArrayEquals(new long[]
+            {
+                1, ILiveBeansClient.THROTTLED_SEQUENCE
+            }, author(author));
+
+            // Load has gone, but the second batch still has to wait for the
+            // first to be sent again
+            instance.setMaxPendingBatches(previousMaxPendingBatches);
+            instance.distributeCodeSegments(secondFrame, author.getID(), 2, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            assertArrayEquals(new long[]
+            {
+                2, ILiveBeansClient.THROTTLED_SEQUENCE
+            }, author(author));
+
+            instance.distributeCodeSegments(firstFrame, author.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+            instance.distributeCodeSegments(secondFrame, author.getID(), 2, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+            long[] first = author(author);
+            long[] second = author(author);
+
+            assertEquals(1, first[0]);
+            assertEquals(2, second[0]);
+            assertTrue(first[1] > 0);
+            assertEquals(first[1] + 1, second[1]);
+        }
+        finally
+        {
+            instance.setMaxPendingBatches(previousMaxPendingBatches);
+            instance.unRegisterClient(author);
+        }
+    }
+
+    /**
+     * Test that a client resuming its session is sent the batches it missed
+     * and takes over its old ID, and that one too far behind is refused.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testResumeSession() throws Exception
+    {
+        System.out.println("\r\nresumeSession");
+
+        RecordingClient original = new RecordingClient("Resumer");
+        instance.registerClient(original);
+
+        int clientID = original.getID();
+        instance.subscribeDocument(clientID, 0);
+
+        long lastSequence = instance.getLastSequence();
+        byte[] segmentFrame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(clientID + 1000, 0, 0, "Missed")));
+
+        instance.distributeCodeSegments(segmentFrame, clientID + 1000, 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+        assertNotNull(original.frames.poll(5, TimeUnit.SECONDS));
+
+        // Another client cannot take over the ID
+        assertEquals(ILiveBeansClient.REJECTED_SEQUENCE, instance.resumeSession(new RecordingClient("Impostor"), clientID, lastSequence));
+        assertEquals(original, instance.getClientRegistry().get(clientID).getClient());
+
+        RecordingClient resumed = new RecordingClient("Resumer");
+
+        assertEquals(0, instance.resumeSession(resumed, clientID, lastSequence));
+        assertEquals(Integer.valueOf(clientID), resumed.ids.poll(5, TimeUnit.SECONDS));
+        assertEquals(lastSequence + 1, (long) resumed.sequences.poll(5, TimeUnit.SECONDS));
+        assertEquals(resumed, instance.getClientRegistry().get(clientID).getClient());
+
+        assertEquals(ILiveBeansClient.REJECTED_SEQUENCE, instance.resumeSession(resumed, clientID, instance.getLastSequence() + 1));
+
+        // A client that timed out can still resume while its ID is free
+        instance.getClientRegistry().remove(clientID);
+
+        RecordingClient late = new RecordingClient("Resumer");
+
+        assertEquals(0, instance.resumeSession(late, clientID, instance.getLastSequence()));
+        assertEquals(Integer.valueOf(clientID), late.ids.poll(5, TimeUnit.SECONDS));
+        assertEquals(late, instance.getClientRegistry().get(clientID).getClient());
+
+        instance.unRegisterClient(late);
+    }
+
+    /**
+     * Test that far more clients than the old 31 IDs allowed can register,
+     * each with its own ID.
+     *
+     * @throws java.rmi.RemoteException
+     */
+    @Test
+    public void testRegisterManyClients() throws RemoteException
+    {
+        System.out.println("\r\nregisterManyClients");
+
+        List<RecordingClient> clients = new ArrayList<>();
+        Set<Integer> clientIDs = new HashSet<>();
+
+        try
+        {
+            for (int i = 0; i < 200; i++)
+            {
+                RecordingClient client = new RecordingClient("Client" + i);
+
+                assertTrue(instance.registerClient(client));
+                clients.add(client);
+                assertTrue(clientIDs.add(instance.getClientRegistry().find(client).getClientID()));
+            }
+        }
+        finally
+        {
+            for (RecordingClient client : clients)
+            {
+                instance.unRegisterClient(client);
+            }
+        }
+    }
+
+    /**
+     * Stress test: several threads registering, heartbeating and unregistering
+     * clients at once while ClientChecker runs. Every client must end up
+     * unregistered, with no exceptions along the way.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testConcurrentRegistration() throws Exception
+    {
+        System.out.println("\r\nconcurrentRegistration");
+
+        final int threadCount = 8;
+        final int rounds = 500;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> workers = new ArrayList<>();
+
+        try
+        {
+            for (int t = 0; t < threadCount; t++)
+            {
+                workers.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < rounds; i++)
+                    {
+                        RecordingClient client = new RecordingClient("Stress");
+
+                        assertTrue(instance.registerClient(client));
+
+                        ClientRecord record = instance.getClientRegistry().find(client);
+
+                        assertNotNull(record);
+                        instance.sendHeartbeat(record.getClientID());
+                        instance.getClientChecker().run();
+
+                        assertTrue(instance.unRegisterClient(client));
+                        assertNull(instance.getClientRegistry().find(client));
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> worker : workers)
+            {
+                worker.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
     }
 
     /**
@@ -293,4 +1421,57 @@ public class LiveBeansServerTest
         assertThat(result, instanceOf(ServerStatus.class));
         assertEquals(ServerStatus.OFFLINE, result);
     }
+
+    private static List<Thread> serverThreads()
+    {
+        List<Thread> serverThreads = new ArrayList<>();
+
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.isAlive() && (thread.getName().equals("LiveBeans delivery") || thread.getName().equals("LiveBeans scheduler")))
+            {
+                serverThreads.add(thread);
+            }
+        }
+
+        return serverThreads;
+    }
+
+    /**
+     * Test that the server's threads are daemons, so they cannot keep the
+     * JVM up, and that they are stopped when the server closes.
+     */
+    @Test
+    public void testCloseServerStopsThreads() throws Exception
+    {
+        System.out.println("\r\ncloseServerStopsThreads");
+
+        RecordingClient author = new RecordingClient("Threads");
+
+        instance.registerClient(author);
+
+        int documentID = instance.registerDocument("Threads", "Main.java");
+
+        instance.submitDocumentText(author.getID(), documentID, "abc");
+        instance.distributeCodeSegments(CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(author.getID(), documentID, 0, "X"))), author.getID(), 1, ILiveBeansServer.UNKNOWN_BASE_SEQUENCE);
+
+        assertNotNull(author.acknowledgements.poll(5, TimeUnit.SECONDS));
+        assertFalse(serverThreads().isEmpty());
+
+        for (Thread thread : serverThreads())
+        {
+            assertTrue(thread.isDaemon());
+        }
+
+        instance.closeServer();
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (!serverThreads().isEmpty() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertTrue(serverThreads().isEmpty());
+    }
 }
@@ -0,0 +1,159 @@
+package livebeansserver;
+
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class PieceTableTest
+{
+
+    /**
+     * Test of insert and remove at the ends and in the middle of the text.
+     */
+    @Test
+    public void testInsertAndRemove()
+    {
+        System.out.println("\r\ninsertAndRemove");
+
+        PieceTable table = new PieceTable("class Main {}");
+
+        table.insert(12, "\n    int x;\n");
+        assertEquals("class Main {\n    int x;\n}", table.getText());
+
+        table.insert(0, "public ");
+        table.remove(7, 6);
+        table.insert(7, "final class ");
+        assertEquals("public final class Main {\n    int x;\n}", table.getText());
+
+        table.remove(0, table.length());
+        assertEquals("", table.getText());
+        assertEquals(0, table.getPieceCount());
+    }
+
+    /**
+     * Test that typing one character after another extends one piece rather
+     * than adding a piece per character.
+     */
+    @Test
+    public void testTypingExtendsPiece()
+    {
+        System.out.println("\r\ntypingExtendsPiece");
+
+        PieceTable table = new PieceTable("ab");
+        String typed = "Hello, world";
+
+        for (int i = 0; i < typed.length(); i++)
+        {
+            table.insert(1 + i, typed.substring(i, i + 1));
+        }
+
+        assertEquals("aHello, worldb", table.getText());
+        assertEquals(3, table.getPieceCount());
+    }
+
+    /**
+     * Test of getText for ranges that cross pieces.
+     */
+    @Test
+    public void testGetTextRange()
+    {
+        System.out.println("\r\ngetTextRange");
+
+        PieceTable table = new PieceTable("0123456789");
+
+        table.insert(5, "abc");
+        table.remove(1, 2);
+
+        assertEquals("034abc56789", table.getText());
+        assertEquals("4abc5", table.getText(2, 5));
+        assertEquals("", table.getText(4, 0));
+    }
+
+    /**
+     * Test that ranges outside the text are refused and leave it unchanged.
+     */
+    @Test
+    public void testOutOfRange()
+    {
+        System.out.println("\r\noutOfRange");
+
+        PieceTable table = new PieceTable("abc");
+
+        for (int[] range : new int[][]
+        {
+            {
+                -1, 0
+            },
+            {
+                2, 2
+            },
+            {
+                4, 0
+            }
+        })
+        {
+            try
+            {
+                table.remove(range[0], range[1]);
+                fail("Removed " + range[0] + "+" + range[1]);
+            }
+            catch (IndexOutOfBoundsException ex)
+            {
+                assertEquals("abc", table.getText());
+            }
+        }
+
+        try
+        {
+            table.insert(4, "d");
+            fail("Inserted past the end");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            assertEquals("abc", table.getText());
+        }
+    }
+
+    /**
+     * Test random edits against the same edits made to a StringBuilder.
+     */
+    @Test
+    public void testRandomEdits()
+    {
+        System.out.println("\r\nrandomEdits");
+
+        Random random = new Random(42);
+        StringBuilder expected = new StringBuilder("The quick brown fox jumps over the lazy dog");
+        PieceTable table = new PieceTable(expected.toString());
+
+        for (int i = 0; i < 20000; i++)
+        {
+            if (expected.length() > 0 && random.nextInt(3) == 0)
+            {
+                int offset = random.nextInt(expected.length());
+                int length = random.nextInt(Math.min(4, expected.length() - offset) + 1);
+
+                expected.delete(offset, offset + length);
+                table.remove(offset, length);
+            }
+            else
+            {
+                int offset = random.nextInt(expected.length() + 1);
+                String text = Integer.toString(i, 36);
+
+                expected.insert(offset, text);
+                table.insert(offset, text);
+            }
+
+            assertEquals(expected.length(), table.length());
+        }
+
+        assertEquals(expected.toString(), table.getText());
+
+        int offset = expected.length() / 3;
+        assertEquals(expected.substring(offset, offset + 100), table.getText(offset, 100));
+        assertTrue(table.getPieceCount() > 1000);
+    }
+}
@@ -0,0 +1,146 @@
+package livebeansserver;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import livebeanscommon.BatchStamp;
+import livebeanscommon.CodeSegmentCodec;
+import livebeanscommon.CrdtCodec;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.LiveBeansCodeSegment;
+
+/**
+ * Client for tests that records the callbacks it receives
+ */
+public class RecordingClient implements ILiveBeansClient
+{
+
+    public final BlockingQueue<Integer> ids = new LinkedBlockingQueue<>();
+    public final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+    public final BlockingQueue<BatchStamp> stamps = new LinkedBlockingQueue<>();
+    public final BlockingQueue<Long> sequences = new LinkedBlockingQueue<>();
+    public final BlockingQueue<List<LiveBeansCodeSegment>> segments = new LinkedBlockingQueue<>();
+    public final BlockingQueue<long[]> acknowledgements = new LinkedBlockingQueue<>();
+    public final BlockingQueue<long[]> deliveries = new LinkedBlockingQueue<>();
+    public final BlockingQueue<Long> garbageCollections = new LinkedBlockingQueue<>();
+    // Each as documentID:documentSequence:sequence:lastBatchID:text
+    public final BlockingQueue<String> resyncs = new LinkedBlockingQueue<>();
+
+    private final String _name;
+    private volatile int _clientID;
+
+    public RecordingClient(String name)
+    {
+        _name = name;
+    }
+
+    @Override
+    public void setID(int newID) throws RemoteException
+    {
+        _clientID = newID;
+        ids.add(newID);
+    }
+
+    @Override
+    public void setName(String newName) throws RemoteException
+    {
+    }
+
+    @Override
+    public void connectToServer(String ipAddress) throws RemoteException
+    {
+    }
+
+    @Override
+    public void disconnectFromServer() throws RemoteException
+    {
+    }
+
+    @Override
+    public void updateLocalCode(byte[] segmentFrame, long sequence) throws RemoteException
+    {
+        apply(segmentFrame, sequence);
+        deliveries.add(new long[]
+        {
+            sequence
+        });
+    }
+
+    @Override
+    public void updateLocalCode(byte[][] segmentFrames, long[] sequences) throws RemoteException
+    {
+        for (int i = 0; i < segmentFrames.length; i++)
+        {
+            apply(segmentFrames[i], sequences[i]);
+        }
+
+        deliveries.add(sequences.clone());
+    }
+
+    private void apply(byte[] segmentFrame, long sequence)
+    {
+        if (BatchStamp.isStamped(segmentFrame))
+        {
+            BatchStamp stamp = BatchStamp.read(segmentFrame);
+
+            stamps.add(stamp);
+            segmentFrame = stamp.getFrame();
+        }
+
+        frames.add(segmentFrame);
+        sequences.add(sequence);
+        segments.add(CrdtCodec.isCrdtFrame(segmentFrame) ? Collections.emptyList() : CodeSegmentCodec.decode(segmentFrame));
+    }
+
+    @Override
+    public void resyncDocument(int documentID, String text, long documentSequence, long sequence, long lastBatchID) throws RemoteException
+    {
+        resyncs.add(documentID + ":" + documentSequence + ":" + sequence + ":" + lastBatchID + ":" + text);
+    }
+
+    @Override
+    public void acknowledgeBatch(long batchID, long sequence) throws RemoteException
+    {
+        acknowledgements.add(new long[]
+        {
+            batchID, sequence
+        });
+    }
+
+    @Override
+    public void collectGarbage(long sequence) throws RemoteException
+    {
+        garbageCollections.add(sequence);
+    }
+
+    @Override
+    public void addDocumentMapping(int documentID, String projectName, String documentName) throws RemoteException
+    {
+    }
+
+    @Override
+    public void updateRemoteCode() throws RemoteException
+    {
+    }
+
+    @Override
+    public int getID() throws RemoteException
+    {
+        return _clientID;
+    }
+
+    @Override
+    public String getName() throws RemoteException
+    {
+        return _name;
+    }
+
+    @Override
+    public ILiveBeansServer getServer() throws RemoteException
+    {
+        return null;
+    }
+}
@@ -0,0 +1,513 @@
+package livebeansserver.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import livebeanscommon.CodeSegmentCodec;
+import livebeanscommon.ILiveBeansClient;
+import livebeanscommon.ILiveBeansServer;
+import livebeanscommon.LiveBeansCodeSegment;
+import livebeanscommon.transport.BufferPool;
+import livebeanscommon.transport.NioClientTransport;
+import livebeanscommon.transport.UdsClientTransport;
+import livebeanscommon.transport.UnixSockets;
+import livebeanscommon.transport.WouldBlockException;
+import livebeansserver.RecordingClient;
+import org.junit.After;
+import org.junit.Assume;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Round trips calls between a NioClientTransport and a NioServerTransport
+ * over loopback.
+ */
+public class NioServerTransportTest
+{
+
+    private static final int PORT = 1510;
+    private static final long WAIT_SECONDS = 5;
+
+    private NioServerTransport serverTransport;
+    private NioClientTransport clientTransport;
+    private RecordingServer server;
+    private RecordingClient client;
+    private ILiveBeansServer remoteServer;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new RecordingServer();
+        client = new RecordingClient("Tester");
+
+        serverTransport = new NioServerTransport();
+        serverTransport.bind(server, PORT);
+
+        clientTransport = new NioClientTransport();
+        remoteServer = clientTransport.connect("127.0.0.1", PORT, client);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        clientTransport.close();
+        serverTransport.close();
+    }
+
+    /**
+     * Test of registering a client, including the server's setID callback.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testRegisterClient() throws Exception
+    {
+        System.out.println("\r\nregisterClient");
+
+        assertTrue(remoteServer.registerClient(client));
+        assertEquals("Tester", server.registeredNames.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(7), client.ids.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test of resumeSession, which returns a long to the caller.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testResumeSession() throws Exception
+    {
+        System.out.println("\r\nresumeSession");
+
+        assertEquals(1L << 40, remoteServer.resumeSession(client, 9, (1L << 40) - 1));
+        assertEquals(Integer.valueOf(9), client.ids.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a resumeSession call the server takes a while over does not
+     * hold up other messages on the selector thread.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testResumeSessionOffSelector() throws Exception
+    {
+        System.out.println("\r\nresumeSessionOffSelector");
+
+        server.resumeGate = new CountDownLatch(1);
+
+        CompletableFuture<Long> resumed = CompletableFuture.supplyAsync(() ->
+        {
+            try
+            {
+                return remoteServer.resumeSession(client, 9, 41);
+            }
+            catch (RemoteException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        });
+
+        remoteServer.subscribeDocument(7, 11);
+
+        assertArrayEquals(new int[]
+        {
+            7, 11, 1
+        }, server.subscriptions.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(resumed.isDone());
+
+        server.resumeGate.countDown();
+
+        assertEquals(Long.valueOf(42), resumed.get(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test of registerDocument, which returns a value to the caller.
+     *
+     * @throws java.rmi.RemoteException
+     */
+    @Test
+    public void testRegisterDocument() throws RemoteException
+    {
+        System.out.println("\r\nregisterDocument");
+
+        assertEquals(11, remoteServer.registerDocument("LiveBeans", "Main.java"));
+        assertEquals(12, remoteServer.registerDocument(null, "Other.java"));
+    }
+
+    /**
+     * Test of subscribeDocument and unsubscribeDocument, which arrive in the
+     * order they were sent.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSubscribeDocument() throws Exception
+    {
+        System.out.println("\r\nsubscribeDocument");
+
+        remoteServer.subscribeDocument(7, 11);
+        remoteServer.unsubscribeDocument(7, 11);
+
+        assertArrayEquals(new int[]
+        {
+            7, 11, 1
+        }, server.subscriptions.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertArrayEquals(new int[]
+        {
+            7, 11, 0
+        }, server.subscriptions.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test of submitDocumentText, including text outside ASCII.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSubmitDocumentText() throws Exception
+    {
+        System.out.println("\r\nsubmitDocumentText");
+
+        remoteServer.submitDocumentText(7, 11, "class Caf\u00e9 {}\n");
+
+        assertEquals("7:11:class Caf\u00e9 {}\n", server.documentTexts.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a segment frame reaches the server and is relayed back,
+     * including a frame larger than a pooled buffer.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testDistributeCodeSegments() throws Exception
+    {
+        System.out.println("\r\ndistributeCodeSegments");
+
+        assertTrue(remoteServer.registerClient(client));
+
+        StringBuilder largeInsert = new StringBuilder();
+
+        while (largeInsert.length() < 200 * 1024)
+        {
+            largeInsert.append("public static void main(String[] args) {}\n");
+        }
+
+        for (String code : new String[]
+        {
+            "a", largeInsert.toString()
+        })
+        {
+            byte[] frame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(7, 1, 0, code)));
+
+            remoteServer.distributeCodeSegments(frame, 7, 3, 11);
+
+            assertEquals(frame.length, server.frames.poll(WAIT_SECONDS, TimeUnit.SECONDS).length);
+            assertEquals(11L, (long) server.baseSequences.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+            assertArrayEquals(frame, client.frames.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(3, client.acknowledgements.poll(WAIT_SECONDS, TimeUnit.SECONDS)[0]);
+            assertEquals(server.lastSequence, (long) client.sequences.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+
+            List<LiveBeansCodeSegment> relayed = client.segments.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+
+            assertNotNull(relayed);
+            assertEquals(code, relayed.get(0).getCodeText());
+        }
+    }
+
+    /**
+     * Test of acknowledgeVersion, and of the collectGarbage callback it
+     * leads to.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testAcknowledgeVersion() throws Exception
+    {
+        System.out.println("\r\nacknowledgeVersion");
+
+        assertTrue(remoteServer.registerClient(client));
+
+        remoteServer.acknowledgeVersion(7, 1L << 40);
+
+        assertEquals("7:" + (1L << 40), server.versions.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1L << 40, (long) client.garbageCollections.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that relaying one frame to several connections builds the message
+     * once and hands out independent read-only views of it.
+     */
+    @Test
+    public void testRelayMessageIsShared()
+    {
+        System.out.println("\r\nrelayMessageIsShared");
+
+        byte[] frame = CodeSegmentCodec.encode(Collections.singletonList(LiveBeansCodeSegment.insertion(7, 1, 0, "shared")));
+
+        ByteBuffer first = serverTransport.getRelayMessage(frame, 5);
+        ByteBuffer second = serverTransport.getRelayMessage(frame, 5);
+
+        assertTrue(first.isReadOnly());
+        assertEquals(first, second);
+
+        first.position(first.limit());
+
+        assertEquals(Integer.BYTES + 1 + Long.BYTES + Integer.BYTES + frame.length, second.remaining());
+    }
+
+    /**
+     * Test that a connection refuses batches once too much is waiting to be
+     * written, takes the small replies regardless, and says it can take
+     * batches again once the client has read enough.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testBoundedWriteQueue() throws Exception
+    {
+        System.out.println("\r\nboundedWriteQueue");
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open())
+        {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+
+            try (SocketChannel peer = SocketChannel.open(listener.getLocalAddress());
+                    SocketChannel channel = listener.accept())
+            {
+                channel.configureBlocking(false);
+
+                // Never registered with the selector, so nothing is written
+                // until the test flushes it
+                NioConnection connection = new NioConnection(serverTransport, new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 4), channel);
+                byte[] frame = new byte[NioConnection.MAX_QUEUED_BYTES / 4];
+                WouldBlockException refused = null;
+                long sequence = 0;
+
+                while (refused == null && sequence < 8)
+                {
+                    try
+                    {
+                        connection.updateLocalCode(frame, ++sequence);
+                    }
+                    catch (WouldBlockException ex)
+                    {
+                        refused = ex;
+                    }
+                }
+
+                assertNotNull(refused);
+                assertTrue(connection.getQueuedBytes() <= NioConnection.MAX_QUEUED_BYTES);
+                assertFalse(refused.getWritable().isDone());
+
+                int queuedBytes = connection.getQueuedBytes();
+                connection.acknowledgeBatch(1, 1);
+                assertTrue(connection.getQueuedBytes() > queuedBytes);
+
+                ByteBuffer received = ByteBuffer.allocate(64 * 1024);
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+
+                while (!refused.getWritable().isDone() && System.nanoTime() < deadline)
+                {
+                    connection.flush();
+                    received.clear();
+                    peer.read(received);
+                }
+
+                assertTrue(refused.getWritable().isDone());
+                connection.updateLocalCode(frame, sequence);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Test that a same-host client connects through the server's socket file,
+     * and that the file is removed when the server closes.
+     *
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testLocalSocket() throws Exception
+    {
+        System.out.println("\r\nlocalSocket");
+
+        Assume.assumeTrue(UnixSockets.isSupported());
+
+        Path socketDirectory = Files.createTempDirectory("livebeans");
+        String previousDirectory = System.setProperty(UnixSockets.DIRECTORY_PROPERTY, socketDirectory.toString());
+
+        try
+        {
+            Path socketPath = UnixSockets.getSocketPath(PORT + 1);
+            NioServerTransport localTransport = new NioServerTransport(socketPath);
+            localTransport.bind(server, PORT + 1);
+
+            assertTrue(Files.exists(socketPath));
+
+            UdsClientTransport localClientTransport = new UdsClientTransport();
+            ILiveBeansServer localServer = localClientTransport.connect("localhost", PORT + 1, client);
+
+            assertTrue(localServer.registerClient(client));
+            assertEquals(Integer.valueOf(7), client.ids.poll(WAIT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(11, localServer.registerDocument("LiveBeans", "Main.java"));
+
+            localClientTransport.close();
+            localTransport.close();
+
+            assertFalse(Files.exists(socketPath));
+        }
+        finally
+        {
+            if (previousDirectory == null)
+            {
+                System.clearProperty(UnixSockets.DIRECTORY_PROPERTY);
+            }
+            else
+            {
+                System.setProperty(UnixSockets.DIRECTORY_PROPERTY, previousDirectory);
+            }
+
+            Files.deleteIfExists(socketDirectory);
+        }
+    }
+
+    /**
+     * Server that records what it is sent and echoes segments back
+     */
+    private static class RecordingServer implements ILiveBeansServer
+    {
+
+        final BlockingQueue<String> registeredNames = new LinkedBlockingQueue<>();
+        final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        final BlockingQueue<Long> baseSequences = new LinkedBlockingQueue<>();
+        final BlockingQueue<int[]> subscriptions = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> documentTexts = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> versions = new LinkedBlockingQueue<>();
+        final List<ILiveBeansClient> clients = new ArrayList<>();
+        int nextDocumentID = 11;
+        long lastSequence;
+        volatile CountDownLatch resumeGate;
+
+        @Override
+        public synchronized boolean registerClient(ILiveBeansClient client) throws RemoteException
+        {
+            registeredNames.add(client.getName());
+            clients.add(client);
+            client.setID(7);
+
+            return true;
+        }
+
+        @Override
+        public synchronized boolean unRegisterClient(ILiveBeansClient client) throws RemoteException
+        {
+            return clients.remove(client);
+        }
+
+        @Override
+        public void sendHeartbeat(int clientID) throws RemoteException
+        {
+        }
+
+        @Override
+        public synchronized int registerDocument(String projectName, String documentName) throws RemoteException
+        {
+            return nextDocumentID++;
+        }
+
+        @Override
+        public void subscribeDocument(int clientID, int documentID) throws RemoteException
+        {
+            subscriptions.add(new int[]
+            {
+                clientID, documentID, 1
+            });
+        }
+
+        @Override
+        public void unsubscribeDocument(int clientID, int documentID) throws RemoteException
+        {
+            subscriptions.add(new int[]
+            {
+                clientID, documentID, 0
+            });
+        }
+
+        @Override
+        public void submitDocumentText(int clientID, int documentID, String documentText) throws RemoteException
+        {
+            documentTexts.add(clientID + ":" + documentID + ":" + documentText);
+        }
+
+        @Override
+        public long resumeSession(ILiveBeansClient client, int clientID, long lastSequence) throws RemoteException
+        {
+            CountDownLatch gate = resumeGate;
+
+            if (gate != null)
+            {
+                try
+                {
+                    gate.await(WAIT_SECONDS, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            synchronized (this)
+            {
+                clients.add(client);
+                client.setID(clientID);
+            }
+
+            return lastSequence + 1;
+        }
+
+        @Override
+        public synchronized void distributeCodeSegments(byte[] segmentFrame, int clientID, long batchID, long baseSequence) throws RemoteException
+        {
+            frames.add(segmentFrame);
+            baseSequences.add(baseSequence);
+            lastSequence++;
+
+            for (ILiveBeansClient client : clients)
+            {
+                client.acknowledgeBatch(batchID, lastSequence);
+                client.updateLocalCode(segmentFrame, lastSequence);
+            }
+        }
+
+        @Override
+        public synchronized void acknowledgeVersion(int clientID, long sequence) throws RemoteException
+        {
+            versions.add(clientID + ":" + sequence);
+
+            for (ILiveBeansClient client : clients)
+            {
+                client.collectGarbage(sequence);
+            }
+        }
+    }
+}